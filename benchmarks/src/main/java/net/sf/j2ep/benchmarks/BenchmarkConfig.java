@@ -0,0 +1,104 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.benchmarks;
+
+import net.sf.j2ep.ServerChain;
+import net.sf.j2ep.model.Rule;
+import net.sf.j2ep.model.Server;
+import net.sf.j2ep.rules.AcceptEverythingRule;
+import net.sf.j2ep.rules.CompositeRule;
+import net.sf.j2ep.rules.DirectoryRule;
+import net.sf.j2ep.rules.IPRule;
+import net.sf.j2ep.rules.RewriteRule;
+import net.sf.j2ep.rules.TimeRule;
+import net.sf.j2ep.servers.BaseServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the server chain shared by the benchmarks, a mix of rules
+ * like a larger installation would have. Most servers are mapped by
+ * directory, followed by an IP restricted mount, a mount only open
+ * during the day, a rewritten legacy mount and a catch-all server.
+ */
+public final class BenchmarkConfig {
+
+    /**
+     * Number of directory mapped applications.
+     */
+    public static final int APPLICATIONS = 20;
+
+    private BenchmarkConfig() {
+    }
+
+    /**
+     * Creates the chain.
+     *
+     * @return The chain
+     */
+    public static ServerChain createChain() {
+        List<Server> servers = new ArrayList<>();
+        for (int i = 0; i < APPLICATIONS; i++) {
+            DirectoryRule rule = new DirectoryRule();
+            rule.setDirectory("/app" + i);
+            servers.add(createServer("app" + i + ".internal:8080", "/app" + i, rule));
+        }
+
+        IPRule ip = new IPRule();
+        ip.setStartRange("10.0.0.0");
+        ip.setEndRange("10.255.255.255");
+        DirectoryRule admin = new DirectoryRule();
+        admin.setDirectory("/admin");
+        CompositeRule internal = new CompositeRule();
+        internal.addRule(ip);
+        internal.addRule(admin);
+        servers.add(createServer("admin.internal:8080", "", internal));
+
+        TimeRule time = new TimeRule();
+        time.setStartTime("6");
+        time.setEndTime("22");
+        DirectoryRule reports = new DirectoryRule();
+        reports.setDirectory("/reports");
+        CompositeRule daytime = new CompositeRule();
+        daytime.addRule(time);
+        daytime.addRule(reports);
+        servers.add(createServer("reports.internal:8080", "", daytime));
+
+        RewriteRule legacy = new RewriteRule();
+        legacy.setFrom("^/legacy/(.*)\\.do$");
+        legacy.setTo("/api/$1");
+        legacy.setRevertFrom("^/api/(.*)$");
+        legacy.setRevertTo("/legacy/$1.do");
+        servers.add(createServer("legacy.internal:8080", "", legacy));
+
+        servers.add(createServer("www.internal:8080", "", new AcceptEverythingRule()));
+        return new ServerChain(servers);
+    }
+
+    /**
+     * Creates a rewriting server.
+     */
+    private static BaseServer createServer(String domainName, String path, Rule rule) {
+        BaseServer server = new BaseServer();
+        server.setDomainName(domainName);
+        server.setPath(path);
+        server.setIsRewriting("true");
+        server.setRule(rule);
+        return server;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.benchmarks;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A request with fixed values for the parts the proxy reads on its hot
+ * paths. The values are plain fields so the benchmarks measure the proxy
+ * and not the request, anything else throws.
+ */
+public class BenchmarkRequest extends HttpServletRequestWrapper {
+
+    /**
+     * The headers, keyed by lower case name.
+     */
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
+
+    /**
+     * The header names as they were added.
+     */
+    private final List<String> headerNames = new ArrayList<>();
+
+    private final String servletPath;
+    private final String queryString;
+    private final String remoteAddr;
+
+    /**
+     * Creates a request.
+     *
+     * @param servletPath The path below the context
+     * @param queryString The query string, null if there is none
+     * @param remoteAddr  The address of the client
+     */
+    public BenchmarkRequest(String servletPath, String queryString, String remoteAddr) {
+        super((HttpServletRequest) Proxy.newProxyInstance(BenchmarkRequest.class.getClassLoader(),
+                new Class[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+        this.servletPath = servletPath;
+        this.queryString = queryString;
+        this.remoteAddr = remoteAddr;
+    }
+
+    /**
+     * Adds a header value.
+     *
+     * @param name  The header name
+     * @param value The value
+     * @return This request
+     */
+    public BenchmarkRequest addHeader(String name, String value) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+        if (values == null) {
+            values = new ArrayList<>();
+            headers.put(name.toLowerCase(Locale.ENGLISH), values);
+            headerNames.add(name);
+        }
+        values.add(value);
+        return this;
+    }
+
+    public String getHeader(String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+        return (values != null) ? values.get(0) : null;
+    }
+
+    public Enumeration<String> getHeaders(String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+        return Collections.enumeration((values != null) ? values : Collections.<String>emptyList());
+    }
+
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(headerNames);
+    }
+
+    public String getMethod() {
+        return "GET";
+    }
+
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    public String getServerName() {
+        return "proxy.example.com";
+    }
+
+    public String getContextPath() {
+        return "";
+    }
+
+    public String getServletPath() {
+        return servletPath;
+    }
+
+    public String getPathInfo() {
+        return null;
+    }
+
+    public String getRequestURI() {
+        return servletPath;
+    }
+
+    public String getQueryString() {
+        return queryString;
+    }
+
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.benchmarks;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.lang.reflect.Proxy;
+
+/**
+ * A response only keeping the last header written, enough for the
+ * wrappers rewriting headers without measuring a real response.
+ */
+public class BenchmarkResponse extends HttpServletResponseWrapper {
+
+    private String lastName;
+    private String lastValue;
+
+    /**
+     * Creates a response.
+     */
+    public BenchmarkResponse() {
+        super((HttpServletResponse) Proxy.newProxyInstance(BenchmarkResponse.class.getClassLoader(),
+                new Class[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+    }
+
+    public void addHeader(String name, String value) {
+        lastName = name;
+        lastValue = value;
+    }
+
+    public void setHeader(String name, String value) {
+        lastName = name;
+        lastValue = value;
+    }
+
+    /**
+     * Returns the name of the last header written.
+     *
+     * @return The name
+     */
+    public String getLastName() {
+        return lastName;
+    }
+
+    /**
+     * Returns the value of the last header written.
+     *
+     * @return The value
+     */
+    public String getLastValue() {
+        return lastValue;
+    }
+}
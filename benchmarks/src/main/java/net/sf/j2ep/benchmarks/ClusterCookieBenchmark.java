@@ -0,0 +1,70 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.benchmarks;
+
+import net.sf.j2ep.servers.ClusterRequestWrapper;
+import net.sf.j2ep.servers.ClusterResponseWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Enumeration;
+
+/**
+ * Measures the session cookie handling of clusters, removing the
+ * server id from the request cookies and adding it to the cookies
+ * set by the server.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ClusterCookieBenchmark {
+
+    private BenchmarkRequest request;
+    private BenchmarkResponse response;
+
+    @Setup
+    public void setUp() {
+        request = new BenchmarkRequest("/app3/orders", null, "192.168.1.20");
+        request.addHeader("Cookie", "JSESSIONID=8f2a6c1e9b7d4e03a5c2b1f0e9d8c7b6.server1; theme=dark; consent=1")
+               .addHeader("Cookie", "_ga=GA1.2.1234567890.1234567890; _gid=GA1.2.987654321.987654321");
+        response = new BenchmarkResponse();
+    }
+
+    @Benchmark
+    public void requestCookies(Blackhole blackhole) {
+        ClusterRequestWrapper wrapper = new ClusterRequestWrapper(request);
+        Enumeration cookies = wrapper.getHeaders("Cookie");
+        while (cookies.hasMoreElements()) {
+            blackhole.consume(cookies.nextElement());
+        }
+    }
+
+    @Benchmark
+    public String responseCookies() {
+        ClusterResponseWrapper wrapper = new ClusterResponseWrapper(response, "server1");
+        wrapper.addHeader("Content-Type", "text/html;charset=UTF-8");
+        wrapper.addHeader("Set-Cookie", "JSESSIONID=8f2a6c1e9b7d4e03a5c2b1f0e9d8c7b6; Path=/app3; HttpOnly");
+        return response.getLastValue();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.benchmarks;
+
+import net.sf.j2ep.ServerChain;
+import net.sf.j2ep.model.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures finding the server for a request. The request either
+ * matches an early directory rule, the last directory rule, the
+ * rewrite rule behind the composite rules or falls through to the
+ * catch-all server.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ServerChainBenchmark {
+
+    @Param({"first", "last", "rewrite", "fallback"})
+    public String target;
+
+    private ServerChain chain;
+    private BenchmarkRequest request;
+
+    @Setup
+    public void setUp() {
+        chain = BenchmarkConfig.createChain();
+        String path;
+        switch (target) {
+            case "first":
+                path = "/app1/index.html";
+                break;
+            case "last":
+                path = "/app" + (BenchmarkConfig.APPLICATIONS - 1) + "/index.html";
+                break;
+            case "rewrite":
+                path = "/legacy/orders/list.do";
+                break;
+            default:
+                path = "/static/css/site.css";
+        }
+        request = new BenchmarkRequest(path, "page=2&sort=date", "192.168.1.20");
+    }
+
+    @Benchmark
+    public Server evaluate() {
+        return chain.evaluate(request);
+    }
+}
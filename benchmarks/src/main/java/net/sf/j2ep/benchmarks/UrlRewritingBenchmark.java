@@ -0,0 +1,80 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.benchmarks;
+
+import net.sf.j2ep.ServerChain;
+import net.sf.j2ep.UrlRewritingOutputStream;
+import net.sf.j2ep.model.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures rewriting the links of a page. The pages mix links local to
+ * the server, absolute links to mapped servers, links to unknown hosts
+ * and plain markup, the large page is the small one repeated.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UrlRewritingBenchmark {
+
+    @Param({"small", "large"})
+    public String page;
+
+    private ServerChain chain;
+    private Server server;
+    private byte[] html;
+
+    @Setup
+    public void setUp() {
+        chain = BenchmarkConfig.createChain();
+        server = chain.evaluate(new BenchmarkRequest("/app3/index.html", null, "192.168.1.20"));
+        int repeat = "large".equals(page) ? 200 : 1;
+        StringBuilder body = new StringBuilder("<html><head><title>Orders</title>");
+        body.append("<link href=\"/app3/css/site.css\" rel=\"stylesheet\">");
+        body.append("<script src='/app3/js/app.js'></script></head><body>");
+        for (int i = 0; i < repeat; i++) {
+            body.append("<div class=\"row\"><p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, ")
+                .append("sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.</p>")
+                .append("<a href=\"/app3/orders/").append(i).append("\">Order ").append(i).append("</a> ")
+                .append("<a href=\"http://app7.internal:8080/app7/customers?id=").append(i).append("\">Customer</a> ")
+                .append("<a href=\"https://www.example.org/help\">Help</a> ")
+                .append("<img src=\"/app3/img/").append(i).append(".png\" alt=\"\">")
+                .append("<form action=\"/app3/orders/").append(i).append("/edit\" method=\"post\"></form>")
+                .append("<span style=\"background: url('/app3/img/bg.png')\"></span></div>\n");
+        }
+        body.append("</body></html>");
+        html = body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String rewrite() throws IOException {
+        UrlRewritingOutputStream stream = new UrlRewritingOutputStream(null, "proxy.example.com", "/proxy", chain);
+        stream.write(html);
+        return stream.rewritePage(server);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds. Every power of two is split
+ * in 64 buckets so a recorded value is off by at most 1.6%, recording is
+ * a single atomic increment and the histogram never grows.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Buckets for every power of two.
+     */
+    private static final int SUB_BUCKETS = 64;
+
+    /**
+     * The counts, enough buckets for any positive long.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray((64 - 5) * SUB_BUCKETS);
+
+    /**
+     * Records a latency.
+     *
+     * @param micros The latency in microseconds
+     */
+    public void record(long micros) {
+        counts.incrementAndGet(indexOf(Math.max(0, micros)));
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return The count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the latency a fraction of the recorded latencies are
+     * below or equal to.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The latency in microseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(counts.length() - 1);
+    }
+
+    /**
+     * Returns the largest recorded latency, as the top of its bucket.
+     *
+     * @return The latency in microseconds, 0 if nothing was recorded
+     */
+    public long getMax() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                return highestValueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the mean of the recorded latencies.
+     *
+     * @return The mean in microseconds, 0 if nothing was recorded
+     */
+    public double getMean() {
+        long count = 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long n = counts.get(i);
+            if (n > 0) {
+                count += n;
+                sum += n * (lowestValueOf(i) + highestValueOf(i)) / 2.0;
+            }
+        }
+        return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * Forgets all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * Finds the bucket for a value.
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int power = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (power - 6)) & (SUB_BUCKETS - 1));
+        return (power - 5) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the smallest value of a bucket.
+     */
+    static long lowestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int power = index / SUB_BUCKETS + 5;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (power - 6);
+    }
+
+    /**
+     * Returns the largest value of a bucket.
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int power = index / SUB_BUCKETS + 5;
+        return lowestValueOf(index) + (1L << (power - 6)) - 1;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.loadtest;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests to the proxy and records how long they take. In a
+ * closed loop a fixed number of clients send a request as soon as
+ * their previous one is answered. In an open loop requests are sent at
+ * a fixed rate whatever the response times are, the latency is counted
+ * from the time a request should have been sent so a stalled proxy
+ * can't hide the requests it delayed.
+ */
+public class LoadGenerator {
+
+    /**
+     * The client sending the requests.
+     */
+    private final CloseableHttpClient client;
+
+    /**
+     * The URL requested.
+     */
+    private final String url;
+
+    /**
+     * Share of the clients reading the responses slowly.
+     */
+    private final double slowClients;
+
+    /**
+     * Milliseconds a slow client waits after every KB read.
+     */
+    private final long slowReadDelay;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Creates a generator.
+     *
+     * @param url           The URL to request
+     * @param connections   Maximum number of connections to the proxy
+     * @param slowClients   Share of the requests read slowly, between 0 and 1
+     * @param slowReadDelay Milliseconds to wait after every KB of a slowly read response
+     */
+    public LoadGenerator(String url, int connections, double slowClients, long slowReadDelay) {
+        this.url = url;
+        this.slowClients = slowClients;
+        this.slowReadDelay = slowReadDelay;
+        RequestConfig config = RequestConfig.custom()
+                                            .setConnectTimeout(5000)
+                                            .setSocketTimeout(60000)
+                                            .setRedirectsEnabled(false)
+                                            .build();
+        client = HttpClients.custom()
+                            .setDefaultRequestConfig(config)
+                            .setMaxConnPerRoute(connections)
+                            .setMaxConnTotal(connections)
+                            .disableAutomaticRetries()
+                            .disableCookieManagement()
+                            .disableContentCompression()
+                            .build();
+    }
+
+    /**
+     * Sends requests with a fixed number of clients.
+     *
+     * @param clients The number of clients
+     * @param until   When to stop, as returned by System.nanoTime
+     * @throws InterruptedException If interrupted while waiting for the clients
+     */
+    public void runClosed(int clients, final long until) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            executor.execute(() -> {
+                while (System.nanoTime() < until) {
+                    send(System.nanoTime());
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends requests at a fixed rate. When all clients are busy the
+     * requests wait for one and the waiting is part of their latency.
+     *
+     * @param rate    Requests per second
+     * @param clients Maximum number of requests in flight
+     * @param until   When to stop, as returned by System.nanoTime
+     * @throws InterruptedException If interrupted while waiting for the clients
+     */
+    public void runOpen(double rate, int clients, long until) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long next = System.nanoTime();
+        while (next < until) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            final long intended = next;
+            executor.execute(() -> send(intended));
+            next += interval;
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the latencies of the requests, failed ones included.
+     *
+     * @return The latencies
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Returns the number of requests that failed or weren't answered with a 2xx.
+     *
+     * @return The count
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Returns the number of body bytes received.
+     *
+     * @return The count
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Forgets what has been recorded, used after the warm up.
+     */
+    public void reset() {
+        latencies.reset();
+        errors.set(0);
+        bytes.set(0);
+    }
+
+    /**
+     * Closes the client.
+     *
+     * @throws IOException If the client fails to close
+     */
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /**
+     * Sends a request and records the result.
+     *
+     * @param start When the request should have been sent, as returned by System.nanoTime
+     */
+    private void send(long start) {
+        boolean slow = slowClients > 0 && ThreadLocalRandom.current().nextDouble() < slowClients;
+        try (CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+            HttpEntity entity = response.getEntity();
+            long read = (entity != null) ? read(entity.getContent(), slow) : 0;
+            bytes.addAndGet(read);
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300) {
+                errors.incrementAndGet();
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+        }
+        latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * Reads a body, pausing after every KB for a slow client.
+     */
+    private long read(InputStream in, boolean slow) throws IOException {
+        byte[] buffer = new byte[slow ? 1024 : 16384];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            total += count;
+            if (slow) {
+                StubBackend.pause(slowReadDelay);
+            }
+        }
+        return total;
+    }
+}
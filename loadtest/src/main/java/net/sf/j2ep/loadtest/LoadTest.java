@@ -0,0 +1,209 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.loadtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a load test against the proxy. The proxy and the backends run in
+ * this JVM, the options set how the backends behave, how the proxy is
+ * configured and how the load is generated. Init parameters for the
+ * proxy filter are given with -param, e.g. -param spoolResponses=true,
+ * so runs with different settings can be compared on one machine.
+ * <p/>
+ * The report has the latency percentiles, the throughput, and how many
+ * threads and connections were in use.
+ */
+public final class LoadTest {
+
+    /**
+     * The options with their defaults and descriptions.
+     */
+    private static final String[][] OPTIONS = {
+            {"mode", "closed", "closed: a fixed number of clients, open: a fixed request rate"},
+            {"concurrency", "50", "Number of clients, the maximum in flight for an open loop"},
+            {"rate", "1000", "Requests per second for an open loop"},
+            {"duration", "30", "Seconds to measure"},
+            {"warmup", "5", "Seconds of load before measuring"},
+            {"path", "/", "Path requested"},
+            {"backends", "1", "Number of backends, more than one are put in a cluster"},
+            {"cluster", "net.sf.j2ep.servers.RoundRobinCluster", "Cluster used for several backends"},
+            {"latency", "10", "Milliseconds a backend waits before answering"},
+            {"bodySize", "16384", "Size of the response bodies"},
+            {"failureRate", "0", "Share of the requests a backend fails, between 0 and 1"},
+            {"chunkDelay", "0", "Milliseconds a backend waits between every 4 KB of a body"},
+            {"backendThreads", "200", "Threads of every backend"},
+            {"slowClients", "0", "Share of the responses read slowly, between 0 and 1"},
+            {"slowReadDelay", "10", "Milliseconds a slow client waits after every KB"},
+            {"proxyThreads", "200", "Threads of the container running the proxy"},
+            {"rewrite", "false", "true to add the rewrite filter in front of the proxy"},
+            {"param", null, "An init parameter for the proxy filter as name=value, can be repeated"},
+    };
+
+    private LoadTest() {
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args The options, each given as -name value
+     * @throws Exception If the servers fail to start or stop
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        Map<String, String> params = new LinkedHashMap<>();
+        for (String[] option : OPTIONS) {
+            if (option[1] != null) {
+                options.put(option[0], option[1]);
+            }
+        }
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i].startsWith("-") ? args[i].substring(1) : args[i];
+            if (!options.containsKey(name) && !name.equals("param") || i + 1 >= args.length) {
+                usage("Unknown or incomplete option " + args[i]);
+                return;
+            }
+            if (name.equals("param")) {
+                String[] param = args[i + 1].split("=", 2);
+                if (param.length != 2) {
+                    usage("A parameter must be given as name=value: " + args[i + 1]);
+                    return;
+                }
+                params.put(param[0], param[1]);
+            } else {
+                options.put(name, args[i + 1]);
+            }
+        }
+        run(options, params);
+    }
+
+    /**
+     * Starts the servers, runs the load and prints the report.
+     */
+    private static void run(Map<String, String> options, Map<String, String> params) throws Exception {
+        List<StubBackend> backends = new ArrayList<>();
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < toInt(options, "backends"); i++) {
+            StubBackend backend = new StubBackend("backend" + i, toLong(options, "latency"), toInt(options, "bodySize"),
+                                                  toDouble(options, "failureRate"), toLong(options, "chunkDelay"),
+                                                  toInt(options, "backendThreads"));
+            backend.start();
+            backends.add(backend);
+            addresses.add(backend.getAddress());
+        }
+        ProxyServer proxy = new ProxyServer(addresses, options.get("cluster"), Boolean.parseBoolean(options.get("rewrite")),
+                                            toInt(options, "proxyThreads"), params);
+        proxy.start();
+
+        int concurrency = toInt(options, "concurrency");
+        boolean open = "open".equals(options.get("mode"));
+        LoadGenerator generator = new LoadGenerator(proxy.getUrl() + options.get("path"), concurrency,
+                                                    toDouble(options, "slowClients"), toLong(options, "slowReadDelay"));
+        UsageSampler sampler = new UsageSampler(proxy, backends);
+        try {
+            long warmup = TimeUnit.SECONDS.toNanos(toLong(options, "warmup"));
+            if (warmup > 0) {
+                System.out.println("Warming up for " + options.get("warmup") + " s");
+                load(generator, open, options, concurrency, System.nanoTime() + warmup);
+            }
+            generator.reset();
+            System.out.println("Measuring for " + options.get("duration") + " s");
+            sampler.start();
+            long start = System.nanoTime();
+            load(generator, open, options, concurrency, start + TimeUnit.SECONDS.toNanos(toLong(options, "duration")));
+            long elapsed = System.nanoTime() - start;
+            sampler.stop();
+            report(options, params, generator, sampler, elapsed);
+        } finally {
+            sampler.stop();
+            generator.close();
+            proxy.stop();
+            for (StubBackend backend : backends) {
+                backend.stop();
+            }
+        }
+    }
+
+    /**
+     * Sends requests until a point in time.
+     */
+    private static void load(LoadGenerator generator, boolean open, Map<String, String> options, int concurrency,
+                             long until) throws InterruptedException {
+        if (open) {
+            generator.runOpen(toDouble(options, "rate"), concurrency, until);
+        } else {
+            generator.runClosed(concurrency, until);
+        }
+    }
+
+    /**
+     * Prints the results.
+     */
+    private static void report(Map<String, String> options, Map<String, String> params, LoadGenerator generator,
+                               UsageSampler sampler, long elapsed) {
+        LatencyHistogram latencies = generator.getLatencies();
+        double seconds = elapsed / 1e9;
+        long requests = latencies.getCount();
+        System.out.println();
+        System.out.println("Mode: " + options.get("mode") + ("open".equals(options.get("mode"))
+                                                           ? " at " + options.get("rate") + " req/s" : "")
+                           + ", concurrency " + options.get("concurrency") + ", " + options.get("backends") + " backend(s)"
+                           + ("true".equals(options.get("rewrite")) ? ", rewriting" : ""));
+        if (!params.isEmpty()) {
+            System.out.println("Proxy parameters: " + params);
+        }
+        System.out.println(String.format("Requests: %d, errors: %d, throughput: %.1f req/s, %.2f MB/s",
+                                          requests, generator.getErrors(), requests / seconds,
+                                          generator.getBytes() / seconds / (1 << 20)));
+        System.out.println(String.format("Latency (ms): mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+                                          latencies.getMean() / 1000, latencies.getPercentile(50) / 1000.0,
+                                          latencies.getPercentile(90) / 1000.0, latencies.getPercentile(99) / 1000.0,
+                                          latencies.getPercentile(99.9) / 1000.0, latencies.getMax() / 1000.0));
+        System.out.println();
+        System.out.print(sampler.report());
+    }
+
+    /**
+     * Prints the options and why they couldn't be used.
+     */
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: java -jar loadtest.jar [-option value]...");
+        for (String[] option : OPTIONS) {
+            System.err.println(String.format("  -%-16s %s%s", option[0], option[2],
+                                             option[1] != null ? " (default " + option[1] + ")" : ""));
+        }
+        System.exit(1);
+    }
+
+    private static int toInt(Map<String, String> options, String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private static long toLong(Map<String, String> options, String name) {
+        return Long.parseLong(options.get(name));
+    }
+
+    private static double toDouble(Map<String, String> options, String name) {
+        return Double.parseDouble(options.get(name));
+    }
+}
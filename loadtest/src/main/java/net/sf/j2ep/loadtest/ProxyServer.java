@@ -0,0 +1,174 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.loadtest;
+
+import net.sf.j2ep.ProxyFilter;
+import net.sf.j2ep.RewriteFilter;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The proxy running in an embedded Jetty. The configuration is written
+ * to a temporary directory used as the root of the web application, it
+ * maps everything to the backends, to a single server when there is one
+ * backend and to a cluster otherwise.
+ */
+public class ProxyServer {
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final QueuedThreadPool threadPool;
+    private final File root;
+
+    /**
+     * Creates the proxy, it's not started.
+     *
+     * @param backends     The addresses of the backends
+     * @param clusterClass The cluster used for several backends
+     * @param rewrite      True to add the rewrite filter in front of the proxy
+     * @param threads      Maximum number of container threads
+     * @param params       Init parameters for the proxy filter
+     * @throws IOException If the configuration can't be written
+     */
+    public ProxyServer(List<String> backends, String clusterClass, boolean rewrite, int threads,
+                       Map<String, String> params) throws IOException {
+        root = Files.createTempDirectory("j2ep-loadtest").toFile();
+        Files.write(new File(root, "data.xml").toPath(), createConfig(backends, clusterClass).getBytes(StandardCharsets.UTF_8));
+
+        threadPool = new QueuedThreadPool(threads, Math.min(8, threads));
+        threadPool.setName("proxy");
+        server = new Server(threadPool);
+        connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.setResourceBase(root.getAbsolutePath());
+        context.setAttribute(ServletContext.TEMPDIR, root);
+        EnumSet<DispatcherType> dispatches = EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC);
+        if (rewrite) {
+            FilterHolder holder = new FilterHolder(RewriteFilter.class);
+            holder.setInitParameter("dataUrl", "/data.xml");
+            holder.setAsyncSupported(true);
+            context.addFilter(holder, "/*", EnumSet.of(DispatcherType.REQUEST));
+        }
+        Map<String, String> proxyParams = new HashMap<>(params);
+        proxyParams.put("dataUrl", "/data.xml");
+        FilterHolder holder = new FilterHolder(ProxyFilter.class);
+        holder.setInitParameters(proxyParams);
+        holder.setAsyncSupported(true);
+        context.addFilter(holder, "/*", dispatches);
+        server.setHandler(context);
+    }
+
+    /**
+     * Starts the proxy on a free port.
+     *
+     * @throws Exception If the proxy fails to start
+     */
+    public void start() throws Exception {
+        server.start();
+    }
+
+    /**
+     * Stops the proxy and removes its configuration.
+     *
+     * @throws Exception If the proxy fails to stop
+     */
+    public void stop() throws Exception {
+        server.stop();
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        root.delete();
+    }
+
+    /**
+     * Returns the URL of the proxy.
+     *
+     * @return The URL, without a trailing slash
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + connector.getLocalPort();
+    }
+
+    /**
+     * Returns the number of client connections currently open.
+     *
+     * @return The count
+     */
+    public int getConnections() {
+        return connector.getConnectedEndPoints().size();
+    }
+
+    /**
+     * Returns the number of container threads handling requests.
+     *
+     * @return The count
+     */
+    public int getBusyThreads() {
+        return threadPool.getBusyThreads();
+    }
+
+    /**
+     * Returns the number of container threads.
+     *
+     * @return The count
+     */
+    public int getThreads() {
+        return threadPool.getThreads();
+    }
+
+    /**
+     * Creates the configuration mapping everything to the backends.
+     */
+    static String createConfig(List<String> backends, String clusterClass) {
+        StringBuilder config = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<config>\n");
+        if (backends.size() == 1) {
+            config.append("  <server className=\"net.sf.j2ep.servers.BaseServer\" domainName=\"")
+                  .append(backends.get(0)).append("\">\n")
+                  .append("    <rule className=\"net.sf.j2ep.rules.AcceptEverythingRule\"/>\n")
+                  .append("  </server>\n");
+        } else {
+            config.append("  <cluster-server className=\"").append(clusterClass).append("\">\n");
+            for (String backend : backends) {
+                config.append("    <server domainName=\"").append(backend).append("\"/>\n");
+            }
+            config.append("    <rule className=\"net.sf.j2ep.rules.AcceptEverythingRule\"/>\n")
+                  .append("  </cluster-server>\n");
+        }
+        return config.append("</config>\n").toString();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.loadtest;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server standing in for the servers behind the proxy. It answers
+ * every request after a delay with a body of a fixed size, fails a
+ * share of the requests, and can send the body in slow pieces.
+ */
+public class StubBackend {
+
+    /**
+     * Size of the pieces a slow body is sent in.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final AtomicLong requests = new AtomicLong();
+    private final String id;
+
+    /**
+     * Creates a backend, it's not started.
+     *
+     * @param id          A name put in the responses so it's visible which backend answered
+     * @param latency     Milliseconds to wait before answering
+     * @param bodySize    Size of the response bodies
+     * @param failureRate Share of the requests answered with 503, between 0 and 1
+     * @param chunkDelay  Milliseconds to wait between every 4 KB of the body, 0 to send it at once
+     * @param threads     Number of threads serving requests
+     */
+    public StubBackend(String id, final long latency, int bodySize, final double failureRate, final long chunkDelay, int threads) {
+        this.id = id;
+        final byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        server = new Server(new QueuedThreadPool(threads, Math.min(8, threads)));
+        connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                requests.incrementAndGet();
+                drain(request.getInputStream());
+                pause(latency);
+                if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+                response.setContentType("text/plain");
+                response.setHeader("X-Backend", StubBackend.this.id);
+                response.setContentLength(body.length);
+                ServletOutputStream out = response.getOutputStream();
+                if (chunkDelay <= 0) {
+                    out.write(body);
+                    return;
+                }
+                for (int off = 0; off < body.length; off += CHUNK_SIZE) {
+                    out.write(body, off, Math.min(CHUNK_SIZE, body.length - off));
+                    out.flush();
+                    pause(chunkDelay);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the server on a free port.
+     *
+     * @throws Exception If the server fails to start
+     */
+    public void start() throws Exception {
+        server.start();
+    }
+
+    /**
+     * Stops the server.
+     *
+     * @throws Exception If the server fails to stop
+     */
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * Returns the host and port the server listens on.
+     *
+     * @return The address, e.g. 127.0.0.1:41234
+     */
+    public String getAddress() {
+        return "127.0.0.1:" + connector.getLocalPort();
+    }
+
+    /**
+     * Returns the number of connections currently open to the server.
+     *
+     * @return The count
+     */
+    public int getConnections() {
+        return connector.getConnectedEndPoints().size();
+    }
+
+    /**
+     * Returns the number of requests received.
+     *
+     * @return The count
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Reads and discards a request body.
+     */
+    private static void drain(ServletInputStream in) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        while (in.read(buffer) != -1) {
+            // discarded
+        }
+    }
+
+    /**
+     * Sleeps, giving up when interrupted.
+     */
+    static void pause(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples how many threads and connections are in use while the load
+ * runs, keeping the average and the peak of every value.
+ */
+public class UsageSampler {
+
+    private final ProxyServer proxy;
+    private final List<StubBackend> backends;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final ScheduledExecutorService executor;
+
+    private long samples;
+    private long busyThreadsSum;
+    private int busyThreadsPeak;
+    private int proxyThreadsPeak;
+    private long jvmThreadsSum;
+    private int jvmThreadsPeak;
+    private long clientConnectionsSum;
+    private int clientConnectionsPeak;
+    private long backendConnectionsSum;
+    private int backendConnectionsPeak;
+
+    /**
+     * Creates a sampler, it's not started.
+     *
+     * @param proxy    The proxy
+     * @param backends The backends
+     */
+    public UsageSampler(ProxyServer proxy, List<StubBackend> backends) {
+        this.proxy = proxy;
+        this.backends = backends;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "usage-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts sampling every 100 milliseconds.
+     */
+    public void start() {
+        executor.scheduleAtFixedRate(this::sample, 0, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Forgets the samples taken, used after the warm up.
+     */
+    public synchronized void reset() {
+        samples = 0;
+        busyThreadsSum = busyThreadsPeak = proxyThreadsPeak = 0;
+        jvmThreadsSum = jvmThreadsPeak = 0;
+        clientConnectionsSum = clientConnectionsPeak = 0;
+        backendConnectionsSum = backendConnectionsPeak = 0;
+    }
+
+    /**
+     * Takes a sample.
+     */
+    private synchronized void sample() {
+        int busy = proxy.getBusyThreads();
+        int jvm = threads.getThreadCount();
+        int clients = proxy.getConnections();
+        int upstream = 0;
+        for (StubBackend backend : backends) {
+            upstream += backend.getConnections();
+        }
+        samples++;
+        busyThreadsSum += busy;
+        busyThreadsPeak = Math.max(busyThreadsPeak, busy);
+        proxyThreadsPeak = Math.max(proxyThreadsPeak, proxy.getThreads());
+        jvmThreadsSum += jvm;
+        jvmThreadsPeak = Math.max(jvmThreadsPeak, jvm);
+        clientConnectionsSum += clients;
+        clientConnectionsPeak = Math.max(clientConnectionsPeak, clients);
+        backendConnectionsSum += upstream;
+        backendConnectionsPeak = Math.max(backendConnectionsPeak, upstream);
+    }
+
+    /**
+     * Returns a table with the averages and peaks.
+     *
+     * @return The report
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-28s %10s %10s%n", "", "average", "peak"));
+        row(report, "busy proxy threads", busyThreadsSum, busyThreadsPeak);
+        row(report, "proxy threads", -1, proxyThreadsPeak);
+        row(report, "JVM threads", jvmThreadsSum, jvmThreadsPeak);
+        row(report, "client connections", clientConnectionsSum, clientConnectionsPeak);
+        row(report, "backend connections", backendConnectionsSum, backendConnectionsPeak);
+        return report.toString();
+    }
+
+    /**
+     * Adds a row to the report, a negative sum leaves out the average.
+     */
+    private void row(StringBuilder report, String name, long sum, int peak) {
+        String average = (sum >= 0 && samples > 0) ? String.format("%.1f", (double) sum / samples) : "-";
+        report.append(String.format("%-28s %10s %10d%n", name, average, peak));
+    }
+}
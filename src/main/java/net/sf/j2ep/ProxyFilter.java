@@ -16,31 +16,76 @@
 
 package net.sf.j2ep;
 
+import net.sf.j2ep.accesslog.AccessLog;
+import net.sf.j2ep.accesslog.AccessRecord;
+import net.sf.j2ep.cache.FileRegionResourceFactory;
+import net.sf.j2ep.cache.IndexedCacheStorage;
+import net.sf.j2ep.cache.NegativeCache;
+import net.sf.j2ep.cache.ProxyCachingHttpClientBuilder;
+import net.sf.j2ep.cache.RequestCoalescer;
+import net.sf.j2ep.cache.ValidatorCache;
 import net.sf.j2ep.factories.MethodNotAllowedException;
 import net.sf.j2ep.factories.RequestHandlerFactory;
 import net.sf.j2ep.factories.ResponseHandlerFactory;
+import net.sf.j2ep.io.BodyTransfer;
+import net.sf.j2ep.io.BufferPool;
+import net.sf.j2ep.jfr.FlightRecorderEvents;
+import net.sf.j2ep.jfr.ProxyRequestEvent;
+import net.sf.j2ep.jfr.ResponseCopyEvent;
+import net.sf.j2ep.jfr.RuleEvaluationEvent;
+import net.sf.j2ep.jfr.TracingConnectionManager;
+import net.sf.j2ep.jfr.UpstreamRequestEvent;
+import net.sf.j2ep.jmx.CacheStatistics;
+import net.sf.j2ep.jmx.Cluster;
+import net.sf.j2ep.jmx.ConnectionSettings;
+import net.sf.j2ep.jmx.MBeanRegistrar;
 import net.sf.j2ep.model.AllowedMethodHandler;
+import net.sf.j2ep.model.CircuitBreaker;
+import net.sf.j2ep.model.CircuitBreakerOpenException;
 import net.sf.j2ep.model.RequestHandler;
 import net.sf.j2ep.model.ResponseHandler;
 import net.sf.j2ep.model.Rule;
 import net.sf.j2ep.model.Server;
+import net.sf.j2ep.model.ServerContainer;
+import net.sf.j2ep.monitor.InFlightRegistry;
+import net.sf.j2ep.monitor.InFlightRequest;
+import net.sf.j2ep.monitor.MetricsRegistry;
+import net.sf.j2ep.monitor.ServerTiming;
+import net.sf.j2ep.monitor.SlowRequest;
+import net.sf.j2ep.monitor.SlowRequestSampler;
+import net.sf.j2ep.monitor.TimingConnectionManager;
+import net.sf.j2ep.monitor.TimingRequestExecutor;
+import net.sf.j2ep.requesthandlers.EntityEnclosingRequestHandler;
+import net.sf.j2ep.requesthandlers.RequestBodyReadException;
+import net.sf.j2ep.requesthandlers.RequestEntityTooLargeException;
+import net.sf.j2ep.responsehandlers.ResponseHandlerBase;
 import net.sf.j2ep.rules.DirectoryRule;
+import net.sf.j2ep.servers.ClusterContainer;
+import net.sf.j2ep.servers.RetryBudget;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
 import org.apache.http.StatusLine;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
 import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
 import org.apache.http.impl.client.cache.CacheConfig;
-import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.client.cache.ManagedHttpCacheStorage;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.protocol.HTTP;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,20 +94,29 @@ import javax.servlet.AsyncContext;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebFilter;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A reverse proxy using a set of Rules to identify which resource to proxy.
@@ -82,6 +136,14 @@ import java.util.Map;
 @WebFilter(asyncSupported = true)
 public class ProxyFilter implements Filter {
 
+    /**
+     * Name of a request attribute holding a Closeable that finishes the
+     * response. It is closed once the server's response has been copied,
+     * on the thread doing the proxying, so a filter wrapping the response
+     * can send what it buffered before the request completes.
+     */
+    public static final String FINISHER_KEY = "j2ep.response-finisher";
+
     /**
      * The server chain, will be traversed to find a matching server.
      */
@@ -97,6 +159,102 @@ public class ProxyFilter implements Filter {
      */
     private CloseableHttpClient httpClient;
 
+    /**
+     * The storage used by the caching client when one is configured,
+     * closed together with the client.
+     */
+    private HttpCacheStorage cacheStorage;
+
+    /**
+     * The context shared components are published in.
+     */
+    private ServletContext servletContext;
+
+    /**
+     * Methods that can be repeated without changing the
+     * result, these can be retried on another server.
+     */
+    private static final Set<String> IDEMPOTENT_METHODS =
+            new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+    /**
+     * The maximum number of times a failed request is retried.
+     */
+    private int maxRetries;
+
+    /**
+     * Limits the retries to a part of the total traffic.
+     */
+    private RetryBudget retryBudget;
+
+    /**
+     * Lets concurrent identical GET requests share one request
+     * to the server, null if coalescing is turned off.
+     */
+    private RequestCoalescer coalescer;
+
+    /**
+     * Keeps error responses for the routes configured to cache them.
+     */
+    private NegativeCache negativeCache;
+
+    /**
+     * Remembers validators of fresh responses so conditional requests
+     * can be answered with a 304, null if this is turned off.
+     */
+    private ValidatorCache validatorCache;
+
+    /**
+     * The directory response bodies are spooled to, null if
+     * responses are streamed straight to the client.
+     */
+    private File spoolDir;
+
+    /**
+     * Number of bytes of a spooled body kept in memory.
+     */
+    private int spoolMemoryThreshold;
+
+    /**
+     * Largest number of bytes spooled for a response.
+     */
+    private long spoolMaxSize;
+
+    /**
+     * Latencies and counters for every route, null if metrics are turned off.
+     */
+    private MetricsRegistry metrics;
+
+    /**
+     * The connection pool and the timeouts used for new requests.
+     */
+    private ConnectionSettings connectionSettings;
+
+    /**
+     * The MBeans registered for the proxy, null if JMX is turned off.
+     */
+    private MBeanRegistrar mbeans;
+
+    /**
+     * Client addresses always sent a Server-Timing header.
+     */
+    private Set<String> serverTimingAddresses;
+
+    /**
+     * The access log, null if requests aren't logged.
+     */
+    private AccessLog accessLog;
+
+    /**
+     * Keeps the slowest requests of every route, null if they aren't kept.
+     */
+    private SlowRequestSampler slowRequests;
+
+    /**
+     * The requests being proxied, null if they aren't tracked.
+     */
+    private InFlightRegistry inFlightRequests;
+
     /**
      * Implementation of a reverse-proxy. All request go through here. This is
      * the main class where are handling starts.
@@ -112,8 +270,18 @@ public class ProxyFilter implements Filter {
         final HttpServletRequest httpRequest = (HttpServletRequest) req;
 
         Server server = (Server) httpRequest.getAttribute("proxyServer");
+        long routingNanos = -1;
         if (server == null) {
+            RuleEvaluationEvent ruleEvent = FlightRecorderEvents.isEnabled() ? new RuleEvaluationEvent() : null;
+            if (ruleEvent != null) {
+                ruleEvent.begin();
+            }
+            long routingStart = System.nanoTime();
             server = serverChain.evaluate(httpRequest);
+            routingNanos = System.nanoTime() - routingStart;
+            if (ruleEvent != null) {
+                ruleEvent.finish(httpRequest.getRequestURI(), server);
+            }
         }
         if (server == null) {
             filterChain.doFilter(req, resp);
@@ -134,10 +302,13 @@ public class ProxyFilter implements Filter {
         }
 
         final Server fServer = server;
-        final AsyncContext actx = req.isAsyncStarted() ? req.getAsyncContext() : req.startAsync();
+        final String uri = getURI(httpRequest);
+        final long received = System.nanoTime();
+        final ServerTiming timing = createServerTiming(httpRequest, server, routingNanos);
+        final AsyncContext actx = req.isAsyncStarted() ? req.getAsyncContext() : req.startAsync(req, resp);
         actx.start(() -> {
             try {
-                runAsync(actx, rule, fServer);
+                runAsync(actx, rule, fServer, uri, received, timing);
             } catch (IllegalStateException ignored) {
             } catch (IOException | ServletException e) {
                 log.error("", e);
@@ -150,10 +321,25 @@ public class ProxyFilter implements Filter {
         });
     }
 
-    private void runAsync(AsyncContext actx, Rule rule, Server server) throws IOException, ServletException {
+    /**
+     * Proxies a request on a thread of its own. The URI is taken before the
+     * thread is started, some containers clear the context path of the request
+     * once the dispatch that started the async processing has returned.
+     *
+     * @param actx       The async context of the request
+     * @param rule       The rule that matched the request
+     * @param server     The server the request is sent to
+     * @param requestUri The URI of the request below the context, with the query string
+     * @param received   When the request was received, as returned by System.nanoTime
+     * @param timing     The timings sent in a Server-Timing header, null if none is sent
+     * @throws IOException      If the request or the response fails
+     * @throws ServletException If the request can't be proxied
+     */
+    private void runAsync(AsyncContext actx, Rule rule, Server server, String requestUri, long received,
+                          ServerTiming timing) throws IOException, ServletException {
         HttpServletRequest httpRequest = (HttpServletRequest) actx.getRequest();
         HttpServletResponse httpResponse = (HttpServletResponse) actx.getResponse();
-        String uri = rule.process(getURI(httpRequest));
+        String uri = rule.process(requestUri);
         if ((rule instanceof DirectoryRule) && uri.isEmpty()) { //need redirect to slash terminated path
             String rurl = httpRequest.getRequestURL().toString();
             if (!rurl.endsWith("/")) {
@@ -165,15 +351,119 @@ public class ProxyFilter implements Filter {
                 return;
             }
         }
-        String url = httpRequest.getScheme() + "://" + server.getDomainName() + server.getPath() + uri;
-        if (log.isDebugEnabled()) log.debug("Connecting to " + url);
         ResponseHandler responseHandler = null;
+        List<Server> failed = null;
+        int retries = 0;
+        ServerContainer container = server.getContainer();
+        long headersNanos = -1;
+        long bodyNanos = -1;
+        CacheResponseStatus cacheStatus = null;
+        ProxyRequestEvent requestEvent = FlightRecorderEvents.isEnabled() ? new ProxyRequestEvent() : null;
+        if (requestEvent != null) {
+            requestEvent.begin();
+        }
+        InFlightRequest inFlight = (inFlightRequests != null)
+                                   ? inFlightRequests.register(httpRequest.getMethod(), requestUri, container, server)
+                                   : null;
+        retryBudget.deposit();
         try {
+            if (EntityEnclosingRequestHandler.isBuffered(httpRequest)) {
+                if (inFlight != null) {
+                    inFlight.setPhase(InFlightRequest.Phase.READING_REQUEST_BODY);
+                }
+                EntityEnclosingRequestHandler.bufferBody(httpRequest, inFlight);
+            }
 
-            httpRequest = server.preExecute(httpRequest);
-            responseHandler = executeRequest(server, httpRequest, url);
+            while (responseHandler == null) {
+                CircuitBreaker breaker = server.getCircuitBreaker();
+                if (breaker != null && !breaker.tryAcquirePermission()) {
+                    failed = addFailed(failed, server);
+                    Server next = server.getContainer().getFailoverServer(httpRequest, failed);
+                    if (next == null) {
+                        throw new CircuitBreakerOpenException("Circuit breaker open for " + server.getDomainName() + server.getPath());
+                    }
+                    server = next;
+                    continue;
+                }
+                String url = httpRequest.getScheme() + "://" + server.getDomainName() + server.getPath() + uri;
+                if (log.isDebugEnabled()) log.debug("Connecting to " + url);
+                HttpClientContext ctx = HttpClientContext.create();
+                ctx.setRequestConfig(connectionSettings.getRequestConfig());
+                if (timing != null) {
+                    timing.startAttempt();
+                    ctx.setAttribute(ServerTiming.KEY, timing);
+                }
+                if (inFlight != null) {
+                    inFlight.startAttempt(server);
+                    ctx.setAttribute(InFlightRequest.KEY, inFlight);
+                }
+                ProxyCachingHttpClientBuilder.setStaleDirectives(ctx, server.getContainer().getStaleWhileRevalidate(),
+                                                                 server.getContainer().getStaleIfError());
+                long start = System.nanoTime();
+                Boolean failure = null;
+                try {
+                    responseHandler = executeRequest(server, server.preExecute(httpRequest), url, ctx);
+                    headersNanos = System.nanoTime() - start;
+                    cacheStatus = HttpCacheContext.adapt(ctx).getCacheResponseStatus();
+                    if (!NegativeCache.isHit(ctx) && !ValidatorCache.isHit(ctx)) {
+                        failure = isServerFailure(responseHandler.getStatusCode());
+                    }
+                } catch (MethodNotAllowedException | RequestEntityTooLargeException e) {
+                    failure = false;
+                    throw e;
+                } catch (RequestBodyReadException e) {
+                    // the client failed, not the server
+                    throw e;
+                } catch (IOException e) {
+                    if (inFlight != null && inFlight.isAborted()) {
+                        // stopped on purpose, not a failure of the server
+                        throw e;
+                    }
+                    failure = true;
+                    failed = addFailed(failed, server);
+                    if (metrics != null) {
+                        metrics.getServerMetrics(server).record(System.nanoTime() - start, -1, -1, 0,
+                                                                EntityEnclosingRequestHandler.getBytesReceived(httpRequest), 0);
+                    }
+                    Server next = null;
+                    if (retries < maxRetries && isRetryable(httpRequest, ctx, e)) {
+                        next = server.getContainer().getFailoverServer(httpRequest, failed);
+                    }
+                    if (next == null || !retryBudget.tryWithdraw()) {
+                        throw e;
+                    }
+                    log.warn("Request to " + url + " failed, retrying on " + next.getDomainName() + next.getPath() + ". " + e);
+                    server.setConnectionExceptionRecieved(e);
+                    server = next;
+                    retries++;
+                } finally {
+                    if (breaker != null) {
+                        if (failure != null) {
+                            breaker.onResult(failure, System.nanoTime() - start);
+                        } else {
+                            breaker.release();
+                        }
+                    }
+                }
+            }
             httpResponse = server.postExecute(httpResponse);
+            long bodyStart = System.nanoTime();
+            if (spoolDir != null && responseHandler instanceof ResponseHandlerBase
+                && (cacheStatus == null || cacheStatus == CacheResponseStatus.CACHE_MISS)) {
+                ((ResponseHandlerBase) responseHandler).spool(spoolMemoryThreshold, spoolMaxSize, spoolDir);
+            }
+            if (inFlight != null) {
+                inFlight.setPhase(InFlightRequest.Phase.SENDING_RESPONSE);
+            }
+            ResponseCopyEvent copyEvent = FlightRecorderEvents.isEnabled() ? new ResponseCopyEvent() : null;
+            if (copyEvent != null) {
+                copyEvent.begin();
+            }
             responseHandler.process(httpResponse);
+            bodyNanos = System.nanoTime() - bodyStart;
+            if (copyEvent != null) {
+                copyEvent.finish(server, responseHandler.getStatusCode(), responseHandler.getBytesSent());
+            }
 
         } catch (UnknownHostException e) {
             log.warn("Could not connection to the host specified. " + e);
@@ -181,10 +471,34 @@ public class ProxyFilter implements Filter {
                 httpResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
             }
             server.setConnectionExceptionRecieved(e);
+        } catch (RequestEntityTooLargeException e) {
+            log.warn(e.getMessage());
+            if (!httpResponse.isCommitted()) {
+                httpResponse.setHeader("Connection", "close");
+                httpResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            }
+        } catch (RequestBodyReadException e) {
+            log.warn(e.getMessage());
+            if (!httpResponse.isCommitted()) {
+                httpResponse.setHeader("Connection", "close");
+                httpResponse.sendError(e.isTimeout() ? HttpServletResponse.SC_REQUEST_TIMEOUT : HttpServletResponse.SC_BAD_REQUEST);
+            }
         } catch (IOException e) {
-            log.warn("Problem probably with the input being send, either with a Header or the Stream. " + e);
+            if (inFlight != null && inFlight.isAborted()) {
+                log.warn("Request " + inFlight.getId() + " to " + requestUri + " was aborted. " + e);
+                if (!httpResponse.isCommitted()) {
+                    httpResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                }
+            } else {
+                log.warn("Problem probably with the input being send, either with a Header or the Stream. " + e);
+                if (!httpResponse.isCommitted()) {
+                    httpResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            }
+        } catch (CircuitBreakerOpenException e) {
+            log.warn(e.getMessage());
             if (!httpResponse.isCommitted()) {
-                httpResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
             }
         } catch (MethodNotAllowedException e) {
             log.warn("Incoming method could not be handled. " + e);
@@ -199,12 +513,233 @@ public class ProxyFilter implements Filter {
             }
             server.setConnectionExceptionRecieved(e);
         } finally {
+            finishResponse(httpRequest);
             if (responseHandler != null) {
                 responseHandler.close();
             }
+            EntityEnclosingRequestHandler.releaseBody(httpRequest);
+            if (inFlight != null) {
+                inFlightRequests.remove(inFlight);
+            }
+            if (metrics != null) {
+                record(httpRequest, httpResponse, container, server, responseHandler, received, headersNanos, bodyNanos);
+            }
+            if (slowRequests != null && timing != null) {
+                sample(httpRequest, httpResponse, requestUri, rule, container, server, responseHandler, received,
+                       retries, timing);
+            }
+            if (accessLog != null) {
+                logAccess(httpRequest, httpResponse, requestUri, container, server, responseHandler, received,
+                          headersNanos, retries, cacheStatus);
+            }
+            if (requestEvent != null) {
+                requestEvent.finish(httpRequest.getMethod(), requestUri, server, httpResponse.getStatus(), retries);
+            }
+        }
+    }
+
+    /**
+     * Lets a filter wrapping the response send what it buffered, if
+     * it asked to be told when the response is finished.
+     *
+     * @param request The request being proxied
+     */
+    private static void finishResponse(HttpServletRequest request) {
+        Closeable finisher = (Closeable) request.getAttribute(FINISHER_KEY);
+        if (finisher != null) {
+            try {
+                finisher.close();
+            } catch (IOException e) {
+                log.warn("Could not finish the response. " + e);
+            }
         }
     }
 
+    /**
+     * Records a request in the metrics of the container that matched it
+     * and of the server that answered it. A request that failed before
+     * any server answered is only recorded for the container, as a failure.
+     *
+     * @param request         The request
+     * @param response        The response sent
+     * @param container       The container matched by the rules
+     * @param server          The last server the request was sent to
+     * @param responseHandler The handler for the server's response, null if there was none
+     * @param received        When the request was received, as returned by System.nanoTime
+     * @param headersNanos    Time until the response headers arrived, -1 if none did
+     * @param bodyNanos       Time spent sending the response, -1 if it wasn't sent
+     */
+    private void record(HttpServletRequest request, HttpServletResponse response, ServerContainer container, Server server,
+                        ResponseHandler responseHandler, long received, long headersNanos, long bodyNanos) {
+        long total = System.nanoTime() - received;
+        long bytesReceived = EntityEnclosingRequestHandler.getBytesReceived(request);
+        long bytesSent = (responseHandler != null) ? responseHandler.getBytesSent() : 0;
+        int status = (responseHandler != null) ? response.getStatus() : 0;
+        metrics.getContainerMetrics(container).record(total, headersNanos, bodyNanos, status, bytesReceived, bytesSent);
+        if (responseHandler != null) {
+            long serverNanos = headersNanos + Math.max(0, bodyNanos);
+            metrics.getServerMetrics(server).record(serverNanos, headersNanos, bodyNanos, responseHandler.getStatusCode(),
+                                                    bytesReceived, bytesSent);
+        }
+    }
+
+    /**
+     * Hands a request to the access log. Only references and numbers are
+     * copied here, the line is written by the thread of the log.
+     *
+     * @param request         The request
+     * @param response        The response sent
+     * @param requestUri      The URI of the request below the context, with the query string
+     * @param container       The container matched by the rules
+     * @param server          The last server the request was sent to
+     * @param responseHandler The handler for the server's response, null if there was none
+     * @param received        When the request was received, as returned by System.nanoTime
+     * @param headersNanos    Time until the response headers arrived, -1 if none did
+     * @param retries         Number of times the request was retried
+     * @param cacheStatus     How the cache answered, null if the cache wasn't asked
+     */
+    private void logAccess(HttpServletRequest request, HttpServletResponse response, String requestUri,
+                           ServerContainer container, Server server, ResponseHandler responseHandler, long received,
+                           long headersNanos, int retries, CacheResponseStatus cacheStatus) {
+        AccessRecord entry = accessLog.claim();
+        if (entry == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            entry.setTime(System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(now - received));
+            entry.setRemoteAddress(request.getRemoteAddr());
+            entry.setMethod(request.getMethod());
+            entry.setUri(requestUri);
+            entry.setStatus(response.getStatus());
+            entry.setBytesReceived(EntityEnclosingRequestHandler.getBytesReceived(request));
+            entry.setBytesSent(responseHandler != null ? responseHandler.getBytesSent() : 0);
+            entry.setDurationNanos(now - received);
+            entry.setHeadersNanos(headersNanos);
+            entry.setContainer(container);
+            entry.setServer(responseHandler != null ? server : null);
+            entry.setRetries(retries);
+            entry.setCacheStatus(cacheStatus);
+        } finally {
+            accessLog.publish(entry);
+        }
+    }
+
+    /**
+     * Offers a request to the slow request sampler. The sample is only
+     * created when the request is slower than those the sampler keeps.
+     *
+     * @param request         The request
+     * @param response        The response sent
+     * @param requestUri      The URI of the request below the context, with the query string
+     * @param rule            The rule that matched the request
+     * @param container       The container matched by the rules
+     * @param server          The last server the request was sent to
+     * @param responseHandler The handler for the server's response, null if there was none
+     * @param received        When the request was received, as returned by System.nanoTime
+     * @param retries         Number of times the request was retried
+     * @param timing          The durations of the phases of the request
+     */
+    private void sample(HttpServletRequest request, HttpServletResponse response, String requestUri, Rule rule,
+                        ServerContainer container, Server server, ResponseHandler responseHandler, long received,
+                        int retries, ServerTiming timing) {
+        if (container == null) {
+            return;
+        }
+        long duration = System.nanoTime() - received;
+        long time = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(duration);
+        SlowRequestSampler.Reservoir reservoir = slowRequests.getReservoir(container);
+        if (reservoir.isSlowEnough(duration, time)) {
+            reservoir.offer(new SlowRequest(time, request.getMethod(), requestUri, response.getStatus(), duration, rule,
+                                            responseHandler != null ? server : null, retries,
+                                            responseHandler != null ? responseHandler.getBytesSent() : 0, timing));
+        }
+    }
+
+    /**
+     * Creates the timings for a request when the route asks for a
+     * Server-Timing header, the client is on a trusted address or the
+     * slowest requests are kept. The timings are kept as a request
+     * attribute so the response handler can find them when it sets
+     * the headers.
+     *
+     * @param request      The request
+     * @param server       The server the request is sent to
+     * @param routingNanos Time spent finding the server, -1 if it wasn't looked up
+     * @return The timings, null if they aren't needed
+     */
+    private ServerTiming createServerTiming(HttpServletRequest request, Server server, long routingNanos) {
+        ServerContainer container = server.getContainer();
+        boolean sendHeader = serverTimingAddresses.contains(request.getRemoteAddr())
+                             || (container != null && container.isServerTiming());
+        if (!sendHeader && slowRequests == null) {
+            return null;
+        }
+        ServerTiming timing = new ServerTiming();
+        timing.setSendHeader(sendHeader);
+        timing.setRouting(routingNanos);
+        request.setAttribute(ServerTiming.KEY, timing);
+        return timing;
+    }
+
+    /**
+     * Adds a server to the list of servers that have failed
+     * for a request, creating the list when needed.
+     *
+     * @param failed The list, or null if nothing has failed yet
+     * @param server The server that failed
+     * @return The list with the server added
+     */
+    private List<Server> addFailed(List<Server> failed, Server server) {
+        if (failed == null) {
+            failed = new ArrayList<>(maxRetries + 1);
+        }
+        failed.add(server);
+        return failed;
+    }
+
+    /**
+     * Checks if a status code received from a server means the server
+     * is in trouble, these responses count as failures for the circuit
+     * breakers.
+     *
+     * @param statusCode The status code
+     * @return true for 500, 502, 503 and 504
+     */
+    private boolean isServerFailure(int statusCode) {
+        return statusCode == 500 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Checks if a request that failed with an exception can be sent again
+     * to another server. Failures while connecting means that nothing reached
+     * the server and any request can be retried. Otherwise only idempotent
+     * requests, or requests that never were completely sent, are retried and
+     * only if their body can be sent once more.
+     *
+     * @param request The incoming request
+     * @param ctx     The context the failed request was executed in
+     * @param e       The exception the request failed with
+     * @return true if the request is safe to retry
+     */
+    private boolean isRetryable(HttpServletRequest request, HttpClientContext ctx, IOException e) {
+        if (e instanceof ConnectException || e instanceof ConnectTimeoutException
+            || e instanceof NoRouteToHostException || e instanceof UnknownHostException) {
+            return true;
+        }
+        HttpRequest sent = ctx.getRequest();
+        if (sent == null) {
+            return false;
+        }
+        if (sent instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) sent).getEntity();
+            if (entity != null && !entity.isRepeatable()) {
+                return false;
+            }
+        }
+        return IDEMPOTENT_METHODS.contains(request.getMethod().toUpperCase()) || !ctx.isRequestSent();
+    }
+
     /**
      * Will build a URI but including the Query String. That means that it really
      * isn't a URI, but quite near.
@@ -227,13 +762,18 @@ public class ProxyFilter implements Filter {
      *
      * @param req Request we are receiving from the client
      * @param url The location we are proxying to
+     * @param ctx The context to execute the request in
      * @return A ResponseHandler that can be used to write the response
      * @throws MethodNotAllowedException If the method specified by the request isn't handled
      * @throws IOException               When there is a problem with the streams
      */
-    private ResponseHandler executeRequest(Server server, HttpServletRequest req, String url) throws MethodNotAllowedException, IOException {
+    private ResponseHandler executeRequest(Server server, HttpServletRequest req, String url, HttpClientContext ctx) throws MethodNotAllowedException, IOException {
         RequestHandler requestHandler = RequestHandlerFactory.createRequestMethod(req.getMethod());
         HttpUriRequest hreq = requestHandler.process(req, url);
+        InFlightRequest inFlight = InFlightRequest.get(ctx);
+        if (inFlight != null) {
+            inFlight.setUpstream(hreq);
+        }
         if (!AllowedMethodHandler.methodAllowed(hreq)) {
             throw new MethodNotAllowedException("The method " + req.getMethod() + " is not in the AllowedHeaderHandler's list of allowed methods.", AllowedMethodHandler.getAllowHeader());
         }
@@ -242,8 +782,48 @@ public class ProxyFilter implements Filter {
         ResponseHandler rh = null;
         CloseableHttpResponse hresp = null;
         try {
-            HttpClientContext ctx = HttpClientContext.create();
-            hresp = httpClient.execute(hreq, ctx);
+            String validatorKey = null;
+            if (validatorCache != null) {
+                validatorKey = validatorCache.createKey(hreq);
+                if (validatorKey != null) {
+                    req.setAttribute(ValidatorCache.KEY, validatorKey);
+                    hresp = validatorCache.get(validatorKey, hreq, ctx);
+                } else if (ValidatorCache.isUnsafe(req.getMethod())) {
+                    validatorCache.invalidate(hreq.getURI().toString());
+                }
+            }
+            String negativeKey = negativeCache.createKey(hreq);
+            if (negativeKey != null && hresp == null) {
+                hresp = negativeCache.get(negativeKey, ctx);
+            }
+            if (hresp == null) {
+                String key = coalescer != null ? coalescer.createKey(hreq) : null;
+                UpstreamRequestEvent upstreamEvent = FlightRecorderEvents.isEnabled() ? new UpstreamRequestEvent() : null;
+                if (upstreamEvent != null) {
+                    upstreamEvent.begin();
+                }
+                try {
+                    if (key != null) {
+                        hresp = coalescer.execute(key, hreq, () -> httpClient.execute(hreq, ctx));
+                    } else {
+                        hresp = httpClient.execute(hreq, ctx);
+                    }
+                } finally {
+                    if (upstreamEvent != null) {
+                        upstreamEvent.finish(hreq, hresp, ctx);
+                    }
+                }
+                if (metrics != null) {
+                    metrics.recordCacheResponse(HttpCacheContext.adapt(ctx).getCacheResponseStatus());
+                }
+                int ttl = server.getContainer().getNegativeCacheTtl(hresp.getStatusLine().getStatusCode());
+                if (negativeKey != null && ttl > 0) {
+                    hresp = negativeCache.put(negativeKey, hresp, ttl * 1000L);
+                }
+                if (validatorKey != null) {
+                    validatorCache.update(validatorKey, hresp);
+                }
+            }
             StatusLine sline = hresp.getStatusLine();
             //log.info("sline=" + sline);
             //log.info("h=" + Arrays.asList(hreq.getAllHeaders()));
@@ -253,7 +833,7 @@ public class ProxyFilter implements Filter {
                 String value = allow.getValue();
                 throw new MethodNotAllowedException("Status code 405 from server", AllowedMethodHandler.processAllowHeader(value));
             }
-            rh = ResponseHandlerFactory.createResponseHandler(hresp, hreq, ctx);
+            rh = ResponseHandlerFactory.createResponseHandler(req, hresp, hreq, ctx);
         } finally {
             if (rh == null && hresp != null) {
                 hresp.close();
@@ -270,16 +850,87 @@ public class ProxyFilter implements Filter {
      */
     public void init(FilterConfig cfg) throws ServletException {
         log = LoggerFactory.getLogger(ProxyFilter.class);
+        servletContext = cfg.getServletContext();
         AllowedMethodHandler.setAllowedMethods("OPTIONS,GET,HEAD,POST,PUT,DELETE,TRACE");
 
+        maxRetries = NumberUtils.toInt(cfg.getInitParameter("maxRetries"), 2);
+        retryBudget = new RetryBudget(NumberUtils.toInt(cfg.getInitParameter("retryBudgetPercent"), 20),
+                                      NumberUtils.toInt(cfg.getInitParameter("retryBudgetMinPerSecond"), 10));
+        if (BooleanUtils.toBoolean(cfg.getInitParameter("coalesceRequests"))) {
+            coalescer = new RequestCoalescer(NumberUtils.toLong(cfg.getInitParameter("coalesceMaxWait"), 2000),
+                                             NumberUtils.toInt(cfg.getInitParameter("coalesceMaxBodySize"), 1048576),
+                                             StringUtils.defaultIfBlank(cfg.getInitParameter("coalesceVaryHeaders"),
+                                                                        "Accept,Accept-Encoding,Accept-Language,Cookie"));
+        }
+        if (BooleanUtils.toBoolean(cfg.getInitParameter("answerConditionalRequests"))) {
+            validatorCache = new ValidatorCache(NumberUtils.toInt(cfg.getInitParameter("validatorCacheSize"), 10000));
+            cfg.getServletContext().setAttribute(ValidatorCache.class.getName(), validatorCache);
+        }
+        if (BooleanUtils.toBoolean(cfg.getInitParameter("spoolResponses"))) {
+            spoolDir = getSpoolDir(cfg);
+            spoolMemoryThreshold = NumberUtils.toInt(cfg.getInitParameter("spoolMemoryThreshold"), 65536);
+            spoolMaxSize = NumberUtils.toLong(cfg.getInitParameter("spoolMaxSize"), 104857600);
+        }
+        if (BooleanUtils.toBoolean(cfg.getInitParameter("bufferRequests"))) {
+            EntityEnclosingRequestHandler.setBuffering(getSpoolDir(cfg),
+                                                       NumberUtils.toInt(cfg.getInitParameter("requestBufferMemoryThreshold"), 65536),
+                                                       NumberUtils.toLong(cfg.getInitParameter("maxRequestBodySize"), 10485760));
+        }
+        BufferPool bufferPool = new BufferPool(NumberUtils.toInt(cfg.getInitParameter("relayBufferMinSize"), 4096),
+                                               NumberUtils.toInt(cfg.getInitParameter("relayBufferMaxSize"), 65536),
+                                               NumberUtils.toInt(cfg.getInitParameter("relayBuffersPerSize"), 32));
+        BodyTransfer.setBufferPool(bufferPool);
+        cfg.getServletContext().setAttribute(BufferPool.class.getName(), bufferPool);
+        serverTimingAddresses = new HashSet<>(Arrays.asList(StringUtils.stripAll(
+                StringUtils.split(StringUtils.defaultString(cfg.getInitParameter("serverTimingAddresses")), ','))));
+        String accessLogFile = cfg.getInitParameter("accessLog");
+        if (!StringUtils.isBlank(accessLogFile)) {
+            try {
+                accessLog = new AccessLog(new File(accessLogFile),
+                                          NumberUtils.toInt(cfg.getInitParameter("accessLogBufferSize"), 8192),
+                                          NumberUtils.toLong(cfg.getInitParameter("accessLogMaxFileSize"), 104857600),
+                                          NumberUtils.toInt(cfg.getInitParameter("accessLogMaxFiles"), 10));
+            } catch (IOException e) {
+                throw new ServletException("Failed to open access log: " + accessLogFile, e);
+            }
+            accessLog.start();
+            cfg.getServletContext().setAttribute(AccessLog.class.getName(), accessLog);
+        }
+        if (BooleanUtils.toBoolean(cfg.getInitParameter("slowRequests"))) {
+            slowRequests = new SlowRequestSampler(NumberUtils.toInt(cfg.getInitParameter("slowRequestsKept"), 20),
+                                                  NumberUtils.toInt(cfg.getInitParameter("slowRequestMinutes"), 5));
+            cfg.getServletContext().setAttribute(SlowRequestSampler.class.getName(), slowRequests);
+        }
+        if (BooleanUtils.toBoolean(cfg.getInitParameter("inFlightRequests"))) {
+            inFlightRequests = new InFlightRegistry();
+            cfg.getServletContext().setAttribute(InFlightRegistry.class.getName(), inFlightRequests);
+        }
+        boolean jmx = BooleanUtils.toBoolean(cfg.getInitParameter("jmx"));
+        if (jmx || BooleanUtils.toBoolean(cfg.getInitParameter("metrics"))) {
+            metrics = new MetricsRegistry();
+            cfg.getServletContext().setAttribute(MetricsRegistry.class.getName(), metrics);
+        }
+        negativeCache = new NegativeCache(NumberUtils.toLong(cfg.getInitParameter("negativeCacheMaxWeight"), 4194304),
+                                          NumberUtils.toInt(cfg.getInitParameter("negativeCacheMaxBodySize"), 16384));
+        cfg.getServletContext().setAttribute(NegativeCache.class.getName(), negativeCache);
+        if (coalescer != null) {
+            cfg.getServletContext().setAttribute(RequestCoalescer.class.getName(), coalescer);
+        }
+        PoolingHttpClientConnectionManager connectionManager = createConnectionManager(cfg);
+        connectionManager.setMaxTotal(NumberUtils.toInt(cfg.getInitParameter("maxConnTotal"), 100));
+        connectionManager.setDefaultMaxPerRoute(NumberUtils.toInt(cfg.getInitParameter("maxConnPerRoute"), 10));
+        cfg.getServletContext().setAttribute(PoolingHttpClientConnectionManager.class.getName(), connectionManager);
+
         HttpClientBuilder builder;
+        IndexedCacheStorage purgeIndex = null;
 
         if (BooleanUtils.toBoolean(cfg.getInitParameter("cache"))) {
-            CachingHttpClientBuilder cb = CachingHttpClientBuilder.create();
+            ProxyCachingHttpClientBuilder cb = ProxyCachingHttpClientBuilder.create();
             builder = cb;
+            File cacheDir = null;
             String val = cfg.getInitParameter("cacheDir");
             if (!StringUtils.isBlank(val)) {
-                File cacheDir = new File(val);
+                cacheDir = new File(val);
                 if (!cacheDir.exists()) {
                     cacheDir.mkdir();
                 }
@@ -287,6 +938,7 @@ public class ProxyFilter implements Filter {
                     throw new ServletException("Failed to setup cache directory: " + cacheDir);
                 }
                 cb.setCacheDir(cacheDir);
+                cb.setResourceFactory(new FileRegionResourceFactory(cacheDir));
             }
 
             CacheConfig.Builder cc = CacheConfig.custom();
@@ -301,11 +953,20 @@ public class ProxyFilter implements Filter {
             if (BooleanUtils.toBoolean(cfg.getInitParameter("useHeuristicCaching"))) {
                 cc.setHeuristicCachingEnabled(true);
             }
+            val = cfg.getInitParameter("cacheRevalidationWorkers");
+            if (!StringUtils.isBlank(val)) {
+                cc.setAsynchronousWorkersMax(Integer.parseInt(val));
+                cc.setAsynchronousWorkersCore(Math.min(Integer.parseInt(val), CacheConfig.DEFAULT_ASYNCHRONOUS_WORKERS_CORE));
+            }
+            val = cfg.getInitParameter("cacheRevalidationQueueSize");
+            if (!StringUtils.isBlank(val)) {
+                cc.setRevalidationQueueSize(Integer.parseInt(val));
+            }
             CacheConfig cConf = cc.build();
             cb.setCacheConfig(cConf);
+            HttpCacheStorage cs = null;
             val = cfg.getInitParameter("httpCacheStorage");
             if (!StringUtils.isBlank(val)) {
-                HttpCacheStorage cs = null;
                 ClassLoader cl = ObjectUtils.firstNonNull(Thread.currentThread().getContextClassLoader(),
                                                           getClass().getClassLoader());
                 try {
@@ -327,26 +988,42 @@ public class ProxyFilter implements Filter {
                     throw new ServletException(e);
                 }
                 log.info("Using cache HttpCacheStorage: " + cs);
+            }
+            if (BooleanUtils.toBoolean(cfg.getInitParameter("cachePurge"))) {
+                if (cs == null) {
+                    cs = (cacheDir != null) ? new ManagedHttpCacheStorage(cConf) : new BasicHttpCacheStorage(cConf);
+                }
+                purgeIndex = new IndexedCacheStorage(cs,
+                        StringUtils.defaultIfBlank(cfg.getInitParameter("cacheTagHeader"), IndexedCacheStorage.DEFAULT_TAG_HEADER),
+                        NumberUtils.toInt(cfg.getInitParameter("cachePurgeIndexSize"), 100000));
+                cfg.getServletContext().setAttribute(IndexedCacheStorage.class.getName(), purgeIndex);
+                cs = purgeIndex;
+            }
+            if (cs != null) {
                 cb.setHttpCacheStorage(cs);
+                cacheStorage = cs;
             }
         } else {
             builder = HttpClientBuilder.create();
         }
 
+        boolean expectContinue = BooleanUtils.toBoolean(cfg.getInitParameter("expectContinue"));
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(NumberUtils.toInt(cfg.getInitParameter("connectionRequestTimeout"), 1000))
+                .setConnectTimeout(NumberUtils.toInt(cfg.getInitParameter("connectTimeout"), 1000))
+                .setSocketTimeout(NumberUtils.toInt(cfg.getInitParameter("socketTimeout"), 10000))
+                .setAuthenticationEnabled(false)
+                .setCircularRedirectsAllowed(false)
+                .setRedirectsEnabled(false)
+                .setRelativeRedirectsAllowed(false)
+                .setStaleConnectionCheckEnabled(false)
+                .setExpectContinueEnabled(expectContinue)
+                .build();
+        connectionSettings = new ConnectionSettings(connectionManager, requestConfig);
         httpClient = builder
-                .setDefaultRequestConfig(RequestConfig.custom()
-                                                 .setConnectionRequestTimeout(NumberUtils.toInt(cfg.getInitParameter("connectionRequestTimeout"), 1000))
-                                                 .setConnectTimeout(NumberUtils.toInt(cfg.getInitParameter("connectTimeout"), 1000))
-                                                 .setSocketTimeout(NumberUtils.toInt(cfg.getInitParameter("socketTimeout"), 10000))
-                                                 .setAuthenticationEnabled(false)
-                                                 .setCircularRedirectsAllowed(false)
-                                                 .setRedirectsEnabled(false)
-                                                 .setRelativeRedirectsAllowed(false)
-                                                 .setStaleConnectionCheckEnabled(false)
-                                                 .setExpectContinueEnabled(false)
-                                                 .build())
-                .setMaxConnPerRoute(NumberUtils.toInt(cfg.getInitParameter("maxConnPerRoute"), 10))
-                .setMaxConnTotal(NumberUtils.toInt(cfg.getInitParameter("maxConnTotal"), 100))
+                .setDefaultRequestConfig(requestConfig)
+                .setRequestExecutor(new TimingRequestExecutor(NumberUtils.toInt(cfg.getInitParameter("expectContinueTimeout"), 3000)))
+                .setConnectionManager(connectionManager)
                 .setConnectionReuseStrategy(DefaultConnectionReuseStrategy.INSTANCE)
                 .disableCookieManagement()
                 .disableAuthCaching()
@@ -371,6 +1048,55 @@ public class ProxyFilter implements Filter {
                 throw new ServletException(e);
             }
         }
+
+        if (jmx) {
+            mbeans = new MBeanRegistrar(cfg.getServletContext().getContextPath());
+            mbeans.register(connectionSettings, "ConnectionPool", null);
+            mbeans.register(new CacheStatistics(metrics, negativeCache, validatorCache, purgeIndex, coalescer), "Cache", null);
+            if (serverChain != null) {
+                for (ServerContainer container : serverChain.getServerContainers()) {
+                    if (container instanceof ClusterContainer) {
+                        mbeans.register(new Cluster((ClusterContainer) container), "Cluster", container.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the connection pool, one recording flight recorder events
+     * when they are turned on with flightRecorderEvents. The events are
+     * left off on a runtime without the jdk.jfr API.
+     *
+     * @param cfg The filter configuration
+     * @return The connection pool
+     */
+    private PoolingHttpClientConnectionManager createConnectionManager(FilterConfig cfg) {
+        boolean events = BooleanUtils.toBoolean(cfg.getInitParameter("flightRecorderEvents"));
+        if (FlightRecorderEvents.setEnabled(events)) {
+            return new TracingConnectionManager();
+        }
+        if (events) {
+            log.warn("Flight recorder events are not available on this runtime, they are turned off");
+        }
+        return new TimingConnectionManager();
+    }
+
+    /**
+     * Returns the directory bodies are spooled to, the directory set
+     * with spoolDir or the temporary directory of the servlet context.
+     *
+     * @param cfg The filter configuration
+     * @return The directory
+     * @throws ServletException If the directory can't be written to
+     */
+    private File getSpoolDir(FilterConfig cfg) throws ServletException {
+        String dir = cfg.getInitParameter("spoolDir");
+        File file = !StringUtils.isBlank(dir) ? new File(dir) : (File) cfg.getServletContext().getAttribute(ServletContext.TEMPDIR);
+        if (file == null || !file.isDirectory() || !file.canWrite()) {
+            throw new ServletException("Failed to setup spool directory: " + file);
+        }
+        return file;
     }
 
     /**
@@ -380,13 +1106,48 @@ public class ProxyFilter implements Filter {
      * Releases the fields.
      */
     public void destroy() {
+        if (mbeans != null) {
+            mbeans.unregisterAll();
+        }
         try {
             httpClient.close();
+            if (cacheStorage instanceof Closeable) {
+                ((Closeable) cacheStorage).close();
+            }
+            if (accessLog != null) {
+                accessLog.close();
+            }
         } catch (IOException e) {
             log.error("", e);
         }
+        servletContext.removeAttribute(IndexedCacheStorage.class.getName());
+        servletContext.removeAttribute(ValidatorCache.class.getName());
+        servletContext.removeAttribute(BufferPool.class.getName());
+        servletContext.removeAttribute(MetricsRegistry.class.getName());
+        servletContext.removeAttribute(AccessLog.class.getName());
+        servletContext.removeAttribute(SlowRequestSampler.class.getName());
+        servletContext.removeAttribute(InFlightRegistry.class.getName());
+        servletContext.removeAttribute(NegativeCache.class.getName());
+        servletContext.removeAttribute(RequestCoalescer.class.getName());
+        servletContext.removeAttribute(PoolingHttpClientConnectionManager.class.getName());
         log = null;
+        servletContext = null;
         httpClient = null;
+        cacheStorage = null;
+        retryBudget = null;
+        coalescer = null;
+        negativeCache = null;
+        validatorCache = null;
+        spoolDir = null;
+        metrics = null;
+        connectionSettings = null;
+        mbeans = null;
+        accessLog = null;
+        slowRequests = null;
+        inFlightRequests = null;
+        EntityEnclosingRequestHandler.setBuffering(null, 0, 0);
+        BodyTransfer.setBufferPool(null);
+        FlightRecorderEvents.setEnabled(false);
         serverChain = null;
     }
 }
\ No newline at end of file
@@ -16,7 +16,9 @@
 
 package net.sf.j2ep;
 
+import net.sf.j2ep.cache.ValidatorCache;
 import net.sf.j2ep.model.Server;
+import net.sf.j2ep.monitor.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,10 +28,13 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A filter that will locate the appropriate Rule
@@ -39,6 +44,7 @@ import java.io.IOException;
  *
  * @author Anders Nyman, Daniel Deng
  */
+@WebFilter(asyncSupported = true)
 public class RewriteFilter implements Filter {
 
     /**
@@ -56,6 +62,10 @@ public class RewriteFilter implements Filter {
      * Rewrites the outgoing stream to make sure URLs and headers
      * are correct. The incoming request is first processed to
      * identify what resource we want to proxy.
+     * <p/>
+     * The proxy filter sends the request on a thread of its own, the
+     * page is then rewritten on that thread once the server's response
+     * has been copied. Otherwise it is rewritten when the chain returns.
      *
      * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)
      */
@@ -80,16 +90,63 @@ public class RewriteFilter implements Filter {
                 httpRequest.setAttribute("proxyServer", server);
 
                 String ownHostName = request.getServerName() + ":" + request.getServerPort();
-                UrlRewritingResponseWrapper wrappedResponse;
+                final UrlRewritingResponseWrapper wrappedResponse;
                 wrappedResponse = new UrlRewritingResponseWrapper(httpResponse, server, ownHostName, httpRequest.getContextPath(), serverChain);
 
+                final AtomicBoolean finished = new AtomicBoolean();
+                Closeable finisher = () -> {
+                    if (finished.compareAndSet(false, true)) {
+                        wrappedResponse.processStream(httpRequest);
+                        updateValidators(httpRequest, wrappedResponse.getRewrittenETag());
+                        recordRewrite(httpRequest, wrappedResponse);
+                    }
+                };
+                httpRequest.setAttribute(ProxyFilter.FINISHER_KEY, finisher);
+
                 filterChain.doFilter(httpRequest, wrappedResponse);
 
-                wrappedResponse.processStream();
+                if (!httpRequest.isAsyncStarted()) {
+                    finisher.close();
+                }
             }
         }
     }
 
+    /**
+     * Counts the bytes of a rewritten page in the metrics of the
+     * proxy, if it keeps any.
+     *
+     * @param request  The request we answered
+     * @param response The response the page was rewritten in
+     */
+    private void recordRewrite(HttpServletRequest request, UrlRewritingResponseWrapper response) {
+        if (response.getBytesBeforeRewrite() < 0) {
+            return;
+        }
+        MetricsRegistry metrics = (MetricsRegistry) request.getServletContext().getAttribute(MetricsRegistry.class.getName());
+        if (metrics != null) {
+            metrics.recordRewrite(response.getBytesBeforeRewrite(), response.getBytesAfterRewrite());
+        }
+    }
+
+
+    /**
+     * Lets the proxy remember the ETag of the rewritten page
+     * instead of the one sent by the server.
+     *
+     * @param request The request we answered
+     * @param etag    The ETag of the rewritten page, null if nothing was rewritten
+     */
+    private void updateValidators(HttpServletRequest request, String etag) {
+        String key = (String) request.getAttribute(ValidatorCache.KEY);
+        if (etag == null || key == null) {
+            return;
+        }
+        ValidatorCache validators = (ValidatorCache) request.getServletContext().getAttribute(ValidatorCache.class.getName());
+        if (validators != null) {
+            validators.setETag(key, etag);
+        }
+    }
 
     /**
      * Initialize.
@@ -21,6 +21,7 @@ import net.sf.j2ep.model.Server;
 import net.sf.j2ep.model.ServerContainer;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -61,6 +62,19 @@ public class ServerChain {
         return serverContainers;
     }
 
+    /**
+     * Returns the containers in the order they are evaluated.
+     *
+     * @return The containers
+     */
+    public List<ServerContainer> getServerContainers() {
+        List<ServerContainer> containers = new ArrayList<>();
+        for (Object container : getServers()) {
+            containers.add((ServerContainer) container);
+        }
+        return containers;
+    }
+
     /**
      * Returns an iterator over
      * the list of servers to evaluate.
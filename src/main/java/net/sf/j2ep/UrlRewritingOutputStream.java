@@ -120,6 +120,15 @@ public final class UrlRewritingOutputStream extends ServletOutputStream {
         stream.write(b);
     }
 
+    /**
+     * Returns the number of bytes written to the buffer.
+     *
+     * @return The size
+     */
+    public int size() {
+        return stream.size();
+    }
+
     /**
      * Processes the stream looking for links, all links
      * found are rewritten. After this the stream is written
@@ -129,6 +138,17 @@ public final class UrlRewritingOutputStream extends ServletOutputStream {
      * @throws IOException Is thrown when there is a problem with the streams
      */
     public void rewrite(Server server) throws IOException {
+        originalStream.print(rewritePage(server));
+    }
+
+    /**
+     * Processes the stream looking for links, all links
+     * found are rewritten.
+     *
+     * @param server The server that we are using for this request.
+     * @return The page with the links rewritten
+     */
+    public String rewritePage(Server server) {
         /*
          * Using regex can be quite harsh sometimes so here is how
          * the regex trying to find links works
@@ -180,7 +200,7 @@ public final class UrlRewritingOutputStream extends ServletOutputStream {
         }
 
         matcher.appendTail(page);
-        originalStream.print(page.toString());
+        return page.toString();
     }
 
 
@@ -16,15 +16,24 @@
 
 package net.sf.j2ep;
 
+import net.sf.j2ep.cache.ValidatorCache;
+import net.sf.j2ep.jfr.FlightRecorderEvents;
+import net.sf.j2ep.jfr.LinkRewritingEvent;
 import net.sf.j2ep.model.Server;
+import net.sf.j2ep.monitor.ServerTiming;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -76,6 +85,21 @@ public final class UrlRewritingResponseWrapper extends HttpServletResponseWrappe
      */
     private ServerChain serverChain;
 
+    /**
+     * The ETag computed for the rewritten page.
+     */
+    private String rewrittenETag;
+
+    /**
+     * Size of the page before it was rewritten, -1 if nothing was rewritten.
+     */
+    private long bytesBeforeRewrite = -1;
+
+    /**
+     * Size of the rewritten page sent to the client.
+     */
+    private long bytesAfterRewrite;
+
     /**
      * Regex to find absolute links.
      */
@@ -240,12 +264,50 @@ public final class UrlRewritingResponseWrapper extends HttpServletResponseWrappe
      * streams and writers. We need the user to flush and close the streams himself
      * as usual but we can't be sure that the writers created are used by the client
      * and therefor we close them here.
+     * <p/>
+     * The server's ETag doesn't describe the rewritten page so a new one is
+     * computed from it, if the client already has the page it gets a 304.
+     * The length sent by the server is replaced by the rewritten page's.
      *
+     * @param request The request we are answering
      * @throws IOException Is thrown when there is a problem with the streams
      */
-    public void processStream() throws IOException {
+    public void processStream(HttpServletRequest request) throws IOException {
         if (getContentType() != null && shouldRewrite(getContentType())) {
-            outStream.rewrite(server);
+            LinkRewritingEvent event = FlightRecorderEvents.isEnabled() ? new LinkRewritingEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+            long rewriteStart = System.nanoTime();
+            String page = outStream.rewritePage(server);
+            ServerTiming timing = (ServerTiming) request.getAttribute(ServerTiming.KEY);
+            if (timing != null) {
+                long rewriteNanos = System.nanoTime() - rewriteStart;
+                timing.setRewrite(rewriteNanos);
+                if (timing.isSendHeader()) {
+                    super.addHeader(ServerTiming.HEADER, ServerTiming.entry("rewrite", rewriteNanos));
+                }
+            }
+            bytesBeforeRewrite = outStream.size();
+            if (getStatus() == HttpServletResponse.SC_OK) {
+                rewrittenETag = createETag(page);
+                super.setHeader("ETag", rewrittenETag);
+                String ifNoneMatch = request.getHeader("If-None-Match");
+                if (ifNoneMatch != null && ValidatorCache.matches(ifNoneMatch, rewrittenETag)) {
+                    if (log.isDebugEnabled()) log.debug("Rewritten page not modified " + rewrittenETag);
+                    setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    page = null;
+                }
+            }
+            if (page != null) {
+                byte[] body = page.getBytes(responseCharset());
+                super.setContentLengthLong(body.length);
+                super.getOutputStream().write(body);
+                bytesAfterRewrite = body.length;
+            }
+            if (event != null) {
+                event.finish(request.getRequestURI(), bytesBeforeRewrite, bytesAfterRewrite);
+            }
         }
         super.getOutputStream().flush();
         super.getOutputStream().close();
@@ -254,6 +316,67 @@ public final class UrlRewritingResponseWrapper extends HttpServletResponseWrappe
         outWriter.close();
     }
 
+    /**
+     * Returns the ETag computed for the rewritten page.
+     *
+     * @return The ETag, null if the page wasn't rewritten
+     */
+    public String getRewrittenETag() {
+        return rewrittenETag;
+    }
+
+    /**
+     * Returns the size of the page before it was rewritten.
+     *
+     * @return The size in bytes, -1 if the page wasn't rewritten
+     */
+    public long getBytesBeforeRewrite() {
+        return bytesBeforeRewrite;
+    }
+
+    /**
+     * Returns the size of the rewritten page sent to the client, 0 if
+     * the client was told it already had the page.
+     *
+     * @return The size in bytes
+     */
+    public long getBytesAfterRewrite() {
+        return bytesAfterRewrite;
+    }
+
+    /**
+     * Creates a strong ETag from a digest of the page.
+     *
+     * @param page The rewritten page
+     * @return The ETag
+     */
+    private static String createETag(String page) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(page.getBytes(StandardCharsets.UTF_8));
+            StringBuilder etag = new StringBuilder("\"j2ep-");
+            for (int i = 0; i < 12; i++) {
+                etag.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the charset the page is encoded with when sent to the
+     * client, ISO-8859-1 if the response's encoding isn't supported.
+     *
+     * @return The charset
+     */
+    private Charset responseCharset() {
+        try {
+            return Charset.forName(getCharacterEncoding());
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.ISO_8859_1;
+        }
+    }
+
     /**
      * Checks the contentType to evaluate if we should do
      * link rewriting for this content.
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.accesslog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An access log written by a thread of its own. Request threads claim a
+ * record in a ring of records allocated up front, fill it in and publish
+ * it, without taking a lock or creating any text. The writing thread takes
+ * the published records in order, turns them into lines of JSON and writes
+ * them to the file in batches.
+ * <p/>
+ * When the ring is full because the file can't keep up the record is
+ * dropped and counted, a request thread never waits for the log.
+ */
+public class AccessLog implements Closeable {
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+
+    /**
+     * Time the writing thread sleeps when there is nothing to write.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Time between warnings about dropped records.
+     */
+    private static final long DROP_WARNING_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * The records, the position of a record is its sequence masked.
+     */
+    private final AccessRecord[] ring;
+
+    /**
+     * Masks a sequence to a position in the ring.
+     */
+    private final int mask;
+
+    /**
+     * The next sequence claimed by a request thread.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next sequence written, records before it can be claimed again.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Number of records dropped because the ring was full.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Number of records written.
+     */
+    private volatile long written;
+
+    /**
+     * The file the records are written to.
+     */
+    private final RollingFileWriter file;
+
+    /**
+     * The thread writing the records.
+     */
+    private final Thread writer;
+
+    /**
+     * Set when the log is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Creates a log. The records aren't written until the log is started.
+     *
+     * @param file        The file written to
+     * @param capacity    Records kept waiting for the file, rounded up to a power of two
+     * @param maxFileSize Size the file may grow to before it's rolled, 0 to never roll it
+     * @param maxFiles    Number of rolled files kept
+     * @throws IOException If the file can't be opened
+     */
+    public AccessLog(File file, int capacity, long maxFileSize, int maxFiles) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new AccessRecord[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new AccessRecord();
+        }
+        mask = size - 1;
+        this.file = new RollingFileWriter(file, maxFileSize, maxFiles);
+        writer = new Thread(this::run, "j2ep-access-log");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.NORM_PRIORITY - 1);
+    }
+
+    /**
+     * Starts writing the records.
+     */
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Claims a record to fill in. The record must be published once it's filled in.
+     *
+     * @return The record, null if the log is full or closed and the request isn't logged
+     */
+    public AccessRecord claim() {
+        while (!closed) {
+            long sequence = tail.get();
+            if (sequence - head.get() >= ring.length) {
+                dropped.increment();
+                return null;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                AccessRecord record = ring[(int) sequence & mask];
+                record.claimed = sequence;
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hands a filled in record to the writing thread.
+     *
+     * @param record The record returned by claim
+     */
+    public void publish(AccessRecord record) {
+        record.sequence = record.claimed;
+    }
+
+    /**
+     * Returns the number of records dropped because the file couldn't keep up.
+     *
+     * @return The count
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of records written to the file.
+     *
+     * @return The count
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Stops taking records, writes the ones published and closes the file.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        closed = true;
+        if (writer.isAlive()) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!writer.isAlive()) {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes a time in the ISO-8601 format, in UTC.
+     *
+     * @param time The time in milliseconds since the epoch
+     * @param line The buffer the time is appended to
+     */
+    static void formatTime(long time, StringBuilder line) {
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(time), line);
+    }
+
+    /**
+     * Writes the published records until the log is closed. A batch ends
+     * when the buffer is full or no more records are published, the batch
+     * is then written in one go.
+     */
+    private void run() {
+        StringBuilder line = new StringBuilder(512);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer batch = ByteBuffer.allocate(65536);
+        long reportedDrops = 0;
+        long lastWarning = System.nanoTime() - DROP_WARNING_NANOS;
+        while (true) {
+            boolean stopping = closed;
+            long sequence = head.get();
+            AccessRecord record = ring[(int) sequence & mask];
+            if (record.sequence == sequence) {
+                line.setLength(0);
+                record.format(line);
+                record.clear();
+                head.lazySet(sequence + 1);
+                encode(encoder, line, batch);
+                written++;
+                continue;
+            }
+            flush(batch);
+            long drops = dropped.sum();
+            if (drops > reportedDrops && System.nanoTime() - lastWarning >= DROP_WARNING_NANOS) {
+                log.warn("Dropped " + (drops - reportedDrops) + " access log records, the log file can't keep up");
+                reportedDrops = drops;
+                lastWarning = System.nanoTime();
+            }
+            if (stopping && head.get() == tail.get()) {
+                return;
+            }
+            LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+    }
+
+    /**
+     * Adds a line to the batch, writing the batch when it's full.
+     */
+    private void encode(CharsetEncoder encoder, StringBuilder line, ByteBuffer batch) {
+        CharBuffer chars = CharBuffer.wrap(line);
+        while (true) {
+            CoderResult result = encoder.encode(chars, batch, true);
+            if (!result.isOverflow()) {
+                break;
+            }
+            flush(batch);
+        }
+        encoder.reset();
+    }
+
+    /**
+     * Writes the batch to the file.
+     */
+    private void flush(ByteBuffer batch) {
+        if (batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        try {
+            file.write(batch);
+        } catch (IOException e) {
+            log.warn("Failed to write the access log. " + e);
+        }
+        batch.clear();
+    }
+}
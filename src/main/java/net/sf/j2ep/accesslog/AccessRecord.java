@@ -0,0 +1,246 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.accesslog;
+
+import net.sf.j2ep.model.Server;
+import net.sf.j2ep.model.ServerContainer;
+import org.apache.http.client.cache.CacheResponseStatus;
+
+/**
+ * An entry of the access log. The entries are allocated once when the log
+ * is created and reused, the request thread only copies references and
+ * numbers into them, the text is created by the thread writing the log.
+ */
+public final class AccessRecord {
+
+    /**
+     * The position in the log this record was claimed for, -1 until it's published.
+     */
+    volatile long sequence = -1;
+
+    /**
+     * The position this record is being filled for.
+     */
+    long claimed;
+
+    private long time;
+    private String remoteAddress;
+    private String method;
+    private String uri;
+    private int status;
+    private long bytesReceived;
+    private long bytesSent;
+    private long durationNanos;
+    private long headersNanos;
+    private ServerContainer container;
+    private Server server;
+    private int retries;
+    private CacheResponseStatus cacheStatus;
+
+    /**
+     * Sets when the request was received.
+     *
+     * @param time The time in milliseconds since the epoch
+     */
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * Sets the address of the client.
+     *
+     * @param remoteAddress The address
+     */
+    public void setRemoteAddress(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Sets the method of the request.
+     *
+     * @param method The method
+     */
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    /**
+     * Sets the URI of the request.
+     *
+     * @param uri The URI with the query string
+     */
+    public void setUri(String uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * Sets the status sent to the client.
+     *
+     * @param status The status code
+     */
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Sets the size of the request body.
+     *
+     * @param bytesReceived The number of bytes read from the client
+     */
+    public void setBytesReceived(long bytesReceived) {
+        this.bytesReceived = bytesReceived;
+    }
+
+    /**
+     * Sets the size of the response body.
+     *
+     * @param bytesSent The size
+     */
+    public void setBytesSent(long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    /**
+     * Sets the time spent on the request.
+     *
+     * @param durationNanos The time in nanoseconds
+     */
+    public void setDurationNanos(long durationNanos) {
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * Sets the time until the response headers arrived.
+     *
+     * @param headersNanos The time in nanoseconds, -1 if none arrived
+     */
+    public void setHeadersNanos(long headersNanos) {
+        this.headersNanos = headersNanos;
+    }
+
+    /**
+     * Sets the container that matched the request.
+     *
+     * @param container The container, null if unknown
+     */
+    public void setContainer(ServerContainer container) {
+        this.container = container;
+    }
+
+    /**
+     * Sets the server that answered the request.
+     *
+     * @param server The server, null if none answered
+     */
+    public void setServer(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Sets the number of times the request was retried.
+     *
+     * @param retries The number of retries
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Sets how the cache answered the request.
+     *
+     * @param cacheStatus The status, null if the cache wasn't asked
+     */
+    public void setCacheStatus(CacheResponseStatus cacheStatus) {
+        this.cacheStatus = cacheStatus;
+    }
+
+    /**
+     * Writes the record as a line of JSON.
+     *
+     * @param line The buffer the line is appended to
+     */
+    void format(StringBuilder line) {
+        line.append("{\"time\":\"");
+        AccessLog.formatTime(time, line);
+        line.append('"');
+        string(line, "remote", remoteAddress);
+        string(line, "method", method);
+        string(line, "uri", uri);
+        line.append(",\"status\":").append(status);
+        line.append(",\"bytesIn\":").append(bytesReceived);
+        line.append(",\"bytesOut\":").append(bytesSent);
+        line.append(",\"durationUs\":").append(durationNanos / 1000);
+        line.append(",\"ttfbUs\":").append(headersNanos < 0 ? -1 : headersNanos / 1000);
+        string(line, "route", container != null ? container.getName() : null);
+        if (server != null) {
+            line.append(",\"server\":\"");
+            escape(line, server.getDomainName());
+            escape(line, server.getPath());
+            line.append('"');
+        } else {
+            line.append(",\"server\":null");
+        }
+        line.append(",\"retries\":").append(retries);
+        string(line, "cache", cacheStatus != null ? cacheStatus.name() : null);
+        line.append("}\n");
+    }
+
+    /**
+     * Drops the references the record holds once it's written.
+     */
+    void clear() {
+        remoteAddress = null;
+        method = null;
+        uri = null;
+        container = null;
+        server = null;
+        cacheStatus = null;
+    }
+
+    /**
+     * Appends a string field.
+     */
+    private static void string(StringBuilder line, String name, String value) {
+        line.append(",\"").append(name).append("\":");
+        if (value == null) {
+            line.append("null");
+        } else {
+            line.append('"');
+            escape(line, value);
+            line.append('"');
+        }
+    }
+
+    /**
+     * Appends a string escaped for JSON.
+     */
+    private static void escape(StringBuilder line, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+}
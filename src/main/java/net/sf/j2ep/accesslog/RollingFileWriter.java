@@ -0,0 +1,123 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.accesslog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends to a file, moving it aside once it has grown past a size. The
+ * file moved aside gets the suffix .1, an earlier one is renamed to .2 and
+ * so on, the oldest beyond the number of files kept is deleted.
+ */
+class RollingFileWriter implements Closeable {
+
+    /**
+     * The file written to.
+     */
+    private final File file;
+
+    /**
+     * Size the file may grow to before it's rolled, 0 to never roll it.
+     */
+    private final long maxFileSize;
+
+    /**
+     * Number of rolled files kept.
+     */
+    private final int maxFiles;
+
+    /**
+     * The open file.
+     */
+    private FileChannel channel;
+
+    /**
+     * The current size of the file.
+     */
+    private long size;
+
+    /**
+     * Opens a file for appending.
+     *
+     * @param file        The file
+     * @param maxFileSize Size the file may grow to, 0 to never roll it
+     * @param maxFiles    Number of rolled files kept
+     * @throws IOException If the file can't be opened
+     */
+    RollingFileWriter(File file, long maxFileSize, int maxFiles) throws IOException {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        open();
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer, rolling the file first if
+     * it would grow past its size. A batch is never split over two files.
+     *
+     * @param buffer The bytes
+     * @throws IOException If the file can't be written
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        if (maxFileSize > 0 && size > 0 && size + buffer.remaining() > maxFileSize) {
+            roll();
+        }
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+    }
+
+    /**
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Moves the file aside and starts a new one.
+     */
+    private void roll() throws IOException {
+        channel.close();
+        new File(file.getPath() + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File rolled = new File(file.getPath() + "." + i);
+            if (rolled.exists()) {
+                rolled.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        if (maxFiles > 0) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+        open();
+    }
+
+    /**
+     * Opens the file for appending.
+     */
+    private void open() throws IOException {
+        channel = new FileOutputStream(file, true).getChannel();
+        size = channel.size();
+    }
+}
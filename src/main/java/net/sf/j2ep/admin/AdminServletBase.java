@@ -0,0 +1,99 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.admin;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Base for the servlets managing a running proxy. Only clients from the
+ * addresses listed in the init parameter <em>allowedAddresses</em> are
+ * let through, by default only the local host. A single * allows every
+ * address, which should only be used behind some other protection.
+ */
+public abstract class AdminServletBase extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static final Logger log = LoggerFactory.getLogger(AdminServletBase.class);
+
+    /**
+     * The addresses allowed when nothing is configured.
+     */
+    private static final String DEFAULT_ALLOWED_ADDRESSES = "127.0.0.1,0:0:0:0:0:0:0:1,::1";
+
+    /**
+     * The client addresses allowed to use the servlet.
+     */
+    private Set<String> allowedAddresses;
+
+    /**
+     * @see javax.servlet.GenericServlet#init()
+     */
+    public void init() throws ServletException {
+        String val = StringUtils.defaultIfBlank(getInitParameter("allowedAddresses"), DEFAULT_ALLOWED_ADDRESSES);
+        allowedAddresses = new HashSet<>(Arrays.asList(StringUtils.stripAll(StringUtils.split(val, ','))));
+    }
+
+    /**
+     * Checks the client address before the request is handled.
+     *
+     * @see javax.servlet.http.HttpServlet#service(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (!isAllowed(request.getRemoteAddr())) {
+            log.warn("Denied " + request.getMethod() + " " + request.getRequestURI() + " from " + request.getRemoteAddr());
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setHeader("Cache-Control", "no-store");
+        super.service(request, response);
+    }
+
+    /**
+     * Checks if a client address may use the servlet.
+     *
+     * @param address The address of the client
+     * @return true if it is allowed
+     */
+    protected boolean isAllowed(String address) {
+        return allowedAddresses.contains("*") || allowedAddresses.contains(address);
+    }
+
+    /**
+     * Finds a component the proxy has stored in the servlet context.
+     *
+     * @param type The type of the component, its class name is the attribute name
+     * @return The component, null if the proxy hasn't got one
+     */
+    protected <T> T getComponent(Class<T> type) {
+        return type.cast(getServletContext().getAttribute(type.getName()));
+    }
+}
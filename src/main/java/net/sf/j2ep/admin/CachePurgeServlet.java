@@ -0,0 +1,140 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.admin;
+
+import net.sf.j2ep.cache.IndexedCacheStorage;
+import net.sf.j2ep.cache.NegativeCache;
+import net.sf.j2ep.cache.ValidatorCache;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Removes entries from the proxy cache. The entries are selected with
+ * request parameters, all of them can be repeated.
+ * <ul>
+ * <li><em>url</em>, the URL sent to the server, e.g. http://backend:8080/app/index.html</li>
+ * <li><em>prefix</em>, every URL starting with the prefix</li>
+ * <li><em>mount</em>, everything proxied to a server given as domainName and path, e.g. backend:8080/app</li>
+ * <li><em>tag</em>, every URL with a response tagged with the tag in its Surrogate-Key header</li>
+ * </ul>
+ * Entries are purged with POST or PURGE and the number of entries
+ * removed is sent back. Cached error responses are purged by URL,
+ * prefix and mount, they carry no tags so a purge by tag removes all of
+ * them. The validators remembered for answering conditional requests are
+ * all forgotten. The filter must have the init parameter
+ * <em>cachePurge</em> set.
+ */
+public class CachePurgeServlet extends AdminServletBase {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static final Logger log = LoggerFactory.getLogger(CachePurgeServlet.class);
+
+    /**
+     * Handles the PURGE method like a POST.
+     *
+     * @see net.sf.j2ep.admin.AdminServletBase#service(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if ("PURGE".equalsIgnoreCase(request.getMethod()) && isAllowed(request.getRemoteAddr())) {
+            doPost(request, response);
+        } else {
+            super.service(request, response);
+        }
+    }
+
+    /**
+     * Purges the selected entries.
+     *
+     * @see javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        IndexedCacheStorage storage = getComponent(IndexedCacheStorage.class);
+        NegativeCache negativeCache = getComponent(NegativeCache.class);
+        if (storage == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Cache purging is not enabled");
+            return;
+        }
+        String[] urls = values(request, "url");
+        String[] prefixes = values(request, "prefix");
+        String[] mounts = values(request, "mount");
+        String[] tags = values(request, "tag");
+        if (urls.length + prefixes.length + mounts.length + tags.length == 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "One of url, prefix, mount or tag is required");
+            return;
+        }
+
+        int purged = 0;
+        for (String url : urls) {
+            purged += storage.purgeUrl(url);
+            if (negativeCache != null) {
+                purged += negativeCache.purgeUrl(url);
+            }
+        }
+        for (String prefix : prefixes) {
+            purged += storage.purgePrefix(prefix);
+            if (negativeCache != null) {
+                purged += negativeCache.purgePrefix(prefix);
+            }
+        }
+        for (String mount : mounts) {
+            int slash = mount.indexOf('/');
+            String domainName = (slash < 0) ? mount : mount.substring(0, slash);
+            String path = (slash < 0) ? "" : StringUtils.removeEnd(mount.substring(slash), "/");
+            purged += storage.purgeMount(domainName, path);
+            if (negativeCache != null) {
+                purged += negativeCache.purgeMount(domainName, path);
+            }
+        }
+        for (String tag : tags) {
+            purged += storage.purgeTag(tag);
+        }
+        ValidatorCache validators = getComponent(ValidatorCache.class);
+        if (validators != null) {
+            validators.clear();
+        }
+        if (negativeCache != null && tags.length > 0) {
+            purged += negativeCache.clear();
+        }
+        log.info("Purged " + purged + " cache entries for " + request.getRemoteAddr());
+
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().println("purged=" + purged);
+    }
+
+    /**
+     * Returns the non blank values of a parameter.
+     */
+    private static String[] values(HttpServletRequest request, String name) {
+        String[] values = request.getParameterValues(name);
+        if (values == null) {
+            return new String[0];
+        }
+        return Arrays.stream(values).filter(StringUtils::isNotBlank).map(String::trim).toArray(String[]::new);
+    }
+}
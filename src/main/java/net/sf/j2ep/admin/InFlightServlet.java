@@ -0,0 +1,148 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.admin;
+
+import net.sf.j2ep.model.Server;
+import net.sf.j2ep.monitor.InFlightRegistry;
+import net.sf.j2ep.monitor.InFlightRequest;
+import net.sf.j2ep.monitor.ServerTiming;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Shows the requests being proxied right now and aborts the ones stuck
+ * on a server. A GET sends the requests that have been in flight the
+ * longest as JSON, the oldest first, at most <em>limit</em> of them
+ * (default 100). Every request comes with its id, route, server, URI,
+ * age in milliseconds and the phase it's in.
+ * <p/>
+ * A POST with one or more <em>abort</em> parameters holding request ids
+ * aborts the requests to the server. The connections they hold are shut
+ * down rather than pooled, the clients get an error and the requests
+ * aren't retried. The number of requests found and aborted is sent back.
+ * The filter must have the init parameter <em>inFlightRequests</em> set.
+ */
+public class InFlightServlet extends AdminServletBase {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static final Logger log = LoggerFactory.getLogger(InFlightServlet.class);
+
+    /**
+     * Lists the oldest requests.
+     *
+     * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        InFlightRegistry registry = getComponent(InFlightRegistry.class);
+        if (registry == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "In-flight requests are not tracked");
+            return;
+        }
+        int limit = NumberUtils.toInt(request.getParameter("limit"), 100);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(render(registry.size(), registry.getOldest(Math.max(0, limit))));
+    }
+
+    /**
+     * Aborts the requests given by id.
+     *
+     * @see javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        InFlightRegistry registry = getComponent(InFlightRegistry.class);
+        if (registry == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "In-flight requests are not tracked");
+            return;
+        }
+        String[] ids = request.getParameterValues("abort");
+        if (ids == null || ids.length == 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The parameter abort is required");
+            return;
+        }
+        int aborted = 0;
+        for (String id : ids) {
+            InFlightRequest inFlight = registry.get(NumberUtils.toLong(id.trim(), -1));
+            if (inFlight != null) {
+                inFlight.abort();
+                log.warn("Aborted " + inFlight.getMethod() + " " + inFlight.getUri() + " in phase " + inFlight.getPhase()
+                         + " for " + request.getRemoteAddr());
+                aborted++;
+            }
+        }
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().println("aborted=" + aborted);
+    }
+
+    /**
+     * Renders the requests.
+     *
+     * @param total    The number of requests in flight
+     * @param requests The requests listed
+     * @return The JSON text
+     */
+    static String render(int total, List<InFlightRequest> requests) {
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\"inFlight\":").append(total).append(",\"requests\":[");
+        boolean first = true;
+        for (InFlightRequest inFlight : requests) {
+            json.append(first ? "" : ",").append("\n  {\"id\":").append(inFlight.getId());
+            json.append(",\"started\":\"");
+            DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(inFlight.getStartTime()), json);
+            json.append("\",\"age\":");
+            ServerTiming.appendMillis(inFlight.getAgeNanos(), json);
+            json.append(",\"route\":");
+            string(json, inFlight.getContainer() != null ? inFlight.getContainer().getName() : null);
+            Server server = inFlight.getServer();
+            json.append(",\"server\":");
+            string(json, server != null ? server.getDomainName() + server.getPath() : null);
+            json.append(",\"method\":");
+            string(json, inFlight.getMethod());
+            json.append(",\"uri\":");
+            string(json, inFlight.getUri());
+            json.append(",\"phase\":\"").append(inFlight.getPhase()).append('"');
+            json.append(",\"aborted\":").append(inFlight.isAborted()).append('}');
+            first = false;
+        }
+        return json.append("]}\n").toString();
+    }
+
+    /**
+     * Writes a string value.
+     */
+    private static void string(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+        } else {
+            json.append('"').append(StringEscapeUtils.escapeJson(value)).append('"');
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.admin;
+
+import net.sf.j2ep.accesslog.AccessLog;
+import net.sf.j2ep.cache.IndexedCacheStorage;
+import net.sf.j2ep.cache.NegativeCache;
+import net.sf.j2ep.cache.RequestCoalescer;
+import net.sf.j2ep.cache.ValidatorCache;
+import net.sf.j2ep.io.BufferPool;
+import net.sf.j2ep.model.CircuitBreaker;
+import net.sf.j2ep.monitor.MetricsRegistry;
+import net.sf.j2ep.monitor.PrometheusWriter;
+import net.sf.j2ep.monitor.RouteMetrics;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sends the metrics of the proxy in the Prometheus text format. Besides
+ * the latencies and counters of every container and server it reports
+ * the circuit breakers, the connection pool, the caches, the rewrite
+ * filter and the buffer pool, whichever of them the proxy was set up with.
+ * The filter must have the init parameter <em>metrics</em> set.
+ * <p/>
+ * The text is rendered into a buffer kept by the servlet, so a scrape
+ * doesn't leave garbage behind even with thousands of series. Scrapes
+ * are rendered one at a time.
+ */
+public class MetricsServlet extends AdminServletBase {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The status classes as written in the class label.
+     */
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    /**
+     * The breaker states.
+     */
+    private static final CircuitBreaker.State[] STATES = CircuitBreaker.State.values();
+
+    /**
+     * The breaker states as written in the state label.
+     */
+    private static final String[] STATE_LABELS = new String[STATES.length];
+
+    /**
+     * The cache response statuses.
+     */
+    private static final CacheResponseStatus[] CACHE_STATUSES = CacheResponseStatus.values();
+
+    /**
+     * The cache response statuses as written in the status label.
+     */
+    private static final String[] CACHE_STATUS_LABELS = new String[CACHE_STATUSES.length];
+
+    static {
+        for (int i = 0; i < STATES.length; i++) {
+            STATE_LABELS[i] = STATES[i].name().toLowerCase(Locale.ROOT);
+        }
+        for (int i = 0; i < CACHE_STATUSES.length; i++) {
+            CACHE_STATUS_LABELS[i] = CACHE_STATUSES[i].name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * The buffer the metrics are rendered into.
+     */
+    private transient PrometheusWriter writer;
+
+    /**
+     * @see net.sf.j2ep.admin.AdminServletBase#init()
+     */
+    public void init() throws ServletException {
+        super.init();
+        writer = new PrometheusWriter(65536);
+    }
+
+    /**
+     * Renders the metrics.
+     *
+     * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        MetricsRegistry metrics = getComponent(MetricsRegistry.class);
+        if (metrics == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Metrics are not enabled");
+            return;
+        }
+        response.setContentType(PrometheusWriter.CONTENT_TYPE);
+        synchronized (writer) {
+            writer.reset();
+            render(writer, metrics);
+            response.setContentLength(writer.size());
+            writer.writeTo(response.getOutputStream());
+        }
+    }
+
+    /**
+     * Renders all metrics.
+     *
+     * @param w       The writer
+     * @param metrics The metrics of the routes
+     */
+    void render(PrometheusWriter w, MetricsRegistry metrics) {
+        List<RouteMetrics> servers = metrics.getServers();
+        writeRoutes(w, "j2ep_container", "container", metrics.getContainers());
+        writeRoutes(w, "j2ep_server", "server", servers);
+        writeBreakers(w, servers);
+        writeConnectionPool(w, getComponent(PoolingHttpClientConnectionManager.class));
+        writeCaches(w, metrics);
+        writeRewrites(w, metrics);
+        writeBufferPool(w, getComponent(BufferPool.class));
+        writeAccessLog(w, getComponent(AccessLog.class));
+    }
+
+    /**
+     * Writes the latencies and counters of some routes.
+     */
+    private static void writeRoutes(PrometheusWriter w, String prefix, String label, List<RouteMetrics> routes) {
+        w.family(prefix, "_requests_total", "counter", "Requests handled.");
+        for (RouteMetrics route : routes) {
+            w.metric(prefix, "_requests_total").label(label, route.getName()).value(route.getRequests());
+        }
+        w.family(prefix, "_responses_total", "counter", "Responses sent, by status class.");
+        for (RouteMetrics route : routes) {
+            for (int i = 0; i < STATUS_CLASSES.length; i++) {
+                w.metric(prefix, "_responses_total").label(label, route.getName())
+                 .label("class", STATUS_CLASSES[i]).value(route.getStatusClass(i + 1));
+            }
+        }
+        w.family(prefix, "_failures_total", "counter", "Requests failed without a response.");
+        for (RouteMetrics route : routes) {
+            w.metric(prefix, "_failures_total").label(label, route.getName()).value(route.getFailures());
+        }
+        w.family(prefix, "_received_bytes_total", "counter", "Request body bytes received.");
+        for (RouteMetrics route : routes) {
+            w.metric(prefix, "_received_bytes_total").label(label, route.getName()).value(route.getBytesReceived());
+        }
+        w.family(prefix, "_sent_bytes_total", "counter", "Response body bytes sent.");
+        for (RouteMetrics route : routes) {
+            w.metric(prefix, "_sent_bytes_total").label(label, route.getName()).value(route.getBytesSent());
+        }
+        w.family(prefix, "_request_duration_seconds", "histogram", "Time from receiving a request until the response was sent.");
+        for (RouteMetrics route : routes) {
+            w.histogram(prefix, "_request_duration_seconds", label, route.getName(), route.getTotal());
+        }
+        w.family(prefix, "_response_headers_seconds", "histogram", "Time until the response headers were received from the server.");
+        for (RouteMetrics route : routes) {
+            w.histogram(prefix, "_response_headers_seconds", label, route.getName(), route.getHeaders());
+        }
+        w.family(prefix, "_response_body_seconds", "histogram", "Time spent sending the response body to the client.");
+        for (RouteMetrics route : routes) {
+            w.histogram(prefix, "_response_body_seconds", label, route.getName(), route.getBody());
+        }
+    }
+
+    /**
+     * Writes the circuit breakers of the servers having one.
+     */
+    private static void writeBreakers(PrometheusWriter w, List<RouteMetrics> servers) {
+        w.family("j2ep_circuit_breaker", "_state", "gauge", "1 for the state the circuit breaker is in.");
+        for (RouteMetrics server : servers) {
+            CircuitBreaker breaker = server.getCircuitBreaker();
+            if (breaker != null) {
+                CircuitBreaker.State state = breaker.getState();
+                for (int i = 0; i < STATES.length; i++) {
+                    w.metric("j2ep_circuit_breaker", "_state").label("server", server.getName())
+                     .label("state", STATE_LABELS[i]).value(STATES[i] == state ? 1 : 0);
+                }
+            }
+        }
+        w.family("j2ep_circuit_breaker", "_failure_rate_percent", "gauge", "Share of failed calls in the window of the circuit breaker.");
+        for (RouteMetrics server : servers) {
+            CircuitBreaker breaker = server.getCircuitBreaker();
+            int failureRate = breaker != null ? breaker.getFailureRate() : -1;
+            if (failureRate >= 0) {
+                w.metric("j2ep_circuit_breaker", "_failure_rate_percent").label("server", server.getName()).value(failureRate);
+            }
+        }
+        w.family("j2ep_circuit_breaker", "_opened_total", "counter", "Times the circuit breaker opened.");
+        for (RouteMetrics server : servers) {
+            CircuitBreaker breaker = server.getCircuitBreaker();
+            if (breaker != null) {
+                w.metric("j2ep_circuit_breaker", "_opened_total").label("server", server.getName()).value(breaker.getTimesOpened());
+            }
+        }
+        w.family("j2ep_circuit_breaker", "_rejected_total", "counter", "Calls not permitted by the circuit breaker.");
+        for (RouteMetrics server : servers) {
+            CircuitBreaker breaker = server.getCircuitBreaker();
+            if (breaker != null) {
+                w.metric("j2ep_circuit_breaker", "_rejected_total").label("server", server.getName()).value(breaker.getNotPermittedCalls());
+            }
+        }
+    }
+
+    /**
+     * Writes the totals of the connection pool.
+     */
+    private static void writeConnectionPool(PrometheusWriter w, PoolingHttpClientConnectionManager connectionManager) {
+        if (connectionManager == null) {
+            return;
+        }
+        PoolStats stats = connectionManager.getTotalStats();
+        w.family("j2ep_connections", "_leased", "gauge", "Connections to the servers in use.");
+        w.metric("j2ep_connections", "_leased").value(stats.getLeased());
+        w.family("j2ep_connections", "_available", "gauge", "Idle connections to the servers kept in the pool.");
+        w.metric("j2ep_connections", "_available").value(stats.getAvailable());
+        w.family("j2ep_connections", "_pending", "gauge", "Requests waiting for a connection.");
+        w.metric("j2ep_connections", "_pending").value(stats.getPending());
+        w.family("j2ep_connections", "_max", "gauge", "Largest number of connections in the pool.");
+        w.metric("j2ep_connections", "_max").value(stats.getMax());
+    }
+
+    /**
+     * Writes the counters of the HTTP cache and the caches in front of it.
+     */
+    private void writeCaches(PrometheusWriter w, MetricsRegistry metrics) {
+        w.family("j2ep_cache", "_responses_total", "counter", "Requests handled by the HTTP cache, by cache response status.");
+        for (int i = 0; i < CACHE_STATUSES.length; i++) {
+            w.metric("j2ep_cache", "_responses_total").label("status", CACHE_STATUS_LABELS[i])
+             .value(metrics.getCacheResponses(CACHE_STATUSES[i]));
+        }
+        IndexedCacheStorage index = getComponent(IndexedCacheStorage.class);
+        if (index != null) {
+            w.family("j2ep_cache", "_indexed_entries", "gauge", "Cache entries in the purge index.");
+            w.metric("j2ep_cache", "_indexed_entries").value(index.size());
+        }
+        NegativeCache negativeCache = getComponent(NegativeCache.class);
+        if (negativeCache != null) {
+            w.family("j2ep_negative_cache", "_hits_total", "counter", "Requests answered with a cached error response.");
+            w.metric("j2ep_negative_cache", "_hits_total").value(negativeCache.getHits());
+            w.family("j2ep_negative_cache", "_stores_total", "counter", "Error responses stored.");
+            w.metric("j2ep_negative_cache", "_stores_total").value(negativeCache.getStores());
+            w.family("j2ep_negative_cache", "_bytes", "gauge", "Size of the stored error responses.");
+            w.metric("j2ep_negative_cache", "_bytes").value(negativeCache.getWeight());
+        }
+        ValidatorCache validatorCache = getComponent(ValidatorCache.class);
+        if (validatorCache != null) {
+            w.family("j2ep_validator_cache", "_hits_total", "counter", "Conditional requests answered with a 304.");
+            w.metric("j2ep_validator_cache", "_hits_total").value(validatorCache.getHits());
+            w.family("j2ep_validator_cache", "_entries", "gauge", "Validators remembered.");
+            w.metric("j2ep_validator_cache", "_entries").value(validatorCache.size());
+        }
+        RequestCoalescer coalescer = getComponent(RequestCoalescer.class);
+        if (coalescer != null) {
+            w.family("j2ep_coalescer", "_leaders_total", "counter", "Requests sent to the server on behalf of identical requests.");
+            w.metric("j2ep_coalescer", "_leaders_total").value(coalescer.getLeaders());
+            w.family("j2ep_coalescer", "_coalesced_total", "counter", "Requests answered with the response of another request.");
+            w.metric("j2ep_coalescer", "_coalesced_total").value(coalescer.getCoalesced());
+            w.family("j2ep_coalescer", "_fallbacks_total", "counter", "Requests that waited in vain and were sent on their own.");
+            w.metric("j2ep_coalescer", "_fallbacks_total").value(coalescer.getFallbacks());
+        }
+    }
+
+    /**
+     * Writes the counters of the rewrite filter.
+     */
+    private static void writeRewrites(PrometheusWriter w, MetricsRegistry metrics) {
+        w.family("j2ep_rewrite", "_pages_total", "counter", "Pages rewritten.");
+        w.metric("j2ep_rewrite", "_pages_total").value(metrics.getRewrittenPages());
+        w.family("j2ep_rewrite", "_received_bytes_total", "counter", "Bytes of the pages before they were rewritten.");
+        w.metric("j2ep_rewrite", "_received_bytes_total").value(metrics.getRewriteBytesIn());
+        w.family("j2ep_rewrite", "_sent_bytes_total", "counter", "Bytes of the rewritten pages.");
+        w.metric("j2ep_rewrite", "_sent_bytes_total").value(metrics.getRewriteBytesOut());
+    }
+
+    /**
+     * Writes the counters of the buffer pool.
+     */
+    private static void writeBufferPool(PrometheusWriter w, BufferPool pool) {
+        if (pool == null) {
+            return;
+        }
+        w.family("j2ep_buffer_pool", "_acquired_total", "counter", "Buffers taken from the pool.");
+        w.metric("j2ep_buffer_pool", "_acquired_total").value(pool.getAcquired());
+        w.family("j2ep_buffer_pool", "_allocated_total", "counter", "Buffers allocated because the pool had none.");
+        w.metric("j2ep_buffer_pool", "_allocated_total").value(pool.getAllocated());
+        w.family("j2ep_buffer_pool", "_dropped_total", "counter", "Buffers dropped because the pool was full.");
+        w.metric("j2ep_buffer_pool", "_dropped_total").value(pool.getDropped());
+        w.family("j2ep_buffer_pool", "_in_use", "gauge", "Buffers taken and not yet returned.");
+        w.metric("j2ep_buffer_pool", "_in_use").value(pool.getInUse());
+        w.family("j2ep_buffer_pool", "_pooled_bytes", "gauge", "Bytes held by the idle buffers.");
+        w.metric("j2ep_buffer_pool", "_pooled_bytes").value(pool.getPooledBytes());
+    }
+
+    /**
+     * Writes the counters of the access log.
+     */
+    private static void writeAccessLog(PrometheusWriter w, AccessLog accessLog) {
+        if (accessLog == null) {
+            return;
+        }
+        w.family("j2ep_access_log", "_written_total", "counter", "Requests written to the access log.");
+        w.metric("j2ep_access_log", "_written_total").value(accessLog.getWritten());
+        w.family("j2ep_access_log", "_dropped_total", "counter", "Requests left out of the access log because it was full.");
+        w.metric("j2ep_access_log", "_dropped_total").value(accessLog.getDropped());
+    }
+}
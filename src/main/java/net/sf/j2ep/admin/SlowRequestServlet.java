@@ -0,0 +1,147 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.admin;
+
+import net.sf.j2ep.model.Server;
+import net.sf.j2ep.monitor.ServerTiming;
+import net.sf.j2ep.monitor.SlowRequest;
+import net.sf.j2ep.monitor.SlowRequestSampler;
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Sends the slowest requests of every route as JSON, with the rule that
+ * matched them, the server that answered and the time spent finding the
+ * server, waiting for a pooled connection, connecting, waiting for the
+ * response headers and rewriting the page. Durations are in milliseconds,
+ * phases that didn't happen are null. The parameter <em>route</em> limits
+ * the answer to one route. The filter must have the init parameter
+ * <em>slowRequests</em> set.
+ */
+public class SlowRequestServlet extends AdminServletBase {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Renders the slow requests.
+     *
+     * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        SlowRequestSampler sampler = getComponent(SlowRequestSampler.class);
+        if (sampler == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Slow requests are not kept");
+            return;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(render(sampler, request.getParameter("route"), System.currentTimeMillis()));
+    }
+
+    /**
+     * Renders the slow requests of the routes.
+     *
+     * @param sampler The sampler
+     * @param route   The only route rendered, null for all of them
+     * @param now     The current time in milliseconds since the epoch
+     * @return The JSON text
+     */
+    static String render(SlowRequestSampler sampler, String route, long now) {
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\"minutes\":").append(sampler.getMinutes()).append(",\"routes\":[");
+        boolean firstRoute = true;
+        for (SlowRequestSampler.Reservoir reservoir : sampler.getReservoirs()) {
+            if (route != null && !route.equals(reservoir.getName())) {
+                continue;
+            }
+            List<SlowRequest> slowest = reservoir.getSlowest(now);
+            if (slowest.isEmpty()) {
+                continue;
+            }
+            json.append(firstRoute ? "" : ",").append("\n{\"route\":");
+            string(json, reservoir.getName());
+            json.append(",\"requests\":[");
+            firstRoute = false;
+            boolean first = true;
+            for (SlowRequest slow : slowest) {
+                json.append(first ? "" : ",").append("\n  ");
+                request(json, slow);
+                first = false;
+            }
+            json.append("]}");
+        }
+        return json.append("]}\n").toString();
+    }
+
+    /**
+     * Renders a request and its timeline.
+     */
+    private static void request(StringBuilder json, SlowRequest slow) {
+        json.append("{\"time\":\"");
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(slow.getTime()), json);
+        json.append("\",\"method\":");
+        string(json, slow.getMethod());
+        json.append(",\"uri\":");
+        string(json, slow.getUri());
+        json.append(",\"status\":").append(slow.getStatus());
+        json.append(",\"duration\":");
+        ServerTiming.appendMillis(slow.getDurationNanos(), json);
+        json.append(",\"rule\":");
+        string(json, slow.getRule() != null ? slow.getRule().toString() : null);
+        Server server = slow.getServer();
+        json.append(",\"server\":");
+        string(json, server != null ? server.getDomainName() + server.getPath() : null);
+        json.append(",\"retries\":").append(slow.getRetries());
+        json.append(",\"bytesSent\":").append(slow.getBytesSent());
+        ServerTiming timing = slow.getTiming();
+        millis(json, "routing", timing.getRoutingNanos());
+        millis(json, "poolWait", timing.getPoolWaitNanos());
+        millis(json, "connect", timing.getConnectNanos());
+        millis(json, "ttfb", timing.getTtfbNanos());
+        millis(json, "rewrite", timing.getRewriteNanos());
+        json.append('}');
+    }
+
+    /**
+     * Writes a duration field, null if the phase didn't happen.
+     */
+    private static void millis(StringBuilder json, String name, long nanos) {
+        json.append(",\"").append(name).append("\":");
+        if (nanos < 0) {
+            json.append("null");
+        } else {
+            ServerTiming.appendMillis(nanos, json);
+        }
+    }
+
+    /**
+     * Writes a string value.
+     */
+    private static void string(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+        } else {
+            json.append('"').append(StringEscapeUtils.escapeJson(value)).append('"');
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import net.sf.j2ep.io.DetachedHttpResponse;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+/**
+ * A response read into a buffer so it can be answered more than once.
+ * The body buffer is shared by all the responses created from it and
+ * is never modified.
+ */
+final class BufferedResponse {
+
+    private final StatusLine statusLine;
+    private final Header[] headers;
+    private final byte[] body;
+    private final int length;
+
+    private BufferedResponse(StatusLine statusLine, Header[] headers, byte[] body, int length) {
+        this.statusLine = statusLine;
+        this.headers = headers;
+        this.body = body;
+        this.length = length;
+    }
+
+    /**
+     * Reads a response into a buffer. If the body turns out to be too
+     * large the response is given back its entity so the part already
+     * read isn't lost.
+     *
+     * @param hresp       The response from the server
+     * @param maxBodySize The largest body that will be read
+     * @return The buffered response, null if the body is too large
+     * @throws IOException When there is a problem reading the body
+     */
+    static BufferedResponse read(HttpResponse hresp, int maxBodySize) throws IOException {
+        HttpEntity entity = hresp.getEntity();
+        if (entity == null) {
+            return new BufferedResponse(hresp.getStatusLine(), hresp.getAllHeaders(), null, 0);
+        }
+        long length = entity.getContentLength();
+        if (length > maxBodySize) {
+            return null;
+        }
+
+        int limit = maxBodySize + 1;
+        byte[] buffer = new byte[length >= 0 ? (int) length : Math.min(limit, 8192)];
+        int count = 0;
+        InputStream in = entity.getContent();
+        while (count != length) {
+            if (count == buffer.length) {
+                if (count >= limit) {
+                    break;
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(limit, Math.max(8192, count * 2L)));
+            }
+            int read = in.read(buffer, count, buffer.length - count);
+            if (read == -1) {
+                break;
+            }
+            count += read;
+        }
+
+        if (count > maxBodySize) {
+            InputStream rest = new SequenceInputStream(new ByteArrayInputStream(buffer, 0, count), in);
+            hresp.setEntity(new InputStreamEntity(rest, length, null));
+            return null;
+        }
+        in.close();
+        return new BufferedResponse(hresp.getStatusLine(), hresp.getAllHeaders(), buffer, count);
+    }
+
+    /**
+     * Checks if a response can be given to other clients than the one
+     * making the request. Responses setting cookies or marked as private
+     * or no-store can't.
+     *
+     * @param hresp The response
+     * @return true if the response can be shared
+     */
+    static boolean isPublic(HttpResponse hresp) {
+        if (hresp.containsHeader("Set-Cookie") || hresp.containsHeader("Set-Cookie2")) {
+            return false;
+        }
+        for (Header header : hresp.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName();
+                if (name.equalsIgnoreCase("private") || name.equalsIgnoreCase("no-store")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes in the body.
+     *
+     * @return The body length
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of bytes used by the response, roughly.
+     *
+     * @return The weight
+     */
+    int getWeight() {
+        int weight = 64 + (body != null ? body.length : 0);
+        for (Header header : headers) {
+            weight += 32 + 2 * (header.getName().length() + header.getValue().length());
+        }
+        return weight;
+    }
+
+    /**
+     * Creates a response reading from the shared buffer.
+     *
+     * @return The response
+     */
+    CloseableHttpResponse createResponse() {
+        HttpEntity entity = body != null ? new ByteArrayEntity(body, 0, length) : null;
+        return new DetachedHttpResponse(statusLine, headers, entity);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import org.apache.http.client.cache.HttpCacheStorage;
+
+/**
+ * A cache storage that drops entries on its own, evicting them to make
+ * room for others or refusing them when they are stored, and tells a
+ * listener about every key dropped.
+ */
+public interface EvictingCacheStorage extends HttpCacheStorage {
+
+    /**
+     * Told about the entries a storage drops on its own.
+     */
+    interface EvictionListener {
+
+        /**
+         * Called for every entry dropped. The storage may hold its
+         * locks while calling, the listener must be quick and must not
+         * call the storage.
+         *
+         * @param key The key of the entry
+         */
+        void evicted(String key);
+    }
+
+    /**
+     * Checks if an entry is stored without counting a hit or a miss
+     * and without changing what the storage evicts next.
+     *
+     * @param key The key of the entry
+     * @return true if the entry is stored
+     */
+    boolean containsEntry(String key);
+
+    /**
+     * Sets the listener told about the entries dropped.
+     *
+     * @param listener The listener, null for none
+     */
+    void setEvictionListener(EvictionListener listener);
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import net.sf.j2ep.io.FileRegion;
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores cached bodies in one file each, like the file resources used by
+ * HttpClient for the <em>cacheDir</em> parameter, but the streams of the
+ * resources are file regions so the container can send the bodies
+ * straight from the files.
+ */
+public class FileRegionResourceFactory implements ResourceFactory {
+
+    /**
+     * The directory the files are stored in.
+     */
+    private final File cacheDir;
+
+    /**
+     * Makes the file names unique.
+     */
+    private final AtomicLong counter;
+
+    /**
+     * Creates a factory.
+     *
+     * @param cacheDir The directory to store the files in
+     */
+    public FileRegionResourceFactory(File cacheDir) {
+        this.cacheDir = cacheDir;
+        this.counter = new AtomicLong();
+    }
+
+    /**
+     * @see org.apache.http.client.cache.ResourceFactory#generate(java.lang.String,
+     * java.io.InputStream, org.apache.http.client.cache.InputLimit)
+     */
+    public Resource generate(String requestId, InputStream in, InputLimit limit) throws IOException {
+        File file = createFile(requestId);
+        try (OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+                if (limit != null && total > limit.getValue()) {
+                    limit.reached();
+                    break;
+                }
+            }
+        }
+        return new FileRegionResource(file);
+    }
+
+    /**
+     * @see org.apache.http.client.cache.ResourceFactory#copy(java.lang.String,
+     * org.apache.http.client.cache.Resource)
+     */
+    public Resource copy(String requestId, Resource resource) throws IOException {
+        File file = createFile(requestId);
+        if (resource instanceof FileRegionResource) {
+            Files.copy(((FileRegionResource) resource).file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            try (InputStream in = resource.getInputStream()) {
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return new FileRegionResource(file);
+    }
+
+    /**
+     * Creates a unique file name from the request id.
+     *
+     * @param requestId The request id
+     * @return The file
+     */
+    private File createFile(String requestId) {
+        StringBuilder name = new StringBuilder();
+        name.append(System.currentTimeMillis()).append('.').append(counter.incrementAndGet()).append('.');
+        for (int i = 0; i < requestId.length() && name.length() < 100; i++) {
+            char ch = requestId.charAt(i);
+            name.append(Character.isLetterOrDigit(ch) || ch == '.' ? ch : '-');
+        }
+        return new File(cacheDir, name.toString());
+    }
+
+    /**
+     * A body stored in a file, deleted when the cache disposes it.
+     */
+    static final class FileRegionResource implements Resource {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+        private volatile boolean disposed;
+
+        FileRegionResource(File file) {
+            this.file = file;
+        }
+
+        public synchronized InputStream getInputStream() throws IOException {
+            return new RegionInputStream(file);
+        }
+
+        public long length() {
+            return file.length();
+        }
+
+        public synchronized void dispose() {
+            if (!disposed) {
+                disposed = true;
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * A stream over a whole file that tells which file it reads.
+     */
+    private static final class RegionInputStream extends FileInputStream implements FileRegion {
+
+        private final File file;
+        private final long count;
+
+        RegionInputStream(File file) throws FileNotFoundException {
+            super(file);
+            this.file = file;
+            this.count = file.length();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getPosition() {
+            return 0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
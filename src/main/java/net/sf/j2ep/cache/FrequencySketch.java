@@ -0,0 +1,154 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+/**
+ * A count-min sketch estimating how often keys have been seen, used by
+ * the TinyLFU admission policy. Every key is counted in four 4-bit
+ * counters, sixteen counters are packed into each long. When the number
+ * of increments reaches the sample size all counters are halved so that
+ * old popularity fades away.
+ * <p/>
+ * The sketch isn't thread safe, the caller must hold a lock.
+ */
+final class FrequencySketch {
+
+    /**
+     * Seeds for the four hash functions.
+     */
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    /**
+     * Clears the top bit of every counter after a shift.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * The lowest bit of every counter.
+     */
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    /**
+     * The counters.
+     */
+    private final long[] table;
+
+    /**
+     * Mask giving a table index from a hash.
+     */
+    private final int tableMask;
+
+    /**
+     * Number of increments before the counters are halved.
+     */
+    private final int sampleSize;
+
+    /**
+     * Increments since the last halving.
+     */
+    private int size;
+
+    /**
+     * Creates a sketch.
+     *
+     * @param expectedKeys The number of keys expected to be tracked
+     */
+    FrequencySketch(int expectedKeys) {
+        int keys = Math.max(16, Math.min(expectedKeys, 1 << 26));
+        int length = Integer.highestOneBit(keys - 1) << 1;
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * keys;
+    }
+
+    /**
+     * Returns the estimated number of times a key has been seen,
+     * at most 15.
+     *
+     * @param hash The spread hash of the key
+     * @return The estimated frequency
+     */
+    int frequency(int hash) {
+        int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts a key, halving all counters when the sample is full.
+     *
+     * @param hash The spread hash of the key
+     */
+    void increment(int hash) {
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Increments a counter unless it's saturated.
+     *
+     * @param index   The table index
+     * @param counter The counter within the long
+     * @return true if the counter was incremented
+     */
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves all counters.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    /**
+     * Returns the table index for one of the hash functions.
+     *
+     * @param hash The spread hash of the key
+     * @param i    The hash function
+     * @return The table index
+     */
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+}
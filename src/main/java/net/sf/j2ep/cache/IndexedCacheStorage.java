@@ -0,0 +1,461 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.client.utils.URIUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A storage keeping an index of the entries in another storage so
+ * entries can be purged by URL, by URL prefix or by the tags the server
+ * put in a surrogate key header. The URLs are kept sorted so a prefix
+ * purge only visits the entries under the prefix, and every tag maps
+ * to the keys tagged with it.
+ * <p/>
+ * The index learns about new entries through this storage. A storage
+ * reporting the entries it evicts on its own has them dropped from the
+ * index at once. For other storages the evicted entries are dropped when
+ * they are looked up, or by a sweep in the background when the index
+ * grows past its limit. The sweep has to look up every key in the
+ * storage.
+ */
+public class IndexedCacheStorage implements HttpCacheStorage, Closeable {
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static final Logger log = LoggerFactory.getLogger(IndexedCacheStorage.class);
+
+    /**
+     * The header servers tag their responses with.
+     */
+    public static final String DEFAULT_TAG_HEADER = "Surrogate-Key";
+
+    /**
+     * Relative URLs are resolved against this.
+     */
+    private static final URI BASE_URI = URI.create("http://example.com/");
+
+    /**
+     * The storage holding the entries.
+     */
+    private final HttpCacheStorage storage;
+
+    /**
+     * The header the tags are read from.
+     */
+    private final String tagHeader;
+
+    /**
+     * The storage when it reports its evictions, null if it doesn't.
+     */
+    private final EvictingCacheStorage evictingStorage;
+
+    /**
+     * Number of indexed keys allowed before the index is swept.
+     */
+    private final int maxIndexSize;
+
+    /**
+     * Size the index must reach before it's swept again.
+     */
+    private int sweepSize;
+
+    /**
+     * The keys stored under each URL, the root entry and its variants.
+     */
+    private final TreeMap<String, Set<String>> urls = new TreeMap<>();
+
+    /**
+     * The keys tagged with each tag.
+     */
+    private final Map<String, Set<String>> tags = new HashMap<>();
+
+    /**
+     * The tags for every indexed key. A new array is stored every time a
+     * key is indexed, so the array tells if a key was indexed again.
+     */
+    private final Map<String, String[]> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an index over a storage.
+     *
+     * @param storage      The storage holding the entries
+     * @param tagHeader    The header the tags are read from
+     * @param maxIndexSize Number of keys indexed before the index is swept
+     */
+    public IndexedCacheStorage(HttpCacheStorage storage, String tagHeader, int maxIndexSize) {
+        this.storage = storage;
+        this.tagHeader = tagHeader;
+        this.maxIndexSize = maxIndexSize;
+        this.sweepSize = maxIndexSize;
+        if (storage instanceof EvictingCacheStorage) {
+            evictingStorage = (EvictingCacheStorage) storage;
+            evictingStorage.setEvictionListener(this::evicted);
+        } else {
+            evictingStorage = null;
+        }
+    }
+
+    /**
+     * Returns the storage holding the entries.
+     *
+     * @return The storage
+     */
+    public HttpCacheStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#putEntry(java.lang.String, org.apache.http.client.cache.HttpCacheEntry)
+     */
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        storage.putEntry(key, entry);
+        indexStored(key, entry);
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#getEntry(java.lang.String)
+     */
+    public HttpCacheEntry getEntry(String key) throws IOException {
+        String[] indexed = keys.get(key);
+        HttpCacheEntry entry = storage.getEntry(key);
+        if (entry == null && indexed != null) {
+            unindexUnchanged(key, indexed);
+        }
+        return entry;
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#removeEntry(java.lang.String)
+     */
+    public void removeEntry(String key) throws IOException {
+        storage.removeEntry(key);
+        synchronized (this) {
+            unindex(key);
+        }
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#updateEntry(java.lang.String, org.apache.http.client.cache.HttpCacheUpdateCallback)
+     */
+    public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException, HttpCacheUpdateException {
+        String[] indexed = keys.get(key);
+        HttpCacheEntry[] updated = new HttpCacheEntry[1];
+        storage.updateEntry(key, existing -> updated[0] = callback.update(existing));
+        if (updated[0] != null) {
+            indexStored(key, updated[0]);
+        } else if (indexed != null) {
+            unindexUnchanged(key, indexed);
+        }
+    }
+
+    /**
+     * Removes the entries for a URL.
+     *
+     * @param url The URL, as sent to the server
+     * @return The number of entries removed
+     * @throws IOException If the underlying storage fails
+     */
+    public int purgeUrl(String url) throws IOException {
+        List<String> purged;
+        synchronized (this) {
+            purged = keysFor(Collections.singleton(canonicalize(url)));
+        }
+        return remove(purged);
+    }
+
+    /**
+     * Removes the entries for all URLs starting with a prefix.
+     *
+     * @param prefix The start of the URLs, as sent to the server
+     * @return The number of entries removed
+     * @throws IOException If the underlying storage fails
+     */
+    public int purgePrefix(String prefix) throws IOException {
+        String start = canonicalize(prefix);
+        List<String> purged;
+        synchronized (this) {
+            purged = keysFor(urls.subMap(start, true, start + Character.MAX_VALUE, false).keySet());
+        }
+        return remove(purged);
+    }
+
+    /**
+     * Removes the entries for everything proxied to a server mount,
+     * over both http and https.
+     *
+     * @param domainName The host name and port of the server
+     * @param path       The path mapped to, empty for the root
+     * @return The number of entries removed
+     * @throws IOException If the underlying storage fails
+     */
+    public int purgeMount(String domainName, String path) throws IOException {
+        int count = 0;
+        for (String scheme : new String[]{"http://", "https://"}) {
+            String mount = scheme + domainName + path;
+            count += purgeUrl(mount);
+            count += purgePrefix(mount + "/");
+        }
+        return count;
+    }
+
+    /**
+     * Removes the entries for all URLs with an entry tagged with a tag.
+     *
+     * @param tag The tag
+     * @return The number of entries removed
+     * @throws IOException If the underlying storage fails
+     */
+    public int purgeTag(String tag) throws IOException {
+        List<String> purged;
+        synchronized (this) {
+            Set<String> tagged = tags.get(tag);
+            if (tagged == null) {
+                return 0;
+            }
+            Set<String> taggedUrls = new HashSet<>();
+            for (String key : tagged) {
+                taggedUrls.add(urlOf(key));
+            }
+            purged = keysFor(taggedUrls);
+        }
+        return remove(purged);
+    }
+
+    /**
+     * Returns the number of keys in the index.
+     *
+     * @return The number of keys
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Closes the underlying storage.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        if (storage instanceof Closeable) {
+            ((Closeable) storage).close();
+        }
+    }
+
+    /**
+     * Brings a URL in the form used for cache keys, normalized the
+     * same way the caching client does it with the port included.
+     *
+     * @param url The URL
+     * @return The URL as found in the cache keys
+     */
+    public static String canonicalize(String url) {
+        try {
+            URL u = new URL(URIUtils.resolve(BASE_URI, url).toASCIIString());
+            String protocol = u.getProtocol();
+            int port = u.getPort();
+            if (port == -1) {
+                port = "https".equalsIgnoreCase(protocol) ? 443 : ("http".equalsIgnoreCase(protocol) ? 80 : -1);
+            }
+            String file = (u.getQuery() != null) ? u.getPath() + "?" + u.getQuery() : u.getPath();
+            return new URL(protocol, u.getHost(), port, file).toString();
+        } catch (IllegalArgumentException | MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Returns the URL a key is stored for, variant keys have the
+     * variant in braces in front of the URL.
+     *
+     * @param key The key
+     * @return The URL
+     */
+    static String urlOf(String key) {
+        if (key.startsWith("{")) {
+            int end = key.indexOf('}');
+            if (end > 0) {
+                return key.substring(end + 1);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Indexes an entry just stored. An entry the storage evicted or
+     * refused before it was indexed is dropped again, a storage not
+     * reporting its evictions is swept when the index is too large.
+     */
+    private void indexStored(String key, HttpCacheEntry entry) {
+        String[] entryTags = parseTags(entry.getHeaders(tagHeader));
+        boolean sweep;
+        synchronized (this) {
+            unindex(key);
+            urls.computeIfAbsent(urlOf(key), k -> new LinkedHashSet<>()).add(key);
+            for (String tag : entryTags) {
+                tags.computeIfAbsent(tag, k -> new HashSet<>()).add(key);
+            }
+            keys.put(key, entryTags);
+            sweep = evictingStorage == null && keys.size() > sweepSize;
+            if (sweep) {
+                sweepSize = Integer.MAX_VALUE;
+            }
+        }
+        if (evictingStorage != null && !evictingStorage.containsEntry(key)) {
+            unindexUnchanged(key, entryTags);
+        }
+        if (sweep) {
+            Thread sweeper = new Thread(this::sweep, "j2ep-cache-index-sweeper");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        }
+    }
+
+    /**
+     * Drops a key the storage evicted from the index.
+     */
+    private synchronized void evicted(String key) {
+        unindex(key);
+    }
+
+    /**
+     * Removes a key from the index unless it was indexed again after
+     * the storage was found not to have it.
+     *
+     * @return true if the key was removed
+     */
+    private synchronized boolean unindexUnchanged(String key, String[] indexed) {
+        if (keys.get(key) != indexed) {
+            return false;
+        }
+        unindex(key);
+        return true;
+    }
+
+    /**
+     * Removes a key from the index, the caller holds the lock.
+     */
+    private void unindex(String key) {
+        String[] entryTags = keys.remove(key);
+        if (entryTags == null) {
+            return;
+        }
+        String url = urlOf(key);
+        Set<String> stored = urls.get(url);
+        if (stored != null && stored.remove(key) && stored.isEmpty()) {
+            urls.remove(url);
+        }
+        for (String tag : entryTags) {
+            Set<String> tagged = tags.get(tag);
+            if (tagged != null && tagged.remove(key) && tagged.isEmpty()) {
+                tags.remove(tag);
+            }
+        }
+    }
+
+    /**
+     * Collects the keys stored under some URLs, the caller holds the lock.
+     */
+    private List<String> keysFor(Collection<String> purgedUrls) {
+        List<String> found = new ArrayList<>();
+        for (String url : purgedUrls) {
+            Set<String> stored = urls.get(url);
+            if (stored != null) {
+                found.addAll(stored);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Removes keys from the storage and the index.
+     */
+    private int remove(List<String> purged) throws IOException {
+        for (String key : purged) {
+            removeEntry(key);
+        }
+        if (log.isDebugEnabled()) log.debug("Purged " + purged.size() + " cache entries");
+        return purged.size();
+    }
+
+    /**
+     * Drops the keys the underlying storage no longer has, run in the
+     * background for storages not reporting their evictions. When most
+     * keys are still stored the next sweep waits until the index has
+     * grown twice as large.
+     */
+    private void sweep() {
+        int swept = 0;
+        for (Map.Entry<String, String[]> indexed : new ArrayList<>(keys.entrySet())) {
+            String key = indexed.getKey();
+            try {
+                if (storage.getEntry(key) == null && unindexUnchanged(key, indexed.getValue())) {
+                    swept++;
+                }
+            } catch (IOException e) {
+                log.warn("Failed to check cache entry " + key + ". " + e);
+            }
+        }
+        synchronized (this) {
+            sweepSize = Math.max(maxIndexSize, keys.size() * 2);
+        }
+        if (log.isDebugEnabled()) log.debug("Swept " + swept + " evicted keys from the cache index");
+    }
+
+    /**
+     * Splits the tag headers of an entry, tags are separated
+     * by white space or commas.
+     */
+    private static String[] parseTags(Header[] headers) {
+        if (headers.length == 0) {
+            return new String[0];
+        }
+        Set<String> parsed = new LinkedHashSet<>();
+        for (Header header : headers) {
+            for (String tag : header.getValue().split("[\\s,]+")) {
+                if (!tag.isEmpty()) {
+                    parsed.add(tag);
+                }
+            }
+        }
+        return parsed.toArray(new String[parsed.size()]);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import net.sf.j2ep.io.ByteBufferInputStream;
+import net.sf.j2ep.io.FileRegion;
+import org.apache.http.client.cache.Resource;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The body of a cache entry kept in a memory-mapped segment file. The
+ * body is read straight from the mapped region and never copied to the
+ * heap. The region stays readable even after the segment is reclaimed
+ * since a reclaimed segment is written to a new file.
+ * <p/>
+ * The streams are file regions so the container can send the body
+ * straight from the segment file.
+ */
+public class MappedResource implements Resource {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The mapped region holding the body.
+     */
+    private final transient ByteBuffer buffer;
+
+    /**
+     * The segment file the body is stored in.
+     */
+    private final File file;
+
+    /**
+     * Where in the file the body starts.
+     */
+    private final long position;
+
+    /**
+     * Creates a resource.
+     *
+     * @param buffer   The region holding the body, from position to limit
+     * @param file     The file the region is mapped from
+     * @param position Where in the file the body starts
+     */
+    public MappedResource(ByteBuffer buffer, File file, long position) {
+        this.buffer = buffer.slice().asReadOnlyBuffer();
+        this.file = file;
+        this.position = position;
+    }
+
+    /**
+     * Returns a read-only view of the body that can be written to
+     * a channel without copying it.
+     *
+     * @return The body
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * @see org.apache.http.client.cache.Resource#getInputStream()
+     */
+    public InputStream getInputStream() {
+        return new RegionInputStream(buffer.duplicate(), file, position);
+    }
+
+    /**
+     * @see org.apache.http.client.cache.Resource#length()
+     */
+    public long length() {
+        return buffer.capacity();
+    }
+
+    /**
+     * The space is reclaimed when the segment is compacted.
+     *
+     * @see org.apache.http.client.cache.Resource#dispose()
+     */
+    public void dispose() {
+    }
+
+    /**
+     * A stream over the mapped body that also tells where
+     * in the segment file the body is.
+     */
+    private static final class RegionInputStream extends ByteBufferInputStream implements FileRegion {
+
+        private final File file;
+        private final long position;
+        private final long count;
+
+        RegionInputStream(ByteBuffer buffer, File file, long position) {
+            super(buffer);
+            this.file = file;
+            this.position = position;
+            this.count = buffer.remaining();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,1130 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import net.sf.j2ep.io.ByteBufferInputStream;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A cache storage keeping the entries in large memory-mapped segment
+ * files outside of the Java heap. Entries are appended to the active
+ * segment and found through an off-heap index. Hits are served by
+ * reading the body directly from the mapped region.
+ * <p/>
+ * When all segments are used the segment with the least live data is
+ * compacted, its live entries are copied to a fresh segment and the old
+ * file is deleted after a grace period, the container may still be about
+ * to send a body from it with sendfile. Entries that don't fit are
+ * evicted. Readers still holding a body from a reclaimed segment can
+ * finish since the old mapping stays valid until it's garbage collected.
+ * <p/>
+ * A persistent storage keeps its segment files when closed and writes a
+ * compact index file with the key, validators, expiry and location of
+ * every live entry. When the storage is created again the segments are
+ * mapped and the index is loaded in the background, so the proxy starts
+ * serving hits without scanning the segments. Entries that have expired
+ * and have no validators are dropped while loading. The index file is
+ * deleted once loaded, a proxy that isn't shut down cleanly starts with
+ * an empty cache.
+ * <p/>
+ * The storage is configured with the filter parameters
+ * <em>mappedCacheDir</em>, <em>mappedCacheSegmentSize</em>,
+ * <em>mappedCacheSegments</em> and <em>mappedCachePersistent</em>. The
+ * <em>maxCacheEntitySize</em> parameter should be raised to let large
+ * bodies into the cache.
+ */
+public class MappedSegmentCacheStorage implements EvictingCacheStorage, Closeable {
+
+    /**
+     * Default size of a segment, 64 MB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Default number of segments.
+     */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * The default milliseconds the file of a compacted segment is kept.
+     */
+    public static final long DEFAULT_RETIRED_GRACE_PERIOD = 60000;
+
+    /**
+     * Prefix of the segment file names.
+     */
+    static final String SEGMENT_PREFIX = "segment-";
+
+    /**
+     * Suffix of the segment file names.
+     */
+    static final String SEGMENT_SUFFIX = ".dat";
+
+    /**
+     * Bytes in a record before the key, the record length and the key hash.
+     */
+    private static final int RECORD_HEADER = 12;
+
+    /**
+     * Name of the index file written by a persistent storage.
+     */
+    static final String INDEX_FILE = "index.dat";
+
+    /**
+     * Marks the start of an index file.
+     */
+    private static final int INDEX_MAGIC = 0x4a324550;
+
+    /**
+     * Version of the index file format.
+     */
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * Entries added to the index every time the loader takes the lock.
+     */
+    private static final int LOAD_BATCH = 1024;
+
+    /**
+     * Marks an entry with an ETag in the index file.
+     */
+    private static final int VALIDATOR_ETAG = 1;
+
+    /**
+     * Marks an entry with a Last-Modified in the index file.
+     */
+    private static final int VALIDATOR_LAST_MODIFIED = 2;
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static Logger log = LoggerFactory.getLogger(MappedSegmentCacheStorage.class);
+
+    /**
+     * The directory holding the segment files.
+     */
+    private final File directory;
+
+    /**
+     * The size of every segment.
+     */
+    private final int segmentSize;
+
+    /**
+     * The segments, null for slots not used yet.
+     */
+    private final Segment[] segments;
+
+    /**
+     * Maps key hashes to the location of the records.
+     */
+    private final OffHeapIndex index;
+
+    /**
+     * Guards the index and the segments.
+     */
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * The slot entries are appended to, -1 before the first put.
+     */
+    private int active;
+
+    /**
+     * The segments replaced by compaction, oldest first. Their files are
+     * kept for the grace period since the container may still be sending
+     * from them.
+     */
+    private final ArrayDeque<Segment> retired;
+
+    /**
+     * Milliseconds the file of a compacted segment is kept.
+     */
+    private volatile long retiredGracePeriod;
+
+    /**
+     * Told about the entries evicted, null for none.
+     */
+    private volatile EvictionListener evictionListener;
+
+    /**
+     * Number used for the next segment file.
+     */
+    private long fileSequence;
+
+    /**
+     * Marks if the segments and the index are kept when closed.
+     */
+    private final boolean persistent;
+
+    /**
+     * The index file being loaded, null when there is nothing left to load.
+     */
+    private DataInputStream pendingIndex;
+
+    /**
+     * Entries left to read from the index file.
+     */
+    private int pendingEntries;
+
+    /**
+     * Keys put or removed while loading, the loader must not overwrite them.
+     */
+    private Set<Long> changedWhileLoading;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong compactions;
+
+    /**
+     * Creates a storage configured from the filter parameters.
+     *
+     * @param props  The filter's init parameters
+     * @param config The cache configuration
+     * @throws IOException If the directory can't be used
+     */
+    public MappedSegmentCacheStorage(Map<String, String> props, CacheConfig config) throws IOException {
+        this(directory(props.get("mappedCacheDir")),
+             NumberUtils.toInt(props.get("mappedCacheSegmentSize"), DEFAULT_SEGMENT_SIZE),
+             NumberUtils.toInt(props.get("mappedCacheSegments"), DEFAULT_SEGMENTS),
+             config.getMaxCacheEntries(),
+             BooleanUtils.toBoolean(StringUtils.defaultIfBlank(props.get("mappedCachePersistent"), "true")));
+    }
+
+    /**
+     * Creates a storage that isn't persistent, any segment files left
+     * in the directory are removed.
+     *
+     * @param directory    The directory for the segment files
+     * @param segmentSize  The size of a segment in bytes
+     * @param segments     The maximum number of segments, at least 2
+     * @param expectedKeys The number of entries expected, used to size the index
+     * @throws IOException If the directory can't be used
+     */
+    public MappedSegmentCacheStorage(File directory, int segmentSize, int segments, int expectedKeys) throws IOException {
+        this(directory, segmentSize, segments, expectedKeys, false);
+    }
+
+    /**
+     * Creates a storage. A persistent storage reopens the segments
+     * left by the last run if it was closed cleanly, otherwise any
+     * segment files left in the directory are removed.
+     *
+     * @param directory    The directory for the segment files
+     * @param segmentSize  The size of a segment in bytes
+     * @param segments     The maximum number of segments, at least 2
+     * @param expectedKeys The number of entries expected, used to size the index
+     * @param persistent   true to keep the entries between runs
+     * @throws IOException If the directory can't be used
+     */
+    public MappedSegmentCacheStorage(File directory, int segmentSize, int segments, int expectedKeys,
+                                     boolean persistent) throws IOException {
+        if (segments < 2 || segmentSize < 1024) {
+            throw new IllegalArgumentException("At least 2 segments of at least 1024 bytes are needed");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create cache directory: " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segments = new Segment[segments];
+        this.index = new OffHeapIndex(expectedKeys);
+        this.lock = new ReentrantReadWriteLock();
+        this.active = -1;
+        this.retired = new ArrayDeque<>();
+        this.retiredGracePeriod = DEFAULT_RETIRED_GRACE_PERIOD;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+        this.compactions = new AtomicLong();
+        this.persistent = persistent;
+        if (!persistent || !openIndex()) {
+            deleteSegmentFiles(null);
+        }
+        if (pendingIndex != null) {
+            Thread loader = new Thread(this::loadIndex, "j2ep-cache-index-loader");
+            loader.setDaemon(true);
+            loader.start();
+        }
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#putEntry(java.lang.String,
+     * org.apache.http.client.cache.HttpCacheEntry)
+     */
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] meta;
+        try {
+            meta = writeMetadata(entry);
+        } catch (UTFDataFormatException e) {
+            if (log.isDebugEnabled()) log.debug("Not caching " + key + ", a header is too large");
+            removeEntry(key);
+            evicted(key);
+            return;
+        }
+        Resource resource = entry.getResource();
+        long bodyLength = resource != null ? resource.length() : -1;
+        long recordLength = RECORD_HEADER + 4 + keyBytes.length + 4 + meta.length + 8 + Math.max(0, bodyLength);
+        if (recordLength > segmentSize) {
+            removeEntry(key);
+            evictions.incrementAndGet();
+            evicted(key);
+            return;
+        }
+
+        long hash = hash(key);
+        lock.writeLock().lock();
+        try {
+            Segment segment = allocate((int) recordLength);
+            ByteBuffer out = segment.buffer.duplicate();
+            out.position(segment.position);
+            out.putInt((int) recordLength);
+            out.putLong(hash);
+            out.putInt(keyBytes.length);
+            out.put(keyBytes);
+            out.putInt(meta.length);
+            out.put(meta);
+            out.putLong(bodyLength);
+            if (bodyLength > 0) {
+                copyBody(resource, out, bodyLength);
+            }
+            add(hash, segment, segment.position, (int) recordLength);
+            segment.position += (int) recordLength;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#getEntry(java.lang.String)
+     */
+    public HttpCacheEntry getEntry(String key) throws IOException {
+        long hash = hash(key);
+        lock.readLock().lock();
+        try {
+            long location = index.get(hash);
+            if (location == OffHeapIndex.NOT_FOUND) {
+                misses.incrementAndGet();
+                return null;
+            }
+            ByteBuffer in = segments[slotOf(location)].buffer.duplicate();
+            in.position(offsetOf(location) + RECORD_HEADER);
+            byte[] keyBytes = new byte[in.getInt()];
+            in.get(keyBytes);
+            if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return readEntry(in, segments[slotOf(location)].file);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#removeEntry(java.lang.String)
+     */
+    public void removeEntry(String key) throws IOException {
+        long hash = hash(key);
+        lock.writeLock().lock();
+        try {
+            if (pendingIndex != null) {
+                changedWhileLoading.add(hash);
+            }
+            long location = index.remove(hash);
+            if (location != OffHeapIndex.NOT_FOUND) {
+                release(location);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Updates the entry while holding the write lock, so the
+     * update can't be lost and never has to be retried.
+     *
+     * @see org.apache.http.client.cache.HttpCacheStorage#updateEntry(java.lang.String,
+     * org.apache.http.client.cache.HttpCacheUpdateCallback)
+     */
+    public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        lock.writeLock().lock();
+        try {
+            HttpCacheEntry updated = callback.update(getEntry(key));
+            if (updated != null) {
+                putEntry(key, updated);
+            } else {
+                removeEntry(key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the storage. A persistent storage flushes the segments and
+     * writes the index file, otherwise the segment files are deleted.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (persistent) {
+                finishLoading();
+                for (Segment segment : segments) {
+                    if (segment != null) {
+                        segment.buffer.force();
+                    }
+                }
+                writeIndex();
+            } else {
+                for (Segment segment : segments) {
+                    if (segment != null) {
+                        segment.delete();
+                    }
+                }
+            }
+            deleteRetired(Long.MAX_VALUE);
+            Arrays.fill(segments, null);
+            index.clear();
+            active = -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see net.sf.j2ep.cache.EvictingCacheStorage#containsEntry(java.lang.String)
+     */
+    public boolean containsEntry(String key) {
+        lock.readLock().lock();
+        try {
+            long location = index.get(hash(key));
+            return location != OffHeapIndex.NOT_FOUND
+                   && key.equals(keyAt(segments[slotOf(location)].buffer, offsetOf(location)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see net.sf.j2ep.cache.EvictingCacheStorage#setEvictionListener(net.sf.j2ep.cache.EvictingCacheStorage.EvictionListener)
+     */
+    public void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * Sets the milliseconds the file of a compacted segment is kept
+     * before it's deleted. It must cover the time from a hit being
+     * answered until the container has opened the file for sendfile.
+     *
+     * @param millis The grace period
+     */
+    public void setRetiredGracePeriod(long millis) {
+        this.retiredGracePeriod = millis;
+    }
+
+    /**
+     * Returns the number of lookups that found an entry.
+     *
+     * @return The hit count
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that didn't find an entry.
+     *
+     * @return The miss count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries dropped to make room for others,
+     * or because they were larger than a segment.
+     *
+     * @return The eviction count
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of segments compacted.
+     *
+     * @return The compaction count
+     */
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    /**
+     * Returns the number of entries stored.
+     *
+     * @return The number of entries
+     */
+    public int getSize() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if the index left by the last run has been loaded.
+     *
+     * @return true when there is nothing left to load
+     */
+    public boolean isIndexLoaded() {
+        lock.readLock().lock();
+        try {
+            return pendingIndex == null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes used by live entries.
+     *
+     * @return The live bytes
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            long live = 0;
+            for (Segment segment : segments) {
+                if (segment != null) {
+                    live += segment.liveBytes;
+                }
+            }
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds room for a record, moving to a new segment when the active one
+     * is full. When there are no unused segments left the segment with the
+     * least live data is compacted and becomes the active segment.
+     *
+     * @param size The size of the record
+     * @return The segment to write the record to at its position
+     * @throws IOException If a segment file can't be created
+     */
+    private Segment allocate(int size) throws IOException {
+        if (active >= 0 && segments[active].position + size <= segmentSize) {
+            return segments[active];
+        }
+        int victim = -1;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] == null) {
+                segments[i] = createSegment(i);
+                active = i;
+                return segments[i];
+            }
+            if (i != active && (victim == -1 || segments[i].liveBytes < segments[victim].liveBytes)) {
+                victim = i;
+            }
+        }
+        finishLoading();
+        compact(victim, size);
+        active = victim;
+        return segments[victim];
+    }
+
+    /**
+     * Copies the live records of a segment to a new file for the same slot,
+     * leaving room for a record of the given size. Live records that don't
+     * fit are evicted.
+     *
+     * @param slot    The slot of the segment
+     * @param reserve Bytes to leave free at the end of the new segment
+     * @throws IOException If the new segment file can't be created
+     */
+    private void compact(int slot, int reserve) throws IOException {
+        Segment old = segments[slot];
+        Segment fresh = createSegment(slot);
+        ByteBuffer in = old.buffer.duplicate();
+        ByteBuffer out = fresh.buffer.duplicate();
+        int offset = 0;
+        while (offset < old.position) {
+            int length = in.getInt(offset);
+            long hash = in.getLong(offset + 4);
+            if (index.get(hash) == location(slot, offset)) {
+                if (fresh.position + length + reserve <= segmentSize) {
+                    in.limit(offset + length).position(offset);
+                    out.position(fresh.position);
+                    out.put(in);
+                    in.limit(in.capacity());
+                    index.put(hash, location(slot, fresh.position));
+                    fresh.position += length;
+                    fresh.liveBytes += length;
+                } else {
+                    index.remove(hash);
+                    evictions.incrementAndGet();
+                    if (evictionListener != null) {
+                        evicted(keyAt(in, offset));
+                    }
+                }
+            }
+            offset += length;
+        }
+        segments[slot] = fresh;
+        long now = System.currentTimeMillis();
+        deleteRetired(now - retiredGracePeriod);
+        old.retiredAt = now;
+        retired.add(old);
+        compactions.incrementAndGet();
+        if (log.isDebugEnabled()) log.debug("Compacted segment " + slot + ", " + fresh.liveBytes + " bytes kept");
+    }
+
+    /**
+     * Tells the listener about an entry that was dropped.
+     */
+    private void evicted(String key) {
+        EvictionListener listener = evictionListener;
+        if (listener != null) {
+            listener.evicted(key);
+        }
+    }
+
+    /**
+     * Reads the key of the record at an offset in a segment.
+     */
+    private static String keyAt(ByteBuffer in, int offset) {
+        byte[] keyBytes = new byte[in.getInt(offset + RECORD_HEADER)];
+        ByteBuffer key = in.duplicate();
+        key.position(offset + RECORD_HEADER + 4);
+        key.get(keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes the files of the segments retired before a time, the
+     * caller holds the write lock.
+     *
+     * @param before The time in milliseconds, segments retired at or before it are deleted
+     */
+    private void deleteRetired(long before) {
+        while (!retired.isEmpty() && retired.peek().retiredAt <= before) {
+            retired.poll().delete();
+        }
+    }
+
+    /**
+     * Adds a record to the index and updates the live bytes.
+     */
+    private void add(long hash, Segment segment, int offset, int length) {
+        if (pendingIndex != null) {
+            changedWhileLoading.add(hash);
+        }
+        segment.liveBytes += length;
+        long previous = index.put(hash, location(segment.slot, offset));
+        if (previous != OffHeapIndex.NOT_FOUND) {
+            release(previous);
+        }
+    }
+
+    /**
+     * Marks the record at a location as dead.
+     */
+    private void release(long location) {
+        Segment segment = segments[slotOf(location)];
+        segment.liveBytes -= segment.buffer.getInt(offsetOf(location));
+    }
+
+    /**
+     * Creates and maps a new segment file.
+     *
+     * @param slot The slot the segment is for
+     * @return The segment
+     * @throws IOException If the file can't be created or mapped
+     */
+    private Segment createSegment(int slot) throws IOException {
+        return mapSegment(slot, new File(directory, SEGMENT_PREFIX + (fileSequence++) + SEGMENT_SUFFIX), 0);
+    }
+
+    /**
+     * Maps a segment file, creating it if needed.
+     *
+     * @param slot     The slot the segment is for
+     * @param file     The file
+     * @param position The end of the records already in the file
+     * @return The segment
+     * @throws IOException If the file can't be created or mapped
+     */
+    private Segment mapSegment(int slot, File file, int position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            Segment segment = new Segment(slot, file, buffer);
+            segment.position = position;
+            return segment;
+        }
+    }
+
+    /**
+     * Copies a body into a segment. A body already in a mapped
+     * segment is copied without going through the heap.
+     */
+    private void copyBody(Resource resource, ByteBuffer out, long length) throws IOException {
+        if (resource instanceof MappedResource) {
+            out.put(((MappedResource) resource).getBuffer());
+            return;
+        }
+        byte[] buffer = new byte[(int) Math.min(length, 8192)];
+        long left = length;
+        try (InputStream in = resource.getInputStream()) {
+            while (left > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (read == -1) {
+                    throw new IOException("The cached body ended after " + (length - left) + " of " + length + " bytes");
+                }
+                out.put(buffer, 0, read);
+                left -= read;
+            }
+        }
+    }
+
+    /**
+     * Writes everything about an entry except the body.
+     *
+     * @param entry The entry
+     * @return The metadata
+     * @throws IOException If a value is too large to be written
+     */
+    static byte[] writeMetadata(HttpCacheEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(entry.getRequestDate().getTime());
+        out.writeLong(entry.getResponseDate().getTime());
+        ProtocolVersion version = entry.getProtocolVersion();
+        out.writeUTF(version.getProtocol());
+        out.writeShort(version.getMajor());
+        out.writeShort(version.getMinor());
+        out.writeShort(entry.getStatusCode());
+        out.writeUTF(StringUtils.defaultString(entry.getReasonPhrase()));
+        Header[] headers = entry.getAllHeaders();
+        out.writeInt(headers.length);
+        for (Header header : headers) {
+            out.writeUTF(header.getName());
+            out.writeUTF(StringUtils.defaultString(header.getValue()));
+        }
+        Map<String, String> variants = entry.getVariantMap();
+        out.writeInt(variants.size());
+        for (Map.Entry<String, String> variant : variants.entrySet()) {
+            out.writeUTF(variant.getKey());
+            out.writeUTF(variant.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads an entry from a record, the buffer positioned at the metadata.
+     * The body becomes a view of the mapped region.
+     *
+     * @param in   The record
+     * @param file The segment file the record is in
+     * @return The entry
+     * @throws IOException If the record is damaged
+     */
+    static HttpCacheEntry readEntry(ByteBuffer in, File file) throws IOException {
+        int metaLength = in.getInt();
+        ByteBuffer meta = in.duplicate();
+        meta.limit(meta.position() + metaLength);
+        in.position(in.position() + metaLength);
+        DataInputStream data = new DataInputStream(new ByteBufferInputStream(meta));
+        Date requestDate = new Date(data.readLong());
+        Date responseDate = new Date(data.readLong());
+        ProtocolVersion version = new ProtocolVersion(data.readUTF(), data.readShort(), data.readShort());
+        BasicStatusLine statusLine = new BasicStatusLine(version, data.readShort(), data.readUTF());
+        Header[] headers = new Header[data.readInt()];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = new BasicHeader(data.readUTF(), data.readUTF());
+        }
+        int variantCount = data.readInt();
+        Map<String, String> variants = new HashMap<>(variantCount * 2);
+        for (int i = 0; i < variantCount; i++) {
+            variants.put(data.readUTF(), data.readUTF());
+        }
+
+        long bodyLength = in.getLong();
+        Resource resource = null;
+        if (bodyLength >= 0) {
+            ByteBuffer body = in.duplicate();
+            body.limit(body.position() + (int) bodyLength);
+            resource = new MappedResource(body, file, body.position());
+        }
+        return new HttpCacheEntry(requestDate, responseDate, statusLine, headers, resource, variants);
+    }
+
+    /**
+     * Writes the index file, listing the segments and the key, validators,
+     * expiry and location of every live entry. Must be called with the
+     * write lock held and after loading is finished.
+     *
+     * @throws IOException If the file can't be written
+     */
+    private void writeIndex() throws IOException {
+        File file = new File(directory, INDEX_FILE);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(segmentSize);
+            out.writeInt(segments.length);
+            out.writeInt(active);
+            for (Segment segment : segments) {
+                out.writeBoolean(segment != null);
+                if (segment != null) {
+                    out.writeUTF(segment.file.getName());
+                    out.writeInt(segment.position);
+                }
+            }
+            out.writeInt(index.size());
+            int written = 0;
+            for (Segment segment : segments) {
+                if (segment == null) {
+                    continue;
+                }
+                ByteBuffer in = segment.buffer.duplicate();
+                int offset = 0;
+                while (offset < segment.position) {
+                    int length = in.getInt(offset);
+                    long hash = in.getLong(offset + 4);
+                    if (index.get(hash) == location(segment.slot, offset)) {
+                        in.position(offset + RECORD_HEADER);
+                        byte[] keyBytes = new byte[in.getInt()];
+                        in.get(keyBytes);
+                        HttpCacheEntry entry = readEntry(in, segment.file);
+                        out.writeLong(hash);
+                        out.writeInt(segment.slot);
+                        out.writeInt(offset);
+                        out.writeLong(expiresAt(entry));
+                        out.writeByte((entry.getFirstHeader("ETag") != null ? VALIDATOR_ETAG : 0)
+                                      | (entry.getFirstHeader("Last-Modified") != null ? VALIDATOR_LAST_MODIFIED : 0));
+                        out.writeUTF(new String(keyBytes, StandardCharsets.UTF_8));
+                        written++;
+                    }
+                    offset += length;
+                }
+            }
+            if (written != index.size()) {
+                throw new IOException("Index has " + index.size() + " entries but " + written + " records are live");
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        log.info("Wrote cache index with " + index.size() + " entries to " + file);
+    }
+
+    /**
+     * Opens the index file written by the last run and maps the segments
+     * it lists. The entries are read later by the loader.
+     *
+     * @return true if the index could be opened
+     */
+    private boolean openIndex() {
+        File file = new File(directory, INDEX_FILE);
+        if (!file.isFile()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                || in.readInt() != segmentSize || in.readInt() != segments.length) {
+                log.info("Cache index " + file + " doesn't match the configuration, starting empty");
+                in.close();
+                file.delete();
+                return false;
+            }
+            int lastActive = in.readInt();
+            Set<String> names = new HashSet<>();
+            for (int i = 0; i < segments.length; i++) {
+                if (in.readBoolean()) {
+                    String name = in.readUTF();
+                    int position = in.readInt();
+                    segments[i] = mapSegment(i, new File(directory, name), position);
+                    names.add(name);
+                    long sequence = NumberUtils.toLong(StringUtils.substringBetween(name, SEGMENT_PREFIX, SEGMENT_SUFFIX), -1);
+                    fileSequence = Math.max(fileSequence, sequence + 1);
+                }
+            }
+            active = lastActive;
+            pendingEntries = in.readInt();
+            pendingIndex = in;
+            changedWhileLoading = new HashSet<>();
+            deleteSegmentFiles(names);
+            log.info("Loading cache index with " + pendingEntries + " entries from " + file);
+            return true;
+        } catch (IOException e) {
+            log.warn("Could not open cache index " + file + ", starting empty. " + e);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            file.delete();
+            Arrays.fill(segments, null);
+            active = -1;
+            return false;
+        }
+    }
+
+    /**
+     * Loads the index file in batches, run by the loader thread.
+     */
+    private void loadIndex() {
+        boolean done = false;
+        while (!done) {
+            lock.writeLock().lock();
+            try {
+                done = loadBatch(LOAD_BATCH);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Loads everything left in the index file, must be called with
+     * the write lock held.
+     */
+    private void finishLoading() {
+        while (!loadBatch(Integer.MAX_VALUE)) {
+        }
+    }
+
+    /**
+     * Adds entries from the index file to the index. Entries changed since
+     * the storage was opened are skipped, as are expired entries that
+     * can't be revalidated. Must be called with the write lock held.
+     *
+     * @param count The maximum number of entries to read
+     * @return true if the whole file has been read
+     */
+    private boolean loadBatch(int count) {
+        if (pendingIndex == null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            for (; count > 0 && pendingEntries > 0; count--, pendingEntries--) {
+                long hash = pendingIndex.readLong();
+                int slot = pendingIndex.readInt();
+                int offset = pendingIndex.readInt();
+                long expires = pendingIndex.readLong();
+                int validators = pendingIndex.readByte();
+                pendingIndex.readUTF();
+                Segment segment = slot >= 0 && slot < segments.length ? segments[slot] : null;
+                if (segment == null || offset < 0 || offset >= segment.position || changedWhileLoading.contains(hash)
+                    || (validators == 0 && expires >= 0 && expires < now)) {
+                    continue;
+                }
+                index.put(hash, location(slot, offset));
+                segment.liveBytes += segment.buffer.getInt(offset);
+            }
+        } catch (IOException e) {
+            log.warn("Could not read the cache index, " + pendingEntries + " entries not loaded. " + e);
+            pendingEntries = 0;
+        }
+        if (pendingEntries > 0) {
+            return false;
+        }
+        try {
+            pendingIndex.close();
+        } catch (IOException ignored) {
+        }
+        pendingIndex = null;
+        changedWhileLoading = null;
+        new File(directory, INDEX_FILE).delete();
+        log.info("Loaded cache index, " + index.size() + " entries");
+        return true;
+    }
+
+    /**
+     * Finds when an entry expires from its Cache-Control or Expires header.
+     *
+     * @param entry The entry
+     * @return The time in milliseconds, -1 if the entry has no expiry
+     */
+    static long expiresAt(HttpCacheEntry entry) {
+        long maxAge = -1;
+        for (Header header : entry.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                if (element.getName().equalsIgnoreCase("s-maxage")) {
+                    maxAge = NumberUtils.toLong(element.getValue(), -1);
+                    break;
+                } else if (element.getName().equalsIgnoreCase("max-age") && maxAge < 0) {
+                    maxAge = NumberUtils.toLong(element.getValue(), -1);
+                }
+            }
+        }
+        if (maxAge >= 0) {
+            return entry.getResponseDate().getTime() + maxAge * 1000;
+        }
+        Header expires = entry.getFirstHeader("Expires");
+        Date date = expires != null ? DateUtils.parseDate(expires.getValue()) : null;
+        return date != null ? date.getTime() : -1;
+    }
+
+    /**
+     * Removes segment files left by an earlier run.
+     *
+     * @param keep Names of files to keep, null to remove all
+     */
+    private void deleteSegmentFiles(Set<String> keep) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)
+                && (keep == null || !keep.contains(name)) && !file.delete()) {
+                log.warn("Could not delete old cache segment " + file);
+            }
+        }
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of a key.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static long location(int slot, int offset) {
+        return ((long) slot << 32) | (offset & 0xffffffffL);
+    }
+
+    static int slotOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Checks that a directory parameter is set.
+     */
+    private static File directory(String path) {
+        if (StringUtils.isBlank(path)) {
+            throw new IllegalArgumentException("The mappedCacheDir parameter is required");
+        }
+        return new File(path);
+    }
+
+    /**
+     * Returns a String representation of this object.
+     *
+     * @return A string representation
+     */
+    public String toString() {
+        return "[" + getClass().getName() + ": " + directory + ", " + segments.length + " segments of " + segmentSize + " bytes]";
+    }
+
+    /**
+     * A mapped segment file.
+     */
+    private static final class Segment {
+        final int slot;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+        long liveBytes;
+        long retiredAt;
+
+        Segment(int slot, File file, MappedByteBuffer buffer) {
+            this.slot = slot;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Deletes the file, the mapping stays valid for anyone
+         * still reading from it until it's garbage collected.
+         */
+        void delete() {
+            if (!file.delete()) {
+                log.warn("Could not delete cache segment " + file);
+            }
+        }
+    }
+}
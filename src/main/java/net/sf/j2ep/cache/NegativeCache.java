@@ -0,0 +1,366 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Keeps error responses, like a 404 for a missing page or a 502 from a
+ * failing server, for a short time so repeated requests for them are
+ * answered without asking the server again. The responses are kept in
+ * their own store bounded by weight, a flood of errors never evicts
+ * the good content in the HTTP cache.
+ * <p/>
+ * Only GET and HEAD requests without credentials, ranges or conditions
+ * are cached, and only responses that can be shared between clients.
+ */
+public class NegativeCache {
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static Logger log = LoggerFactory.getLogger(NegativeCache.class);
+
+    /**
+     * Context attribute set when a response is answered from the cache.
+     */
+    public static final String HIT = "j2ep.negative-cache-hit";
+
+    /**
+     * Request headers that make a request unsuitable for caching.
+     */
+    private static final String[] privateHeaders = {"Authorization", "Range", "If-Range", "If-Match",
+            "If-None-Match", "If-Modified-Since", "If-Unmodified-Since"};
+
+    /**
+     * The responses, least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * The largest total weight of the responses.
+     */
+    private final long maxWeight;
+
+    /**
+     * Largest body that will be cached.
+     */
+    private final int maxBodySize;
+
+    /**
+     * Current total weight of the responses.
+     */
+    private long weight;
+
+    /**
+     * Number of requests answered from the cache.
+     */
+    private final AtomicLong hits;
+
+    /**
+     * Number of responses stored.
+     */
+    private final AtomicLong stores;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxWeight   The largest total weight of the responses, in bytes
+     * @param maxBodySize The largest body that will be cached
+     */
+    public NegativeCache(long maxWeight, int maxBodySize) {
+        this.maxWeight = maxWeight;
+        this.maxBodySize = maxBodySize;
+        this.entries = new LinkedHashMap<>(64, 0.75f, true);
+        this.hits = new AtomicLong();
+        this.stores = new AtomicLong();
+    }
+
+    /**
+     * Creates the key a request is cached under. The Accept-Encoding
+     * header is part of the key since the body is passed on encoded.
+     *
+     * @param hreq The request that is about to be sent
+     * @return The key, null if this request shouldn't be cached
+     */
+    public String createKey(HttpUriRequest hreq) {
+        String method = hreq.getMethod();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            return null;
+        }
+        for (String header : privateHeaders) {
+            if (hreq.containsHeader(header)) {
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder(method).append(' ').append(hreq.getURI().toString());
+        for (Header header : hreq.getHeaders("Accept-Encoding")) {
+            key.append('\n').append(header.getValue());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Finds a cached response.
+     *
+     * @param key The key created for the request
+     * @param ctx The context of the request, marked with HIT if a response is found
+     * @return A response, null if nothing is cached or the response expired
+     */
+    public CloseableHttpResponse get(String key, HttpContext ctx) {
+        BufferedResponse response;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires <= System.currentTimeMillis()) {
+                remove(key);
+                return null;
+            }
+            response = entry.response;
+        }
+        hits.incrementAndGet();
+        ctx.setAttribute(HIT, Boolean.TRUE);
+        return response.createResponse();
+    }
+
+    /**
+     * Caches a response if it can be shared and isn't too large. The
+     * body is read into a buffer, the response to send to the client
+     * is returned.
+     *
+     * @param key   The key created for the request
+     * @param hresp The response from the server
+     * @param ttl   Milliseconds the response is kept
+     * @return The response to use instead of hresp, which is closed when cached
+     * @throws IOException When there is a problem reading the body
+     */
+    public CloseableHttpResponse put(String key, CloseableHttpResponse hresp, long ttl) throws IOException {
+        if (!isCacheable(hresp)) {
+            return hresp;
+        }
+        BufferedResponse response = BufferedResponse.read(hresp, maxBodySize);
+        if (response == null) {
+            return hresp;
+        }
+        hresp.close();
+        int entryWeight = key.length() * 2 + response.getWeight();
+        if (entryWeight <= maxWeight) {
+            synchronized (this) {
+                remove(key);
+                entries.put(key, new Entry(response, System.currentTimeMillis() + ttl, entryWeight));
+                weight += entryWeight;
+                evict();
+            }
+            stores.incrementAndGet();
+            if (log.isDebugEnabled()) log.debug("Cached " + hresp.getStatusLine() + " for " + ttl + " ms: " + key);
+        }
+        return response.createResponse();
+    }
+
+    /**
+     * Removes the responses for a URL.
+     *
+     * @param url The URL as sent to the server
+     * @return The number of responses removed
+     */
+    public synchronized int purgeUrl(String url) {
+        String canonical = IndexedCacheStorage.canonicalize(url);
+        return purge(key -> canonical.equals(IndexedCacheStorage.canonicalize(urlOf(key))));
+    }
+
+    /**
+     * Removes the responses for all URLs starting with a prefix.
+     *
+     * @param prefix The start of the URLs, as sent to the server
+     * @return The number of responses removed
+     */
+    public synchronized int purgePrefix(String prefix) {
+        String start = IndexedCacheStorage.canonicalize(prefix);
+        return purge(key -> IndexedCacheStorage.canonicalize(urlOf(key)).startsWith(start));
+    }
+
+    /**
+     * Removes the responses for everything proxied to a server mount,
+     * over both http and https.
+     *
+     * @param domainName The host name and port of the server
+     * @param path       The path mapped to, empty for the root
+     * @return The number of responses removed
+     */
+    public synchronized int purgeMount(String domainName, String path) {
+        int count = 0;
+        for (String scheme : new String[]{"http://", "https://"}) {
+            String mount = scheme + domainName + path;
+            count += purgeUrl(mount);
+            count += purgePrefix(mount + "/");
+        }
+        return count;
+    }
+
+    /**
+     * Removes all responses.
+     *
+     * @return The number of responses removed
+     */
+    public synchronized int clear() {
+        int count = entries.size();
+        entries.clear();
+        weight = 0;
+        return count;
+    }
+
+    /**
+     * Returns the number of requests answered from the cache.
+     *
+     * @return Number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of responses stored.
+     *
+     * @return Number of stores
+     */
+    public long getStores() {
+        return stores.get();
+    }
+
+    /**
+     * Returns the current weight of the responses.
+     *
+     * @return The weight in bytes
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Checks if a context is for a response answered from the cache.
+     *
+     * @param ctx The context
+     * @return true if the response came from the cache
+     */
+    public static boolean isHit(HttpContext ctx) {
+        return Boolean.TRUE.equals(ctx.getAttribute(HIT));
+    }
+
+    /**
+     * Only shared responses not varying on other request
+     * headers than Accept-Encoding are cached.
+     */
+    private boolean isCacheable(CloseableHttpResponse hresp) {
+        if (!BufferedResponse.isPublic(hresp)) {
+            return false;
+        }
+        for (Header header : hresp.getHeaders("Vary")) {
+            for (HeaderElement element : header.getElements()) {
+                if (!element.getName().equalsIgnoreCase("Accept-Encoding")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the entries with a matching key, the caller holds the lock.
+     */
+    private int purge(Predicate<String> matches) {
+        int count = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (matches.test(entry.getKey())) {
+                iterator.remove();
+                weight -= entry.getValue().weight;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the URL in a key, between the method and the
+     * Accept-Encoding headers.
+     */
+    private static String urlOf(String key) {
+        int start = key.indexOf(' ') + 1;
+        int end = key.indexOf('\n', start);
+        return (end < 0) ? key.substring(start) : key.substring(start, end);
+    }
+
+    /**
+     * Removes an entry, the caller holds the lock.
+     */
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the weight is
+     * below the maximum, expired entries are removed on the way.
+     * The caller holds the lock.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (weight <= maxWeight && entry.expires > now) {
+                break;
+            }
+            iterator.remove();
+            weight -= entry.weight;
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    private static final class Entry {
+
+        private final BufferedResponse response;
+        private final long expires;
+        private final int weight;
+
+        Entry(BufferedResponse response, long expires, int weight) {
+            this.response = response;
+            this.expires = expires;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An open addressing hash table kept in a direct buffer, mapping 64-bit
+ * key hashes to a location. Every slot is 16 bytes, the hash followed by
+ * the location, so millions of entries don't add any objects to the heap.
+ * Deleted slots are filled by shifting the following entries back so the
+ * table never holds tombstones.
+ * <p/>
+ * The index isn't thread safe, the caller must hold a lock.
+ */
+final class OffHeapIndex {
+
+    /**
+     * Returned when a hash isn't in the index.
+     */
+    static final long NOT_FOUND = -1;
+
+    /**
+     * Bytes used by a slot.
+     */
+    private static final int SLOT_SIZE = 16;
+
+    /**
+     * The slots, a hash of 0 marks an empty slot.
+     */
+    private ByteBuffer table;
+
+    /**
+     * Number of slots, always a power of two.
+     */
+    private int capacity;
+
+    /**
+     * Number of entries.
+     */
+    private int size;
+
+    /**
+     * Creates an index.
+     *
+     * @param expectedSize The number of entries expected
+     */
+    OffHeapIndex(int expectedSize) {
+        int slots = Math.max(16, expectedSize * 4 / 3);
+        allocate(Integer.highestOneBit(slots - 1) << 1);
+    }
+
+    /**
+     * Finds the location for a hash.
+     *
+     * @param hash The key hash
+     * @return The location, NOT_FOUND if the hash isn't in the index
+     */
+    long get(long hash) {
+        hash = nonZero(hash);
+        int mask = capacity - 1;
+        for (int slot = (int) mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            long current = table.getLong(slot * SLOT_SIZE);
+            if (current == 0) {
+                return NOT_FOUND;
+            } else if (current == hash) {
+                return table.getLong(slot * SLOT_SIZE + 8);
+            }
+        }
+    }
+
+    /**
+     * Sets the location for a hash.
+     *
+     * @param hash     The key hash
+     * @param location The location, must not be negative
+     * @return The previous location, NOT_FOUND if there was none
+     */
+    long put(long hash, long location) {
+        if ((size + 1) * 4L > capacity * 3L) {
+            resize();
+        }
+        hash = nonZero(hash);
+        int mask = capacity - 1;
+        for (int slot = (int) mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            long current = table.getLong(slot * SLOT_SIZE);
+            if (current == 0) {
+                table.putLong(slot * SLOT_SIZE, hash);
+                table.putLong(slot * SLOT_SIZE + 8, location);
+                size++;
+                return NOT_FOUND;
+            } else if (current == hash) {
+                long previous = table.getLong(slot * SLOT_SIZE + 8);
+                table.putLong(slot * SLOT_SIZE + 8, location);
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * Removes a hash.
+     *
+     * @param hash The key hash
+     * @return The location it had, NOT_FOUND if it wasn't in the index
+     */
+    long remove(long hash) {
+        hash = nonZero(hash);
+        int mask = capacity - 1;
+        int slot = (int) mix(hash) & mask;
+        while (true) {
+            long current = table.getLong(slot * SLOT_SIZE);
+            if (current == 0) {
+                return NOT_FOUND;
+            } else if (current == hash) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        long previous = table.getLong(slot * SLOT_SIZE + 8);
+        size--;
+
+        int hole = slot;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            long moved = table.getLong(next * SLOT_SIZE);
+            if (moved == 0) {
+                break;
+            }
+            int home = (int) mix(moved) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table.putLong(hole * SLOT_SIZE, moved);
+                table.putLong(hole * SLOT_SIZE + 8, table.getLong(next * SLOT_SIZE + 8));
+                hole = next;
+            }
+        }
+        table.putLong(hole * SLOT_SIZE, 0);
+        table.putLong(hole * SLOT_SIZE + 8, 0);
+        return previous;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return The size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        allocate(capacity);
+    }
+
+    /**
+     * Doubles the number of slots.
+     */
+    private void resize() {
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        allocate(capacity * 2);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long hash = old.getLong(slot * SLOT_SIZE);
+            if (hash != 0) {
+                put(hash, old.getLong(slot * SLOT_SIZE + 8));
+            }
+        }
+    }
+
+    /**
+     * Creates an empty table.
+     *
+     * @param slots The number of slots
+     */
+    private void allocate(int slots) {
+        table = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        capacity = slots;
+        size = 0;
+    }
+
+    /**
+     * Zero marks an empty slot and is moved to another value.
+     */
+    private static long nonZero(long hash) {
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Mixes the bits of a hash before it's used to find a slot.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+/**
+ * Builds the caching client used by the proxy. Stale entries are served
+ * directly while a background worker revalidates them, as long as the
+ * entry's stale-while-revalidate allows it, and served on server errors
+ * as long as stale-if-error allows it. The routes can override both
+ * directives, see {@link #setStaleDirectives}.
+ * <p/>
+ * The background revalidations are bounded by the asynchronous workers
+ * and the revalidation queue size of the CacheConfig, revalidations not
+ * fitting in the queue are skipped and the entry is revalidated by the
+ * next request instead.
+ */
+public class ProxyCachingHttpClientBuilder extends CachingHttpClientBuilder {
+
+    /**
+     * Context attribute holding the route's stale-while-revalidate.
+     */
+    static final String STALE_WHILE_REVALIDATE = "j2ep.staleWhileRevalidate";
+
+    /**
+     * Context attribute holding the route's stale-if-error.
+     */
+    static final String STALE_IF_ERROR = "j2ep.staleIfError";
+
+    /**
+     * Creates a builder.
+     *
+     * @return The builder
+     */
+    public static ProxyCachingHttpClientBuilder create() {
+        return new ProxyCachingHttpClientBuilder();
+    }
+
+    /**
+     * Creates a builder, use create.
+     */
+    protected ProxyCachingHttpClientBuilder() {
+        super();
+    }
+
+    /**
+     * Sets the stale directives for a request, overriding the ones sent
+     * by the server when the response is stored in the cache.
+     *
+     * @param ctx                  The context the request is executed in
+     * @param staleWhileRevalidate Seconds to serve stale while revalidating, -1 to keep the server's value
+     * @param staleIfError         Seconds to serve stale on errors, -1 to keep the server's value
+     */
+    public static void setStaleDirectives(HttpClientContext ctx, int staleWhileRevalidate, int staleIfError) {
+        if (staleWhileRevalidate >= 0) {
+            ctx.setAttribute(STALE_WHILE_REVALIDATE, staleWhileRevalidate);
+        }
+        if (staleIfError >= 0) {
+            ctx.setAttribute(STALE_IF_ERROR, staleIfError);
+        }
+    }
+
+    /**
+     * Puts the element rewriting the stale directives between the
+     * cache and the server, and the element putting back the server's
+     * Cache-Control in front of the cache.
+     *
+     * @see org.apache.http.impl.client.cache.CachingHttpClientBuilder#decorateMainExec(org.apache.http.impl.execchain.ClientExecChain)
+     */
+    protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+        return new RestoreCacheControlExec(super.decorateMainExec(new StaleDirectiveExec(mainExec)));
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes concurrent identical GET requests share one request to the
+ * server. The first request for a key is sent to the server, the
+ * requests arriving while it's in flight wait for its response. If any
+ * request is waiting when the response arrives it's read into a buffer
+ * and all of them are answered from it, otherwise it's streamed to the
+ * first client as is.
+ * <p/>
+ * Requests only wait for a limited time and responses that are too
+ * large, or can't be shared between clients, makes the waiting
+ * requests fall back to making their own request to the server.
+ */
+public class RequestCoalescer {
+
+    /**
+     * A request to the server, executed by the first request
+     * for a key or by requests that can't be coalesced.
+     */
+    public interface Exchange {
+
+        /**
+         * Executes the request.
+         *
+         * @return The response from the server
+         * @throws IOException When there is a problem with the connection
+         */
+        CloseableHttpResponse execute() throws IOException;
+    }
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static Logger log = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    /**
+     * Request headers that make a request unsuitable for sharing.
+     */
+    private static final String[] privateHeaders = {"Authorization", "Range", "If-Range", "If-Match",
+            "If-None-Match", "If-Modified-Since", "If-Unmodified-Since"};
+
+    /**
+     * The requests currently in flight.
+     */
+    private final ConcurrentHashMap<String, Flight> flights;
+
+    /**
+     * Milliseconds a request waits for the shared response.
+     */
+    private final long maxWait;
+
+    /**
+     * Largest body that will be buffered and shared.
+     */
+    private final int maxBodySize;
+
+    /**
+     * The request headers that are part of the key, lower cased.
+     */
+    private final String[] varyHeaders;
+
+    /**
+     * Same headers as a set, used to check the response's Vary header.
+     */
+    private final Set<String> varyHeaderSet;
+
+    /**
+     * Number of requests sent to the server for others to share.
+     */
+    private final AtomicLong leaders;
+
+    /**
+     * Number of requests answered with a shared response.
+     */
+    private final AtomicLong coalesced;
+
+    /**
+     * Number of requests that had to make their own request after waiting.
+     */
+    private final AtomicLong fallbacks;
+
+    /**
+     * Creates a coalescer.
+     *
+     * @param maxWait     Milliseconds a request waits for a shared response
+     * @param maxBodySize The largest body that will be shared
+     * @param varyHeaders Comma separated list of request headers that must match for requests to be shared
+     */
+    public RequestCoalescer(long maxWait, int maxBodySize, String varyHeaders) {
+        this.maxWait = maxWait;
+        this.maxBodySize = maxBodySize;
+        this.flights = new ConcurrentHashMap<>();
+        this.varyHeaderSet = new HashSet<>();
+        StringTokenizer tokenizer = new StringTokenizer(varyHeaders, ",");
+        while (tokenizer.hasMoreTokens()) {
+            varyHeaderSet.add(tokenizer.nextToken().trim().toLowerCase());
+        }
+        this.varyHeaders = varyHeaderSet.toArray(new String[varyHeaderSet.size()]);
+        Arrays.sort(this.varyHeaders);
+        this.leaders = new AtomicLong();
+        this.coalesced = new AtomicLong();
+        this.fallbacks = new AtomicLong();
+    }
+
+    /**
+     * Creates the key used to find identical requests. Only GET requests
+     * without credentials, ranges or conditions are coalesced.
+     *
+     * @param hreq The request that is about to be sent
+     * @return The key, null if this request shouldn't be coalesced
+     */
+    public String createKey(HttpUriRequest hreq) {
+        if (!hreq.getMethod().equals("GET")) {
+            return null;
+        }
+        for (String header : privateHeaders) {
+            if (hreq.containsHeader(header)) {
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder(hreq.getURI().toString());
+        for (String name : varyHeaders) {
+            key.append('\n').append(name).append(':');
+            for (Header header : hreq.getHeaders(name)) {
+                key.append(header.getValue()).append(',');
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Executes the exchange or, if an identical request already is in
+     * flight, waits for that request's response.
+     *
+     * @param key      The key created for this request
+     * @param exchange The request to the server
+     * @return The response
+     * @throws IOException When there is a problem with the connection
+     */
+    public CloseableHttpResponse execute(String key, Exchange exchange) throws IOException {
+        return execute(key, null, exchange);
+    }
+
+    /**
+     * Executes the exchange or, if an identical request already is in
+     * flight, waits for that request's response. Aborting the request
+     * ends the wait at once.
+     *
+     * @param key      The key created for this request
+     * @param hreq     The request that is about to be sent, null if it can't be aborted
+     * @param exchange The request to the server
+     * @return The response
+     * @throws IOException When there is a problem with the connection or the request is aborted
+     */
+    public CloseableHttpResponse execute(String key, HttpUriRequest hreq, Exchange exchange) throws IOException {
+        Flight flight = new Flight();
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            if (existing.join()) {
+                return follow(existing, hreq, exchange);
+            }
+            // the response already left without buffering
+            return exchange.execute();
+        }
+
+        leaders.incrementAndGet();
+        BufferedResponse shared = null;
+        try {
+            CloseableHttpResponse hresp = exchange.execute();
+            if (flight.depart()) {
+                return hresp;
+            }
+            try {
+                shared = share(hresp);
+            } catch (IOException e) {
+                hresp.close();
+                throw e;
+            }
+            if (shared == null) {
+                return hresp;
+            }
+            hresp.close();
+            return shared.createResponse();
+        } finally {
+            flights.remove(key, flight);
+            flight.complete(shared);
+        }
+    }
+
+    /**
+     * Waits for the response of a request in flight, falls back
+     * to executing the exchange if it can't be shared.
+     *
+     * @param flight   The request in flight
+     * @param hreq     The request waiting, null if it can't be aborted
+     * @param exchange The request to execute when falling back
+     * @return The response
+     * @throws IOException When there is a problem with the connection or the request is aborted
+     */
+    private CloseableHttpResponse follow(Flight flight, HttpUriRequest hreq, Exchange exchange) throws IOException {
+        BufferedResponse shared = null;
+        try {
+            shared = flight.await(maxWait, (hreq instanceof HttpExecutionAware) ? (HttpExecutionAware) hreq : null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (hreq != null && hreq.isAborted()) {
+            throw new RequestAbortedException("Request aborted while waiting for a shared response");
+        }
+        if (shared == null) {
+            fallbacks.incrementAndGet();
+            return exchange.execute();
+        }
+        coalesced.incrementAndGet();
+        return shared.createResponse();
+    }
+
+    /**
+     * Reads the response into a buffer if it can be shared.
+     *
+     * @param hresp The response from the server
+     * @return The buffered response, null if it can't be shared
+     * @throws IOException When there is a problem reading the body
+     */
+    private BufferedResponse share(CloseableHttpResponse hresp) throws IOException {
+        if (!isShareable(hresp)) {
+            return null;
+        }
+        BufferedResponse shared = BufferedResponse.read(hresp, maxBodySize);
+        if (shared == null && log.isDebugEnabled()) log.debug("Response too large to share");
+        return shared;
+    }
+
+    /**
+     * Checks if the response can be given to other clients than the
+     * one making the request. Responses setting cookies, marked as
+     * private or varying on headers not in the key can't.
+     *
+     * @param hresp The response
+     * @return true if the response can be shared
+     */
+    private boolean isShareable(CloseableHttpResponse hresp) {
+        if (!BufferedResponse.isPublic(hresp)) {
+            return false;
+        }
+        for (Header header : hresp.getHeaders("Vary")) {
+            for (HeaderElement element : header.getElements()) {
+                if (!varyHeaderSet.contains(element.getName().toLowerCase())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of requests sent to the server on behalf of others.
+     *
+     * @return Number of leading requests
+     */
+    public long getLeaders() {
+        return leaders.get();
+    }
+
+    /**
+     * Returns the number of requests answered with a shared response.
+     *
+     * @return Number of coalesced requests
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of requests that waited but had to make their
+     * own request to the server.
+     *
+     * @return Number of fallbacks
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    /**
+     * A request in flight that others can wait for.
+     */
+    private static final class Flight {
+
+        /**
+         * Completed with the response, null if it can't be shared.
+         */
+        private final CompletableFuture<BufferedResponse> response = new CompletableFuture<>();
+
+        /**
+         * Number of requests that joined to wait for the response.
+         */
+        private int followers;
+
+        /**
+         * Set when the response is passed on without buffering.
+         */
+        private boolean departed;
+
+        /**
+         * Joins the flight to wait for its response.
+         *
+         * @return true if joined, false if the response is passed on without waiting for anyone
+         */
+        synchronized boolean join() {
+            if (departed) {
+                return false;
+            }
+            followers++;
+            return true;
+        }
+
+        /**
+         * Called when the response arrives, lets it go without
+         * buffering if no request joined to wait for it.
+         *
+         * @return true if no request is waiting, later requests can't join
+         */
+        synchronized boolean depart() {
+            departed = (followers == 0);
+            return departed;
+        }
+
+        /**
+         * Hands the response to the waiting requests.
+         *
+         * @param response The response, null if it can't be shared
+         */
+        void complete(BufferedResponse response) {
+            this.response.complete(response);
+        }
+
+        /**
+         * Waits for the response. A waiting request that is aborted
+         * stops waiting without disturbing the others.
+         *
+         * @param millis Milliseconds to wait
+         * @param waiter The request waiting, null if it can't be aborted
+         * @return The response, null if it can't be shared, didn't arrive in time or the wait was aborted
+         * @throws InterruptedException If the thread is interrupted
+         */
+        BufferedResponse await(long millis, HttpExecutionAware waiter) throws InterruptedException {
+            CompletableFuture<BufferedResponse> wait = response;
+            if (waiter != null) {
+                wait = response.thenApply(r -> r);
+                final CompletableFuture<BufferedResponse> own = wait;
+                waiter.setCancellable(() -> own.cancel(false));
+                if (waiter.isAborted()) {
+                    return null;
+                }
+            }
+            try {
+                return wait.get(millis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException | CancellationException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+import java.io.IOException;
+
+/**
+ * Sits in front of the cache and puts back the Cache-Control header the
+ * server sent, replacing the one {@link StaleDirectiveExec} rewrote for
+ * the cache. Responses from the server and from the cache both carry the
+ * original header, the route's stale directives never reach the client.
+ */
+class RestoreCacheControlExec implements ClientExecChain {
+
+    /**
+     * The cache.
+     */
+    private final ClientExecChain backend;
+
+    /**
+     * Creates the element.
+     *
+     * @param backend The element holding the cache
+     */
+    RestoreCacheControlExec(ClientExecChain backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * @see org.apache.http.impl.execchain.ClientExecChain#execute(org.apache.http.conn.routing.HttpRoute,
+     * org.apache.http.client.methods.HttpRequestWrapper, org.apache.http.client.protocol.HttpClientContext,
+     * org.apache.http.client.methods.HttpExecutionAware)
+     */
+    public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+                                         HttpExecutionAware execAware) throws IOException, HttpException {
+        CloseableHttpResponse response = backend.execute(route, request, context, execAware);
+        Header original = response.getFirstHeader(StaleDirectiveExec.ORIGINAL_CACHE_CONTROL);
+        if (original != null) {
+            response.removeHeaders(StaleDirectiveExec.ORIGINAL_CACHE_CONTROL);
+            if (original.getValue().isEmpty()) {
+                response.removeHeaders("Cache-Control");
+            } else {
+                response.setHeader("Cache-Control", original.getValue());
+            }
+        }
+        return response;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpException;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHeaderValueFormatter;
+import org.apache.http.util.CharArrayBuffer;
+
+import java.io.IOException;
+
+/**
+ * Sits between the cache and the server and rewrites the Cache-Control
+ * header of the responses with the stale-while-revalidate and
+ * stale-if-error values configured for the route, before the cache
+ * decides how the response can be used.
+ * <p/>
+ * The values are found in the request's context where they are put by
+ * {@link ProxyCachingHttpClientBuilder#setStaleDirectives}, background
+ * revalidations reuse the context so they get the same values.
+ * <p/>
+ * The rewritten header is only meant for the cache. The header sent by
+ * the server is kept in {@link #ORIGINAL_CACHE_CONTROL}, which is stored
+ * with the cache entry, and put back by {@link RestoreCacheControlExec}
+ * before the response leaves the client.
+ */
+class StaleDirectiveExec implements ClientExecChain {
+
+    /**
+     * The directive serving stale while revalidating.
+     */
+    private static final String STALE_WHILE_REVALIDATE = "stale-while-revalidate";
+
+    /**
+     * The directive serving stale on errors.
+     */
+    private static final String STALE_IF_ERROR = "stale-if-error";
+
+    /**
+     * The header keeping the Cache-Control sent by the server.
+     */
+    static final String ORIGINAL_CACHE_CONTROL = "X-J2EP-Original-Cache-Control";
+
+    /**
+     * The next element in the chain.
+     */
+    private final ClientExecChain backend;
+
+    /**
+     * Creates the element.
+     *
+     * @param backend The element sending the request to the server
+     */
+    StaleDirectiveExec(ClientExecChain backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * @see org.apache.http.impl.execchain.ClientExecChain#execute(org.apache.http.conn.routing.HttpRoute,
+     * org.apache.http.client.methods.HttpRequestWrapper, org.apache.http.client.protocol.HttpClientContext,
+     * org.apache.http.client.methods.HttpExecutionAware)
+     */
+    public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+                                         HttpExecutionAware execAware) throws IOException, HttpException {
+        CloseableHttpResponse response = backend.execute(route, request, context, execAware);
+        Integer staleWhileRevalidate = context.getAttribute(ProxyCachingHttpClientBuilder.STALE_WHILE_REVALIDATE, Integer.class);
+        Integer staleIfError = context.getAttribute(ProxyCachingHttpClientBuilder.STALE_IF_ERROR, Integer.class);
+        boolean unchanged = response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED
+                            && !response.containsHeader("Cache-Control");
+        if ((staleWhileRevalidate != null || staleIfError != null) && !unchanged) {
+            rewriteCacheControl(response, staleWhileRevalidate, staleIfError);
+        }
+        return response;
+    }
+
+    /**
+     * Replaces the stale directives in the response's Cache-Control,
+     * keeping all other directives. A 304 without a Cache-Control is left
+     * alone so the header of the stored entry isn't replaced.
+     *
+     * @param response             The response
+     * @param staleWhileRevalidate The new stale-while-revalidate, null to keep the server's
+     * @param staleIfError         The new stale-if-error, null to keep the server's
+     */
+    private void rewriteCacheControl(CloseableHttpResponse response, Integer staleWhileRevalidate, Integer staleIfError) {
+        CharArrayBuffer buffer = new CharArrayBuffer(64);
+        CharArrayBuffer original = new CharArrayBuffer(64);
+        for (Header header : response.getHeaders("Cache-Control")) {
+            if (original.length() > 0) {
+                original.append(", ");
+            }
+            original.append(header.getValue());
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName();
+                if ((staleWhileRevalidate != null && name.equalsIgnoreCase(STALE_WHILE_REVALIDATE))
+                    || (staleIfError != null && name.equalsIgnoreCase(STALE_IF_ERROR))) {
+                    continue;
+                }
+                if (buffer.length() > 0) {
+                    buffer.append(", ");
+                }
+                BasicHeaderValueFormatter.INSTANCE.formatHeaderElement(buffer, element, false);
+            }
+        }
+        if (staleWhileRevalidate != null) {
+            appendDirective(buffer, STALE_WHILE_REVALIDATE, staleWhileRevalidate);
+        }
+        if (staleIfError != null) {
+            appendDirective(buffer, STALE_IF_ERROR, staleIfError);
+        }
+        response.setHeader("Cache-Control", buffer.toString());
+        response.setHeader(ORIGINAL_CACHE_CONTROL, original.toString());
+    }
+
+    /**
+     * Adds a directive with a value in seconds.
+     *
+     * @param buffer  The Cache-Control value being built
+     * @param name    The directive
+     * @param seconds The value
+     */
+    private void appendDirective(CharArrayBuffer buffer, String name, int seconds) {
+        if (buffer.length() > 0) {
+            buffer.append(", ");
+        }
+        buffer.append(name);
+        buffer.append('=');
+        buffer.append(Integer.toString(seconds));
+    }
+}
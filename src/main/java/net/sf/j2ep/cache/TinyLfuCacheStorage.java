@@ -0,0 +1,599 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.impl.client.cache.CacheConfig;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-memory cache storage bounded by the weight of the entries in bytes
+ * and using the W-TinyLFU policy. New entries go into a small LRU window,
+ * entries leaving the window are only admitted into the main area if they
+ * have been requested more often than the entry they would push out. The
+ * main area is a segmented LRU with a probation and a protected part. The
+ * frequencies are estimated with a count-min sketch that fades over time.
+ * <p/>
+ * The storage is split in stripes, each with its own lock, sketch and a
+ * share of the weight. A hit is a map lookup, a sketch increment and
+ * moving a node in a linked list and doesn't allocate.
+ * <p/>
+ * The weight of an entry is estimated from the body and the headers, the
+ * storage should be used with the default heap resources, that is without
+ * the <em>cacheDir</em> parameter.
+ */
+public class TinyLfuCacheStorage implements EvictingCacheStorage {
+
+    /**
+     * Default maximum weight, 64 MB.
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 64L * 1024 * 1024;
+
+    /**
+     * Default number of stripes.
+     */
+    public static final int DEFAULT_STRIPES = 16;
+
+    /**
+     * The parts of a stripe an entry can be in.
+     */
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * The stripes.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * Mask giving a stripe from a hash.
+     */
+    private final int stripeMask;
+
+    /**
+     * Shift moving the highest bits of a hash down to the mask, the
+     * lowest bits are used by the frequency sketch.
+     */
+    private final int stripeShift;
+
+    /**
+     * The maximum weight of all entries.
+     */
+    private final long maxWeight;
+
+    /**
+     * Creates a storage configured from the filter parameters
+     * <em>cacheMaxWeight</em> and <em>cacheStripes</em>. The maximum
+     * number of cache entries is used to size the frequency sketches.
+     *
+     * @param props  The filter's init parameters
+     * @param config The cache configuration
+     */
+    public TinyLfuCacheStorage(Map<String, String> props, CacheConfig config) {
+        this(NumberUtils.toLong(props.get("cacheMaxWeight"), DEFAULT_MAX_WEIGHT),
+             NumberUtils.toInt(props.get("cacheStripes"), DEFAULT_STRIPES),
+             config.getMaxCacheEntries());
+    }
+
+    /**
+     * Creates a storage.
+     *
+     * @param maxWeight    The maximum weight of all entries in bytes
+     * @param stripes      The number of stripes, rounded up to a power of two
+     * @param expectedKeys The number of entries expected, used to size the sketches
+     */
+    public TinyLfuCacheStorage(long maxWeight, int stripes, int expectedKeys) {
+        if (maxWeight <= 0 || stripes <= 0) {
+            throw new IllegalArgumentException("The weight and the number of stripes must be positive");
+        }
+        int count = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.maxWeight = maxWeight;
+        this.stripes = new Stripe[count];
+        this.stripeMask = count - 1;
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(count);
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe(Math.max(1, maxWeight / count), Math.max(1, expectedKeys / count));
+        }
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#putEntry(java.lang.String,
+     * org.apache.http.client.cache.HttpCacheEntry)
+     */
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        int hash = spread(key.hashCode());
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
+        try {
+            stripe.put(key, hash, entry);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#getEntry(java.lang.String)
+     */
+    public HttpCacheEntry getEntry(String key) throws IOException {
+        int hash = spread(key.hashCode());
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
+        try {
+            return stripe.get(key, hash);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.http.client.cache.HttpCacheStorage#removeEntry(java.lang.String)
+     */
+    public void removeEntry(String key) throws IOException {
+        int hash = spread(key.hashCode());
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
+        try {
+            stripe.remove(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the entry while holding the stripe's lock, so the
+     * update can't be lost and never has to be retried.
+     *
+     * @see org.apache.http.client.cache.HttpCacheStorage#updateEntry(java.lang.String,
+     * org.apache.http.client.cache.HttpCacheUpdateCallback)
+     */
+    public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        int hash = spread(key.hashCode());
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
+        try {
+            Node node = stripe.map.get(key);
+            HttpCacheEntry updated = callback.update(node != null ? node.entry : null);
+            if (updated != null) {
+                stripe.put(key, hash, updated);
+            } else {
+                stripe.remove(key);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @see net.sf.j2ep.cache.EvictingCacheStorage#containsEntry(java.lang.String)
+     */
+    public boolean containsEntry(String key) {
+        Stripe stripe = stripeFor(spread(key.hashCode()));
+        stripe.lock.lock();
+        try {
+            return stripe.map.containsKey(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @see net.sf.j2ep.cache.EvictingCacheStorage#setEvictionListener(net.sf.j2ep.cache.EvictingCacheStorage.EvictionListener)
+     */
+    public void setEvictionListener(EvictionListener listener) {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.listener = listener;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found an entry.
+     *
+     * @return The hit count
+     */
+    public long getHitCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                count += stripe.hits;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of lookups that didn't find an entry.
+     *
+     * @return The miss count
+     */
+    public long getMissCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                count += stripe.misses;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of entries evicted to make room for others,
+     * including new entries that weren't admitted.
+     *
+     * @return The eviction count
+     */
+    public long getEvictionCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                count += stripe.evictions;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of entries stored.
+     *
+     * @return The number of entries
+     */
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.map.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated weight of all entries stored.
+     *
+     * @return The weight in bytes
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                weight += stripe.windowWeight + stripe.probationWeight + stripe.protectedWeight;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Returns the maximum weight of all entries.
+     *
+     * @return The maximum weight in bytes
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Estimates the memory used by an entry.
+     *
+     * @param key   The key of the entry
+     * @param entry The entry
+     * @return The weight in bytes
+     */
+    static long weigh(String key, HttpCacheEntry entry) {
+        long weight = 96 + 2L * key.length();
+        Resource resource = entry.getResource();
+        if (resource != null) {
+            weight += resource.length();
+        }
+        for (Header header : entry.getAllHeaders()) {
+            weight += 48 + 2L * (header.getName().length() + header.getValue().length());
+        }
+        for (Map.Entry<String, String> variant : entry.getVariantMap().entrySet()) {
+            weight += 48 + 2L * (variant.getKey().length() + variant.getValue().length());
+        }
+        return weight;
+    }
+
+    /**
+     * Spreads the bits of a hash code.
+     *
+     * @param hash The hash code
+     * @return The spread hash
+     */
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    /**
+     * Finds the stripe for a hash.
+     *
+     * @param hash The spread hash
+     * @return The stripe
+     */
+    private Stripe stripeFor(int hash) {
+        return stripes[(hash >>> stripeShift) & stripeMask];
+    }
+
+    /**
+     * Returns a String representation of this object.
+     *
+     * @return A string representation
+     */
+    public String toString() {
+        return "[" + getClass().getName() + ": maxWeight=" + maxWeight + ", stripes=" + stripes.length + "]";
+    }
+
+    /**
+     * An entry in one of the LRU lists.
+     */
+    private static final class Node {
+        final String key;
+        final int hash;
+        HttpCacheEntry entry;
+        long weight;
+        int queue;
+        Node prev;
+        Node next;
+
+        Node(String key, int hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A doubly linked LRU list, the head is the least recently used.
+     */
+    private static final class LruList {
+        Node head;
+        Node tail;
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+        }
+
+        void unlink(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToLast(Node node) {
+            if (tail != node) {
+                unlink(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * A part of the storage with its own lock, sketch and weight limit.
+     * All methods must be called with the lock held.
+     */
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, Node> map = new HashMap<>();
+        final FrequencySketch sketch;
+        final LruList window = new LruList();
+        final LruList probation = new LruList();
+        final LruList protectedList = new LruList();
+        final long maxWeight;
+        final long maxWindowWeight;
+        final long maxProtectedWeight;
+        long windowWeight;
+        long probationWeight;
+        long protectedWeight;
+        long hits;
+        long misses;
+        long evictions;
+        EvictionListener listener;
+
+        Stripe(long maxWeight, int expectedKeys) {
+            this.maxWeight = maxWeight;
+            this.maxWindowWeight = Math.max(1, maxWeight / 100);
+            this.maxProtectedWeight = (maxWeight - maxWindowWeight) * 80 / 100;
+            this.sketch = new FrequencySketch(expectedKeys);
+        }
+
+        HttpCacheEntry get(String key, int hash) {
+            sketch.increment(hash);
+            Node node = map.get(key);
+            if (node == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            onAccess(node);
+            return node.entry;
+        }
+
+        void put(String key, int hash, HttpCacheEntry entry) {
+            long weight = weigh(key, entry);
+            if (weight > maxWeight) {
+                remove(key);
+                evictions++;
+                if (listener != null) {
+                    listener.evicted(key);
+                }
+                return;
+            }
+            sketch.increment(hash);
+            Node node = map.get(key);
+            if (node != null) {
+                setWeight(node, weight);
+                node.entry = entry;
+                onAccess(node);
+            } else {
+                node = new Node(key, hash);
+                node.entry = entry;
+                node.queue = WINDOW;
+                node.weight = weight;
+                windowWeight += weight;
+                window.addLast(node);
+                map.put(key, node);
+            }
+            evict();
+        }
+
+        void remove(String key) {
+            Node node = map.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        }
+
+        /**
+         * Moves an accessed node, entries in probation
+         * are promoted to the protected part.
+         */
+        private void onAccess(Node node) {
+            if (node.queue == WINDOW) {
+                window.moveToLast(node);
+            } else if (node.queue == PROBATION) {
+                probation.unlink(node);
+                probationWeight -= node.weight;
+                node.queue = PROTECTED;
+                protectedList.addLast(node);
+                protectedWeight += node.weight;
+                while (protectedWeight > maxProtectedWeight && protectedList.head != node) {
+                    Node demoted = protectedList.head;
+                    protectedList.unlink(demoted);
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                    probationWeight += demoted.weight;
+                }
+            } else {
+                protectedList.moveToLast(node);
+            }
+        }
+
+        /**
+         * Moves the entries overflowing the window into probation
+         * as candidates, then evicts until the weight fits. A candidate
+         * only pushes out the least recently used entry in probation if
+         * it has been seen more often.
+         */
+        private void evict() {
+            int candidates = 0;
+            while (windowWeight > maxWindowWeight && window.head != null) {
+                Node node = window.head;
+                window.unlink(node);
+                windowWeight -= node.weight;
+                node.queue = PROBATION;
+                probation.addLast(node);
+                probationWeight += node.weight;
+                candidates++;
+            }
+
+            while (windowWeight + probationWeight + protectedWeight > maxWeight) {
+                Node victim = probation.head;
+                Node candidate = candidates > 0 ? probation.tail : null;
+                Node evicted;
+                if (victim == null) {
+                    evicted = protectedList.head != null ? protectedList.head : window.head;
+                } else if (candidate == null || candidate == victim) {
+                    evicted = victim;
+                } else if (sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                    evicted = victim;
+                } else {
+                    evicted = candidate;
+                    candidates--;
+                }
+                if (evicted == null) {
+                    break;
+                }
+                map.remove(evicted.key);
+                unlink(evicted);
+                evictions++;
+                if (listener != null) {
+                    listener.evicted(evicted.key);
+                }
+            }
+        }
+
+        private void setWeight(Node node, long weight) {
+            long delta = weight - node.weight;
+            node.weight = weight;
+            if (node.queue == WINDOW) {
+                windowWeight += delta;
+            } else if (node.queue == PROBATION) {
+                probationWeight += delta;
+            } else {
+                protectedWeight += delta;
+            }
+        }
+
+        private void unlink(Node node) {
+            if (node.queue == WINDOW) {
+                window.unlink(node);
+                windowWeight -= node.weight;
+            } else if (node.queue == PROBATION) {
+                probation.unlink(node);
+                probationWeight -= node.weight;
+            } else {
+                protectedList.unlink(node);
+                protectedWeight -= node.weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.cache;
+
+import net.sf.j2ep.io.DetachedHttpResponse;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the validators of fresh responses so conditional requests
+ * can be answered with a 304 by the proxy without asking the server.
+ * A response is remembered as long as it's fresh according to its
+ * Cache-Control max-age or Expires header, responses without those, or
+ * marked no-cache, no-store or private, are never remembered.
+ * <p/>
+ * When the response is rewritten its body differs from what the server
+ * sent, the rewriting then replaces the server's ETag with one computed
+ * from the rewritten page.
+ */
+public class ValidatorCache {
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static Logger log = LoggerFactory.getLogger(ValidatorCache.class);
+
+    /**
+     * Context attribute set when a request is answered by the proxy.
+     */
+    public static final String HIT = "j2ep.validator-cache-hit";
+
+    /**
+     * Request attribute holding the key of the request, used to
+     * replace the ETag after the response is rewritten.
+     */
+    public static final String KEY = "j2ep.validator-key";
+
+    /**
+     * Headers that are sent with a 304 as they would be with a 200.
+     */
+    private static final String[] notModifiedHeaders = {"Cache-Control", "Content-Location", "ETag",
+            "Expires", "Last-Modified", "Vary"};
+
+    /**
+     * The validators, least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Largest number of validators remembered.
+     */
+    private final int maxEntries;
+
+    /**
+     * Number of requests answered with a 304.
+     */
+    private final AtomicLong hits;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries The largest number of validators remembered
+     */
+    public ValidatorCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(64, 0.75f, true);
+        this.hits = new AtomicLong();
+    }
+
+    /**
+     * Creates the key the validators of a request are remembered by.
+     *
+     * @param hreq The request that is about to be sent
+     * @return The key, null for requests other than GET and HEAD or with credentials
+     */
+    public String createKey(HttpUriRequest hreq) {
+        String method = hreq.getMethod();
+        if ((!method.equals("GET") && !method.equals("HEAD")) || hreq.containsHeader("Authorization")) {
+            return null;
+        }
+        return hreq.getURI().toString();
+    }
+
+    /**
+     * Answers a conditional request with a 304 if the validators
+     * it sent match a fresh response.
+     *
+     * @param key  The key created for the request
+     * @param hreq The request
+     * @param ctx  The context of the request, marked with HIT if it's answered
+     * @return A 304 response, null if the request must be sent to the server
+     */
+    public CloseableHttpResponse get(String key, HttpUriRequest hreq, HttpContext ctx) {
+        Header ifNoneMatch = hreq.getFirstHeader("If-None-Match");
+        Header ifModifiedSince = hreq.getFirstHeader("If-Modified-Since");
+        if ((ifNoneMatch == null && ifModifiedSince == null) || hreq.containsHeader("Range")) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires <= System.currentTimeMillis()) {
+                entries.remove(key);
+                return null;
+            }
+        }
+        if (ifNoneMatch != null) {
+            if (entry.etag == null || !matches(ifNoneMatch.getValue(), entry.etag)) {
+                return null;
+            }
+        } else {
+            Date since = DateUtils.parseDate(ifModifiedSince.getValue());
+            if (entry.lastModified == null || since == null || entry.lastModified.after(since)) {
+                return null;
+            }
+        }
+        hits.incrementAndGet();
+        ctx.setAttribute(HIT, Boolean.TRUE);
+        if (log.isDebugEnabled()) log.debug("Answering " + key + " with 304");
+        return entry.createResponse();
+    }
+
+    /**
+     * Remembers the validators of a response, or forgets the old
+     * ones if the response can't be validated by the proxy.
+     *
+     * @param key   The key created for the request
+     * @param hresp The response from the server
+     */
+    public void update(String key, HttpResponse hresp) {
+        int status = hresp.getStatusLine().getStatusCode();
+        if (status != HttpStatus.SC_OK && status != HttpStatus.SC_NOT_MODIFIED) {
+            invalidate(key);
+            return;
+        }
+        Entry previous;
+        synchronized (this) {
+            previous = entries.get(key);
+        }
+        Entry entry = createEntry(hresp, previous);
+        synchronized (this) {
+            if (entry == null) {
+                entries.remove(key);
+            } else {
+                entries.put(key, entry);
+                if (entries.size() > maxEntries) {
+                    entries.remove(entries.keySet().iterator().next());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the ETag remembered for a request, used when the
+     * response was rewritten before it was sent to the client.
+     *
+     * @param key  The key created for the request
+     * @param etag The ETag sent to the client
+     */
+    public synchronized void setETag(String key, String etag) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entries.put(key, entry.withETag(etag));
+        }
+    }
+
+    /**
+     * Forgets the validators for a request, used when a
+     * request may have changed the resource.
+     *
+     * @param key The key or URI of the request
+     */
+    public synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Forgets all validators.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of requests answered with a 304.
+     *
+     * @return Number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of validators remembered.
+     *
+     * @return The size
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Checks if a method may change the resource it's sent to,
+     * requests with these methods invalidate the validators of the URI.
+     *
+     * @param method The method of the request
+     * @return true for POST, PUT, DELETE and PATCH
+     */
+    public static boolean isUnsafe(String method) {
+        return method.equals("POST") || method.equals("PUT")
+                || method.equals("DELETE") || method.equals("PATCH");
+    }
+
+    /**
+     * Checks if a context is for a request answered by the proxy.
+     *
+     * @param ctx The context
+     * @return true if the request was answered with a 304 from the cache
+     */
+    public static boolean isHit(HttpContext ctx) {
+        return Boolean.TRUE.equals(ctx.getAttribute(HIT));
+    }
+
+    /**
+     * Checks if an If-None-Match header matches an ETag, using the
+     * weak comparison as required for If-None-Match.
+     *
+     * @param ifNoneMatch The header value, a list of ETags or *
+     * @param etag        The ETag of the response
+     * @return true if one of the ETags matches
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        String opaque = opaqueTag(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || opaqueTag(candidate).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the weak indicator from an ETag.
+     */
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Creates the entry for a response. A 304 has the same validators
+     * as the response it validated, when the remembered ETag was
+     * replaced by the rewriting only the freshness is taken from it.
+     *
+     * @param hresp    The response
+     * @param previous The entry remembered earlier, can be null
+     * @return The entry, null if the response can't be validated by the proxy
+     */
+    private Entry createEntry(HttpResponse hresp, Entry previous) {
+        if (hresp.containsHeader("Set-Cookie") || hresp.containsHeader("Set-Cookie2")) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long maxAge = -1;
+        for (Header header : hresp.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName();
+                if (name.equalsIgnoreCase("no-cache") || name.equalsIgnoreCase("no-store")
+                    || name.equalsIgnoreCase("private")) {
+                    return null;
+                } else if (name.equalsIgnoreCase("s-maxage")) {
+                    maxAge = NumberUtils.toLong(element.getValue(), -1);
+                } else if (name.equalsIgnoreCase("max-age") && maxAge == -1) {
+                    maxAge = NumberUtils.toLong(element.getValue(), -1);
+                }
+            }
+        }
+        for (Header header : hresp.getHeaders("Vary")) {
+            for (HeaderElement element : header.getElements()) {
+                if (!element.getName().equalsIgnoreCase("Accept-Encoding")) {
+                    return null;
+                }
+            }
+        }
+        long age = NumberUtils.toLong(getValue(hresp, "Age"), 0);
+        long expires;
+        if (maxAge >= 0) {
+            expires = now + (maxAge - age) * 1000;
+        } else {
+            String expiresValue = getValue(hresp, "Expires");
+            String dateValue = getValue(hresp, "Date");
+            Date expiresDate = (expiresValue != null) ? DateUtils.parseDate(expiresValue) : null;
+            Date date = (dateValue != null) ? DateUtils.parseDate(dateValue) : null;
+            if (expiresDate == null || date == null) {
+                return null;
+            }
+            expires = now + expiresDate.getTime() - date.getTime() - age * 1000;
+        }
+        if (expires <= now) {
+            return null;
+        }
+
+        String etag = getValue(hresp, "ETag");
+        String lastModified = getValue(hresp, "Last-Modified");
+        List<Header> headers = new ArrayList<>();
+        for (String name : notModifiedHeaders) {
+            for (Header header : hresp.getHeaders(name)) {
+                headers.add(header);
+            }
+        }
+        boolean rewritten = false;
+        if (hresp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED && previous != null) {
+            if (etag == null || previous.rewritten) {
+                etag = previous.etag;
+                rewritten = previous.rewritten;
+            }
+            if (lastModified == null && previous.lastModified != null) {
+                lastModified = DateUtils.formatDate(previous.lastModified);
+            }
+        }
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        return new Entry(etag, rewritten, lastModified != null ? DateUtils.parseDate(lastModified) : null,
+                         headers.toArray(new Header[headers.size()]), now, age, expires);
+    }
+
+    /**
+     * Returns the value of the first header with a name.
+     */
+    private static String getValue(HttpResponse hresp, String name) {
+        Header header = hresp.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * The validators of a fresh response.
+     */
+    private static final class Entry {
+
+        private final String etag;
+        private final boolean rewritten;
+        private final Date lastModified;
+        private final Header[] headers;
+        private final long stored;
+        private final long age;
+        private final long expires;
+
+        Entry(String etag, boolean rewritten, Date lastModified, Header[] headers, long stored, long age, long expires) {
+            this.etag = etag;
+            this.rewritten = rewritten;
+            this.lastModified = lastModified;
+            this.headers = headers;
+            this.stored = stored;
+            this.age = age;
+            this.expires = expires;
+        }
+
+        /**
+         * Creates a copy with the ETag of the rewritten response.
+         */
+        Entry withETag(String etag) {
+            return new Entry(etag, true, lastModified, headers, stored, age, expires);
+        }
+
+        /**
+         * Creates a 304 with the headers of the response, the Age
+         * header tells the client how long it has been cached.
+         */
+        CloseableHttpResponse createResponse() {
+            List<Header> sent = new ArrayList<>(headers.length + 3);
+            for (Header header : headers) {
+                if (!header.getName().equalsIgnoreCase("ETag")) {
+                    sent.add(header);
+                }
+            }
+            if (etag != null) {
+                sent.add(new BasicHeader("ETag", etag));
+            }
+            long seconds = age + (System.currentTimeMillis() - stored) / 1000;
+            sent.add(new BasicHeader("Age", Long.toString(seconds)));
+            sent.add(new BasicHeader("Date", DateUtils.formatDate(new Date())));
+            return new DetachedHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_NOT_MODIFIED, "Not Modified"),
+                                            sent.toArray(new Header[sent.size()]), null);
+        }
+    }
+}
@@ -23,11 +23,14 @@ import net.sf.j2ep.responsehandlers.HeadResponseHandler;
 import net.sf.j2ep.responsehandlers.OptionsResponseHandler;
 import net.sf.j2ep.responsehandlers.PostResponseHandler;
 import net.sf.j2ep.responsehandlers.PutResponseHandler;
+import net.sf.j2ep.responsehandlers.ResponseHandlerBase;
 import net.sf.j2ep.responsehandlers.TraceResponseHandler;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
 
+import javax.servlet.http.HttpServletRequest;
+
 /**
  * A factory creating ResponseHandlers.
  * This factory is used to get the handler for each request, it has
@@ -47,13 +50,14 @@ public class ResponseHandlerFactory {
      * Checks the hresp being received and created a
      * suitable ResponseHandler for this hresp.
      *
-     * @param hresp Method to handle
+     * @param request The request we are answering
+     * @param hresp   Method to handle
      * @return The handler for this response
      * @throws MethodNotAllowedException If no hresp could be choose this exception is thrown
      */
-    public static ResponseHandler createResponseHandler(CloseableHttpResponse hresp, HttpUriRequest hreq, HttpClientContext ctx) throws MethodNotAllowedException {
+    public static ResponseHandler createResponseHandler(HttpServletRequest request, CloseableHttpResponse hresp, HttpUriRequest hreq, HttpClientContext ctx) throws MethodNotAllowedException {
         final String method = hreq.getMethod();
-        ResponseHandler handler;
+        ResponseHandlerBase handler;
         switch (method) {
             case "OPTIONS":
                 handler = new OptionsResponseHandler(hresp, hreq);
@@ -79,6 +83,7 @@ public class ResponseHandlerFactory {
             default:
                 throw new MethodNotAllowedException("The hresp " + method + " was allowed by the AllowedMethodHandler, not by the factory.", handledMethods);
         }
+        handler.setRequest(request);
         return handler;
     }
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.io;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends a response body to the client using the cheapest way available.
+ * A body stored in a local file is handed to the container's sendfile
+ * support, the Tomcat request attributes are used, so the bytes go from
+ * the file to the socket without being copied by the proxy. A body in a
+ * mapped buffer is copied straight from the mapping without any reads
+ * of the file. Anything else is copied through a buffer taken from a
+ * shared pool, sized after the length of the body. Bytes that have
+ * already arrived are collected in the buffer before it's written so a
+ * body arriving in small packets doesn't turn into many small writes.
+ */
+public final class BodyTransfer {
+
+    /**
+     * Request attribute set by containers supporting sendfile.
+     */
+    public static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    /**
+     * Request attribute naming the file to send.
+     */
+    public static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    /**
+     * Request attribute with the first byte to send.
+     */
+    public static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    /**
+     * Request attribute with the end of the bytes to send, exclusive.
+     */
+    public static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    /**
+     * The pool the copy buffers are taken from.
+     */
+    private static volatile BufferPool bufferPool = createDefaultPool();
+
+    private BodyTransfer() {
+    }
+
+    /**
+     * Sets the pool the copy buffers are taken from.
+     *
+     * @param pool The pool, null to use a default pool
+     */
+    public static void setBufferPool(BufferPool pool) {
+        bufferPool = (pool != null) ? pool : createDefaultPool();
+    }
+
+    /**
+     * Returns the pool the copy buffers are taken from.
+     *
+     * @return The pool
+     */
+    public static BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sends a body of unknown length to the client and closes the streams.
+     *
+     * @param in       The body, null if there is none
+     * @param request  The request being answered, null if unknown
+     * @param response The response to write to
+     * @return The number of bytes sent
+     * @throws IOException When there is a problem reading or writing the body
+     */
+    public static long transfer(InputStream in, HttpServletRequest request, ServletResponse response) throws IOException {
+        return transfer(in, -1, request, response);
+    }
+
+    /**
+     * Sends a body to the client and closes the streams.
+     *
+     * @param in       The body, null if there is none
+     * @param length   The length of the body, -1 if unknown
+     * @param request  The request being answered, null if unknown
+     * @param response The response to write to
+     * @return The number of bytes sent
+     * @throws IOException When there is a problem reading or writing the body
+     */
+    public static long transfer(InputStream in, long length, HttpServletRequest request, ServletResponse response) throws IOException {
+        if (in == null) {
+            return 0;
+        }
+        try {
+            if (in instanceof FileRegion && canSendFile(request, response)) {
+                FileRegion region = (FileRegion) in;
+                response.setContentLengthLong(region.getCount());
+                request.setAttribute(SENDFILE_FILENAME, region.getFile().getAbsolutePath());
+                request.setAttribute(SENDFILE_START, region.getPosition());
+                request.setAttribute(SENDFILE_END, region.getPosition() + region.getCount());
+                return region.getCount();
+            }
+            try (OutputStream out = response.getOutputStream()) {
+                long sent;
+                if (in instanceof ByteBufferInputStream) {
+                    sent = write(((ByteBufferInputStream) in).getBuffer(), out);
+                } else {
+                    sent = copy(in, out, length);
+                }
+                out.flush();
+                return sent;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checks if the container can send a file for this response. A wrapped
+     * response is never sent this way since the wrapper wouldn't see the body.
+     *
+     * @param request  The request
+     * @param response The response
+     * @return true if the sendfile attributes can be used
+     */
+    public static boolean canSendFile(HttpServletRequest request, ServletResponse response) {
+        return request != null && !response.isCommitted() && !(response instanceof ServletResponseWrapper)
+               && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT));
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer.
+     *
+     * @param buffer The buffer
+     * @param out    The stream to write to
+     * @return The number of bytes written
+     * @throws IOException When there is a problem writing
+     */
+    private static long write(ByteBuffer buffer, OutputStream out) throws IOException {
+        int remaining = buffer.remaining();
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), remaining);
+            buffer.position(buffer.limit());
+            return remaining;
+        }
+        BufferPool pool = bufferPool;
+        byte[] chunk = pool.acquire(buffer.remaining());
+        try {
+            while (buffer.hasRemaining()) {
+                int count = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        } finally {
+            pool.release(chunk);
+        }
+        return remaining;
+    }
+
+    /**
+     * Copies a stream through a pooled buffer. After a read the bytes
+     * already available are read as well, as long as they fit, so every
+     * write carries as much as possible without waiting for more data.
+     *
+     * @param in     The stream to read
+     * @param out    The stream to write to
+     * @param length The expected number of bytes, -1 if unknown
+     * @return The number of bytes copied
+     * @throws IOException When there is a problem reading or writing
+     */
+    private static long copy(InputStream in, OutputStream out, long length) throws IOException {
+        BufferPool pool = bufferPool;
+        byte[] buffer = pool.acquire(length);
+        try {
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                while (count < buffer.length && in.available() > 0) {
+                    int read = in.read(buffer, count, buffer.length - count);
+                    if (read == -1) {
+                        break;
+                    }
+                    count += read;
+                }
+                out.write(buffer, 0, count);
+                total += count;
+            }
+            return total;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Creates the pool used until another one is set.
+     */
+    private static BufferPool createDefaultPool() {
+        return new BufferPool(4096, 65536, 32);
+    }
+}
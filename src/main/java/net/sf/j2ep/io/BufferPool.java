@@ -0,0 +1,196 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable copy buffers. The buffers come in sizes that are
+ * powers of two between a smallest and a largest size, a body is copied
+ * through the smallest buffer that holds it so a small body doesn't tie
+ * up a large buffer. Bodies of unknown length get the largest buffer.
+ * <p/>
+ * Every size keeps a limited number of free buffers, a buffer returned
+ * when its size is full is left to the garbage collector.
+ */
+public final class BufferPool {
+
+    /**
+     * Size of the smallest buffers.
+     */
+    private final int minSize;
+
+    /**
+     * Size of the largest buffers.
+     */
+    private final int maxSize;
+
+    /**
+     * The free buffers of every size, smallest size first.
+     */
+    private final ArrayBlockingQueue<byte[]>[] free;
+
+    /**
+     * Number of buffers handed out.
+     */
+    private final AtomicLong acquired;
+
+    /**
+     * Number of buffers that had to be allocated.
+     */
+    private final AtomicLong allocated;
+
+    /**
+     * Number of returned buffers dropped since the pool was full.
+     */
+    private final AtomicLong dropped;
+
+    /**
+     * Number of buffers handed out and not yet returned.
+     */
+    private final AtomicInteger inUse;
+
+    /**
+     * Creates a pool.
+     *
+     * @param minSize        Size of the smallest buffers, rounded up to a power of two
+     * @param maxSize        Size of the largest buffers, rounded up to a power of two
+     * @param buffersPerSize Number of free buffers kept for every size
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minSize, int maxSize, int buffersPerSize) {
+        this.minSize = roundUp(Math.max(minSize, 512));
+        this.maxSize = Math.max(this.minSize, roundUp(Math.min(maxSize, 1 << 24)));
+        int sizes = Integer.numberOfTrailingZeros(this.maxSize) - Integer.numberOfTrailingZeros(this.minSize) + 1;
+        free = new ArrayBlockingQueue[sizes];
+        for (int i = 0; i < sizes; i++) {
+            free[i] = new ArrayBlockingQueue<>(Math.max(1, buffersPerSize));
+        }
+        acquired = new AtomicLong();
+        allocated = new AtomicLong();
+        dropped = new AtomicLong();
+        inUse = new AtomicInteger();
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if there's no free
+     * buffer of the right size.
+     *
+     * @param expectedLength Length of the body to copy, -1 when unknown
+     * @return The buffer, to be returned with {@link #release(byte[])}
+     */
+    public byte[] acquire(long expectedLength) {
+        int size = (expectedLength < 0 || expectedLength >= maxSize) ? maxSize
+                   : Math.max(minSize, roundUp((int) expectedLength));
+        acquired.incrementAndGet();
+        inUse.incrementAndGet();
+        byte[] buffer = free[indexOf(size)].poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = new byte[size];
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buffer A buffer taken from this pool
+     */
+    public void release(byte[] buffer) {
+        inUse.decrementAndGet();
+        int size = buffer.length;
+        if (size < minSize || size > maxSize || Integer.bitCount(size) != 1 || !free[indexOf(size)].offer(buffer)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the size of the largest buffers.
+     *
+     * @return The size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of buffers handed out.
+     *
+     * @return The count
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * Returns the number of buffers allocated since no free one
+     * was available, the rest of the acquired buffers were reused.
+     *
+     * @return The count
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns the number of returned buffers that weren't kept.
+     *
+     * @return The count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of buffers currently in use.
+     *
+     * @return The count
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Returns the number of bytes held by the free buffers.
+     *
+     * @return The byte count
+     */
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < free.length; i++) {
+            bytes += (long) free[i].size() * (minSize << i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Finds the free list for a buffer size.
+     */
+    private int indexOf(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    /**
+     * Rounds up to the next power of two.
+     */
+    private static int roundUp(int size) {
+        return (size <= 1) ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+}
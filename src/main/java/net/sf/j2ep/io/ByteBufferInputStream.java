@@ -0,0 +1,90 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A stream reading the remaining bytes of a buffer. The buffer is
+ * read directly, for a mapped or direct buffer no copy of the data
+ * is made on the heap except for the reader's own array.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    /**
+     * The buffer we are reading, owned by this stream.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a stream.
+     *
+     * @param buffer The buffer, its position and limit marks the bytes to read
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the buffer with the bytes not yet read, used by writers
+     * that can transfer a buffer without copying it.
+     *
+     * @return The buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(long n) {
+        int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.io;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A response that isn't linked to any connection, used when the
+ * status, headers and body of a response from a server has been
+ * copied so the connection could be released. The response can
+ * be handled by the ResponseHandlers as any other response.
+ */
+public class DetachedHttpResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+    /**
+     * Creates a response.
+     *
+     * @param statusLine The status line
+     * @param headers    The headers
+     * @param entity     The body, can be null
+     */
+    public DetachedHttpResponse(StatusLine statusLine, Header[] headers, HttpEntity entity) {
+        super(statusLine);
+        setHeaders(headers);
+        setEntity(entity);
+    }
+
+    /**
+     * There is no connection to release, but an entity that
+     * holds any resources is closed.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        HttpEntity entity = getEntity();
+        if (entity instanceof Closeable) {
+            ((Closeable) entity).close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.io;
+
+import java.io.File;
+
+/**
+ * Implemented by streams whose bytes are stored in a local file, so
+ * the body can be sent by the container straight from the file
+ * without passing through the proxy.
+ */
+public interface FileRegion {
+
+    /**
+     * Returns the file holding the bytes.
+     *
+     * @return The file
+     */
+    File getFile();
+
+    /**
+     * Returns where in the file the bytes start.
+     *
+     * @return The position
+     */
+    long getPosition();
+
+    /**
+     * Returns the number of bytes.
+     *
+     * @return The count
+     */
+    long getCount();
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.io;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+/**
+ * A body read from the server as fast as the server sends it, so the
+ * connection can be released before the client has read anything. The
+ * first part of the body is kept in memory, the rest is written to a
+ * temporary file that is deleted when the entity is closed.
+ * <p/>
+ * A body larger than the largest size spooled keeps reading the rest
+ * from the server, the connection is then held as without spooling.
+ */
+public class SpooledEntity extends AbstractHttpEntity implements Closeable {
+
+    /**
+     * Size of the buffer used when copying to the file.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The first part of the body.
+     */
+    private final byte[] head;
+
+    /**
+     * Number of bytes in head.
+     */
+    private final int headLength;
+
+    /**
+     * The file with the rest of the spooled body, null if it fit in memory.
+     */
+    private final File file;
+
+    /**
+     * Number of bytes spooled.
+     */
+    private final long length;
+
+    /**
+     * The part of the body not spooled, null if it was read completely.
+     */
+    private InputStream rest;
+
+    private SpooledEntity(byte[] head, int headLength, File file, long length, InputStream rest) {
+        this.head = head;
+        this.headLength = headLength;
+        this.file = file;
+        this.length = length;
+        this.rest = rest;
+    }
+
+    /**
+     * Reads a body from the server.
+     *
+     * @param entity          The body to read
+     * @param memoryThreshold Number of bytes kept in memory before spooling to a file
+     * @param maxSize         Largest number of bytes spooled
+     * @param dir             The directory the file is created in
+     * @return The spooled body
+     * @throws IOException When there is a problem reading the body or writing the file
+     */
+    public static SpooledEntity spool(HttpEntity entity, int memoryThreshold, long maxSize, File dir) throws IOException {
+        SpooledEntity spooled = spool(entity.getContent(), entity.getContentLength(), memoryThreshold, maxSize, dir);
+        spooled.setContentType(entity.getContentType());
+        spooled.setContentEncoding(entity.getContentEncoding());
+        spooled.setChunked(entity.isChunked());
+        return spooled;
+    }
+
+    /**
+     * Reads a body from a stream.
+     *
+     * @param in              The stream to read
+     * @param expected        The length of the body, -1 if it isn't known
+     * @param memoryThreshold Number of bytes kept in memory before spooling to a file
+     * @param maxSize         Largest number of bytes spooled
+     * @param dir             The directory the file is created in
+     * @return The spooled body
+     * @throws IOException When there is a problem reading the body or writing the file
+     */
+    public static SpooledEntity spool(InputStream in, long expected, int memoryThreshold, long maxSize, File dir) throws IOException {
+        byte[] head = new byte[(int) Math.min(memoryThreshold, expected >= 0 ? expected : BUFFER_SIZE)];
+        int headLength = 0;
+        boolean eof = false;
+        while (!eof && headLength < memoryThreshold) {
+            if (headLength == head.length) {
+                head = Arrays.copyOf(head, (int) Math.min(memoryThreshold, Math.max(BUFFER_SIZE, head.length * 2L)));
+            }
+            int read = in.read(head, headLength, head.length - headLength);
+            if (read == -1) {
+                eof = true;
+            } else {
+                headLength += read;
+            }
+        }
+
+        File file = null;
+        long length = headLength;
+        InputStream rest = null;
+        if (!eof) {
+            int next = in.read();
+            if (next == -1) {
+                eof = true;
+            } else if (length >= maxSize) {
+                rest = unread(next, in);
+            } else {
+                file = File.createTempFile("j2ep-spool", ".tmp", dir);
+                try (OutputStream out = new FileOutputStream(file)) {
+                    out.write(next);
+                    length++;
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    while (!eof && length < maxSize) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, maxSize - length));
+                        if (read == -1) {
+                            eof = true;
+                        } else {
+                            out.write(buffer, 0, read);
+                            length += read;
+                        }
+                    }
+                    if (!eof) {
+                        next = in.read();
+                        if (next == -1) {
+                            eof = true;
+                        } else {
+                            rest = unread(next, in);
+                        }
+                    }
+                } catch (IOException e) {
+                    file.delete();
+                    throw e;
+                }
+            }
+        }
+        if (eof) {
+            in.close();
+        }
+
+        return new SpooledEntity(head, headLength, file, length, rest);
+    }
+
+    /**
+     * Puts back a byte read to find out if a stream had ended.
+     *
+     * @param b  The byte read
+     * @param in The rest of the stream
+     * @return A stream starting with the byte
+     */
+    private static InputStream unread(int b, InputStream in) {
+        return new SequenceInputStream(new ByteArrayInputStream(new byte[]{(byte) b}), in);
+    }
+
+    /**
+     * @see org.apache.http.HttpEntity#isRepeatable()
+     */
+    public boolean isRepeatable() {
+        return rest == null;
+    }
+
+    /**
+     * @see org.apache.http.HttpEntity#getContentLength()
+     */
+    public long getContentLength() {
+        return rest == null ? length : -1;
+    }
+
+    /**
+     * The stream for the file isn't a file region, the file is deleted
+     * as soon as the response handler is done and can't be sent by the
+     * container after that.
+     *
+     * @see org.apache.http.HttpEntity#getContent()
+     */
+    public InputStream getContent() throws IOException {
+        InputStream content = new ByteArrayInputStream(head, 0, headLength);
+        if (file != null) {
+            content = new SequenceInputStream(content, new FileInputStream(file));
+        }
+        if (rest != null) {
+            content = new SequenceInputStream(content, rest);
+        }
+        return content;
+    }
+
+    /**
+     * @see org.apache.http.HttpEntity#writeTo(java.io.OutputStream)
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        try (InputStream in = getContent()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * A body too large to be spooled completely is still
+     * read from the server.
+     *
+     * @see org.apache.http.HttpEntity#isStreaming()
+     */
+    public boolean isStreaming() {
+        return rest != null;
+    }
+
+    /**
+     * Deletes the file and closes the stream from the server.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        if (file != null) {
+            file.delete();
+        }
+        if (rest != null) {
+            rest.close();
+            rest = null;
+        }
+    }
+}
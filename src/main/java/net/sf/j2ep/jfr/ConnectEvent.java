@@ -0,0 +1,57 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * A new connection opened to a server.
+ */
+@Name("net.sf.j2ep.Connect")
+@Label("Connect")
+@Category("J2EP")
+@Description("A new connection opened to a server")
+@StackTrace(false)
+public class ConnectEvent extends Event {
+
+    @Label("Route")
+    private String route;
+
+    @Label("Connected")
+    private boolean connected;
+
+    /**
+     * Ends the event and commits it if it's recorded.
+     *
+     * @param route     The route connected to
+     * @param connected true if the connection was opened
+     */
+    public void finish(HttpRoute route, boolean connected) {
+        end();
+        if (shouldCommit()) {
+            this.route = route.getTargetHost().toHostString();
+            this.connected = connected;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.sf.j2ep.jfr;
+
+/**
+ * Tells whether the flight recorder events are created. They are only
+ * turned on when asked for and the runtime has the jdk.jfr API, the
+ * event classes are never loaded otherwise so the proxy still runs on
+ * a runtime without it.
+ */
+public final class FlightRecorderEvents {
+
+    /**
+     * Whether the events are created.
+     */
+    private static volatile boolean enabled;
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * Returns whether the events are created.
+     *
+     * @return true if they are
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the events on or off.
+     *
+     * @param on Whether the events should be created
+     * @return Whether the events are created, false if the runtime has no jdk.jfr API
+     */
+    public static boolean setEnabled(boolean on) {
+        enabled = on && isAvailable();
+        return enabled;
+    }
+
+    /**
+     * Returns whether the runtime has the jdk.jfr API.
+     *
+     * @return true if it has
+     */
+    public static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
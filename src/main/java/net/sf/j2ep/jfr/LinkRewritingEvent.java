@@ -0,0 +1,64 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The links of a page rewritten by the rewrite filter.
+ */
+@Name("net.sf.j2ep.LinkRewriting")
+@Label("Link Rewriting")
+@Category("J2EP")
+@Description("The links of a page rewritten by the rewrite filter")
+@StackTrace(false)
+public class LinkRewritingEvent extends Event {
+
+    @Label("URI")
+    private String uri;
+
+    @Label("Bytes In")
+    @DataAmount
+    private long bytesIn;
+
+    @Label("Bytes Out")
+    @DataAmount
+    private long bytesOut;
+
+    /**
+     * Ends the event and commits it if it's recorded.
+     *
+     * @param uri      The URI of the request
+     * @param bytesIn  The size of the page sent by the server
+     * @param bytesOut The size of the rewritten page sent to the client
+     */
+    public void finish(String uri, long bytesIn, long bytesOut) {
+        end();
+        if (shouldCommit()) {
+            this.uri = uri;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import net.sf.j2ep.model.Server;
+
+/**
+ * A request proxied to a server, from the start of the proxying until
+ * the response was sent. The phases of the request are recorded as
+ * events of their own within this one.
+ */
+@Name("net.sf.j2ep.ProxyRequest")
+@Label("Proxy Request")
+@Category("J2EP")
+@Description("A request proxied to a server")
+@StackTrace(false)
+public class ProxyRequestEvent extends Event {
+
+    @Label("Method")
+    private String method;
+
+    @Label("URI")
+    private String uri;
+
+    @Label("Server")
+    private String server;
+
+    @Label("Status")
+    private int status;
+
+    @Label("Retries")
+    private int retries;
+
+    /**
+     * Ends the event and commits it if it's recorded.
+     *
+     * @param method  The method of the request
+     * @param uri     The URI of the request
+     * @param server  The last server the request was sent to
+     * @param status  The status sent to the client
+     * @param retries The number of times the request was retried
+     */
+    public void finish(String method, String uri, Server server, int status, int retries) {
+        end();
+        if (shouldCommit()) {
+            this.method = method;
+            this.uri = uri;
+            this.server = server.getDomainName() + server.getPath();
+            this.status = status;
+            this.retries = retries;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import net.sf.j2ep.model.Server;
+
+/**
+ * The response of a server written to the client.
+ */
+@Name("net.sf.j2ep.ResponseCopy")
+@Label("Response Copy")
+@Category("J2EP")
+@Description("The response of a server written to the client")
+@StackTrace(false)
+public class ResponseCopyEvent extends Event {
+
+    @Label("Server")
+    private String server;
+
+    @Label("Status")
+    private int status;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    private long bytes;
+
+    /**
+     * Ends the event and commits it if it's recorded.
+     *
+     * @param server The server that answered
+     * @param status The status of the response
+     * @param bytes  The number of body bytes sent
+     */
+    public void finish(Server server, int status, long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.server = server.getDomainName() + server.getPath();
+            this.status = status;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import net.sf.j2ep.model.Server;
+
+/**
+ * The rules evaluated to find the server for a request.
+ */
+@Name("net.sf.j2ep.RuleEvaluation")
+@Label("Rule Evaluation")
+@Category("J2EP")
+@Description("The rules evaluated to find the server for a request")
+@StackTrace(false)
+public class RuleEvaluationEvent extends Event {
+
+    @Label("URI")
+    private String uri;
+
+    @Label("Container")
+    private String container;
+
+    /**
+     * Ends the event and commits it if it's recorded.
+     *
+     * @param uri    The URI of the request
+     * @param server The server found, null if no rule matched
+     */
+    public void finish(String uri, Server server) {
+        end();
+        if (shouldCommit()) {
+            this.uri = uri;
+            this.container = server != null ? server.getContainer().getName() : null;
+            commit();
+        }
+    }
+}
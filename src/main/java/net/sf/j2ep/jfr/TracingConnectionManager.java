@@ -0,0 +1,88 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jfr;
+
+import jdk.jfr.EventType;
+import net.sf.j2ep.monitor.TimingConnectionManager;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection pool recording the wait for a connection and the opening
+ * of new connections as flight recorder events. When the lease event
+ * isn't recorded the connection requests are passed on unwrapped. Only
+ * used when the flight recorder events are turned on.
+ */
+public class TracingConnectionManager extends TimingConnectionManager {
+
+    /**
+     * The lease event, checked before a connection request is wrapped.
+     */
+    private static final EventType LEASE = EventType.getEventType(ConnectionLeaseEvent.class);
+
+    /**
+     * Wraps the request so the wait for the connection is recorded.
+     *
+     * @see org.apache.http.impl.conn.PoolingHttpClientConnectionManager#requestConnection(org.apache.http.conn.routing.HttpRoute, java.lang.Object)
+     */
+    public ConnectionRequest requestConnection(final HttpRoute route, Object state) {
+        final ConnectionRequest request = super.requestConnection(route, state);
+        if (!LEASE.isEnabled()) {
+            return request;
+        }
+        return new ConnectionRequest() {
+            public HttpClientConnection get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                ConnectionLeaseEvent event = new ConnectionLeaseEvent();
+                event.begin();
+                HttpClientConnection connection = null;
+                try {
+                    connection = request.get(timeout, unit);
+                    return connection;
+                } finally {
+                    event.finish(route, connection != null);
+                }
+            }
+
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    /**
+     * @see org.apache.http.impl.conn.PoolingHttpClientConnectionManager#connect(org.apache.http.HttpClientConnection, org.apache.http.conn.routing.HttpRoute, int, org.apache.http.protocol.HttpContext)
+     */
+    public void connect(HttpClientConnection connection, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+        ConnectEvent event = new ConnectEvent();
+        event.begin();
+        boolean connected = false;
+        try {
+            super.connect(connection, route, connectTimeout, context);
+            connected = true;
+        } finally {
+            event.finish(route, connected);
+        }
+    }
+}
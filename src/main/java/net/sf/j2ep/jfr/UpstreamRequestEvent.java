@@ -0,0 +1,73 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A request executed by the client until the response headers were
+ * received, including the wait for a connection and connecting.
+ */
+@Name("net.sf.j2ep.UpstreamRequest")
+@Label("Upstream Request")
+@Category("J2EP")
+@Description("A request sent to a server, until the response headers were received")
+@StackTrace(false)
+public class UpstreamRequestEvent extends Event {
+
+    @Label("Method")
+    private String method;
+
+    @Label("URL")
+    private String url;
+
+    @Label("Status")
+    @Description("The status received, 0 if the request failed")
+    private int status;
+
+    @Label("Cache Status")
+    private String cacheStatus;
+
+    /**
+     * Ends the event and commits it if it's recorded.
+     *
+     * @param request  The request sent
+     * @param response The response received, null if the request failed
+     * @param context  The context the request was executed in
+     */
+    public void finish(HttpUriRequest request, HttpResponse response, HttpContext context) {
+        end();
+        if (shouldCommit()) {
+            this.method = request.getMethod();
+            this.url = request.getURI().toString();
+            this.status = response != null ? response.getStatusLine().getStatusCode() : 0;
+            CacheResponseStatus cacheResponseStatus = HttpCacheContext.adapt(context).getCacheResponseStatus();
+            this.cacheStatus = cacheResponseStatus != null ? cacheResponseStatus.name() : null;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jmx;
+
+import net.sf.j2ep.cache.IndexedCacheStorage;
+import net.sf.j2ep.cache.NegativeCache;
+import net.sf.j2ep.cache.RequestCoalescer;
+import net.sf.j2ep.cache.ValidatorCache;
+import net.sf.j2ep.monitor.MetricsRegistry;
+import org.apache.http.client.cache.CacheResponseStatus;
+
+import java.io.IOException;
+
+/**
+ * Exposes the caches of the proxy for management. The HTTP cache
+ * counters are read from the metrics registry.
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+
+    private final MetricsRegistry metrics;
+    private final NegativeCache negativeCache;
+    private final ValidatorCache validatorCache;
+    private final IndexedCacheStorage index;
+    private final RequestCoalescer coalescer;
+
+    /**
+     * Creates the management view of the caches.
+     *
+     * @param metrics        The metrics counting the HTTP cache responses
+     * @param negativeCache  The cache of error responses
+     * @param validatorCache The validators remembered, null if there are none
+     * @param index          The purge index of the HTTP cache, null if there is none
+     * @param coalescer      The coalescer of identical requests, null if there is none
+     */
+    public CacheStatistics(MetricsRegistry metrics, NegativeCache negativeCache, ValidatorCache validatorCache,
+                           IndexedCacheStorage index, RequestCoalescer coalescer) {
+        this.metrics = metrics;
+        this.negativeCache = negativeCache;
+        this.validatorCache = validatorCache;
+        this.index = index;
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getCacheHits()
+     */
+    public long getCacheHits() {
+        return metrics.getCacheResponses(CacheResponseStatus.CACHE_HIT);
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getCacheMisses()
+     */
+    public long getCacheMisses() {
+        return metrics.getCacheResponses(CacheResponseStatus.CACHE_MISS);
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getCacheValidated()
+     */
+    public long getCacheValidated() {
+        return metrics.getCacheResponses(CacheResponseStatus.VALIDATED);
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getCacheHitRatio()
+     */
+    public double getCacheHitRatio() {
+        long answered = getCacheHits() + getCacheValidated();
+        long total = answered + getCacheMisses() + metrics.getCacheResponses(CacheResponseStatus.CACHE_MODULE_RESPONSE);
+        return total > 0 ? (double) answered / total : 0;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getIndexedEntries()
+     */
+    public int getIndexedEntries() {
+        return index != null ? index.size() : -1;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getNegativeCacheHits()
+     */
+    public long getNegativeCacheHits() {
+        return negativeCache.getHits();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getNegativeCacheBytes()
+     */
+    public long getNegativeCacheBytes() {
+        return negativeCache.getWeight();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getValidatorCacheHits()
+     */
+    public long getValidatorCacheHits() {
+        return validatorCache != null ? validatorCache.getHits() : -1;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getValidatorCacheSize()
+     */
+    public int getValidatorCacheSize() {
+        return validatorCache != null ? validatorCache.size() : -1;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#getCoalescedRequests()
+     */
+    public long getCoalescedRequests() {
+        return coalescer != null ? coalescer.getCoalesced() : -1;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#clearValidators()
+     */
+    public void clearValidators() {
+        if (validatorCache != null) {
+            validatorCache.clear();
+        }
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#purgePrefix(java.lang.String)
+     */
+    public int purgePrefix(String prefix) throws IOException {
+        int purged = getIndex().purgePrefix(prefix);
+        clearValidators();
+        return purged;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.CacheStatisticsMBean#purgeTag(java.lang.String)
+     */
+    public int purgeTag(String tag) throws IOException {
+        int purged = getIndex().purgeTag(tag);
+        clearValidators();
+        return purged;
+    }
+
+    /**
+     * Returns the purge index, failing when purging isn't set up.
+     */
+    private IndexedCacheStorage getIndex() {
+        if (index == null) {
+            throw new IllegalStateException("Cache purging is not enabled");
+        }
+        return index;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jmx;
+
+import java.io.IOException;
+
+/**
+ * Management interface for the caches of the proxy. The counters of the
+ * optional caches are -1 when the proxy wasn't set up with them.
+ */
+public interface CacheStatisticsMBean {
+
+    /**
+     * Returns the number of requests answered by the HTTP cache
+     * without asking the server.
+     *
+     * @return The count
+     */
+    long getCacheHits();
+
+    /**
+     * Returns the number of requests the HTTP cache had to send to the server.
+     *
+     * @return The count
+     */
+    long getCacheMisses();
+
+    /**
+     * Returns the number of cached responses revalidated with the server.
+     *
+     * @return The count
+     */
+    long getCacheValidated();
+
+    /**
+     * Returns the share of the requests through the HTTP cache answered
+     * from it, revalidated responses included.
+     *
+     * @return The ratio, between 0 and 1
+     */
+    double getCacheHitRatio();
+
+    /**
+     * Returns the number of entries in the purge index.
+     *
+     * @return The count, -1 without cache purging
+     */
+    int getIndexedEntries();
+
+    /**
+     * Returns the number of requests answered with a cached error response.
+     *
+     * @return The count
+     */
+    long getNegativeCacheHits();
+
+    /**
+     * Returns the size of the cached error responses.
+     *
+     * @return The size in bytes
+     */
+    long getNegativeCacheBytes();
+
+    /**
+     * Returns the number of conditional requests answered with a 304.
+     *
+     * @return The count, -1 without answering conditional requests
+     */
+    long getValidatorCacheHits();
+
+    /**
+     * Returns the number of validators remembered.
+     *
+     * @return The count, -1 without answering conditional requests
+     */
+    int getValidatorCacheSize();
+
+    /**
+     * Returns the number of requests answered with the response of
+     * an identical request.
+     *
+     * @return The count, -1 without request coalescing
+     */
+    long getCoalescedRequests();
+
+    /**
+     * Forgets the validators remembered for conditional requests.
+     */
+    void clearValidators();
+
+    /**
+     * Removes the entries for all URLs starting with a prefix from the cache.
+     *
+     * @param prefix The start of the URLs, as sent to the server
+     * @return The number of entries removed
+     * @throws IOException If the cache storage fails
+     */
+    int purgePrefix(String prefix) throws IOException;
+
+    /**
+     * Removes the entries tagged with a tag from the cache.
+     *
+     * @param tag The tag
+     * @return The number of entries removed
+     * @throws IOException If the cache storage fails
+     */
+    int purgeTag(String tag) throws IOException;
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jmx;
+
+import net.sf.j2ep.model.CircuitBreaker;
+import net.sf.j2ep.model.Server;
+import net.sf.j2ep.servers.ClusterContainer;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Exposes a cluster for management.
+ */
+public class Cluster implements ClusterMBean {
+
+    /**
+     * The cluster.
+     */
+    private final ClusterContainer container;
+
+    /**
+     * Creates the management view of a cluster.
+     *
+     * @param container The cluster
+     */
+    public Cluster(ClusterContainer container) {
+        this.container = container;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ClusterMBean#getName()
+     */
+    public String getName() {
+        return container.getName();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ClusterMBean#getMembers()
+     */
+    public String[] getMembers() {
+        List<String> locations = container.getLocations();
+        String[] members = new String[locations.size()];
+        for (int i = 0; i < members.length; i++) {
+            String location = locations.get(i);
+            StringBuilder member = new StringBuilder(location);
+            member.append(container.isOnline(location) ? " online" : " offline");
+            Server server = container.getServerAt(location);
+            CircuitBreaker breaker = server != null ? server.getCircuitBreaker() : null;
+            if (breaker != null) {
+                member.append(' ').append(breaker.getState().name().toLowerCase(Locale.ROOT));
+                int failureRate = breaker.getFailureRate();
+                if (failureRate >= 0) {
+                    member.append(' ').append(failureRate).append("% failed");
+                }
+            }
+            members[i] = member.toString();
+        }
+        return members;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ClusterMBean#getOnlineMembers()
+     */
+    public int getOnlineMembers() {
+        int online = 0;
+        for (String location : container.getLocations()) {
+            if (container.isOnline(location)) {
+                online++;
+            }
+        }
+        return online;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ClusterMBean#setOnline(java.lang.String)
+     */
+    public boolean setOnline(String location) {
+        return container.setOnline(location, true);
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ClusterMBean#setOffline(java.lang.String)
+     */
+    public boolean setOffline(String location) {
+        return container.setOnline(location, false);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jmx;
+
+/**
+ * Management interface for a cluster, showing the state of its servers
+ * and letting servers be taken out of the cluster and back in.
+ */
+public interface ClusterMBean {
+
+    /**
+     * Returns the name of the cluster.
+     *
+     * @return The name
+     */
+    String getName();
+
+    /**
+     * Describes every server in the cluster with its location, whether
+     * it's online, the state of its circuit breaker and the share of
+     * failed calls in the breaker window, once the window has enough calls.
+     *
+     * @return The descriptions, sorted by location
+     */
+    String[] getMembers();
+
+    /**
+     * Returns the number of servers that are online.
+     *
+     * @return The count
+     */
+    int getOnlineMembers();
+
+    /**
+     * Puts a server back in the cluster.
+     *
+     * @param location The domain name and path of the server
+     * @return true if the server was found
+     */
+    boolean setOnline(String location);
+
+    /**
+     * Takes a server out of the cluster, it gets no new requests.
+     *
+     * @param location The domain name and path of the server
+     * @return true if the server was found
+     */
+    boolean setOffline(String location);
+}
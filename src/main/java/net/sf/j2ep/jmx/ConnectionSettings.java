@@ -0,0 +1,187 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jmx;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connection pool of the proxy together with the timeouts used for
+ * the requests to the servers. The client is built with fixed defaults,
+ * so the proxy sets the current request configuration on every request
+ * to let changed timeouts take effect right away.
+ */
+public class ConnectionSettings implements ConnectionSettingsMBean {
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static final Logger log = LoggerFactory.getLogger(ConnectionSettings.class);
+
+    /**
+     * The pool of connections to the servers.
+     */
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    /**
+     * The configuration used for new requests.
+     */
+    private volatile RequestConfig requestConfig;
+
+    /**
+     * Creates the settings.
+     *
+     * @param connectionManager The pool of connections to the servers
+     * @param requestConfig     The initial configuration of the requests
+     */
+    public ConnectionSettings(PoolingHttpClientConnectionManager connectionManager, RequestConfig requestConfig) {
+        this.connectionManager = connectionManager;
+        this.requestConfig = requestConfig;
+    }
+
+    /**
+     * Returns the configuration to use for a new request.
+     *
+     * @return The configuration
+     */
+    public RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#getLeased()
+     */
+    public int getLeased() {
+        return connectionManager.getTotalStats().getLeased();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#getAvailable()
+     */
+    public int getAvailable() {
+        return connectionManager.getTotalStats().getAvailable();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#getPending()
+     */
+    public int getPending() {
+        return connectionManager.getTotalStats().getPending();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#getMaxTotal()
+     */
+    public int getMaxTotal() {
+        return connectionManager.getMaxTotal();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#setMaxTotal(int)
+     */
+    public void setMaxTotal(int maxTotal) {
+        if (maxTotal < 1) {
+            throw new IllegalArgumentException("The limit must be at least 1");
+        }
+        connectionManager.setMaxTotal(maxTotal);
+        log.info("Connection limit set to " + maxTotal);
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#getMaxPerRoute()
+     */
+    public int getMaxPerRoute() {
+        return connectionManager.getDefaultMaxPerRoute();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#setMaxPerRoute(int)
+     */
+    public void setMaxPerRoute(int maxPerRoute) {
+        if (maxPerRoute < 1) {
+            throw new IllegalArgumentException("The limit must be at least 1");
+        }
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        log.info("Connection limit per server set to " + maxPerRoute);
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#getConnectTimeout()
+     */
+    public int getConnectTimeout() {
+        return requestConfig.getConnectTimeout();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#setConnectTimeout(int)
+     */
+    public synchronized void setConnectTimeout(int timeout) {
+        requestConfig = RequestConfig.copy(requestConfig).setConnectTimeout(checkTimeout(timeout)).build();
+        log.info("Connect timeout set to " + timeout);
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#getSocketTimeout()
+     */
+    public int getSocketTimeout() {
+        return requestConfig.getSocketTimeout();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#setSocketTimeout(int)
+     */
+    public synchronized void setSocketTimeout(int timeout) {
+        requestConfig = RequestConfig.copy(requestConfig).setSocketTimeout(checkTimeout(timeout)).build();
+        log.info("Socket timeout set to " + timeout);
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#getConnectionRequestTimeout()
+     */
+    public int getConnectionRequestTimeout() {
+        return requestConfig.getConnectionRequestTimeout();
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#setConnectionRequestTimeout(int)
+     */
+    public synchronized void setConnectionRequestTimeout(int timeout) {
+        requestConfig = RequestConfig.copy(requestConfig).setConnectionRequestTimeout(checkTimeout(timeout)).build();
+        log.info("Connection request timeout set to " + timeout);
+    }
+
+    /**
+     * @see net.sf.j2ep.jmx.ConnectionSettingsMBean#closeIdleConnections(long)
+     */
+    public void closeIdleConnections(long idleSeconds) {
+        connectionManager.closeIdleConnections(Math.max(0, idleSeconds), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Checks that a timeout isn't negative.
+     */
+    private static int checkTimeout(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("The timeout can't be negative");
+        }
+        return timeout;
+    }
+}
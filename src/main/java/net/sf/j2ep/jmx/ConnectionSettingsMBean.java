@@ -0,0 +1,123 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jmx;
+
+/**
+ * Management interface for the connections to the servers, showing
+ * how the pool is used and letting its limits and the timeouts be
+ * changed while the proxy is running.
+ */
+public interface ConnectionSettingsMBean {
+
+    /**
+     * Returns the number of connections in use.
+     *
+     * @return The count
+     */
+    int getLeased();
+
+    /**
+     * Returns the number of idle connections kept in the pool.
+     *
+     * @return The count
+     */
+    int getAvailable();
+
+    /**
+     * Returns the number of requests waiting for a connection.
+     *
+     * @return The count
+     */
+    int getPending();
+
+    /**
+     * Returns the largest number of connections to all servers.
+     *
+     * @return The limit
+     */
+    int getMaxTotal();
+
+    /**
+     * Sets the largest number of connections to all servers.
+     *
+     * @param maxTotal The limit, at least 1
+     */
+    void setMaxTotal(int maxTotal);
+
+    /**
+     * Returns the largest number of connections to a single server.
+     *
+     * @return The limit
+     */
+    int getMaxPerRoute();
+
+    /**
+     * Sets the largest number of connections to a single server.
+     *
+     * @param maxPerRoute The limit, at least 1
+     */
+    void setMaxPerRoute(int maxPerRoute);
+
+    /**
+     * Returns how long a connection to a server may take.
+     *
+     * @return The timeout in milliseconds, 0 for none
+     */
+    int getConnectTimeout();
+
+    /**
+     * Sets how long a connection to a server may take.
+     *
+     * @param timeout The timeout in milliseconds, 0 for none
+     */
+    void setConnectTimeout(int timeout);
+
+    /**
+     * Returns how long a server may stay silent while it's read from.
+     *
+     * @return The timeout in milliseconds, 0 for none
+     */
+    int getSocketTimeout();
+
+    /**
+     * Sets how long a server may stay silent while it's read from.
+     *
+     * @param timeout The timeout in milliseconds, 0 for none
+     */
+    void setSocketTimeout(int timeout);
+
+    /**
+     * Returns how long a request may wait for a connection from the pool.
+     *
+     * @return The timeout in milliseconds, 0 for none
+     */
+    int getConnectionRequestTimeout();
+
+    /**
+     * Sets how long a request may wait for a connection from the pool.
+     *
+     * @param timeout The timeout in milliseconds, 0 for none
+     */
+    void setConnectionRequestTimeout(int timeout);
+
+    /**
+     * Closes the pooled connections that have been idle for some time.
+     *
+     * @param idleSeconds The time a connection must have been idle
+     */
+    void closeIdleConnections(long idleSeconds);
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registers the MBeans of a proxy in the platform MBean server and
+ * unregisters them when the proxy is destroyed. The names are in the
+ * net.sf.j2ep domain with the context path of the web application as
+ * a key, so proxies in different web applications don't collide.
+ */
+public class MBeanRegistrar {
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static final Logger log = LoggerFactory.getLogger(MBeanRegistrar.class);
+
+    /**
+     * The domain of the names.
+     */
+    public static final String DOMAIN = "net.sf.j2ep";
+
+    /**
+     * The server the MBeans are registered in.
+     */
+    private final MBeanServer server;
+
+    /**
+     * The context path as used in the names.
+     */
+    private final String context;
+
+    /**
+     * The names registered so far.
+     */
+    private final List<ObjectName> names = new ArrayList<>();
+
+    /**
+     * Creates a registrar.
+     *
+     * @param contextPath The context path of the web application
+     */
+    public MBeanRegistrar(String contextPath) {
+        this.server = ManagementFactory.getPlatformMBeanServer();
+        this.context = ObjectName.quote(contextPath.isEmpty() ? "/" : contextPath);
+    }
+
+    /**
+     * Registers an MBean. A failure is logged, the proxy works without it.
+     *
+     * @param mbean The MBean
+     * @param type  The type key of the name
+     * @param name  The name key of the name, null if there is only one of the type
+     * @return The name, null if it couldn't be registered
+     */
+    public synchronized ObjectName register(Object mbean, String type, String name) {
+        try {
+            String objectName = DOMAIN + ":type=" + type + ",context=" + context;
+            if (name != null) {
+                objectName += ",name=" + ObjectName.quote(name);
+            }
+            ObjectName registered = server.registerMBean(mbean, new ObjectName(objectName)).getObjectName();
+            names.add(registered);
+            if (log.isDebugEnabled()) log.debug("Registered " + registered);
+            return registered;
+        } catch (JMException e) {
+            log.warn("Failed to register the " + type + " MBean. " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters all MBeans registered through this registrar.
+     */
+    public synchronized void unregisterAll() {
+        for (ObjectName name : names) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn("Failed to unregister " + name + ". " + e);
+            }
+        }
+        names.clear();
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker guarding a server. The outcome of the last calls
+ * are kept in a sliding window and when too many of them have failed,
+ * or have been too slow, the breaker opens and no more calls are
+ * permitted. After a while the breaker goes half-open and lets a
+ * limited number of probe calls through, depending on how they do
+ * the breaker is closed again or goes back to open.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states a breaker can be in.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Marks a failed call in the window.
+     */
+    private static final byte FAILED = 1;
+
+    /**
+     * Marks a slow call in the window.
+     */
+    private static final byte SLOW = 2;
+
+    /**
+     * Logging element supplied by commons-logging.
+     */
+    private static Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * Name used when logging, usually the server's location.
+     */
+    private final String name;
+
+    /**
+     * Percentage of failed calls opening the breaker.
+     */
+    private final int failureRateThreshold;
+
+    /**
+     * Percentage of slow calls opening the breaker.
+     */
+    private final int slowCallRateThreshold;
+
+    /**
+     * Calls taking longer than this are considered slow.
+     */
+    private final long slowCallDurationNanos;
+
+    /**
+     * Calls needed in the window before the rates are calculated.
+     */
+    private final int minimumCalls;
+
+    /**
+     * How long the breaker stays open before going half-open.
+     */
+    private final long openDurationNanos;
+
+    /**
+     * Probe calls permitted when half-open.
+     */
+    private final int halfOpenCalls;
+
+    /**
+     * The outcome of the last calls.
+     */
+    private final byte[] window;
+
+    /**
+     * Next position to write in the window.
+     */
+    private int position;
+
+    /**
+     * Number of calls in the window.
+     */
+    private int calls;
+
+    /**
+     * Number of failed calls in the window.
+     */
+    private int failedCalls;
+
+    /**
+     * Number of slow calls in the window.
+     */
+    private int slowCalls;
+
+    /**
+     * The current state.
+     */
+    private volatile State state;
+
+    /**
+     * When the state last changed.
+     */
+    private long stateChangedAt;
+
+    /**
+     * Probe calls left to hand out when half-open.
+     */
+    private int permitsLeft;
+
+    /**
+     * Number of calls rejected since the breaker was created.
+     */
+    private long notPermittedCalls;
+
+    /**
+     * Number of times the breaker has opened.
+     */
+    private long timesOpened;
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param name                  Name used when logging
+     * @param windowSize            Number of calls in the sliding window
+     * @param minimumCalls          Calls needed before the breaker can open
+     * @param failureRateThreshold  Percentage of failed calls opening the breaker
+     * @param slowCallRateThreshold Percentage of slow calls opening the breaker
+     * @param slowCallDuration      Milliseconds after which a call is slow
+     * @param openDuration          Milliseconds the breaker stays open
+     * @param halfOpenCalls         Probe calls permitted when half-open
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold,
+                          int slowCallRateThreshold, long slowCallDuration, long openDuration, int halfOpenCalls) {
+        if (windowSize < 1 || halfOpenCalls < 1) {
+            throw new IllegalArgumentException("The window and the half-open calls must be at least 1");
+        }
+        this.name = name;
+        this.window = new byte[windowSize];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, windowSize));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDurationNanos = slowCallDuration * 1000000L;
+        this.openDurationNanos = openDuration * 1000000L;
+        this.halfOpenCalls = Math.min(halfOpenCalls, windowSize);
+        this.state = State.CLOSED;
+        this.stateChangedAt = System.nanoTime();
+    }
+
+    /**
+     * Checks if a call would be permitted without taking a permit, used
+     * when choosing between servers.
+     *
+     * @return true if the breaker isn't open
+     */
+    public synchronized boolean isCallPermitted() {
+        updateState(System.nanoTime());
+        return state == State.CLOSED || (state == State.HALF_OPEN && permitsLeft > 0);
+    }
+
+    /**
+     * Takes a permit for a call. Every permitted call must later be
+     * followed by either onResult or release.
+     *
+     * @return true if the call may be made
+     */
+    public synchronized boolean tryAcquirePermission() {
+        updateState(System.nanoTime());
+        if (state == State.CLOSED) {
+            return true;
+        } else if (state == State.HALF_OPEN && permitsLeft > 0) {
+            permitsLeft--;
+            return true;
+        }
+        notPermittedCalls++;
+        return false;
+    }
+
+    /**
+     * Gives back a permit without recording any result, used when the
+     * call never reached the server.
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN && permitsLeft < halfOpenCalls) {
+            permitsLeft++;
+        }
+    }
+
+    /**
+     * Records the outcome of a permitted call.
+     *
+     * @param failed        true if the call failed
+     * @param durationNanos The time the call took
+     */
+    public synchronized void onResult(boolean failed, long durationNanos) {
+        if (state == State.OPEN) {
+            return;
+        }
+        byte outcome = 0;
+        if (failed) {
+            outcome |= FAILED;
+        }
+        if (durationNanos >= slowCallDurationNanos) {
+            outcome |= SLOW;
+        }
+        record(outcome);
+
+        long now = System.nanoTime();
+        if (state == State.HALF_OPEN) {
+            if (calls >= halfOpenCalls) {
+                if (isAboveThreshold()) {
+                    transitionTo(State.OPEN, now);
+                } else {
+                    transitionTo(State.CLOSED, now);
+                }
+            }
+        } else if (calls >= minimumCalls && isAboveThreshold()) {
+            transitionTo(State.OPEN, now);
+        }
+    }
+
+    /**
+     * Returns the current state.
+     *
+     * @return The state
+     */
+    public synchronized State getState() {
+        updateState(System.nanoTime());
+        return state;
+    }
+
+    /**
+     * Returns the percentage of failed calls in the window.
+     *
+     * @return The failure rate, -1 if there are too few calls
+     */
+    public synchronized int getFailureRate() {
+        return calls < minimumCalls ? -1 : failedCalls * 100 / calls;
+    }
+
+    /**
+     * Returns the percentage of slow calls in the window.
+     *
+     * @return The slow call rate, -1 if there are too few calls
+     */
+    public synchronized int getSlowCallRate() {
+        return calls < minimumCalls ? -1 : slowCalls * 100 / calls;
+    }
+
+    /**
+     * Returns the number of calls rejected by this breaker.
+     *
+     * @return The number of calls not permitted
+     */
+    public synchronized long getNotPermittedCalls() {
+        return notPermittedCalls;
+    }
+
+    /**
+     * Returns the number of times this breaker has opened.
+     *
+     * @return Number of times opened
+     */
+    public synchronized long getTimesOpened() {
+        return timesOpened;
+    }
+
+    /**
+     * Returns the name of this breaker.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Moves an open breaker to half-open when it has been open long
+     * enough. A half-open breaker whose probes never reported back
+     * gets its permits back after the same time.
+     *
+     * @param now The current time in nanoseconds
+     */
+    private void updateState(long now) {
+        if (state == State.OPEN && now - stateChangedAt >= openDurationNanos) {
+            transitionTo(State.HALF_OPEN, now);
+        } else if (state == State.HALF_OPEN && permitsLeft == 0 && now - stateChangedAt >= openDurationNanos) {
+            permitsLeft = halfOpenCalls - calls;
+            stateChangedAt = now;
+        }
+    }
+
+    /**
+     * Checks the rates in the window against the thresholds.
+     *
+     * @return true if the breaker should open
+     */
+    private boolean isAboveThreshold() {
+        return failedCalls * 100 >= failureRateThreshold * calls
+               || slowCalls * 100 >= slowCallRateThreshold * calls;
+    }
+
+    /**
+     * Adds an outcome to the window, overwriting the oldest
+     * one when the window is full.
+     *
+     * @param outcome The outcome
+     */
+    private void record(byte outcome) {
+        if (calls == window.length) {
+            byte oldest = window[position];
+            if ((oldest & FAILED) != 0) {
+                failedCalls--;
+            }
+            if ((oldest & SLOW) != 0) {
+                slowCalls--;
+            }
+        } else {
+            calls++;
+        }
+        window[position] = outcome;
+        position = (position + 1) % window.length;
+        if ((outcome & FAILED) != 0) {
+            failedCalls++;
+        }
+        if ((outcome & SLOW) != 0) {
+            slowCalls++;
+        }
+    }
+
+    /**
+     * Changes the state and resets the window.
+     *
+     * @param newState The state to go to
+     * @param now      The current time in nanoseconds
+     */
+    private void transitionTo(State newState, long now) {
+        if (newState == State.OPEN) {
+            timesOpened++;
+            log.warn("Circuit breaker for " + name + " is open, failure rate " + (calls == 0 ? 0 : failedCalls * 100 / calls)
+                     + "%, slow call rate " + (calls == 0 ? 0 : slowCalls * 100 / calls) + "%");
+        } else if (log.isDebugEnabled()) {
+            log.debug("Circuit breaker for " + name + " is " + newState);
+        }
+        state = newState;
+        stateChangedAt = now;
+        permitsLeft = newState == State.HALF_OPEN ? halfOpenCalls : 0;
+        position = 0;
+        calls = 0;
+        failedCalls = 0;
+        slowCalls = 0;
+    }
+
+    /**
+     * Returns a String representation of this object.
+     *
+     * @return A string representation
+     */
+    public String toString() {
+        return "[" + getClass().getName() + ": " + name + " " + state + "]";
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.model;
+
+/**
+ * An exception thrown when a request can't be sent because
+ * the circuit breakers of all the usable servers are open.
+ */
+public class CircuitBreakerOpenException extends Exception {
+
+    /**
+     * Our id
+     */
+    private static final long serialVersionUID = -2303170526283617432L;
+
+    /**
+     * Basic constructor creating a exception.
+     *
+     * @param message The exception message
+     */
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+}
@@ -44,6 +44,13 @@ public interface ResponseHandler {
      */
     public int getStatusCode();
 
+    /**
+     * Returns the number of body bytes sent to the client.
+     *
+     * @return The byte count, 0 before the response has been processed
+     */
+    public long getBytesSent();
+
     /**
      * Do any actions needed when we wont need the ResponseHandler any more.
      */
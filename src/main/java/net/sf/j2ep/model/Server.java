@@ -89,4 +89,19 @@ public interface Server {
      */
     Rule getRule();
 
+    /**
+     * Returns the container this server was created by. For
+     * a simple server this is usually the server itself.
+     *
+     * @return The container of this server
+     */
+    ServerContainer getContainer();
+
+    /**
+     * Returns the circuit breaker guarding this server.
+     *
+     * @return The breaker, null if this server isn't guarded
+     */
+    CircuitBreaker getCircuitBreaker();
+
 }
@@ -17,6 +17,7 @@
 package net.sf.j2ep.model;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.Collection;
 
 
 /**
@@ -42,6 +43,17 @@ public interface ServerContainer {
      */
     Server getServer(HttpServletRequest request);
 
+    /**
+     * Returns another server that can handle the request when the
+     * servers already tried have failed. Containers with a single
+     * server have no alternative to offer and will return null.
+     *
+     * @param request The request we are processing
+     * @param failed  The servers that have failed for this request
+     * @return A server not in the failed collection, null if there is none
+     */
+    Server getFailoverServer(HttpServletRequest request, Collection<Server> failed);
+
     /**
      * Returns the mapped rule. This method must return the same
      * rule as a call to the underlying servers getRule().
@@ -68,4 +80,47 @@ public interface ServerContainer {
      * @return The server that can handle the link, null if no server is found
      */
     Server getServerMapped(String link);
+
+    /**
+     * Returns the number of seconds a cached response from this
+     * container may be served stale while it's revalidated in the
+     * background, overriding the server's stale-while-revalidate.
+     *
+     * @return The seconds, -1 to use what the server sends
+     */
+    int getStaleWhileRevalidate();
+
+    /**
+     * Returns the number of seconds a cached response from this
+     * container may be served stale when the server fails, overriding
+     * the server's stale-if-error.
+     *
+     * @return The seconds, -1 to use what the server sends
+     */
+    int getStaleIfError();
+
+    /**
+     * Returns the number of seconds an error response from this
+     * container is answered from the negative cache.
+     *
+     * @param statusCode The status code of the response
+     * @return The seconds, 0 if responses with the status aren't cached
+     */
+    int getNegativeCacheTtl(int statusCode);
+
+    /**
+     * Checks if responses from this container get a Server-Timing
+     * header showing where the time of the proxy was spent.
+     *
+     * @return true if the header is sent
+     */
+    boolean isServerTiming();
+
+    /**
+     * Returns the name of this container, used when reporting
+     * about the requests it handles.
+     *
+     * @return The name
+     */
+    String getName();
 }
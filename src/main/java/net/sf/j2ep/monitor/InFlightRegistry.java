@@ -0,0 +1,116 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import net.sf.j2ep.model.Server;
+import net.sf.j2ep.model.ServerContainer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the requests being proxied right now, so the ones stuck on a
+ * server can be found and aborted. Requests are added and removed by id
+ * in constant time, listing them is left to the rare caller that wants
+ * to look.
+ */
+public class InFlightRegistry {
+
+    /**
+     * The requests, by id.
+     */
+    private final ConcurrentMap<Long, InFlightRequest> requests = new ConcurrentHashMap<>();
+
+    /**
+     * The id given to the next request.
+     */
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    /**
+     * Adds a request.
+     *
+     * @param method    The method of the request
+     * @param uri       The URI of the request with the query string
+     * @param container The container matched by the rules
+     * @param server    The server the request is sent to first
+     * @return The entry, to be removed once the request is done
+     */
+    public InFlightRequest register(String method, String uri, ServerContainer container, Server server) {
+        InFlightRequest request = new InFlightRequest(nextId.getAndIncrement(), method, uri, container, server);
+        requests.put(request.getId(), request);
+        return request;
+    }
+
+    /**
+     * Removes a request that is done.
+     *
+     * @param request The entry returned when it was added
+     */
+    public void remove(InFlightRequest request) {
+        requests.remove(request.getId());
+    }
+
+    /**
+     * Finds a request.
+     *
+     * @param id The id of the request
+     * @return The entry, null if the request is done
+     */
+    public InFlightRequest get(long id) {
+        return requests.get(id);
+    }
+
+    /**
+     * Aborts a request.
+     *
+     * @param id The id of the request
+     * @return true if the request was still in flight
+     */
+    public boolean abort(long id) {
+        InFlightRequest request = requests.get(id);
+        if (request == null) {
+            return false;
+        }
+        request.abort();
+        return true;
+    }
+
+    /**
+     * Returns the number of requests in flight.
+     *
+     * @return The count
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Returns the requests that have been in flight the longest.
+     *
+     * @param limit The largest number of requests returned
+     * @return The requests, the oldest first
+     */
+    public List<InFlightRequest> getOldest(int limit) {
+        List<InFlightRequest> list = new ArrayList<>(requests.values());
+        list.sort(Comparator.comparingLong(InFlightRequest::getId));
+        return (list.size() > limit) ? new ArrayList<>(list.subList(0, limit)) : list;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import net.sf.j2ep.model.Server;
+import net.sf.j2ep.model.ServerContainer;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A request being proxied right now, kept in the in-flight registry so
+ * requests that are stuck can be found and aborted. The proxy and the
+ * client update the phase as the request moves along, the entry is kept
+ * in the context the request to the server is executed in so the client
+ * can find it.
+ */
+public final class InFlightRequest implements HttpExecutionAware {
+
+    /**
+     * The attribute the entry is kept in, on the client context.
+     */
+    public static final String KEY = InFlightRequest.class.getName();
+
+    /**
+     * Where a request is.
+     */
+    public enum Phase {
+        /** Finding the URL and creating the request to the server. */
+        PREPARING,
+        /** Reading the request body from the client into the buffer. */
+        READING_REQUEST_BODY,
+        /** Waiting for the cache or a pooled connection. */
+        LEASING_CONNECTION,
+        /** Opening a connection to the server. */
+        CONNECTING,
+        /** Sending the request to the server. */
+        SENDING_REQUEST,
+        /** Waiting for the response headers. */
+        WAITING_FOR_RESPONSE,
+        /** Copying the response to the client. */
+        SENDING_RESPONSE
+    }
+
+    /**
+     * The id the request is registered under.
+     */
+    private final long id;
+
+    /**
+     * When the request was registered, in milliseconds since the epoch.
+     */
+    private final long startTime;
+
+    /**
+     * When the request was registered, as returned by System.nanoTime.
+     */
+    private final long startNanos;
+
+    /**
+     * The method of the request.
+     */
+    private final String method;
+
+    /**
+     * The URI requested.
+     */
+    private final String uri;
+
+    /**
+     * The container matched by the rules.
+     */
+    private final ServerContainer container;
+
+    /**
+     * The server the request is sent to, changes when it's retried.
+     */
+    private volatile Server server;
+
+    /**
+     * Where the request is.
+     */
+    private volatile Phase phase = Phase.PREPARING;
+
+    /**
+     * What is stopped when the request is aborted, like the request
+     * sent to the server, null if there is nothing to stop.
+     */
+    private volatile Cancellable cancellable;
+
+    /**
+     * Set when the request is aborted.
+     */
+    private volatile boolean aborted;
+
+    /**
+     * Creates an entry.
+     *
+     * @param id        The id of the request in the registry
+     * @param method    The method of the request
+     * @param uri       The URI of the request with the query string
+     * @param container The container matched by the rules
+     * @param server    The server the request is sent to first
+     */
+    InFlightRequest(long id, String method, String uri, ServerContainer container, Server server) {
+        this.id = id;
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.method = method;
+        this.uri = uri;
+        this.container = container;
+        this.server = server;
+    }
+
+    /**
+     * Returns the entry kept in a client context.
+     *
+     * @param context The context
+     * @return The entry, null if the request isn't registered
+     */
+    public static InFlightRequest get(HttpContext context) {
+        Object request = context.getAttribute(KEY);
+        return (request instanceof InFlightRequest) ? (InFlightRequest) request : null;
+    }
+
+    /**
+     * Returns the id of the request in the registry.
+     *
+     * @return The id
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns when the request was received.
+     *
+     * @return The time in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the time the request has been in flight.
+     *
+     * @return The time in nanoseconds
+     */
+    public long getAgeNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Returns the method of the request.
+     *
+     * @return The method
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the URI of the request.
+     *
+     * @return The URI with the query string
+     */
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns the container matched by the rules.
+     *
+     * @return The container
+     */
+    public ServerContainer getContainer() {
+        return container;
+    }
+
+    /**
+     * Returns the server the request is sent to.
+     *
+     * @return The server
+     */
+    public Server getServer() {
+        return server;
+    }
+
+    /**
+     * Returns where the request is.
+     *
+     * @return The phase
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Sets where the request is.
+     *
+     * @param phase The phase
+     */
+    public void setPhase(Phase phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * Marks the start of an attempt to send the request to a server.
+     *
+     * @param server The server
+     */
+    public void startAttempt(Server server) {
+        this.server = server;
+        this.cancellable = null;
+        this.phase = Phase.LEASING_CONNECTION;
+    }
+
+    /**
+     * Sets the request sent to the server, aborting it at once if
+     * the request was aborted before it was created.
+     *
+     * @param upstream The request
+     */
+    public void setUpstream(final HttpUriRequest upstream) {
+        setCancellable(() -> {
+            upstream.abort();
+            return true;
+        });
+    }
+
+    /**
+     * Sets what is stopped when the request is aborted, stopping it
+     * at once if the request already was aborted.
+     *
+     * @param cancellable What is stopped, null if there is nothing to stop
+     * @see org.apache.http.client.methods.HttpExecutionAware#setCancellable(org.apache.http.concurrent.Cancellable)
+     */
+    public void setCancellable(Cancellable cancellable) {
+        this.cancellable = cancellable;
+        if (aborted && cancellable != null) {
+            cancellable.cancel();
+        }
+    }
+
+    /**
+     * Checks if the request was aborted.
+     *
+     * @return true if it was
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Aborts the request. A connection leased for it is shut down instead
+     * of going back to the pool, a wait for a pooled connection or a shared
+     * response is cut short, reading the body from the client stops, and
+     * the request isn't retried.
+     */
+    public void abort() {
+        aborted = true;
+        Cancellable current = cancellable;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds. Every power of two is split
+ * into 32 buckets, so a recorded value is off by at most 3%, and latencies
+ * up to about 12 days are kept apart. The counts are striped over a few
+ * arrays picked by the recording thread, so threads recording at the same
+ * time rarely touch the same cache line.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Bits used for the buckets within a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * Buckets within a power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest power of two kept apart, larger values go in the last bucket.
+     */
+    private static final int MAX_POWER = 40;
+
+    /**
+     * Number of buckets.
+     */
+    static final int BUCKETS = (MAX_POWER - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * The counts, one array per stripe. The last slot of every
+     * array holds the sum of the recorded values.
+     */
+    private final AtomicLongArray[] stripes;
+
+    /**
+     * Picks a stripe from a thread id.
+     */
+    private final int mask;
+
+    /**
+     * Creates a histogram with a stripe for every processor, up to 8.
+     */
+    public LatencyHistogram() {
+        int count = Integer.highestOneBit(Math.min(8, Math.max(1, Runtime.getRuntime().availableProcessors())));
+        stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS + 1);
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & mask];
+        stripe.incrementAndGet(indexOf(micros));
+        stripe.addAndGet(BUCKETS, micros);
+    }
+
+    /**
+     * Takes a copy of the counts. Values recorded while the copy
+     * is taken may or may not be part of it.
+     *
+     * @return The copy
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+            sum += stripe.get(BUCKETS);
+        }
+        return new Snapshot(counts, sum);
+    }
+
+    /**
+     * Counts the recorded values in buckets entirely at or below some
+     * bounds, straight from the stripes without taking a copy. Used by
+     * exporters rendering many histograms, where a snapshot of every
+     * one of them would be a lot of garbage.
+     *
+     * @param bounds The bounds in microseconds, ascending
+     * @param counts Receives the cumulative count for every bound and the
+     *               total count in the slot after the last bound
+     * @return The sum of the recorded values in microseconds
+     */
+    public long countAtOrBelow(long[] bounds, long[] counts) {
+        for (int b = 0; b <= bounds.length; b++) {
+            counts[b] = 0;
+        }
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes) {
+            int b = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = stripe.get(i);
+                if (count != 0) {
+                    long highest = highestValueOf(i);
+                    while (b < bounds.length && highest > bounds[b]) {
+                        b++;
+                    }
+                    counts[b] += count;
+                }
+            }
+            sum += stripe.get(BUCKETS);
+        }
+        for (int b = 1; b <= bounds.length; b++) {
+            counts[b] += counts[b - 1];
+        }
+        return sum;
+    }
+
+    /**
+     * Finds the bucket for a value.
+     *
+     * @param value The value in microseconds
+     * @return The bucket
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int power = 63 - Long.numberOfLeadingZeros(value);
+        if (power > MAX_POWER) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> (power - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (power - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value going in a bucket.
+     *
+     * @param index The bucket
+     * @return The value in microseconds
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int power = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (power - SUB_BUCKET_BITS);
+        return lowest + (1L << (power - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * The counts of a histogram at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long sum;
+        private final long count;
+
+        Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+        }
+
+        /**
+         * Returns the number of recorded values.
+         *
+         * @return The count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the sum of the recorded values.
+         *
+         * @return The sum in microseconds
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * Returns the mean of the recorded values.
+         *
+         * @return The mean in microseconds, 0 if nothing was recorded
+         */
+        public double getMean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        /**
+         * Returns the value a share of the recorded values are below or equal to.
+         *
+         * @param percentile The percentile, between 0 and 100
+         * @return The value in microseconds, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValueOf(i);
+                }
+            }
+            return highestValueOf(counts.length - 1);
+        }
+
+        /**
+         * Returns the largest recorded value.
+         *
+         * @return The value in microseconds, 0 if nothing was recorded
+         */
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestValueOf(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the number of recorded values in buckets entirely at
+         * or below a value, used for cumulative histogram buckets.
+         *
+         * @param micros The value in microseconds
+         * @return The count
+         */
+        public long getCountAtOrBelow(long micros) {
+            long seen = 0;
+            for (int i = 0; i < counts.length && highestValueOf(i) <= micros; i++) {
+                seen += counts[i];
+            }
+            return seen;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import net.sf.j2ep.model.Server;
+import net.sf.j2ep.model.ServerContainer;
+import org.apache.http.client.cache.CacheResponseStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Keeps the metrics of every route, for the server containers matched by
+ * the rules and for the servers the requests were sent to. The registry
+ * is published in the servlet context so it can be read by anything
+ * reporting the metrics. Besides the routes it counts how requests were
+ * answered by the HTTP cache and how much the rewrite filter changed the
+ * pages it rewrote.
+ */
+public class MetricsRegistry {
+
+    /**
+     * The metrics of the containers, by name.
+     */
+    private final ConcurrentMap<String, RouteMetrics> containers = new ConcurrentHashMap<>();
+
+    /**
+     * The metrics of the servers, by location.
+     */
+    private final ConcurrentMap<String, RouteMetrics> servers = new ConcurrentHashMap<>();
+
+    /**
+     * Requests handled by the HTTP cache, by cache response status.
+     */
+    private final LongAdder[] cacheResponses = new LongAdder[CacheResponseStatus.values().length];
+
+    private final LongAdder rewrittenPages = new LongAdder();
+    private final LongAdder rewriteBytesIn = new LongAdder();
+    private final LongAdder rewriteBytesOut = new LongAdder();
+
+    /**
+     * Creates an empty registry.
+     */
+    public MetricsRegistry() {
+        for (int i = 0; i < cacheResponses.length; i++) {
+            cacheResponses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the metrics for a container, creating them if needed.
+     *
+     * @param container The container
+     * @return The metrics
+     */
+    public RouteMetrics getContainerMetrics(ServerContainer container) {
+        return get(containers, container.getName(), RouteMetrics::new);
+    }
+
+    /**
+     * Returns the metrics for a server, creating them if needed.
+     *
+     * @param server The server
+     * @return The metrics
+     */
+    public RouteMetrics getServerMetrics(Server server) {
+        return get(servers, server.getDomainName() + server.getPath(), name -> new RouteMetrics(name, server.getCircuitBreaker()));
+    }
+
+    /**
+     * Returns the metrics of all containers, sorted by name.
+     *
+     * @return The metrics
+     */
+    public List<RouteMetrics> getContainers() {
+        return sorted(containers.values());
+    }
+
+    /**
+     * Returns the metrics of all servers, sorted by location.
+     *
+     * @return The metrics
+     */
+    public List<RouteMetrics> getServers() {
+        return sorted(servers.values());
+    }
+
+    /**
+     * Records how the HTTP cache handled a request.
+     *
+     * @param status The cache response status, null if the request didn't go through the cache
+     */
+    public void recordCacheResponse(CacheResponseStatus status) {
+        if (status != null) {
+            cacheResponses[status.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Returns the number of requests the HTTP cache handled in a way.
+     *
+     * @param status The cache response status
+     * @return The count
+     */
+    public long getCacheResponses(CacheResponseStatus status) {
+        return cacheResponses[status.ordinal()].sum();
+    }
+
+    /**
+     * Records a page rewritten by the rewrite filter.
+     *
+     * @param bytesIn  Size of the page sent by the server
+     * @param bytesOut Size of the rewritten page sent to the client
+     */
+    public void recordRewrite(long bytesIn, long bytesOut) {
+        rewrittenPages.increment();
+        rewriteBytesIn.add(bytesIn);
+        rewriteBytesOut.add(bytesOut);
+    }
+
+    /**
+     * Returns the number of pages rewritten.
+     *
+     * @return The count
+     */
+    public long getRewrittenPages() {
+        return rewrittenPages.sum();
+    }
+
+    /**
+     * Returns the number of bytes of the pages before they were rewritten.
+     *
+     * @return The count
+     */
+    public long getRewriteBytesIn() {
+        return rewriteBytesIn.sum();
+    }
+
+    /**
+     * Returns the number of bytes of the rewritten pages.
+     *
+     * @return The count
+     */
+    public long getRewriteBytesOut() {
+        return rewriteBytesOut.sum();
+    }
+
+    /**
+     * Finds or creates the metrics with a name.
+     */
+    private static RouteMetrics get(ConcurrentMap<String, RouteMetrics> metrics, String name,
+                                    Function<String, RouteMetrics> factory) {
+        RouteMetrics route = metrics.get(name);
+        if (route == null) {
+            route = metrics.computeIfAbsent(name, factory);
+        }
+        return route;
+    }
+
+    /**
+     * Copies and sorts some metrics.
+     */
+    private static List<RouteMetrics> sorted(Collection<RouteMetrics> metrics) {
+        List<RouteMetrics> list = new ArrayList<>(metrics);
+        list.sort(Comparator.comparing(RouteMetrics::getName));
+        return list;
+    }
+}
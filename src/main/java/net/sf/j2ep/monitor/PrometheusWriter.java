@@ -0,0 +1,320 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Renders metrics in the Prometheus text format into a byte buffer that
+ * is kept between renderings. Names, labels and numbers are encoded
+ * straight into the buffer and histograms are read without taking a
+ * snapshot, so once the buffer has grown to fit a rendering the next
+ * ones don't allocate anything, however many series there are.
+ * <p/>
+ * A sample is written as a chain, starting with the name of the metric,
+ * followed by its labels and ending with the value.
+ * <pre>
+ * writer.metric("j2ep_server", "_requests_total").label("server", name).value(count);
+ * </pre>
+ * The writer isn't thread safe.
+ */
+public final class PrometheusWriter {
+
+    /**
+     * The content type of the format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * The upper bounds of the histogram buckets, in microseconds.
+     */
+    private static final long[] BOUNDS = {
+            1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+            1000000, 2500000, 5000000, 10000000, 30000000, 60000000
+    };
+
+    /**
+     * The bounds as written in the le label, the last one for the total.
+     */
+    private static final String[] BOUND_LABELS = {
+            "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5",
+            "1", "2.5", "5", "10", "30", "60", "+Inf"
+    };
+
+    /**
+     * The rendered text.
+     */
+    private byte[] buffer;
+
+    /**
+     * Number of bytes rendered.
+     */
+    private int size;
+
+    /**
+     * Whether the labels of the current sample have been opened.
+     */
+    private boolean inLabels;
+
+    /**
+     * Receives the counts of a histogram.
+     */
+    private final long[] counts = new long[BOUNDS.length + 1];
+
+    /**
+     * Creates a writer.
+     *
+     * @param initialCapacity The initial size of the buffer
+     */
+    public PrometheusWriter(int initialCapacity) {
+        buffer = new byte[Math.max(256, initialCapacity)];
+    }
+
+    /**
+     * Throws away what has been rendered, keeping the buffer.
+     */
+    public void reset() {
+        size = 0;
+        inLabels = false;
+    }
+
+    /**
+     * Returns the number of bytes rendered.
+     *
+     * @return The size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Writes the rendered text to a stream.
+     *
+     * @param out The stream
+     * @throws IOException If the stream fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * Writes the help and type lines starting a metric family.
+     *
+     * @param prefix The start of the name
+     * @param suffix The rest of the name
+     * @param type   The type, counter, gauge or histogram
+     * @param help   The description
+     * @return This writer
+     */
+    public PrometheusWriter family(String prefix, String suffix, String type, String help) {
+        ascii("# HELP ");
+        ascii(prefix);
+        ascii(suffix);
+        write(' ');
+        text(help, false);
+        ascii("\n# TYPE ");
+        ascii(prefix);
+        ascii(suffix);
+        write(' ');
+        ascii(type);
+        write('\n');
+        return this;
+    }
+
+    /**
+     * Starts a sample.
+     *
+     * @param prefix The start of the name
+     * @param suffix The rest of the name
+     * @return This writer
+     */
+    public PrometheusWriter metric(String prefix, String suffix) {
+        ascii(prefix);
+        ascii(suffix);
+        inLabels = false;
+        return this;
+    }
+
+    /**
+     * Adds a label to the sample.
+     *
+     * @param name  The label name
+     * @param value The label value, escaped as needed
+     * @return This writer
+     */
+    public PrometheusWriter label(String name, String value) {
+        write(inLabels ? ',' : '{');
+        inLabels = true;
+        ascii(name);
+        write('=');
+        write('"');
+        text(value, true);
+        write('"');
+        return this;
+    }
+
+    /**
+     * Ends the sample with its value.
+     *
+     * @param value The value
+     */
+    public void value(long value) {
+        endLabels();
+        number(value);
+        write('\n');
+    }
+
+    /**
+     * Writes a histogram, its buckets, sum and count in seconds.
+     * One label tells which histogram it is.
+     *
+     * @param prefix     The start of the name
+     * @param suffix     The rest of the name
+     * @param labelName  The label name
+     * @param labelValue The label value
+     * @param histogram  The histogram
+     */
+    public void histogram(String prefix, String suffix, String labelName, String labelValue, LatencyHistogram histogram) {
+        long sum = histogram.countAtOrBelow(BOUNDS, counts);
+        for (int b = 0; b < BOUND_LABELS.length; b++) {
+            metric(prefix, suffix);
+            ascii("_bucket");
+            label(labelName, labelValue).label("le", BOUND_LABELS[b]).value(counts[b]);
+        }
+        metric(prefix, suffix);
+        ascii("_sum");
+        label(labelName, labelValue);
+        endLabels();
+        number(sum / 1000000);
+        write('.');
+        long fraction = sum % 1000000;
+        for (long digit = 100000; digit > 0; digit /= 10) {
+            write((char) ('0' + fraction / digit % 10));
+        }
+        write('\n');
+        metric(prefix, suffix);
+        ascii("_count");
+        label(labelName, labelValue).value(counts[BOUNDS.length]);
+    }
+
+    /**
+     * Closes the labels of the sample, if any, before its value.
+     */
+    private void endLabels() {
+        if (inLabels) {
+            write('}');
+            inLabels = false;
+        }
+        write(' ');
+    }
+
+    /**
+     * Writes a decimal number.
+     */
+    private void number(long value) {
+        if (value < 0) {
+            write('-');
+            if (value == Long.MIN_VALUE) {
+                ascii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        ensure(20);
+        int start = size;
+        do {
+            buffer[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    /**
+     * Writes a name or a constant known to be plain ASCII.
+     */
+    private void ascii(String s) {
+        int length = s.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Writes text in UTF-8, escaping backslashes and line breaks,
+     * and double quotes in label values.
+     */
+    private void text(String s, boolean quoted) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                write('\\');
+                write('\\');
+            } else if (c == '\n') {
+                write('\\');
+                write('n');
+            } else if (c == '"' && quoted) {
+                write('\\');
+                write('"');
+            } else if (c < 0x80) {
+                write(c);
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[size++] = (byte) (0xc0 | c >> 6);
+                buffer[size++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensure(4);
+                buffer[size++] = (byte) (0xf0 | cp >> 18);
+                buffer[size++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                buffer[size++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                buffer[size++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                write('?');
+            } else {
+                ensure(3);
+                buffer[size++] = (byte) (0xe0 | c >> 12);
+                buffer[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buffer[size++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+    }
+
+    /**
+     * Writes an ASCII character.
+     */
+    private void write(char c) {
+        ensure(1);
+        buffer[size++] = (byte) c;
+    }
+
+    /**
+     * Makes room for some more bytes, doubling the buffer when it's full.
+     */
+    private void ensure(int count) {
+        if (size + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import net.sf.j2ep.model.CircuitBreaker;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latencies and counters of one route, a server container or a
+ * single server behind it. The total latency is split in the time until
+ * the response headers were received from the server and the time spent
+ * sending the body to the client.
+ */
+public final class RouteMetrics {
+
+    /**
+     * The name of the route.
+     */
+    private final String name;
+
+    /**
+     * Time from receiving the request until the response was sent.
+     */
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    /**
+     * Time until the response headers were received from the server.
+     */
+    private final LatencyHistogram headers = new LatencyHistogram();
+
+    /**
+     * Time spent sending the response to the client.
+     */
+    private final LatencyHistogram body = new LatencyHistogram();
+
+    /**
+     * Number of requests.
+     */
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * Number of requests that failed without a response.
+     */
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Number of request body bytes received from the clients.
+     */
+    private final LongAdder bytesReceived = new LongAdder();
+
+    /**
+     * Number of response body bytes sent to the clients.
+     */
+    private final LongAdder bytesSent = new LongAdder();
+
+    /**
+     * Responses by status class, 1xx to 5xx.
+     */
+    private final LongAdder[] statusClasses = new LongAdder[5];
+
+    /**
+     * The breaker guarding the route, null if there is none.
+     */
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * Creates the metrics for a route.
+     *
+     * @param name The name of the route
+     */
+    public RouteMetrics(String name) {
+        this(name, null);
+    }
+
+    /**
+     * Creates the metrics for a route guarded by a circuit breaker.
+     *
+     * @param name           The name of the route
+     * @param circuitBreaker The breaker, null if there is none
+     */
+    public RouteMetrics(String name, CircuitBreaker circuitBreaker) {
+        this.name = name;
+        this.circuitBreaker = circuitBreaker;
+        for (int i = 0; i < statusClasses.length; i++) {
+            statusClasses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a request.
+     *
+     * @param totalNanos    The total time
+     * @param headersNanos  The time until the response headers were received, -1 if none were
+     * @param bodyNanos     The time spent sending the body, -1 if none was sent
+     * @param status        The status sent, 0 if the request failed without a response
+     * @param bytesReceived Bytes of the request body read from the client
+     * @param bytesSent     Size of the response body sent
+     */
+    public void record(long totalNanos, long headersNanos, long bodyNanos, int status, long bytesReceived, long bytesSent) {
+        requests.increment();
+        total.recordNanos(totalNanos);
+        if (headersNanos >= 0) {
+            headers.recordNanos(headersNanos);
+        }
+        if (bodyNanos >= 0) {
+            body.recordNanos(bodyNanos);
+        }
+        if (status >= 100 && status < 600) {
+            statusClasses[status / 100 - 1].increment();
+        } else {
+            failures.increment();
+        }
+        if (bytesReceived > 0) {
+            this.bytesReceived.add(bytesReceived);
+        }
+        if (bytesSent > 0) {
+            this.bytesSent.add(bytesSent);
+        }
+    }
+
+    /**
+     * Returns the name of the route.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the total latencies.
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the times until the response headers were received.
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the times spent sending the bodies.
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the number of requests.
+     *
+     * @return The count
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * Returns the number of requests that failed without any response.
+     *
+     * @return The count
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Returns the number of responses in a status class.
+     *
+     * @param statusClass The class, 1 for 1xx to 5 for 5xx
+     * @return The count
+     */
+    public long getStatusClass(int statusClass) {
+        return statusClasses[statusClass - 1].sum();
+    }
+
+    /**
+     * Returns the number of request body bytes received.
+     *
+     * @return The count
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Returns the number of response body bytes sent.
+     *
+     * @return The count
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Returns the circuit breaker guarding the route.
+     *
+     * @return The breaker, null if there is none
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+}
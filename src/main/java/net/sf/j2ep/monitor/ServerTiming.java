@@ -0,0 +1,275 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The durations of the phases of a proxied request, sent to the client
+ * in a Server-Timing header so the browser can show where the time of
+ * the proxy went, and kept with the requests picked by the slow request
+ * sampler. The timings are kept as a request attribute and in the
+ * context the request to the server is executed in, the client fills in
+ * the connection phases and the proxy the rest. For a retried request
+ * the connection phases of the last attempt are kept.
+ * <p/>
+ * The durations are measured with System.nanoTime and sent in milliseconds.
+ */
+public final class ServerTiming {
+
+    /**
+     * The attribute the timings are kept in, on the request and the client context.
+     */
+    public static final String KEY = ServerTiming.class.getName();
+
+    /**
+     * The header the timings are sent in.
+     */
+    public static final String HEADER = "Server-Timing";
+
+    /**
+     * Time spent finding the server, -1 if it wasn't measured.
+     */
+    private long routingNanos = -1;
+
+    /**
+     * Time spent waiting for a pooled connection in the current attempt, -1 if unknown.
+     */
+    private long poolWaitNanos = -1;
+
+    /**
+     * Time spent opening connections in the current attempt.
+     */
+    private long connectNanos;
+
+    /**
+     * When the request was sent to the server, 0 if it wasn't.
+     */
+    private long sendStart;
+
+    /**
+     * Time from sending the request until the response headers arrived, -1 if they didn't.
+     */
+    private long ttfbNanos = -1;
+
+    /**
+     * Time spent rewriting the page, -1 if it wasn't rewritten. The page
+     * may be rewritten after the request has been sampled.
+     */
+    private volatile long rewriteNanos = -1;
+
+    /**
+     * Whether the timings are sent to the client.
+     */
+    private boolean sendHeader;
+
+    /**
+     * Returns the timings kept in a client context.
+     *
+     * @param context The context
+     * @return The timings, null if the request isn't timed
+     */
+    public static ServerTiming get(HttpContext context) {
+        Object timing = context.getAttribute(KEY);
+        return (timing instanceof ServerTiming) ? (ServerTiming) timing : null;
+    }
+
+    /**
+     * Checks if the timings are sent to the client in a Server-Timing header.
+     *
+     * @return true if the header is sent
+     */
+    public boolean isSendHeader() {
+        return sendHeader;
+    }
+
+    /**
+     * Sets if the timings are sent to the client in a Server-Timing header.
+     *
+     * @param sendHeader true to send the header
+     */
+    public void setSendHeader(boolean sendHeader) {
+        this.sendHeader = sendHeader;
+    }
+
+    /**
+     * Sets the time spent finding the server.
+     *
+     * @param nanos The time in nanoseconds
+     */
+    public void setRouting(long nanos) {
+        routingNanos = nanos;
+    }
+
+    /**
+     * Marks the start of an attempt to send the request to a server,
+     * forgetting the connection phases of an earlier attempt.
+     */
+    public void startAttempt() {
+        poolWaitNanos = -1;
+        connectNanos = 0;
+        sendStart = 0;
+        ttfbNanos = -1;
+    }
+
+    /**
+     * Sets the time spent waiting for a pooled connection.
+     *
+     * @param nanos The time in nanoseconds, -1 if unknown
+     */
+    public void setPoolWait(long nanos) {
+        poolWaitNanos = nanos;
+    }
+
+    /**
+     * Adds the time spent opening a connection.
+     *
+     * @param nanos The time in nanoseconds
+     */
+    public void addConnect(long nanos) {
+        connectNanos += nanos;
+    }
+
+    /**
+     * Marks that the request is being sent to the server.
+     */
+    public void requestSent() {
+        sendStart = System.nanoTime();
+    }
+
+    /**
+     * Marks that the response headers arrived from the server.
+     */
+    public void responseReceived() {
+        if (sendStart != 0) {
+            ttfbNanos = System.nanoTime() - sendStart;
+        }
+    }
+
+    /**
+     * Sets the time spent rewriting the page.
+     *
+     * @param nanos The time in nanoseconds
+     */
+    public void setRewrite(long nanos) {
+        rewriteNanos = nanos;
+    }
+
+    /**
+     * Returns the time spent finding the server.
+     *
+     * @return The time in nanoseconds, -1 if it wasn't measured
+     */
+    public long getRoutingNanos() {
+        return routingNanos;
+    }
+
+    /**
+     * Returns the time spent waiting for a pooled connection.
+     *
+     * @return The time in nanoseconds, -1 if the request wasn't sent
+     */
+    public long getPoolWaitNanos() {
+        return (sendStart != 0) ? Math.max(0, poolWaitNanos) : -1;
+    }
+
+    /**
+     * Returns the time spent opening connections.
+     *
+     * @return The time in nanoseconds, -1 if the request wasn't sent
+     */
+    public long getConnectNanos() {
+        return (sendStart != 0) ? connectNanos : -1;
+    }
+
+    /**
+     * Returns the time from sending the request until the response headers arrived.
+     *
+     * @return The time in nanoseconds, -1 if they didn't arrive
+     */
+    public long getTtfbNanos() {
+        return ttfbNanos;
+    }
+
+    /**
+     * Returns the time spent rewriting the page.
+     *
+     * @return The time in nanoseconds, -1 if it wasn't rewritten
+     */
+    public long getRewriteNanos() {
+        return rewriteNanos;
+    }
+
+    /**
+     * Creates the value of the header. Phases that didn't happen, like
+     * the connection phases of a response from the cache, are left out.
+     *
+     * @return The header value
+     */
+    public String toHeader() {
+        StringBuilder header = new StringBuilder();
+        if (routingNanos >= 0) {
+            append(header, "routing", routingNanos);
+        }
+        if (sendStart != 0) {
+            append(header, "pool-wait", getPoolWaitNanos());
+            append(header, "connect", connectNanos);
+        }
+        if (ttfbNanos >= 0) {
+            append(header, "upstream-ttfb", ttfbNanos);
+        }
+        return header.toString();
+    }
+
+    /**
+     * Creates a header value with a single phase.
+     *
+     * @param name  The name of the phase
+     * @param nanos The duration in nanoseconds
+     * @return The header value
+     */
+    public static String entry(String name, long nanos) {
+        return append(new StringBuilder(), name, nanos).toString();
+    }
+
+    /**
+     * Writes a duration in milliseconds with microsecond precision.
+     *
+     * @param nanos The duration in nanoseconds
+     * @param text  The buffer the duration is appended to
+     * @return The buffer
+     */
+    public static StringBuilder appendMillis(long nanos, StringBuilder text) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        text.append(micros / 1000).append('.');
+        if (fraction < 100) {
+            text.append(fraction < 10 ? "00" : "0");
+        }
+        return text.append(fraction);
+    }
+
+    /**
+     * Adds a phase to a header value.
+     */
+    private static StringBuilder append(StringBuilder header, String name, long nanos) {
+        if (header.length() > 0) {
+            header.append(", ");
+        }
+        return appendMillis(nanos, header.append(name).append(";dur="));
+    }
+}
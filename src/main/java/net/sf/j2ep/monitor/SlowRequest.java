@@ -0,0 +1,156 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import net.sf.j2ep.model.Rule;
+import net.sf.j2ep.model.Server;
+
+/**
+ * A request kept by the slow request sampler, with the timeline of
+ * where its time went.
+ */
+public final class SlowRequest {
+
+    private final long time;
+    private final String method;
+    private final String uri;
+    private final int status;
+    private final long durationNanos;
+    private final Rule rule;
+    private final Server server;
+    private final int retries;
+    private final long bytesSent;
+    private final ServerTiming timing;
+
+    /**
+     * Creates a sample.
+     *
+     * @param time          When the request was received, in milliseconds since the epoch
+     * @param method        The method of the request
+     * @param uri           The URI of the request with the query string
+     * @param status        The status sent to the client
+     * @param durationNanos The time spent on the request
+     * @param rule          The rule that matched the request
+     * @param server        The server that answered, null if none did
+     * @param retries       Number of times the request was retried
+     * @param bytesSent     Size of the response body
+     * @param timing        The durations of the phases of the request
+     */
+    public SlowRequest(long time, String method, String uri, int status, long durationNanos, Rule rule,
+                       Server server, int retries, long bytesSent, ServerTiming timing) {
+        this.time = time;
+        this.method = method;
+        this.uri = uri;
+        this.status = status;
+        this.durationNanos = durationNanos;
+        this.rule = rule;
+        this.server = server;
+        this.retries = retries;
+        this.bytesSent = bytesSent;
+        this.timing = timing;
+    }
+
+    /**
+     * Returns when the request was received.
+     *
+     * @return The time in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the method of the request.
+     *
+     * @return The method
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the URI of the request.
+     *
+     * @return The URI with the query string
+     */
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns the status sent to the client.
+     *
+     * @return The status code
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the time spent on the request.
+     *
+     * @return The time in nanoseconds
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Returns the rule that matched the request.
+     *
+     * @return The rule
+     */
+    public Rule getRule() {
+        return rule;
+    }
+
+    /**
+     * Returns the server that answered the request.
+     *
+     * @return The server, null if none answered
+     */
+    public Server getServer() {
+        return server;
+    }
+
+    /**
+     * Returns the number of times the request was retried.
+     *
+     * @return The number of retries
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns the size of the response body.
+     *
+     * @return The size
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Returns the durations of the phases of the request.
+     *
+     * @return The timings
+     */
+    public ServerTiming getTiming() {
+        return timing;
+    }
+}
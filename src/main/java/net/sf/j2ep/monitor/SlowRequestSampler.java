@@ -0,0 +1,247 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import net.sf.j2ep.model.ServerContainer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the slowest requests of every route over the last minutes, so
+ * the outliers can be looked at after the fact without turning on debug
+ * logging. Every route keeps a bucket for each minute holding its
+ * slowest requests. A request faster than those already kept in the
+ * bucket is turned away by reading a single field, only the requests
+ * that make it in take a lock.
+ */
+public class SlowRequestSampler {
+
+    /**
+     * The reservoirs of the containers, by name.
+     */
+    private final ConcurrentMap<String, Reservoir> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Number of requests kept per route.
+     */
+    private final int kept;
+
+    /**
+     * The time the requests are kept for, in milliseconds.
+     */
+    private final long window;
+
+    /**
+     * Creates a sampler.
+     *
+     * @param kept    Number of requests kept per route
+     * @param minutes Minutes the requests are kept for
+     */
+    public SlowRequestSampler(int kept, int minutes) {
+        this.kept = Math.max(1, kept);
+        this.window = TimeUnit.MINUTES.toMillis(Math.max(1, minutes));
+    }
+
+    /**
+     * Returns the reservoir of a container, creating it if needed.
+     *
+     * @param container The container
+     * @return The reservoir
+     */
+    public Reservoir getReservoir(ServerContainer container) {
+        Reservoir reservoir = routes.get(container.getName());
+        if (reservoir == null) {
+            reservoir = routes.computeIfAbsent(container.getName(), Reservoir::new);
+        }
+        return reservoir;
+    }
+
+    /**
+     * Returns the reservoirs of all containers, sorted by name.
+     *
+     * @return The reservoirs
+     */
+    public List<Reservoir> getReservoirs() {
+        List<Reservoir> list = new ArrayList<>(routes.values());
+        list.sort(Comparator.comparing(Reservoir::getName));
+        return list;
+    }
+
+    /**
+     * Returns the time the requests are kept for.
+     *
+     * @return The time in minutes
+     */
+    public long getMinutes() {
+        return TimeUnit.MILLISECONDS.toMinutes(window);
+    }
+
+    /**
+     * The slowest requests of a route.
+     */
+    public final class Reservoir {
+
+        /**
+         * The name of the route.
+         */
+        private final String name;
+
+        /**
+         * The buckets, one for every minute in the window and one
+         * for the minute being filled.
+         */
+        private final Bucket[] buckets;
+
+        Reservoir(String name) {
+            this.name = name;
+            buckets = new Bucket[(int) TimeUnit.MILLISECONDS.toMinutes(window) + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new Bucket(kept);
+            }
+        }
+
+        /**
+         * Returns the name of the route.
+         *
+         * @return The name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Checks if a request is slow enough to be kept, without taking a lock.
+         *
+         * @param durationNanos The time spent on the request
+         * @param time          When the request was received, in milliseconds since the epoch
+         * @return true if the request should be offered
+         */
+        public boolean isSlowEnough(long durationNanos, long time) {
+            long minute = time / 60000;
+            Bucket bucket = buckets[(int) (minute % buckets.length)];
+            return bucket.minute != minute || durationNanos > bucket.threshold;
+        }
+
+        /**
+         * Keeps a request if it's among the slowest of its minute.
+         *
+         * @param request The request
+         */
+        public void offer(SlowRequest request) {
+            long minute = request.getTime() / 60000;
+            buckets[(int) (minute % buckets.length)].offer(minute, request);
+        }
+
+        /**
+         * Returns the slowest requests received during the window.
+         *
+         * @param now The current time in milliseconds since the epoch
+         * @return The requests, the slowest first
+         */
+        public List<SlowRequest> getSlowest(long now) {
+            long since = now - window;
+            List<SlowRequest> found = new ArrayList<>();
+            for (Bucket bucket : buckets) {
+                bucket.collect(since, found);
+            }
+            found.sort(Comparator.comparingLong(SlowRequest::getDurationNanos).reversed());
+            return (found.size() > kept) ? new ArrayList<>(found.subList(0, kept)) : found;
+        }
+    }
+
+    /**
+     * The slowest requests received in one minute, kept in a heap with the
+     * fastest of them on top.
+     */
+    private static final class Bucket {
+
+        /**
+         * The minute the requests were received in.
+         */
+        private volatile long minute = -1;
+
+        /**
+         * The time a request must exceed to be kept, 0 until the heap is full.
+         */
+        private volatile long threshold;
+
+        private final SlowRequest[] heap;
+        private int size;
+
+        Bucket(int kept) {
+            heap = new SlowRequest[kept];
+        }
+
+        synchronized void offer(long requestMinute, SlowRequest request) {
+            if (requestMinute < minute) {
+                return;
+            } else if (requestMinute > minute) {
+                for (int i = 0; i < size; i++) {
+                    heap[i] = null;
+                }
+                size = 0;
+                threshold = 0;
+                minute = requestMinute;
+            }
+            long duration = request.getDurationNanos();
+            if (size < heap.length) {
+                int i = size++;
+                while (i > 0 && heap[(i - 1) / 2].getDurationNanos() > duration) {
+                    heap[i] = heap[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                heap[i] = request;
+            } else if (duration > heap[0].getDurationNanos()) {
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && heap[child + 1].getDurationNanos() < heap[child].getDurationNanos()) {
+                        child++;
+                    }
+                    if (heap[child].getDurationNanos() >= duration) {
+                        break;
+                    }
+                    heap[i] = heap[child];
+                    i = child;
+                }
+                heap[i] = request;
+            } else {
+                return;
+            }
+            if (size == heap.length) {
+                threshold = heap[0].getDurationNanos();
+            }
+        }
+
+        synchronized void collect(long since, Collection<SlowRequest> found) {
+            for (int i = 0; i < size; i++) {
+                if (heap[i].getTime() >= since) {
+                    found.add(heap[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.sf.j2ep.monitor;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection pool telling the in-flight entry and the Server-Timing
+ * of a request when a new connection is opened for it. The wait for a
+ * pooled connection is measured from the moment the client asks the
+ * pool for it, and kept on the connection until the request is sent.
+ */
+public class TimingConnectionManager extends PoolingHttpClientConnectionManager {
+
+    /**
+     * The attribute the wait for the connection is kept in, on the connection.
+     */
+    private static final String LEASE_NANOS = TimingConnectionManager.class.getName() + ".leaseNanos";
+
+    /**
+     * Returns the time spent waiting for a connection the last time it
+     * was leased.
+     *
+     * @param connection The leased connection
+     * @return The time in nanoseconds, -1 if it isn't known
+     */
+    public static long getLeaseNanos(HttpClientConnection connection) {
+        Object nanos = (connection instanceof HttpContext) ? ((HttpContext) connection).getAttribute(LEASE_NANOS) : null;
+        return (nanos instanceof Long) ? (Long) nanos : -1;
+    }
+
+    /**
+     * Wraps the request so the wait for the connection is measured.
+     *
+     * @see org.apache.http.impl.conn.PoolingHttpClientConnectionManager#requestConnection(org.apache.http.conn.routing.HttpRoute, java.lang.Object)
+     */
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ConnectionRequest request = super.requestConnection(route, state);
+        final long start = System.nanoTime();
+        return new ConnectionRequest() {
+            public HttpClientConnection get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                HttpClientConnection connection = request.get(timeout, unit);
+                if (connection instanceof HttpContext) {
+                    ((HttpContext) connection).setAttribute(LEASE_NANOS, System.nanoTime() - start);
+                }
+                return connection;
+            }
+
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    /**
+     * @see org.apache.http.impl.conn.PoolingHttpClientConnectionManager#connect(org.apache.http.HttpClientConnection, org.apache.http.conn.routing.HttpRoute, int, org.apache.http.protocol.HttpContext)
+     */
+    public void connect(HttpClientConnection connection, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+        InFlightRequest inFlight = InFlightRequest.get(context);
+        if (inFlight != null) {
+            inFlight.setPhase(InFlightRequest.Phase.CONNECTING);
+        }
+        long start = System.nanoTime();
+        try {
+            super.connect(connection, route, connectTimeout, context);
+        } finally {
+            ServerTiming timing = ServerTiming.get(context);
+            if (timing != null) {
+                timing.addConnect(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.monitor;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * A request executor marking when a timed request is sent to the server
+ * and when the response headers arrive. It's called once the connection
+ * is leased and connected, and picks up the wait for the pool measured by
+ * the TimingConnectionManager. The phase of a request in the in-flight
+ * registry is updated the same way.
+ */
+public class TimingRequestExecutor extends HttpRequestExecutor {
+
+    /**
+     * Creates an executor.
+     *
+     * @param waitForContinue Milliseconds to wait for a 100-continue response
+     */
+    public TimingRequestExecutor(int waitForContinue) {
+        super(waitForContinue);
+    }
+
+    /**
+     * @see org.apache.http.protocol.HttpRequestExecutor#execute(org.apache.http.HttpRequest, org.apache.http.HttpClientConnection, org.apache.http.protocol.HttpContext)
+     */
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        ServerTiming timing = ServerTiming.get(context);
+        if (timing == null) {
+            return super.execute(request, conn, context);
+        }
+        timing.setPoolWait(TimingConnectionManager.getLeaseNanos(conn));
+        timing.requestSent();
+        HttpResponse response = super.execute(request, conn, context);
+        timing.responseReceived();
+        return response;
+    }
+
+    /**
+     * @see org.apache.http.protocol.HttpRequestExecutor#doSendRequest(org.apache.http.HttpRequest, org.apache.http.HttpClientConnection, org.apache.http.protocol.HttpContext)
+     */
+    protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        setPhase(context, InFlightRequest.Phase.SENDING_REQUEST);
+        return super.doSendRequest(request, conn, context);
+    }
+
+    /**
+     * @see org.apache.http.protocol.HttpRequestExecutor#doReceiveResponse(org.apache.http.HttpRequest, org.apache.http.HttpClientConnection, org.apache.http.protocol.HttpContext)
+     */
+    protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws HttpException, IOException {
+        setPhase(context, InFlightRequest.Phase.WAITING_FOR_RESPONSE);
+        return super.doReceiveResponse(request, conn, context);
+    }
+
+    /**
+     * Updates the phase of a request in the in-flight registry.
+     */
+    private static void setPhase(HttpContext context, InFlightRequest.Phase phase) {
+        InFlightRequest inFlight = InFlightRequest.get(context);
+        if (inFlight != null) {
+            inFlight.setPhase(phase);
+        }
+    }
+}
@@ -16,26 +16,109 @@
 
 package net.sf.j2ep.requesthandlers;
 
+import net.sf.j2ep.io.SpooledEntity;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpExecutionAware;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.Cancellable;
 import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.execchain.RequestAbortedException;
 import org.apache.http.protocol.HTTP;
 
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handler for POST and PUT methods.
+ * <p/>
+ * The body is streamed from the client to the server unless buffering
+ * is turned on, the body is then read completely before the request is
+ * sent. A slow client then doesn't hold a connection to the server and
+ * the body can be sent again if the request is retried.
  *
  * @author Anders Nyman, Daniel Deng
  */
 public class EntityEnclosingRequestHandler extends RequestHandlerBase {
 
+    /**
+     * Request attribute holding the buffered body, reused
+     * when the request is sent again.
+     */
+    public static final String BODY_ATTRIBUTE = "j2ep.request-body";
+
+    /**
+     * Request attribute counting the bytes of the body read from the client.
+     */
+    private static final String BYTES_READ_ATTRIBUTE = "j2ep.request-body-read";
+
+    /**
+     * The directory bodies are buffered to, null if they are streamed.
+     */
+    private static volatile File bufferDir;
+
+    /**
+     * Number of bytes of a body kept in memory.
+     */
+    private static int bufferMemoryThreshold;
+
+    /**
+     * Largest body that is accepted when buffering.
+     */
+    private static long maxBodySize;
+
+    /**
+     * Turns on buffering of the request bodies.
+     *
+     * @param dir             The directory the bodies are buffered to
+     * @param memoryThreshold Number of bytes kept in memory before buffering to a file
+     * @param maxSize         The largest body accepted
+     */
+    public static void setBuffering(File dir, int memoryThreshold, long maxSize) {
+        bufferMemoryThreshold = memoryThreshold;
+        maxBodySize = maxSize;
+        bufferDir = dir;
+    }
+
+    /**
+     * Releases the body buffered for a request.
+     *
+     * @param request The request
+     * @throws IOException If the buffer can't be released
+     */
+    public static void releaseBody(ServletRequest request) throws IOException {
+        SpooledEntity body = (SpooledEntity) request.getAttribute(BODY_ATTRIBUTE);
+        if (body != null) {
+            request.removeAttribute(BODY_ATTRIBUTE);
+            body.close();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the body read from the client, the
+     * real size also for a chunked body without a Content-Length.
+     *
+     * @param request The request
+     * @return The number of bytes read, 0 if the body wasn't read
+     */
+    public static long getBytesReceived(ServletRequest request) {
+        AtomicLong read = (AtomicLong) request.getAttribute(BYTES_READ_ATTRIBUTE);
+        return (read != null) ? read.get() : 0;
+    }
+
     /**
      * Will set the input stream and the Content-Type header to match this request.
      * Will also set the other headers send in the request.
+     * <p/>
+     * The Content-Length, Transfer-Encoding and Expect headers are left to the
+     * client, a body with a known length is sent with that length and other
+     * bodies are sent chunked.
      *
      * @throws IOException An exception is throws when there is a problem getting the input stream
      * @see net.sf.j2ep.model.RequestHandler#process(javax.servlet.http.HttpServletRequest, java.lang.String)
@@ -56,8 +139,183 @@ public class EntityEnclosingRequestHandler extends RequestHandlerBase {
         }
         setHeaders(method, request);
         method.removeHeaders(HTTP.CONTENT_LEN);
-        method.setEntity(new InputStreamEntity(request.getInputStream()));
+        method.removeHeaders(HTTP.TRANSFER_ENCODING);
+        method.removeHeaders(HTTP.EXPECT_DIRECTIVE);
+        method.setEntity(createEntity(request));
         method.setHeader(HTTP.CONTENT_TYPE, request.getContentType());
         return method;
     }
+
+    /**
+     * Checks if the body of a request is buffered before it's sent,
+     * true for POST and PUT requests when buffering is turned on.
+     *
+     * @param request The incoming request
+     * @return true if the body is buffered
+     */
+    public static boolean isBuffered(HttpServletRequest request) {
+        String method = request.getMethod().toUpperCase();
+        return bufferDir != null && (method.equals("POST") || method.equals("PUT"));
+    }
+
+    /**
+     * Reads the body of a POST or PUT request into the buffer when
+     * buffering is turned on. Done once before the request is sent, so
+     * the time spent reading from the client isn't counted as time spent
+     * on the server.
+     *
+     * @param request   The incoming request
+     * @param execution Told how to stop reading when the request is aborted, null if it can't be aborted
+     * @throws RequestEntityTooLargeException If the body is larger than accepted
+     * @throws RequestBodyReadException       When the body can't be read from the client
+     * @throws IOException                    When there is a problem writing the buffer or the request is aborted
+     */
+    public static void bufferBody(HttpServletRequest request, HttpExecutionAware execution) throws IOException {
+        if (isBuffered(request)) {
+            bufferEntity(request, execution);
+        }
+    }
+
+    /**
+     * Creates the body to send, buffered when buffering is turned on.
+     *
+     * @param request The incoming request
+     * @return The body
+     * @throws RequestEntityTooLargeException If the body is larger than accepted
+     * @throws RequestBodyReadException       When the body can't be read from the client
+     * @throws IOException                    When there is a problem writing the buffer
+     */
+    private HttpEntity createEntity(HttpServletRequest request) throws IOException {
+        HttpEntity body = bufferEntity(request, null);
+        if (body == null) {
+            body = new InputStreamEntity(new ClientInputStream(request), request.getContentLengthLong());
+        }
+        return body;
+    }
+
+    /**
+     * Returns the buffered body, a request that is sent again reuses
+     * the body buffered the first time.
+     *
+     * @param request   The incoming request
+     * @param execution Told how to stop reading when the request is aborted, null if it can't be aborted
+     * @return The body, null if buffering is turned off
+     * @throws IOException When the body is too large or can't be read
+     */
+    private static SpooledEntity bufferEntity(HttpServletRequest request, HttpExecutionAware execution) throws IOException {
+        File dir = bufferDir;
+        if (dir == null) {
+            return null;
+        }
+        SpooledEntity body = (SpooledEntity) request.getAttribute(BODY_ATTRIBUTE);
+        if (body == null) {
+            long length = request.getContentLengthLong();
+            if (length > maxBodySize) {
+                throw new RequestEntityTooLargeException("Request body of " + length + " bytes is larger than " + maxBodySize);
+            }
+            ClientInputStream in = new ClientInputStream(request);
+            if (execution != null) {
+                execution.setCancellable(in);
+            }
+            try {
+                body = SpooledEntity.spool(in, length, bufferMemoryThreshold, maxBodySize, dir);
+            } finally {
+                if (execution != null) {
+                    execution.setCancellable(null);
+                }
+            }
+            if (body.isStreaming()) {
+                body.close();
+                throw new RequestEntityTooLargeException("Request body is larger than " + maxBodySize);
+            }
+            request.setAttribute(BODY_ATTRIBUTE, body);
+        }
+        return body;
+    }
+
+    /**
+     * The body from the client, a problem reading it is reported as a
+     * RequestBodyReadException. Cancelling the stream makes the next
+     * read fail, a read that is blocked isn't interrupted. The bytes read
+     * are counted in a request attribute.
+     */
+    private static class ClientInputStream extends FilterInputStream implements Cancellable {
+
+        /**
+         * Set when the request is aborted.
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * The bytes read from the client.
+         */
+        private final AtomicLong read;
+
+        /**
+         * Creates the stream.
+         *
+         * @param request The request to read the body of
+         * @throws IOException If the stream from the client can't be opened
+         */
+        ClientInputStream(ServletRequest request) throws IOException {
+            super(request.getInputStream());
+            AtomicLong counter = (AtomicLong) request.getAttribute(BYTES_READ_ATTRIBUTE);
+            if (counter == null) {
+                counter = new AtomicLong();
+                request.setAttribute(BYTES_READ_ATTRIBUTE, counter);
+            }
+            this.read = counter;
+        }
+
+        /**
+         * @see java.io.InputStream#read()
+         */
+        public int read() throws IOException {
+            checkCancelled();
+            try {
+                int b = super.read();
+                if (b >= 0) {
+                    read.incrementAndGet();
+                }
+                return b;
+            } catch (IOException e) {
+                checkCancelled();
+                throw new RequestBodyReadException(e);
+            }
+        }
+
+        /**
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            try {
+                int count = super.read(b, off, len);
+                if (count > 0) {
+                    read.addAndGet(count);
+                }
+                return count;
+            } catch (IOException e) {
+                checkCancelled();
+                throw new RequestBodyReadException(e);
+            }
+        }
+
+        /**
+         * @see org.apache.http.concurrent.Cancellable#cancel()
+         */
+        public boolean cancel() {
+            cancelled = true;
+            return true;
+        }
+
+        /**
+         * Fails if the request was aborted.
+         */
+        private void checkCancelled() throws RequestAbortedException {
+            if (cancelled) {
+                throw new RequestAbortedException("Request aborted while reading the body");
+            }
+        }
+    }
 }
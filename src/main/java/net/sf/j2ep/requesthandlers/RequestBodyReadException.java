@@ -0,0 +1,52 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.sf.j2ep.requesthandlers;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * An exception thrown when the body of a request can't be read from
+ * the client. The problem is with the client and not with the server
+ * the request is proxied to.
+ */
+public class RequestBodyReadException extends IOException {
+
+    /**
+     * Our id
+     */
+    private static final long serialVersionUID = -2270548601383562715L;
+
+    /**
+     * Basic constructor creating a exception.
+     *
+     * @param cause The problem reading the body
+     */
+    public RequestBodyReadException(IOException cause) {
+        super("Failed to read the request body from the client: " + cause, cause);
+    }
+
+    /**
+     * Returns if the client didn't send the body in time.
+     *
+     * @return true if reading the body timed out
+     */
+    public boolean isTimeout() {
+        return getCause() instanceof SocketTimeoutException;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.requesthandlers;
+
+import java.io.IOException;
+
+/**
+ * An exception thrown when the body of a request is larger
+ * than the proxy is configured to buffer.
+ */
+public class RequestEntityTooLargeException extends IOException {
+
+    /**
+     * Our id
+     */
+    private static final long serialVersionUID = 3856284117649810726L;
+
+    /**
+     * Basic constructor creating a exception.
+     *
+     * @param message The exception message
+     */
+    public RequestEntityTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -16,9 +16,12 @@
 
 package net.sf.j2ep.responsehandlers;
 
+import net.sf.j2ep.io.BodyTransfer;
+import net.sf.j2ep.io.DetachedHttpResponse;
+import net.sf.j2ep.io.SpooledEntity;
 import net.sf.j2ep.model.ResponseHandler;
+import net.sf.j2ep.monitor.ServerTiming;
 import net.sf.j2ep.requesthandlers.RequestHandlerBase;
-import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.StatusLine;
@@ -27,10 +30,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Iterator;
@@ -52,6 +56,17 @@ public abstract class ResponseHandlerBase implements ResponseHandler {
 
     protected boolean allowCopyLengthHeader = false;
 
+    /**
+     * The request we are answering, used to find out what the
+     * container supports when sending the body.
+     */
+    protected HttpServletRequest request;
+
+    /**
+     * Number of body bytes sent to the client.
+     */
+    private long bytesSent;
+
     /**
      * Basic constructor only setting the method.
      *
@@ -61,19 +76,63 @@ public abstract class ResponseHandlerBase implements ResponseHandler {
         this.hresp = hresp;
     }
 
+    /**
+     * Sets the request we are answering.
+     *
+     * @param request The request
+     */
+    public void setRequest(HttpServletRequest request) {
+        this.request = request;
+    }
+
     /**
      * @see net.sf.j2ep.model.ResponseHandler#process(javax.servlet.http.HttpServletResponse)
      */
     public abstract void process(HttpServletResponse response) throws IOException;
 
     /**
-     * Will release the connection for the method.
+     * Reads the body of the response from the server into memory and a
+     * temporary file before it is sent, so the connection is released at
+     * the speed of the server instead of the speed of the client. Responses
+     * that aren't holding a connection are left as they are.
+     *
+     * @param memoryThreshold Number of bytes kept in memory before spooling to a file
+     * @param maxSize         Largest number of bytes spooled
+     * @param dir             The directory the file is created in
+     * @throws IOException When there is a problem reading the body or writing the file
+     * @see net.sf.j2ep.io.SpooledEntity
+     */
+    public void spool(int memoryThreshold, long maxSize, File dir) throws IOException {
+        HttpEntity entity = (hresp != null) ? hresp.getEntity() : null;
+        if (entity == null || hresp instanceof DetachedHttpResponse) {
+            return;
+        }
+        SpooledEntity spooled = SpooledEntity.spool(entity, memoryThreshold, maxSize, dir);
+        if (spooled.isStreaming()) {
+            if (log.isDebugEnabled()) log.debug("Response too large to spool, streaming the rest");
+            hresp.setEntity(spooled);
+        } else {
+            hresp.close();
+            hresp = new DetachedHttpResponse(hresp.getStatusLine(), hresp.getAllHeaders(), spooled);
+        }
+    }
+
+    /**
+     * Will release the connection for the method and any
+     * resources held by the body, like a spooled file.
      *
      * @see net.sf.j2ep.model.ResponseHandler#close()
      */
     public void close() throws IOException {
         if (hresp != null) {
-            hresp.close();
+            try {
+                hresp.close();
+            } finally {
+                HttpEntity entity = hresp.getEntity();
+                if (entity instanceof Closeable) {
+                    ((Closeable) entity).close();
+                }
+            }
         }
     }
 
@@ -87,22 +146,26 @@ public abstract class ResponseHandlerBase implements ResponseHandler {
 
     /**
      * Writes the entire stream from the method to the response
-     * stream.
+     * stream. Bodies stored in local files are handed to the
+     * container to be sent directly from the file when possible.
      *
      * @param resp Response to send data to
      * @throws IOException An IOException is thrown when we are having problems with reading the streams
+     * @see net.sf.j2ep.io.BodyTransfer
      */
     protected void sendStreamToClient(ServletResponse resp) throws IOException {
         HttpEntity entity = (hresp != null) ? hresp.getEntity() : null;
-        try (
-                InputStream streamFromServer = (entity != null) ? entity.getContent() : null;
-                OutputStream responseStream = resp.getOutputStream();
-        ) {
-            if (streamFromServer != null) {
-                IOUtils.copyLarge(streamFromServer, responseStream);
-                responseStream.flush();
-            }
+        if (entity == null) {
+            return;
         }
+        bytesSent = BodyTransfer.transfer(entity.getContent(), entity.getContentLength(), request, resp);
+    }
+
+    /**
+     * @see net.sf.j2ep.model.ResponseHandler#getBytesSent()
+     */
+    public long getBytesSent() {
+        return bytesSent;
     }
 
     /**
@@ -127,6 +190,10 @@ public abstract class ResponseHandlerBase implements ResponseHandler {
             }
         }
         setViaHeader(response);
+        ServerTiming timing = (request != null) ? (ServerTiming) request.getAttribute(ServerTiming.KEY) : null;
+        if (timing != null && timing.isSendHeader()) {
+            response.addHeader(ServerTiming.HEADER, timing.toHeader());
+        }
     }
 
     /**
@@ -16,10 +16,13 @@
 
 package net.sf.j2ep.servers;
 
+import net.sf.j2ep.model.CircuitBreaker;
 import net.sf.j2ep.model.Server;
+import net.sf.j2ep.model.ServerContainer;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
 
 /**
  * A basic implementation of the Server interface using a single host name to map
@@ -49,6 +52,16 @@ public class BaseServer extends ServerContainerBase implements Server {
 
     private String redirect;
 
+    /**
+     * The breaker guarding this server, created on first use
+     * so that all the settings have been made.
+     */
+    private volatile CircuitBreaker breaker;
+
+    /**
+     * Marks if the breaker has been created.
+     */
+    private volatile boolean breakerCreated;
 
     /**
      * Basic constructor that will initialize
@@ -74,6 +87,47 @@ public class BaseServer extends ServerContainerBase implements Server {
         return this;
     }
 
+    /**
+     * There is only one server to map to so there
+     * is nothing to fail over to.
+     *
+     * @see net.sf.j2ep.model.ServerContainer#getFailoverServer(javax.servlet.http.HttpServletRequest, java.util.Collection)
+     */
+    public Server getFailoverServer(HttpServletRequest request, Collection<Server> failed) {
+        return null;
+    }
+
+    /**
+     * @see net.sf.j2ep.model.Server#getContainer()
+     */
+    public ServerContainer getContainer() {
+        return this;
+    }
+
+    /**
+     * Uses the location of the server as the name.
+     *
+     * @see net.sf.j2ep.servers.ServerContainerBase#getDefaultName()
+     */
+    protected String getDefaultName() {
+        return domainName + path;
+    }
+
+    /**
+     * @see net.sf.j2ep.model.Server#getCircuitBreaker()
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        if (!breakerCreated) {
+            synchronized (this) {
+                if (!breakerCreated) {
+                    breaker = createCircuitBreaker(domainName + path);
+                    breakerCreated = true;
+                }
+            }
+        }
+        return breaker;
+    }
+
     /**
      * Will no do any handling
      *
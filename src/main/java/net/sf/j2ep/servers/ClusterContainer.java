@@ -16,16 +16,23 @@
 
 package net.sf.j2ep.servers;
 
+import net.sf.j2ep.model.CircuitBreaker;
 import net.sf.j2ep.model.Rule;
 import net.sf.j2ep.model.Server;
+import net.sf.j2ep.model.ServerContainer;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * A ServerContainer implementation that have multiple domains to choose from.
@@ -79,6 +86,16 @@ public abstract class ClusterContainer extends ServerContainerBase implements Se
      */
     protected abstract ClusteredServer getNextServer();
 
+    /**
+     * Returns a server some places after the last one a new request was
+     * sent to, in the order new requests are distributed, without moving
+     * on to it.
+     *
+     * @param offset The number of places after the last server, from 1
+     * @return The server
+     */
+    protected abstract ClusteredServer peekServer(int offset);
+
     /**
      * Checks the request for any session. If there is a session created we
      * make sure that the server returned is the one the issued the session.
@@ -90,20 +107,41 @@ public abstract class ClusterContainer extends ServerContainerBase implements Se
     public Server getServer(HttpServletRequest request) {
         String serverId = getServerIdFromCookie(request.getCookies());
         ClusteredServer server = (ClusteredServer) servers.get(serverId);
-        if (server == null || !server.online()) {
+        if (server == null || !server.available()) {
             server = getNextServer();
         } else {
             if (log.isDebugEnabled()) log.debug("Server found in session");
         }
 
-        if (server.online()) {
+        if (server.available()) {
             if (log.isDebugEnabled()) log.debug("Using id " + server.getServerId() + " for this request");
         } else {
-            log.error("All the servers in this cluster are offline. Using id " + server.getServerId() + ", will probably not work");
+            log.error("All the servers in this cluster are offline or have open circuit breakers. Using id " + server.getServerId() + ", will probably not work");
         }
         return server;
     }
 
+    /**
+     * Walks the cluster in the same order as new requests are
+     * distributed and returns the first online server that hasn't
+     * failed for this request yet. The servers are only looked at, the
+     * next request is still sent to the server it would have been sent
+     * to without the failover.
+     *
+     * @see net.sf.j2ep.model.ServerContainer#getFailoverServer(javax.servlet.http.HttpServletRequest, java.util.Collection)
+     */
+    public Server getFailoverServer(HttpServletRequest request, Collection<Server> failed) {
+        int size = servers.size();
+        for (int i = 1; i <= size; i++) {
+            ClusteredServer server = peekServer(i);
+            if (server.available() && !failed.contains(server)) {
+                if (log.isDebugEnabled()) log.debug("Failing over to id " + server.getServerId());
+                return server;
+            }
+        }
+        return null;
+    }
+
     /**
      * Locates any specification of which server that issued a
      * session. If there is no session or the session isn't mapped
@@ -159,6 +197,74 @@ public abstract class ClusterContainer extends ServerContainerBase implements Se
         return match;
     }
 
+    /**
+     * Uses the locations of the servers in the cluster as the name.
+     *
+     * @see net.sf.j2ep.servers.ServerContainerBase#getDefaultName()
+     */
+    protected String getDefaultName() {
+        return StringUtils.join(getLocations(), ",");
+    }
+
+    /**
+     * Returns the locations of the servers in the cluster.
+     *
+     * @return The domain name and path of every server, sorted
+     */
+    public synchronized List<String> getLocations() {
+        List<String> locations = new ArrayList<>();
+        for (Server server : servers.values()) {
+            locations.add(server.getDomainName() + server.getPath());
+        }
+        Collections.sort(locations);
+        return locations;
+    }
+
+    /**
+     * Finds the server at a location.
+     *
+     * @param location The domain name and path of the server
+     * @return The server, null if there is no server at the location
+     */
+    public synchronized Server getServerAt(String location) {
+        for (Server server : servers.values()) {
+            if (location.equals(server.getDomainName() + server.getPath())) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the server at a location is online.
+     *
+     * @param location The domain name and path of the server
+     * @return true if the server is online, false if it's offline or unknown
+     */
+    public boolean isOnline(String location) {
+        Server server = getServerAt(location);
+        return server instanceof ClusteredServer && ((ClusteredServer) server).online();
+    }
+
+    /**
+     * Takes the server at a location in or out of the cluster. An offline
+     * server gets no new requests, but sessions it owns are moved to the
+     * other servers.
+     *
+     * @param location The domain name and path of the server
+     * @param online   true to send requests to the server
+     * @return true if the server was found
+     */
+    public boolean setOnline(String location, boolean online) {
+        Server server = getServerAt(location);
+        if (!(server instanceof ClusteredServer)) {
+            return false;
+        }
+        ((ClusteredServer) server).setOnline(online);
+        log.info("Server " + location + " set " + (online ? "online" : "offline"));
+        return true;
+    }
+
     /**
      * Sets the server to offline status.
      * Will only handle servers that are ClusteredServers
@@ -231,7 +337,12 @@ public abstract class ClusterContainer extends ServerContainerBase implements Se
         /**
          * The status of this server
          */
-        private boolean online;
+        private volatile boolean online;
+
+        /**
+         * The breaker guarding this server
+         */
+        private CircuitBreaker breaker;
 
         /**
          * Basic constructor that sets the domain name and directory.
@@ -244,6 +355,7 @@ public abstract class ClusterContainer extends ServerContainerBase implements Se
             this.path = path;
             this.serverId = serverId;
             this.online = true;
+            this.breaker = createCircuitBreaker(domainName + path);
         }
 
         /**
@@ -304,6 +416,23 @@ public abstract class ClusterContainer extends ServerContainerBase implements Se
             return online;
         }
 
+        /**
+         * Checks if this server can be given new requests, that
+         * is if it's online and its circuit breaker isn't open.
+         *
+         * @return true if the server can be used
+         */
+        public boolean available() {
+            return online && (breaker == null || breaker.isCallPermitted());
+        }
+
+        /**
+         * @see net.sf.j2ep.model.Server#getCircuitBreaker()
+         */
+        public CircuitBreaker getCircuitBreaker() {
+            return breaker;
+        }
+
         /**
          * Marks if this server should be considered online or
          * offline.
@@ -321,6 +450,13 @@ public abstract class ClusterContainer extends ServerContainerBase implements Se
             return ClusterContainer.this.getRule();
         }
 
+        /**
+         * @see net.sf.j2ep.model.Server#getContainer()
+         */
+        public ServerContainer getContainer() {
+            return ClusterContainer.this;
+        }
+
         /**
          * Returns this servers ID.
          *
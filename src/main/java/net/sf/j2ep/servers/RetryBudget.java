@@ -0,0 +1,155 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.servers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting the number of retries made by the proxy.
+ * Every request deposits a fraction of a token and every retry has
+ * to withdraw a whole token, this way the retries can never be more
+ * than a fixed percentage of the requests and a failing backend won't
+ * get its load multiplied by the proxy.
+ * <p/>
+ * A small number of retries per second is always allowed so that
+ * routes with little traffic still can fail over.
+ */
+public class RetryBudget {
+
+    /**
+     * The balance is kept in thousands of a token.
+     */
+    private static final long TOKEN = 1000;
+
+    /**
+     * The amount deposited for every request.
+     */
+    private final long deposit;
+
+    /**
+     * The maximum balance, stops a long calm period
+     * from building up a huge amount of retries.
+     */
+    private final long maxBalance;
+
+    /**
+     * The retries per second allowed even when the balance is empty.
+     */
+    private final int minRetriesPerSecond;
+
+    /**
+     * The current balance.
+     */
+    private final AtomicLong balance;
+
+    /**
+     * The second the reserve was last used in.
+     */
+    private long reserveSecond;
+
+    /**
+     * Retries taken from the reserve during reserveSecond.
+     */
+    private int reserveUsed;
+
+    /**
+     * Creates a budget.
+     *
+     * @param percentCanRetry     Percentage of the requests that can be retried
+     * @param minRetriesPerSecond Number of retries per second that always are allowed
+     */
+    public RetryBudget(int percentCanRetry, int minRetriesPerSecond) {
+        if (percentCanRetry < 0 || minRetriesPerSecond < 0) {
+            throw new IllegalArgumentException("The retry budget can't be negative");
+        }
+        this.deposit = TOKEN * percentCanRetry / 100;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.maxBalance = TOKEN * Math.max(10, Math.max(percentCanRetry, minRetriesPerSecond));
+        this.balance = new AtomicLong();
+    }
+
+    /**
+     * Registers a request, should be called once
+     * for each incoming request.
+     */
+    public void deposit() {
+        if (deposit == 0) {
+            return;
+        }
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + deposit)));
+    }
+
+    /**
+     * Tries to take a retry out of the budget.
+     *
+     * @return true if the retry can be made, false if the budget is spent
+     */
+    public boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < TOKEN) {
+                return tryReserve();
+            }
+        } while (!balance.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    /**
+     * Takes a retry out of the per second reserve.
+     *
+     * @return true if there was anything left in the reserve
+     */
+    private synchronized boolean tryReserve() {
+        long second = System.nanoTime() / 1000000000L;
+        if (second != reserveSecond) {
+            reserveSecond = second;
+            reserveUsed = 0;
+        }
+        if (reserveUsed < minRetriesPerSecond) {
+            reserveUsed++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of whole retries currently in the budget,
+     * not counting the per second reserve.
+     *
+     * @return The balance
+     */
+    public long getBalance() {
+        return balance.get() / TOKEN;
+    }
+
+    /**
+     * Returns a String representation of this object.
+     *
+     * @return A string representation
+     */
+    public String toString() {
+        return "[" + getClass().getName() + ": deposit=" + deposit + "/" + TOKEN
+               + ", minRetriesPerSecond=" + minRetriesPerSecond + ", balance=" + getBalance() + "]";
+    }
+}
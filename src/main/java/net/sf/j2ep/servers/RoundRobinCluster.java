@@ -49,7 +49,7 @@ public class RoundRobinCluster extends ClusterContainer {
     /**
      * Returns the next in the cluster. The server if found
      * using round-robin and checking that the server is marked
-     * as online.
+     * as online and isn't stopped by its circuit breaker.
      *  
      * @return The next server
      */
@@ -60,12 +60,19 @@ public class RoundRobinCluster extends ClusterContainer {
         do {
             current = (current + 1) % numberOfServers;
             server = (ClusteredServer) servers.get("server" + current); 
-        } while (!server.online() && start != current);
+        } while (!server.available() && start != current);
         
         currentServerNumber = current;
         return server;
     }
     
+    /**
+     * @see net.sf.j2ep.servers.ClusterContainer#peekServer(int)
+     */
+    protected ClusteredServer peekServer(int offset) {
+        return (ClusteredServer) servers.get("server" + ((currentServerNumber + offset) % numberOfServers));
+    }
+
     /**
      * @see net.sf.j2ep.servers.ClusterContainer#createNewServer(java.lang.String, java.lang.String)
      */
@@ -16,8 +16,14 @@
 
 package net.sf.j2ep.servers;
 
+import net.sf.j2ep.model.CircuitBreaker;
 import net.sf.j2ep.model.Rule;
 import net.sf.j2ep.model.ServerContainer;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A base container that will only handle the setting and getting of
@@ -32,6 +38,71 @@ public abstract class ServerContainerBase implements ServerContainer {
      */
     private Rule rule;
 
+    /**
+     * The name set in the configuration, null to use the default.
+     */
+    private String name;
+
+    /**
+     * Marks if the servers should be guarded by circuit breakers.
+     */
+    private boolean circuitBreaker = true;
+
+    /**
+     * Number of calls in the breakers' sliding window.
+     */
+    private int breakerWindowSize = 50;
+
+    /**
+     * Calls needed in the window before a breaker can open.
+     */
+    private int breakerMinimumCalls = 20;
+
+    /**
+     * Percentage of failed calls opening a breaker.
+     */
+    private int breakerFailureRate = 50;
+
+    /**
+     * Percentage of slow calls opening a breaker.
+     */
+    private int breakerSlowCallRate = 80;
+
+    /**
+     * Milliseconds after which a call is considered slow.
+     */
+    private long breakerSlowCallDuration = 5000;
+
+    /**
+     * Milliseconds a breaker stays open.
+     */
+    private long breakerOpenDuration = 30000;
+
+    /**
+     * Probe calls permitted by a half-open breaker.
+     */
+    private int breakerHalfOpenCalls = 5;
+
+    /**
+     * Seconds a cached response may be served stale while revalidated.
+     */
+    private int staleWhileRevalidate = -1;
+
+    /**
+     * Seconds a cached response may be served stale when the server fails.
+     */
+    private int staleIfError = -1;
+
+    /**
+     * Seconds error responses are negatively cached, by status code.
+     */
+    private Map<Integer, Integer> negativeCacheTtls = Collections.emptyMap();
+
+    /**
+     * Whether responses get a Server-Timing header.
+     */
+    private boolean serverTiming;
+
     /**
      * @see net.sf.j2ep.model.ServerContainer#getRule()
      */
@@ -46,4 +117,189 @@ public abstract class ServerContainerBase implements ServerContainer {
         this.rule = rule;
     }
 
+    /**
+     * Creates a circuit breaker configured with the settings
+     * of this container.
+     *
+     * @param name The name of the breaker, usually the location of the server
+     * @return The breaker, null if circuit breakers are disabled
+     */
+    protected CircuitBreaker createCircuitBreaker(String name) {
+        if (!circuitBreaker) {
+            return null;
+        }
+        return new CircuitBreaker(name, breakerWindowSize, breakerMinimumCalls, breakerFailureRate,
+                                  breakerSlowCallRate, breakerSlowCallDuration, breakerOpenDuration, breakerHalfOpenCalls);
+    }
+
+    /**
+     * Sets if the servers should be guarded by circuit breakers.
+     *
+     * @param circuitBreaker Should be false to disable the breakers
+     */
+    public void setCircuitBreaker(boolean circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Sets the number of calls in the breakers' sliding window.
+     *
+     * @param breakerWindowSize The window size
+     */
+    public void setBreakerWindowSize(int breakerWindowSize) {
+        this.breakerWindowSize = breakerWindowSize;
+    }
+
+    /**
+     * Sets the number of calls needed before a breaker can open.
+     *
+     * @param breakerMinimumCalls The minimum number of calls
+     */
+    public void setBreakerMinimumCalls(int breakerMinimumCalls) {
+        this.breakerMinimumCalls = breakerMinimumCalls;
+    }
+
+    /**
+     * Sets the percentage of failed calls opening a breaker.
+     *
+     * @param breakerFailureRate The failure rate threshold
+     */
+    public void setBreakerFailureRate(int breakerFailureRate) {
+        this.breakerFailureRate = breakerFailureRate;
+    }
+
+    /**
+     * Sets the percentage of slow calls opening a breaker.
+     *
+     * @param breakerSlowCallRate The slow call rate threshold
+     */
+    public void setBreakerSlowCallRate(int breakerSlowCallRate) {
+        this.breakerSlowCallRate = breakerSlowCallRate;
+    }
+
+    /**
+     * Sets the time after which a call is considered slow.
+     *
+     * @param breakerSlowCallDuration The duration in milliseconds
+     */
+    public void setBreakerSlowCallDuration(long breakerSlowCallDuration) {
+        this.breakerSlowCallDuration = breakerSlowCallDuration;
+    }
+
+    /**
+     * Sets how long a breaker stays open before letting probes through.
+     *
+     * @param breakerOpenDuration The duration in milliseconds
+     */
+    public void setBreakerOpenDuration(long breakerOpenDuration) {
+        this.breakerOpenDuration = breakerOpenDuration;
+    }
+
+    /**
+     * Sets the number of probe calls permitted by a half-open breaker.
+     *
+     * @param breakerHalfOpenCalls The number of probe calls
+     */
+    public void setBreakerHalfOpenCalls(int breakerHalfOpenCalls) {
+        this.breakerHalfOpenCalls = breakerHalfOpenCalls;
+    }
+
+    /**
+     * @see net.sf.j2ep.model.ServerContainer#getStaleWhileRevalidate()
+     */
+    public int getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * Sets the seconds a cached response may be served stale
+     * while it's revalidated in the background.
+     *
+     * @param staleWhileRevalidate The seconds, -1 to use what the server sends
+     */
+    public void setStaleWhileRevalidate(int staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * @see net.sf.j2ep.model.ServerContainer#getStaleIfError()
+     */
+    public int getStaleIfError() {
+        return staleIfError;
+    }
+
+    /**
+     * Sets the seconds a cached response may be served
+     * stale when the server fails.
+     *
+     * @param staleIfError The seconds, -1 to use what the server sends
+     */
+    public void setStaleIfError(int staleIfError) {
+        this.staleIfError = staleIfError;
+    }
+
+    /**
+     * @see net.sf.j2ep.model.ServerContainer#getNegativeCacheTtl(int)
+     */
+    public int getNegativeCacheTtl(int statusCode) {
+        Integer ttl = negativeCacheTtls.get(statusCode);
+        return ttl != null ? ttl : 0;
+    }
+
+    /**
+     * Sets the error responses that are negatively cached, given as
+     * a comma separated list of status=seconds, e.g. 404=30,502=2.
+     *
+     * @param negativeCache The status codes and their seconds
+     */
+    public void setNegativeCache(String negativeCache) {
+        Map<Integer, Integer> ttls = new HashMap<>();
+        for (String pair : StringUtils.split(negativeCache, ", ")) {
+            String[] parts = StringUtils.split(pair, '=');
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected status=seconds in negativeCache, got " + pair);
+            }
+            ttls.put(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        }
+        this.negativeCacheTtls = ttls;
+    }
+
+    /**
+     * @see net.sf.j2ep.model.ServerContainer#isServerTiming()
+     */
+    public boolean isServerTiming() {
+        return serverTiming;
+    }
+
+    /**
+     * Sets if responses get a Server-Timing header.
+     *
+     * @param serverTiming true to send the header
+     */
+    public void setServerTiming(boolean serverTiming) {
+        this.serverTiming = serverTiming;
+    }
+
+    /**
+     * @see net.sf.j2ep.model.ServerContainer#getName()
+     */
+    public String getName() {
+        return (name != null) ? name : getDefaultName();
+    }
+
+    /**
+     * Sets the name used when reporting about this container.
+     *
+     * @param name The name
+     */
+    public void setName(String name) {
+        this.name = StringUtils.trimToNull(name);
+    }
+
+    /**
+     * Returns the name used when none is configured.
+     *
+     * @return The name
+     */
+    protected abstract String getDefaultName();
 }
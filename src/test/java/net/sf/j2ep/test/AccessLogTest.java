@@ -0,0 +1,176 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.accesslog.AccessLog;
+import net.sf.j2ep.accesslog.AccessRecord;
+import net.sf.j2ep.servers.BaseServer;
+import org.apache.http.client.cache.CacheResponseStatus;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class AccessLogTest extends TestCase {
+
+    private File directory;
+
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("j2ep-log").toFile();
+    }
+
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testRecordWritten() throws Exception {
+        File file = new File(directory, "access.log");
+        AccessLog log = new AccessLog(file, 16, 0, 0);
+        log.start();
+        BaseServer server = new BaseServer();
+        server.setDomainName("localhost:8080");
+        server.setPath("/app");
+        server.setName("shop");
+
+        AccessRecord entry = log.claim();
+        entry.setTime(0);
+        entry.setRemoteAddress("127.0.0.1");
+        entry.setMethod("GET");
+        entry.setUri("/app/a \"b\"?x=1");
+        entry.setStatus(200);
+        entry.setBytesReceived(-1);
+        entry.setBytesSent(1234);
+        entry.setDurationNanos(5678000);
+        entry.setHeadersNanos(-1);
+        entry.setContainer(server);
+        entry.setServer(server);
+        entry.setRetries(1);
+        entry.setCacheStatus(CacheResponseStatus.CACHE_HIT);
+        log.publish(entry);
+        log.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertEquals("{\"time\":\"1970-01-01T00:00:00Z\",\"remote\":\"127.0.0.1\",\"method\":\"GET\","
+                     + "\"uri\":\"/app/a \\\"b\\\"?x=1\",\"status\":200,\"bytesIn\":-1,\"bytesOut\":1234,"
+                     + "\"durationUs\":5678,\"ttfbUs\":-1,\"route\":\"shop\",\"server\":\"localhost:8080/app\","
+                     + "\"retries\":1,\"cache\":\"CACHE_HIT\"}", lines.get(0));
+        assertEquals(1, log.getWritten());
+        assertNull(log.claim());
+    }
+
+    public void testDroppedWhenFull() throws Exception {
+        File file = new File(directory, "access.log");
+        AccessLog log = new AccessLog(file, 8, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            AccessRecord entry = log.claim();
+            if (entry != null) {
+                entry.setUri("/" + i);
+                log.publish(entry);
+            }
+        }
+        assertEquals(2, log.getDropped());
+        log.start();
+        log.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(8, lines.size());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(lines.get(i), lines.get(i).contains("\"uri\":\"/" + i + "\""));
+        }
+    }
+
+    public void testConcurrentWritersKeepOrderPerThread() throws Exception {
+        File file = new File(directory, "access.log");
+        AccessLog log = new AccessLog(file, 1 << 16, 0, 0);
+        log.start();
+        int threads = 4;
+        int perThread = 5000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String method = "T" + t;
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    AccessRecord entry = log.claim();
+                    if (entry != null) {
+                        entry.setMethod(method);
+                        entry.setStatus(i);
+                        log.publish(entry);
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        log.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(threads * perThread - log.getDropped(), lines.size());
+        int[] last = new int[threads];
+        Arrays.fill(last, -1);
+        for (String line : lines) {
+            int t = line.charAt(line.indexOf("\"method\":\"T") + 11) - '0';
+            int status = Integer.parseInt(line.replaceAll(".*\"status\":(\\d+).*", "$1"));
+            assertTrue(line, status > last[t]);
+            last[t] = status;
+        }
+    }
+
+    public void testRolled() throws Exception {
+        File file = new File(directory, "access.log");
+        AccessLog log = new AccessLog(file, 16, 300, 2);
+        log.start();
+        for (int i = 0; i < 12; i++) {
+            AccessRecord entry = log.claim();
+            entry.setUri("/" + i);
+            log.publish(entry);
+            Thread.sleep(30);
+        }
+        log.close();
+
+        assertTrue(file.exists());
+        assertTrue(new File(directory, "access.log.1").exists());
+        assertTrue(new File(directory, "access.log.2").exists());
+        assertFalse(new File(directory, "access.log.3").exists());
+        assertTrue(file.length() <= 300);
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertTrue(lines.get(lines.size() - 1).contains("\"uri\":\"/11\""));
+    }
+}
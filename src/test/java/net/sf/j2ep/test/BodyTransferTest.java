@@ -0,0 +1,152 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.cache.FileRegionResourceFactory;
+import net.sf.j2ep.io.BodyTransfer;
+import net.sf.j2ep.io.BufferPool;
+import net.sf.j2ep.io.ByteBufferInputStream;
+import net.sf.j2ep.io.FileRegion;
+import org.apache.http.client.cache.Resource;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BodyTransferTest extends TestCase {
+
+    private Map<String, Object> attributes;
+    private ByteArrayOutputStream written;
+    private long contentLength;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+
+    public void setUp() {
+        attributes = new HashMap<>();
+        written = new ByteArrayOutputStream();
+        contentLength = -1;
+        request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getAttribute")) {
+                        return attributes.get(args[0]);
+                    } else if (method.getName().equals("setAttribute")) {
+                        attributes.put((String) args[0], args[1]);
+                    }
+                    return null;
+                });
+        final ServletOutputStream out = new ServletOutputStream() {
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            public void write(int b) {
+                written.write(b);
+            }
+        };
+        response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getOutputStream":
+                            return out;
+                        case "isCommitted":
+                            return false;
+                        case "setContentLengthLong":
+                            contentLength = (Long) args[0];
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    public void testCopy() throws Exception {
+        BodyTransfer.transfer(new ByteArrayInputStream("hello".getBytes()), request, response);
+        assertEquals("hello", written.toString());
+
+        written.reset();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+        buffer.put("world".getBytes()).flip();
+        BodyTransfer.transfer(new ByteBufferInputStream(buffer), request, response);
+        assertEquals("world", written.toString());
+    }
+
+    public void testPooledCopy() throws Exception {
+        BufferPool pool = new BufferPool(4096, 16384, 4);
+        BodyTransfer.setBufferPool(pool);
+        try {
+            byte[] body = new byte[100000];
+            for (int i = 0; i < body.length; i++) {
+                body[i] = (byte) i;
+            }
+            BodyTransfer.transfer(new ByteArrayInputStream(body), body.length, request, response);
+            BodyTransfer.transfer(new ByteArrayInputStream(body), body.length, request, response);
+            assertEquals(2 * body.length, written.size());
+            byte[] copied = written.toByteArray();
+            for (int i = 0; i < body.length; i++) {
+                assertEquals(body[i], copied[body.length + i]);
+            }
+            assertEquals(2, pool.getAcquired());
+            assertEquals("The second copy should reuse the buffer", 1, pool.getAllocated());
+            assertEquals(0, pool.getInUse());
+        } finally {
+            BodyTransfer.setBufferPool(null);
+        }
+    }
+
+    public void testSendFile() throws Exception {
+        File dir = Files.createTempDirectory("j2ep-files").toFile();
+        try {
+            FileRegionResourceFactory factory = new FileRegionResourceFactory(dir);
+            Resource resource = factory.generate("GET http://localhost/a", new ByteArrayInputStream(new byte[1000]), null);
+            InputStream in = resource.getInputStream();
+            assertTrue("The stream should tell where the body is", in instanceof FileRegion);
+
+            BodyTransfer.transfer(in, request, response);
+            assertEquals("Without sendfile support the body should be copied", 1000, written.size());
+
+            written.reset();
+            attributes.put(BodyTransfer.SENDFILE_SUPPORT, Boolean.TRUE);
+            BodyTransfer.transfer(resource.getInputStream(), request, response);
+            assertEquals("With sendfile support nothing should be copied", 0, written.size());
+            assertEquals(1000, contentLength);
+            assertEquals(((FileRegion) in).getFile().getAbsolutePath(), attributes.get(BodyTransfer.SENDFILE_FILENAME));
+            assertEquals(0L, attributes.get(BodyTransfer.SENDFILE_START));
+            assertEquals(1000L, attributes.get(BodyTransfer.SENDFILE_END));
+            resource.dispose();
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+}
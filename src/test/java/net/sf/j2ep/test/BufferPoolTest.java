@@ -0,0 +1,65 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.io.BufferPool;
+
+public class BufferPoolTest extends TestCase {
+
+    private BufferPool pool;
+
+    public void setUp() {
+        pool = new BufferPool(4096, 65536, 2);
+    }
+
+    public void testSizing() {
+        assertEquals(4096, pool.acquire(10).length);
+        assertEquals(4096, pool.acquire(4096).length);
+        assertEquals(8192, pool.acquire(4097).length);
+        assertEquals(65536, pool.acquire(1000000).length);
+        assertEquals("Unknown lengths should get the largest buffer", 65536, pool.acquire(-1).length);
+        assertEquals(5, pool.getInUse());
+    }
+
+    public void testReuse() {
+        byte[] buffer = pool.acquire(5000);
+        pool.release(buffer);
+        assertEquals(8192, pool.getPooledBytes());
+        assertSame(buffer, pool.acquire(6000));
+        assertEquals(2, pool.getAcquired());
+        assertEquals(1, pool.getAllocated());
+        assertEquals(1, pool.getInUse());
+        pool.release(buffer);
+        assertEquals(0, pool.getInUse());
+    }
+
+    public void testFullPool() {
+        byte[] first = pool.acquire(100);
+        byte[] second = pool.acquire(100);
+        byte[] third = pool.acquire(100);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertEquals("Only two buffers of a size should be kept", 1, pool.getDropped());
+        assertEquals(8192, pool.getPooledBytes());
+
+        pool.release(new byte[1000]);
+        assertEquals("Foreign buffers should not be kept", 2, pool.getDropped());
+    }
+}
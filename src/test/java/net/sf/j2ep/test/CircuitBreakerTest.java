@@ -0,0 +1,82 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.model.CircuitBreaker;
+
+public class CircuitBreakerTest extends TestCase {
+
+    private CircuitBreaker breaker;
+
+    protected void setUp() throws Exception {
+        breaker = new CircuitBreaker("test", 10, 4, 50, 100, 1000, 100, 2);
+    }
+
+    public void testOpenOnFailures() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue("A closed breaker should permit calls", breaker.tryAcquirePermission());
+            breaker.onResult(true, 0);
+        }
+        assertEquals("Too few calls to open the breaker", CircuitBreaker.State.CLOSED, breaker.getState());
+
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onResult(false, 0);
+        assertEquals("75% failures should open the breaker", CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse("An open breaker shouldn't permit calls", breaker.tryAcquirePermission());
+        assertEquals("The rejected call should be counted", 1, breaker.getNotPermittedCalls());
+    }
+
+    public void testOpenOnSlowCalls() {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(breaker.tryAcquirePermission());
+            breaker.onResult(false, 2000000000L);
+        }
+        assertEquals("Only slow calls should open the breaker", CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    public void testHalfOpen() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            breaker.tryAcquirePermission();
+            breaker.onResult(true, 0);
+        }
+        Thread.sleep(150);
+        assertEquals("The breaker should go half-open", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue("First probe should be permitted", breaker.tryAcquirePermission());
+        assertTrue("Second probe should be permitted", breaker.tryAcquirePermission());
+        assertFalse("Only two probes are permitted", breaker.tryAcquirePermission());
+
+        breaker.onResult(false, 0);
+        breaker.onResult(false, 0);
+        assertEquals("Successful probes should close the breaker", CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    public void testHalfOpenFailure() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            breaker.tryAcquirePermission();
+            breaker.onResult(true, 0);
+        }
+        Thread.sleep(150);
+        breaker.tryAcquirePermission();
+        breaker.tryAcquirePermission();
+        breaker.onResult(true, 0);
+        breaker.onResult(false, 0);
+        assertEquals("A failed probe should open the breaker again", CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals("The breaker has opened twice", 2, breaker.getTimesOpened());
+    }
+}
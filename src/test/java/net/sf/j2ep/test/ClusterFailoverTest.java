@@ -0,0 +1,64 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.model.Server;
+import net.sf.j2ep.servers.RoundRobinCluster;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ClusterFailoverTest extends TestCase {
+
+    private RoundRobinCluster cluster;
+    private HttpServletRequest request;
+
+    public void setUp() {
+        cluster = new RoundRobinCluster();
+        cluster.addServer("a:8080", "/app");
+        cluster.addServer("b:8080", "/app");
+        cluster.addServer("c:8080", "/app");
+        request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                              new Class<?>[]{HttpServletRequest.class},
+                                                              (proxy, method, args) -> null);
+    }
+
+    public void testFailoverKeepsDistribution() {
+        Server first = cluster.getServer(request);
+        List<Server> failed = new ArrayList<>();
+        failed.add(first);
+        Server failover = cluster.getFailoverServer(request, failed);
+        assertNotNull(failover);
+        assertNotSame(first, failover);
+        failed.add(failover);
+        Server last = cluster.getFailoverServer(request, failed);
+        assertNotNull(last);
+        assertFalse(failed.contains(last));
+        failed.add(last);
+        assertNull(cluster.getFailoverServer(request, failed));
+
+        Server second = cluster.getServer(request);
+        assertSame(failover, second);
+        assertSame(last, cluster.getServer(request));
+        assertSame(first, cluster.getServer(request));
+    }
+}
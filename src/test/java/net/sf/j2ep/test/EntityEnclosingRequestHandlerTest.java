@@ -0,0 +1,229 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.monitor.InFlightRegistry;
+import net.sf.j2ep.monitor.InFlightRequest;
+import net.sf.j2ep.requesthandlers.EntityEnclosingRequestHandler;
+import net.sf.j2ep.requesthandlers.RequestBodyReadException;
+import net.sf.j2ep.requesthandlers.RequestEntityTooLargeException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.util.EntityUtils;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class EntityEnclosingRequestHandlerTest extends TestCase {
+
+    private File dir;
+
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("j2ep-body").toFile();
+        EntityEnclosingRequestHandler.setBuffering(dir, 16, 1000);
+    }
+
+    public void tearDown() {
+        EntityEnclosingRequestHandler.setBuffering(null, 0, 0);
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testBufferedBodyIsReused() throws Exception {
+        HttpServletRequest request = request("a body longer than the memory threshold", -1);
+        EntityEnclosingRequestHandler handler = new EntityEnclosingRequestHandler();
+
+        HttpEntity first = ((HttpEntityEnclosingRequest) handler.process(request, "http://backend/post")).getEntity();
+        assertTrue(first.isRepeatable());
+        assertEquals(39, first.getContentLength());
+        assertEquals("a body longer than the memory threshold", EntityUtils.toString(first));
+
+        HttpEntity retried = ((HttpEntityEnclosingRequest) handler.process(request, "http://backend/post")).getEntity();
+        assertSame("A retried request should send the same body", first, retried);
+        assertEquals("a body longer than the memory threshold", EntityUtils.toString(retried));
+
+        EntityEnclosingRequestHandler.releaseBody(request);
+        assertEquals("The buffer file should be deleted", 0, dir.listFiles().length);
+    }
+
+    public void testTooLargeBody() throws Exception {
+        EntityEnclosingRequestHandler handler = new EntityEnclosingRequestHandler();
+        try {
+            handler.process(request("x", 5000), "http://backend/post");
+            fail("A declared length above the maximum should be refused");
+        } catch (RequestEntityTooLargeException expected) {
+        }
+        try {
+            handler.process(request(new String(new char[2000]), -1), "http://backend/post");
+            fail("A body above the maximum should be refused");
+        } catch (RequestEntityTooLargeException expected) {
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testBodyOfMaximumSize() throws Exception {
+        String body = new String(new char[1000]).replace('\0', 'x');
+        for (long length : new long[]{-1, 1000}) {
+            HttpServletRequest request = request(body, length);
+            EntityEnclosingRequestHandler.bufferBody(request, null);
+            HttpEntity entity = ((HttpEntityEnclosingRequest) new EntityEnclosingRequestHandler().process(request, "http://backend/post")).getEntity();
+            assertEquals("A body of exactly the maximum size should be accepted", 1000, entity.getContentLength());
+            assertEquals(body, EntityUtils.toString(entity));
+            EntityEnclosingRequestHandler.releaseBody(request);
+        }
+        try {
+            EntityEnclosingRequestHandler.bufferBody(request(body + "x", -1), null);
+            fail("One byte above the maximum should be refused");
+        } catch (RequestEntityTooLargeException expected) {
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testClientReadError() throws Exception {
+        HttpServletRequest request = request(null, 100);
+        try {
+            EntityEnclosingRequestHandler.bufferBody(request, null);
+            fail("A failing client should be reported");
+        } catch (RequestBodyReadException e) {
+            assertTrue(e.isTimeout());
+        }
+        assertEquals(0, dir.listFiles().length);
+
+        EntityEnclosingRequestHandler.setBuffering(null, 0, 0);
+        HttpEntity entity = ((HttpEntityEnclosingRequest) new EntityEnclosingRequestHandler().process(request, "http://backend/post")).getEntity();
+        try {
+            EntityUtils.toByteArray(entity);
+            fail("A failing client should be reported when streaming");
+        } catch (RequestBodyReadException expected) {
+        }
+    }
+
+    public void testAbortWhileBuffering() throws Exception {
+        InFlightRegistry registry = new InFlightRegistry();
+        InFlightRequest inFlight = registry.register("POST", "/post", null, null);
+        inFlight.abort();
+        try {
+            EntityEnclosingRequestHandler.bufferBody(request("a body longer than the memory threshold", -1), inFlight);
+            fail("An aborted request shouldn't be buffered");
+        } catch (RequestAbortedException expected) {
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testStreamedBodyKeepsLength() throws Exception {
+        EntityEnclosingRequestHandler.setBuffering(null, 0, 0);
+        EntityEnclosingRequestHandler handler = new EntityEnclosingRequestHandler();
+        HttpServletRequest request = request("hello", 5, "Content-Length", "5", "Transfer-Encoding", "chunked",
+                                             "Expect", "100-continue");
+
+        HttpUriRequest sent = handler.process(request, "http://backend/post");
+        assertEquals("The length should be passed on", 5, ((HttpEntityEnclosingRequest) sent).getEntity().getContentLength());
+        assertFalse(sent.containsHeader("Content-Length"));
+        assertFalse(sent.containsHeader("Transfer-Encoding"));
+        assertFalse(sent.containsHeader("Expect"));
+
+        sent = handler.process(request("hello", -1), "http://backend/post");
+        assertEquals("An unknown length should be sent chunked", -1, ((HttpEntityEnclosingRequest) sent).getEntity().getContentLength());
+    }
+
+    public void testBytesReceivedOfChunkedBody() throws Exception {
+        HttpServletRequest buffered = request("a chunked body", -1);
+        assertEquals(0, EntityEnclosingRequestHandler.getBytesReceived(buffered));
+        EntityEnclosingRequestHandler.bufferBody(buffered, null);
+        assertEquals("The bytes read should be counted", 14, EntityEnclosingRequestHandler.getBytesReceived(buffered));
+        EntityEnclosingRequestHandler.releaseBody(buffered);
+
+        EntityEnclosingRequestHandler.setBuffering(null, 0, 0);
+        HttpServletRequest streamed = request("a chunked body", -1);
+        HttpUriRequest sent = new EntityEnclosingRequestHandler().process(streamed, "http://backend/post");
+        assertEquals("a chunked body", EntityUtils.toString(((HttpEntityEnclosingRequest) sent).getEntity()));
+        assertEquals(14, EntityEnclosingRequestHandler.getBytesReceived(streamed));
+    }
+
+    private static HttpServletRequest request(String body, long length, String... headers) {
+        final Map<String, String> headerMap = new HashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            headerMap.put(headers[i], headers[i + 1]);
+        }
+        final ByteArrayInputStream in = (body != null) ? new ByteArrayInputStream(body.getBytes()) : null;
+        final ServletInputStream stream = new ServletInputStream() {
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setReadListener(ReadListener readListener) {
+            }
+
+            public int read() throws IOException {
+                if (in == null) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                return in.read();
+            }
+        };
+        final Map<String, Object> attributes = new HashMap<>();
+        return (HttpServletRequest) Proxy.newProxyInstance(EntityEnclosingRequestHandlerTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMethod":
+                            return "POST";
+                        case "getInputStream":
+                            return stream;
+                        case "getContentLengthLong":
+                            return length;
+                        case "getContentType":
+                            return "text/plain";
+                        case "getProtocol":
+                            return "HTTP/1.1";
+                        case "getHeaderNames":
+                            return Collections.enumeration(headerMap.keySet());
+                        case "getHeaders":
+                            return Collections.enumeration(Collections.singleton(headerMap.get(args[0])));
+                        case "getAttribute":
+                            return attributes.get(args[0]);
+                        case "setAttribute":
+                            attributes.put((String) args[0], args[1]);
+                            return null;
+                        case "removeAttribute":
+                            attributes.remove(args[0]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import net.sf.j2ep.jfr.FlightRecorderEvents;
+import net.sf.j2ep.jfr.LinkRewritingEvent;
+import net.sf.j2ep.jfr.RuleEvaluationEvent;
+import net.sf.j2ep.jfr.TracingConnectionManager;
+import net.sf.j2ep.servers.BaseServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FlightRecorderEventsTest extends TestCase {
+
+    public void testPhaseEvents() throws Exception {
+        BaseServer server = new BaseServer();
+        server.setDomainName("localhost:8080");
+        server.setPath("/app");
+        server.setName("shop");
+
+        List<RecordedEvent> events = record(() -> {
+            RuleEvaluationEvent ruleEvent = new RuleEvaluationEvent();
+            ruleEvent.begin();
+            ruleEvent.finish("/app/index.html", server);
+            LinkRewritingEvent rewriteEvent = new LinkRewritingEvent();
+            rewriteEvent.begin();
+            rewriteEvent.finish("/app/index.html", 2048, 2100);
+        });
+        RecordedEvent rule = find(events, "net.sf.j2ep.RuleEvaluation");
+        assertEquals("/app/index.html", rule.getString("uri"));
+        assertEquals("shop", rule.getString("container"));
+        RecordedEvent rewrite = find(events, "net.sf.j2ep.LinkRewriting");
+        assertEquals(2048, rewrite.getLong("bytesIn"));
+        assertEquals(2100, rewrite.getLong("bytesOut"));
+    }
+
+    public void testConnectionEvents() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            Thread responder = new Thread(() -> respond(listener));
+            responder.setDaemon(true);
+            responder.start();
+
+            String host = "127.0.0.1:" + listener.getLocalPort();
+            List<RecordedEvent> events = record(() -> {
+                TracingConnectionManager connectionManager = new TracingConnectionManager();
+                try (CloseableHttpClient client = HttpClients.custom().setConnectionManager(connectionManager).build();
+                     CloseableHttpResponse response = client.execute(new HttpGet("http://" + host + "/"))) {
+                    assertEquals(200, response.getStatusLine().getStatusCode());
+                    EntityUtils.consume(response.getEntity());
+                }
+            });
+            RecordedEvent lease = find(events, "net.sf.j2ep.ConnectionLease");
+            assertEquals(host, lease.getString("route"));
+            assertTrue(lease.getBoolean("leased"));
+            RecordedEvent connect = find(events, "net.sf.j2ep.Connect");
+            assertEquals(host, connect.getString("route"));
+            assertTrue(connect.getBoolean("connected"));
+        }
+    }
+
+    public void testTurnedOnWhenAsked() {
+        try {
+            assertFalse("The events should be off unless asked for", FlightRecorderEvents.isEnabled());
+            assertTrue(FlightRecorderEvents.isAvailable());
+            assertTrue(FlightRecorderEvents.setEnabled(true));
+            assertTrue(FlightRecorderEvents.isEnabled());
+        } finally {
+            FlightRecorderEvents.setEnabled(false);
+        }
+        assertFalse(FlightRecorderEvents.isEnabled());
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    private static List<RecordedEvent> record(Action action) throws Exception {
+        File file = File.createTempFile("j2ep", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                for (String name : new String[]{"RuleEvaluation", "LinkRewriting", "ConnectionLease", "Connect"}) {
+                    recording.enable("net.sf.j2ep." + name);
+                }
+                recording.start();
+                action.run();
+                recording.stop();
+                recording.dump(file.toPath());
+            }
+            return RecordingFile.readAllEvents(file.toPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static RecordedEvent find(List<RecordedEvent> events, String name) {
+        List<String> found = new ArrayList<>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                return event;
+            }
+            found.add(event.getEventType().getName());
+        }
+        fail("No " + name + " event in " + found);
+        return null;
+    }
+
+    private static void respond(ServerSocket listener) {
+        try (Socket socket = listener.accept()) {
+            InputStream in = socket.getInputStream();
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    return;
+                }
+                matched = (b == "\r\n\r\n".charAt(matched)) ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (Exception ignored) {
+        }
+    }
+}
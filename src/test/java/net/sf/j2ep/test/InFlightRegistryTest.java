@@ -0,0 +1,131 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.jfr.TracingConnectionManager;
+import net.sf.j2ep.monitor.InFlightRegistry;
+import net.sf.j2ep.monitor.InFlightRequest;
+import net.sf.j2ep.monitor.TimingRequestExecutor;
+import net.sf.j2ep.servers.BaseServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class InFlightRegistryTest extends TestCase {
+
+    private BaseServer server;
+
+    public void setUp() {
+        server = new BaseServer();
+        server.setDomainName("localhost:8080");
+        server.setPath("/app");
+        server.setName("shop");
+    }
+
+    public void testRegisterAndRemove() {
+        InFlightRegistry registry = new InFlightRegistry();
+        InFlightRequest first = registry.register("GET", "/app/a", server, server);
+        InFlightRequest second = registry.register("POST", "/app/b", server, server);
+        InFlightRequest third = registry.register("GET", "/app/c", server, server);
+        assertEquals(3, registry.size());
+        assertEquals(InFlightRequest.Phase.PREPARING, first.getPhase());
+
+        registry.remove(second);
+        List<InFlightRequest> oldest = registry.getOldest(10);
+        assertEquals(2, oldest.size());
+        assertSame(first, oldest.get(0));
+        assertSame(third, oldest.get(1));
+        assertEquals(1, registry.getOldest(1).size());
+
+        assertTrue(registry.abort(first.getId()));
+        assertTrue(first.isAborted());
+        assertFalse(registry.abort(second.getId()));
+        assertNull(registry.get(second.getId()));
+    }
+
+    public void testAbortedBeforeSent() {
+        InFlightRequest inFlight = new InFlightRegistry().register("GET", "/app/a", server, server);
+        inFlight.abort();
+        HttpGet get = new HttpGet("http://localhost:8080/app/a");
+        inFlight.setUpstream(get);
+        assertTrue(get.isAborted());
+    }
+
+    public void testAbortStuckExchange() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            Thread silent = new Thread(() -> {
+                try (Socket socket = listener.accept()) {
+                    socket.getInputStream().read(new byte[8192]);
+                    Thread.sleep(10000);
+                } catch (Exception ignored) {
+                }
+            });
+            silent.setDaemon(true);
+            silent.start();
+
+            TracingConnectionManager connectionManager = new TracingConnectionManager();
+            InFlightRegistry registry = new InFlightRegistry();
+            InFlightRequest inFlight = registry.register("GET", "/app/stuck", server, server);
+            BlockingQueue<Object> outcome = new ArrayBlockingQueue<>(1);
+            try (CloseableHttpClient client = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setRequestExecutor(new TimingRequestExecutor(3000))
+                    .build()) {
+                Thread caller = new Thread(() -> {
+                    HttpClientContext ctx = HttpClientContext.create();
+                    inFlight.startAttempt(server);
+                    ctx.setAttribute(InFlightRequest.KEY, inFlight);
+                    HttpGet get = new HttpGet("http://127.0.0.1:" + listener.getLocalPort() + "/app/stuck");
+                    inFlight.setUpstream(get);
+                    try (CloseableHttpResponse response = client.execute(get, ctx)) {
+                        outcome.add(response.getStatusLine());
+                    } catch (IOException e) {
+                        outcome.add(e);
+                    }
+                });
+                caller.start();
+
+                long deadline = System.currentTimeMillis() + 5000;
+                while (inFlight.getPhase() != InFlightRequest.Phase.WAITING_FOR_RESPONSE
+                       && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(InFlightRequest.Phase.WAITING_FOR_RESPONSE, inFlight.getPhase());
+                assertEquals(1, connectionManager.getTotalStats().getLeased());
+
+                assertTrue(registry.abort(inFlight.getId()));
+                Object result = outcome.poll(5, TimeUnit.SECONDS);
+                assertTrue(String.valueOf(result), result instanceof IOException);
+                assertEquals(0, connectionManager.getTotalStats().getLeased());
+            }
+        }
+    }
+}
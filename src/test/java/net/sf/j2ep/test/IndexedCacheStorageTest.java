@@ -0,0 +1,136 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.cache.IndexedCacheStorage;
+import net.sf.j2ep.cache.TinyLfuCacheStorage;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+import java.util.Date;
+
+public class IndexedCacheStorageTest extends TestCase {
+
+    private IndexedCacheStorage storage;
+
+    public void setUp() {
+        storage = new IndexedCacheStorage(new BasicHttpCacheStorage(CacheConfig.DEFAULT),
+                                          IndexedCacheStorage.DEFAULT_TAG_HEADER, 1000);
+    }
+
+    public void testPurgeUrl() throws Exception {
+        storage.putEntry("http://backend:80/a", entry());
+        storage.putEntry("{Accept-Encoding=gzip}http://backend:80/a", entry());
+        storage.putEntry("http://backend:80/b", entry());
+
+        assertEquals("The entry and its variant should be purged", 2, storage.purgeUrl("http://BACKEND/a"));
+        assertNull(storage.getEntry("http://backend:80/a"));
+        assertNull(storage.getEntry("{Accept-Encoding=gzip}http://backend:80/a"));
+        assertNotNull(storage.getEntry("http://backend:80/b"));
+        assertEquals(0, storage.purgeUrl("http://backend/a"));
+    }
+
+    public void testPurgePrefixAndMount() throws Exception {
+        storage.putEntry("http://backend:80/app", entry());
+        storage.putEntry("http://backend:80/app/a", entry());
+        storage.putEntry("https://backend:443/app/b?x=1", entry());
+        storage.putEntry("http://backend:80/application", entry());
+        storage.putEntry("http://other:80/app/a", entry());
+
+        assertEquals(1, storage.purgePrefix("http://backend/app/"));
+        assertNull(storage.getEntry("http://backend:80/app/a"));
+
+        assertEquals("The mount should cover both schemes", 2, storage.purgeMount("backend", "/app"));
+        assertNull(storage.getEntry("http://backend:80/app"));
+        assertNull(storage.getEntry("https://backend:443/app/b?x=1"));
+        assertNotNull("Only paths below the mount should be purged", storage.getEntry("http://backend:80/application"));
+        assertNotNull(storage.getEntry("http://other:80/app/a"));
+        assertEquals(2, storage.size());
+    }
+
+    public void testPurgeTag() throws Exception {
+        storage.putEntry("http://backend:80/a", entry("product-1 category-2"));
+        storage.putEntry("{Accept-Encoding=gzip}http://backend:80/a", entry());
+        storage.putEntry("http://backend:80/b", entry("product-2, category-2"));
+        storage.putEntry("http://backend:80/c", entry("product-3"));
+
+        assertEquals("Every entry of a tagged URL should be purged", 2, storage.purgeTag("product-1"));
+        assertNull(storage.getEntry("{Accept-Encoding=gzip}http://backend:80/a"));
+        assertEquals(1, storage.purgeTag("category-2"));
+        assertNotNull(storage.getEntry("http://backend:80/c"));
+        assertEquals(0, storage.purgeTag("unknown"));
+
+        storage.updateEntry("http://backend:80/c", existing -> entry("product-4"));
+        assertEquals(0, storage.purgeTag("product-3"));
+        assertEquals(1, storage.purgeTag("product-4"));
+        assertEquals(0, storage.size());
+    }
+
+    public void testEvictionsAreUnindexed() throws Exception {
+        TinyLfuCacheStorage tinyLfu = new TinyLfuCacheStorage(20000, 1, 1000);
+        IndexedCacheStorage indexed = new IndexedCacheStorage(tinyLfu, IndexedCacheStorage.DEFAULT_TAG_HEADER, 1000);
+        int stored = 0;
+        for (int i = 0; i < 1000; i++) {
+            indexed.putEntry("http://backend:80/" + i, entry());
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (tinyLfu.containsEntry("http://backend:80/" + i)) {
+                stored++;
+            }
+        }
+        assertTrue("Entries should have been evicted", tinyLfu.getEvictionCount() > 0);
+        assertEquals("Only the stored entries should be indexed", stored, indexed.size());
+        assertEquals("Indexing shouldn't look entries up", 0, tinyLfu.getHitCount() + tinyLfu.getMissCount());
+
+        IndexedCacheStorage refusing = new IndexedCacheStorage(new TinyLfuCacheStorage(10, 1, 10),
+                                                               IndexedCacheStorage.DEFAULT_TAG_HEADER, 1000);
+        refusing.putEntry("http://backend:80/a", entry());
+        assertEquals("A refused entry shouldn't be indexed", 0, refusing.size());
+    }
+
+    public void testSweepInBackground() throws Exception {
+        IndexedCacheStorage indexed = new IndexedCacheStorage(
+                new BasicHttpCacheStorage(CacheConfig.custom().setMaxCacheEntries(10).build()),
+                IndexedCacheStorage.DEFAULT_TAG_HEADER, 20);
+        for (int i = 0; i < 21; i++) {
+            indexed.putEntry("http://backend:80/" + i, entry());
+        }
+        for (int i = 0; i < 200 && indexed.size() > 10; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("The evicted keys should be swept", 10, indexed.size());
+    }
+
+    private static HttpCacheEntry entry(String... tags) {
+        Header[] headers = new Header[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            headers[i] = new BasicHeader(IndexedCacheStorage.DEFAULT_TAG_HEADER, tags[i]);
+        }
+        Date now = new Date();
+        return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                                  headers, new HeapResource(new byte[10]));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.cache.NegativeCache;
+import net.sf.j2ep.jmx.CacheStatistics;
+import net.sf.j2ep.jmx.Cluster;
+import net.sf.j2ep.jmx.ConnectionSettings;
+import net.sf.j2ep.jmx.MBeanRegistrar;
+import net.sf.j2ep.monitor.MetricsRegistry;
+import net.sf.j2ep.servers.RoundRobinCluster;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class MBeanRegistrarTest extends TestCase {
+
+    private MBeanServer server;
+    private MBeanRegistrar registrar;
+
+    protected void setUp() {
+        server = ManagementFactory.getPlatformMBeanServer();
+        registrar = new MBeanRegistrar("/proxy");
+    }
+
+    protected void tearDown() {
+        registrar.unregisterAll();
+    }
+
+    public void testConnectionSettings() throws Exception {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        ConnectionSettings settings = new ConnectionSettings(connectionManager, RequestConfig.custom().setSocketTimeout(10000).build());
+        ObjectName name = registrar.register(settings, "ConnectionPool", null);
+        assertEquals(new ObjectName("net.sf.j2ep:type=ConnectionPool,context=\"/proxy\""), name);
+
+        server.setAttribute(name, new Attribute("MaxTotal", 50));
+        server.setAttribute(name, new Attribute("MaxPerRoute", 7));
+        server.setAttribute(name, new Attribute("SocketTimeout", 2500));
+        assertEquals(50, connectionManager.getMaxTotal());
+        assertEquals(7, connectionManager.getDefaultMaxPerRoute());
+        assertEquals(2500, settings.getRequestConfig().getSocketTimeout());
+        assertEquals(0, server.getAttribute(name, "Leased"));
+        try {
+            settings.setConnectTimeout(-1);
+            fail("A negative timeout should be refused");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        registrar.unregisterAll();
+        assertFalse(server.isRegistered(name));
+        connectionManager.shutdown();
+    }
+
+    public void testCluster() throws Exception {
+        RoundRobinCluster cluster = new RoundRobinCluster();
+        cluster.addServer("a:8080", "/app");
+        cluster.addServer("b:8080", "/app");
+        ObjectName name = registrar.register(new Cluster(cluster), "Cluster", cluster.getName());
+        assertEquals("a:8080/app,b:8080/app", server.getAttribute(name, "Name"));
+        assertEquals(2, server.getAttribute(name, "OnlineMembers"));
+
+        Object found = server.invoke(name, "setOffline", new Object[]{"b:8080/app"}, new String[]{String.class.getName()});
+        assertEquals(Boolean.TRUE, found);
+        assertFalse(cluster.isOnline("b:8080/app"));
+        String[] members = (String[]) server.getAttribute(name, "Members");
+        assertEquals("a:8080/app online closed", members[0]);
+        assertEquals("b:8080/app offline closed", members[1]);
+        assertEquals(Boolean.FALSE, server.invoke(name, "setOnline", new Object[]{"c:8080/app"}, new String[]{String.class.getName()}));
+        assertEquals(1, server.getAttribute(name, "OnlineMembers"));
+    }
+
+    public void testCacheStatistics() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.recordCacheResponse(CacheResponseStatus.CACHE_HIT);
+        metrics.recordCacheResponse(CacheResponseStatus.VALIDATED);
+        metrics.recordCacheResponse(CacheResponseStatus.CACHE_MISS);
+        metrics.recordCacheResponse(CacheResponseStatus.CACHE_MISS);
+        ObjectName name = registrar.register(new CacheStatistics(metrics, new NegativeCache(1024, 256), null, null, null), "Cache", null);
+        assertEquals(0.5, (Double) server.getAttribute(name, "CacheHitRatio"), 0.001);
+        assertEquals(-1, server.getAttribute(name, "ValidatorCacheSize"));
+        assertEquals(0L, server.getAttribute(name, "NegativeCacheHits"));
+        try {
+            server.invoke(name, "purgeTag", new Object[]{"news"}, new String[]{String.class.getName()});
+            fail("Purging should fail without a purge index");
+        } catch (Exception expected) {
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.cache.MappedResource;
+import net.sf.j2ep.cache.MappedSegmentCacheStorage;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class MappedSegmentCacheStorageTest extends TestCase {
+
+    private File directory;
+
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("j2ep-cache").toFile();
+    }
+
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testPutAndGet() throws Exception {
+        MappedSegmentCacheStorage storage = new MappedSegmentCacheStorage(directory, 64 * 1024, 2, 100);
+        storage.putEntry("http://localhost/a", entry(1000, (byte) 7));
+        HttpCacheEntry cached = storage.getEntry("http://localhost/a");
+        assertNotNull(cached);
+        assertEquals(200, cached.getStatusCode());
+        assertEquals("text/plain", cached.getFirstHeader("Content-Type").getValue());
+        assertTrue("The body should be read from the mapped segment", cached.getResource() instanceof MappedResource);
+        assertEquals(1000, cached.getResource().length());
+        assertTrue(Arrays.equals(body(1000, (byte) 7), read(cached.getResource().getInputStream())));
+        assertNull(storage.getEntry("http://localhost/b"));
+        assertTrue(storage.containsEntry("http://localhost/a"));
+        assertFalse(storage.containsEntry("http://localhost/b"));
+        assertEquals("A check shouldn't count as a lookup", 1, storage.getHitCount());
+
+        storage.removeEntry("http://localhost/a");
+        assertNull(storage.getEntry("http://localhost/a"));
+        assertEquals(0, storage.getLiveBytes());
+        storage.close();
+    }
+
+    public void testCompaction() throws Exception {
+        MappedSegmentCacheStorage storage = new MappedSegmentCacheStorage(directory, 4096, 2, 100);
+        List<String> evicted = new ArrayList<>();
+        storage.setEvictionListener(evicted::add);
+        storage.putEntry("http://localhost/keep", entry(500, (byte) 1));
+        for (int i = 0; i < 50; i++) {
+            storage.putEntry("http://localhost/replaced", entry(500, (byte) i));
+        }
+        assertTrue("Segments should have been compacted", storage.getCompactionCount() > 0);
+        assertEquals(2, storage.getSize());
+        assertTrue(Arrays.equals(body(500, (byte) 1), read(storage.getEntry("http://localhost/keep").getResource().getInputStream())));
+        assertTrue(Arrays.equals(body(500, (byte) 49), read(storage.getEntry("http://localhost/replaced").getResource().getInputStream())));
+        storage.putEntry("http://localhost/large", entry(5000, (byte) 1));
+        assertEquals("A refused entry should be reported", Collections.singletonList("http://localhost/large"), evicted);
+
+        storage.close();
+        assertEquals("The segment files should be deleted", 0, directory.listFiles().length);
+    }
+
+    public void testRetiredSegmentsKeptForGracePeriod() throws Exception {
+        MappedSegmentCacheStorage storage = new MappedSegmentCacheStorage(directory, 4096, 2, 100);
+        for (int i = 0; i < 50; i++) {
+            storage.putEntry("http://localhost/replaced", entry(500, (byte) i));
+        }
+        assertTrue("Both slots should have been compacted", storage.getCompactionCount() >= 2);
+        assertEquals("Every compacted segment should be kept during the grace period",
+                     2 + storage.getCompactionCount(), directory.listFiles().length);
+
+        storage.setRetiredGracePeriod(0);
+        storage.putEntry("http://localhost/replaced", entry(3000, (byte) 1));
+        storage.putEntry("http://localhost/replaced", entry(3000, (byte) 2));
+        assertEquals("Only the last compacted segment should be kept", 3, directory.listFiles().length);
+
+        storage.close();
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    public void testWarmRestart() throws Exception {
+        MappedSegmentCacheStorage storage = new MappedSegmentCacheStorage(directory, 4096, 4, 100, true);
+        for (int i = 0; i < 10; i++) {
+            storage.putEntry("http://localhost/" + i, entry(500, (byte) i));
+        }
+        storage.removeEntry("http://localhost/3");
+        storage.close();
+
+        storage = new MappedSegmentCacheStorage(directory, 4096, 4, 100, true);
+        for (int i = 0; i < 100 && !storage.isIndexLoaded(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("The index should be loaded", storage.isIndexLoaded());
+        assertEquals(9, storage.getSize());
+        assertNull(storage.getEntry("http://localhost/3"));
+        assertTrue(Arrays.equals(body(500, (byte) 7), read(storage.getEntry("http://localhost/7").getResource().getInputStream())));
+
+        storage.putEntry("http://localhost/new", entry(500, (byte) 1));
+        assertNotNull(storage.getEntry("http://localhost/new"));
+        storage.close();
+
+        storage = new MappedSegmentCacheStorage(directory, 4096, 4, 100, false);
+        assertEquals("A storage that isn't persistent should start empty", 0, storage.getSize());
+        storage.close();
+    }
+
+    private static HttpCacheEntry entry(int size, byte value) {
+        Date now = new Date();
+        return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                                  new Header[]{new BasicHeader("Content-Type", "text/plain")},
+                                  new HeapResource(body(size, value)));
+    }
+
+    private static byte[] body(int size, byte value) {
+        byte[] body = new byte[size];
+        Arrays.fill(body, value);
+        return body;
+    }
+
+    private static byte[] read(InputStream in) throws Exception {
+        return EntityUtils.toByteArray(new InputStreamEntity(in));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.monitor.LatencyHistogram;
+import net.sf.j2ep.monitor.MetricsRegistry;
+import net.sf.j2ep.monitor.RouteMetrics;
+import net.sf.j2ep.servers.BaseServer;
+
+import java.util.concurrent.TimeUnit;
+
+public class MetricsRegistryTest extends TestCase {
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500000, snapshot.getSum());
+        assertWithin(500000, snapshot.getPercentile(50));
+        assertWithin(990000, snapshot.getPercentile(99));
+        assertWithin(1000000, snapshot.getMax());
+        assertEquals(0, snapshot.getCountAtOrBelow(900));
+        long below = snapshot.getCountAtOrBelow(100000);
+        assertTrue("About 100 values should be below 100 ms, got " + below, below >= 96 && below <= 100);
+    }
+
+    public void testLargeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(-5);
+        histogram.recordNanos(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50));
+        assertTrue(snapshot.getMax() > TimeUnit.DAYS.toMicros(10));
+    }
+
+    public void testRoutes() {
+        BaseServer server = new BaseServer();
+        server.setDomainName("localhost:8080");
+        server.setPath("/app");
+        MetricsRegistry registry = new MetricsRegistry();
+        RouteMetrics container = registry.getContainerMetrics(server);
+        assertEquals("localhost:8080/app", container.getName());
+        assertSame(container, registry.getContainerMetrics(server));
+
+        container.record(5000000, 3000000, 2000000, 200, 100, 2048);
+        container.record(4000000, 4000000, 0, 404, -1, 0);
+        container.record(1000000, -1, -1, 0, -1, 0);
+        assertEquals(3, container.getRequests());
+        assertEquals(1, container.getStatusClass(2));
+        assertEquals(1, container.getStatusClass(4));
+        assertEquals(1, container.getFailures());
+        assertEquals(100, container.getBytesReceived());
+        assertEquals(2048, container.getBytesSent());
+        assertEquals(3, container.getTotal().snapshot().getCount());
+        assertEquals(2, container.getHeaders().snapshot().getCount());
+
+        server.setName("shop");
+        registry.getContainerMetrics(server);
+        assertEquals(2, registry.getContainers().size());
+        assertEquals("localhost:8080/app", registry.getContainers().get(0).getName());
+        assertEquals("localhost:8080/app", registry.getServerMetrics(server).getName());
+    }
+
+    /**
+     * Checks that a value from the histogram is within its precision.
+     */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + ", got " + actual, Math.abs(actual - expected) <= expected * 0.035);
+    }
+}
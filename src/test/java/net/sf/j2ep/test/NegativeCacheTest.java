@@ -0,0 +1,100 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.cache.NegativeCache;
+import net.sf.j2ep.io.DetachedHttpResponse;
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+
+public class NegativeCacheTest extends TestCase {
+
+    public void testCacheUntilExpired() throws Exception {
+        NegativeCache cache = new NegativeCache(100000, 1000);
+        String key = cache.createKey(new HttpGet("http://backend/missing"));
+        assertNotNull(key);
+        assertNull(cache.createKey(new HttpPost("http://backend/missing")));
+
+        CloseableHttpResponse response = cache.put(key, response(404, "Not here"), 50);
+        assertEquals("Not here", EntityUtils.toString(response.getEntity()));
+
+        HttpClientContext ctx = HttpClientContext.create();
+        CloseableHttpResponse cached = cache.get(key, ctx);
+        assertNotNull(cached);
+        assertTrue(NegativeCache.isHit(ctx));
+        assertEquals(404, cached.getStatusLine().getStatusCode());
+        assertEquals("Not here", EntityUtils.toString(cached.getEntity()));
+        assertEquals(1, cache.getHits());
+
+        Thread.sleep(100);
+        assertNull("The response should expire", cache.get(key, HttpClientContext.create()));
+        assertEquals(0, cache.getWeight());
+    }
+
+    public void testPrivateAndLargeResponsesAreNotCached() throws Exception {
+        NegativeCache cache = new NegativeCache(100000, 10);
+        String key = cache.createKey(new HttpGet("http://backend/missing"));
+
+        CloseableHttpResponse withCookie = response(404, "x", new BasicHeader("Set-Cookie", "a=b"));
+        assertSame(withCookie, cache.put(key, withCookie, 1000));
+        CloseableHttpResponse large = cache.put(key, response(404, "More than ten bytes"), 1000);
+        assertEquals("The body should be intact", "More than ten bytes", EntityUtils.toString(large.getEntity()));
+        assertNull(cache.get(key, HttpClientContext.create()));
+        assertEquals(0, cache.getStores());
+    }
+
+    public void testWeightBound() throws Exception {
+        NegativeCache cache = new NegativeCache(2000, 1000);
+        for (int i = 0; i < 100; i++) {
+            cache.put(cache.createKey(new HttpGet("http://backend/" + i)), response(404, "Not found"), 10000);
+        }
+        assertTrue("The weight should stay below the maximum", cache.getWeight() <= 2000);
+        assertNotNull("The latest response should be kept",
+                      cache.get(cache.createKey(new HttpGet("http://backend/99")), HttpClientContext.create()));
+        assertNull(cache.get(cache.createKey(new HttpGet("http://backend/0")), HttpClientContext.create()));
+    }
+
+    public void testPurge() throws Exception {
+        NegativeCache cache = new NegativeCache(100000, 1000);
+        String[] urls = {"http://backend/app/a", "http://backend:80/app/b", "http://backend/other/c", "http://other/app/d"};
+        for (String url : urls) {
+            HttpGet get = new HttpGet(url);
+            get.setHeader("Accept-Encoding", "gzip");
+            cache.put(cache.createKey(get), response(404, "Not found"), 10000);
+        }
+        assertEquals(1, cache.purgeUrl("http://backend:80/app/a"));
+        assertEquals(1, cache.purgePrefix("http://backend/app/"));
+        assertEquals(1, cache.purgeMount("backend", "/other"));
+        assertEquals(1, cache.clear());
+        assertEquals(0, cache.getWeight());
+    }
+
+    private static CloseableHttpResponse response(int status, String body, Header... headers) {
+        return new DetachedHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, status, "Error"),
+                                        headers, new ByteArrayEntity(body.getBytes()));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.monitor.LatencyHistogram;
+import net.sf.j2ep.monitor.PrometheusWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class PrometheusWriterTest extends TestCase {
+
+    public void testSamples() throws IOException {
+        PrometheusWriter writer = new PrometheusWriter(16);
+        writer.family("j2ep_server", "_requests_total", "counter", "Requests\nhandled.");
+        writer.metric("j2ep_server", "_requests_total").label("server", "a\"b\\c\nd").label("class", "2xx").value(1234567890123L);
+        writer.metric("j2ep_connections", "_leased").value(0);
+        writer.metric("j2ep_test", "").label("name", "héllo €😀").value(-42);
+        assertEquals("# HELP j2ep_server_requests_total Requests\\nhandled.\n"
+                     + "# TYPE j2ep_server_requests_total counter\n"
+                     + "j2ep_server_requests_total{server=\"a\\\"b\\\\c\\nd\",class=\"2xx\"} 1234567890123\n"
+                     + "j2ep_connections_leased 0\n"
+                     + "j2ep_test{name=\"héllo €😀\"} -42\n", render(writer));
+    }
+
+    public void testHistogram() throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(500));
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        histogram.recordNanos(TimeUnit.SECONDS.toNanos(90));
+        PrometheusWriter writer = new PrometheusWriter(16);
+        writer.histogram("j2ep_server", "_request_duration_seconds", "server", "s", histogram);
+        String text = render(writer);
+        assertTrue(text, text.startsWith("j2ep_server_request_duration_seconds_bucket{server=\"s\",le=\"0.001\"} 1\n"));
+        assertTrue(text, text.contains("_bucket{server=\"s\",le=\"0.01\"} 1\n"));
+        assertTrue(text, text.contains("_bucket{server=\"s\",le=\"0.025\"} 3\n"));
+        assertTrue(text, text.contains("_bucket{server=\"s\",le=\"60\"} 3\n"));
+        assertTrue(text, text.contains("_bucket{server=\"s\",le=\"+Inf\"} 4\n"));
+        assertTrue(text, text.contains("j2ep_server_request_duration_seconds_sum{server=\"s\"} 90.040500\n"));
+        assertTrue(text, text.endsWith("j2ep_server_request_duration_seconds_count{server=\"s\"} 4\n"));
+    }
+
+    public void testReuse() throws IOException {
+        PrometheusWriter writer = new PrometheusWriter(16);
+        for (int i = 0; i < 1000; i++) {
+            writer.metric("j2ep_container", "_requests_total").label("container", "route" + i).value(i);
+        }
+        String first = render(writer);
+        writer.reset();
+        assertEquals(0, writer.size());
+        for (int i = 0; i < 1000; i++) {
+            writer.metric("j2ep_container", "_requests_total").label("container", "route" + i).value(i);
+        }
+        assertEquals(first, render(writer));
+        assertTrue(first.contains("j2ep_container_requests_total{container=\"route999\"} 999\n"));
+    }
+
+    private static String render(PrometheusWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        assertEquals(writer.size(), out.size());
+        return out.toString("UTF-8");
+    }
+}
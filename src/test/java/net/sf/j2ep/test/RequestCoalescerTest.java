@@ -0,0 +1,170 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.cache.RequestCoalescer;
+import net.sf.j2ep.io.DetachedHttpResponse;
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestCoalescerTest extends TestCase {
+
+    private RequestCoalescer coalescer;
+
+    public void setUp() {
+        coalescer = new RequestCoalescer(5000, 16, "Accept");
+    }
+
+    public void testKeys() {
+        HttpGet get = new HttpGet("http://localhost/a");
+        get.setHeader("Accept", "text/html");
+        HttpGet other = new HttpGet("http://localhost/a");
+        other.setHeader("Accept", "text/plain");
+        assertNotNull("A plain GET should be coalesced", coalescer.createKey(get));
+        assertFalse("Different Accept headers should give different keys",
+                    coalescer.createKey(get).equals(coalescer.createKey(other)));
+
+        assertNull("POST shouldn't be coalesced", coalescer.createKey(new HttpPost("http://localhost/a")));
+        get.setHeader("Authorization", "Basic xyz");
+        assertNull("Requests with credentials shouldn't be coalesced", coalescer.createKey(get));
+    }
+
+    public void testCoalescing() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+        final RequestCoalescer.Exchange exchange = () -> {
+            executed.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            return response("hello", new Header[0]);
+        };
+
+        final String[] bodies = new String[4];
+        Thread[] threads = new Thread[bodies.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try (CloseableHttpResponse hresp = coalescer.execute("key", exchange)) {
+                    bodies[index] = EntityUtils.toString(hresp.getEntity());
+                } catch (Exception e) {
+                    bodies[index] = e.toString();
+                }
+            });
+            threads[i].start();
+        }
+        while (coalescer.getLeaders() == 0) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Only one request should reach the server", 1, executed.get());
+        assertEquals(bodies.length - 1, coalescer.getCoalesced());
+        for (String body : bodies) {
+            assertEquals("hello", body);
+        }
+    }
+
+    public void testAbortedFollowerStopsWaiting() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RequestCoalescer.Exchange exchange = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            return response("hello", new Header[0]);
+        };
+        Thread leader = new Thread(() -> {
+            try {
+                coalescer.execute("key", exchange).close();
+            } catch (Exception ignored) {
+            }
+        });
+        leader.start();
+        while (coalescer.getLeaders() == 0) {
+            Thread.sleep(5);
+        }
+
+        final HttpGet follower = new HttpGet("http://localhost/a");
+        final Exception[] thrown = new Exception[1];
+        Thread waiting = new Thread(() -> {
+            try {
+                coalescer.execute("key", follower, exchange).close();
+            } catch (Exception e) {
+                thrown[0] = e;
+            }
+        });
+        waiting.start();
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        follower.abort();
+        waiting.join(2000);
+        assertFalse("The follower should stop waiting when aborted", waiting.isAlive());
+        assertTrue(System.nanoTime() - start < 2000000000L);
+        assertTrue(String.valueOf(thrown[0]), thrown[0] instanceof RequestAbortedException);
+        assertEquals(0, coalescer.getFallbacks());
+
+        release.countDown();
+        leader.join();
+    }
+
+    public void testLeaderWithoutFollowersIsNotBuffered() throws Exception {
+        CloseableHttpResponse original = response("hello", new Header[0]);
+        CloseableHttpResponse hresp = coalescer.execute("key", () -> original);
+        assertSame("The response should be streamed when nobody waits for it", original, hresp);
+        assertEquals("hello", EntityUtils.toString(hresp.getEntity()));
+        assertEquals(1, coalescer.getLeaders());
+    }
+
+    public void testLargeBodyIsNotShared() throws Exception {
+        CloseableHttpResponse hresp = coalescer.execute("key", () -> response("a body larger than sixteen bytes", new Header[0]));
+        assertEquals("The leader should get its whole body back",
+                     "a body larger than sixteen bytes", EntityUtils.toString(hresp.getEntity()));
+    }
+
+    public void testPrivateResponseIsNotShared() throws Exception {
+        CloseableHttpResponse hresp = coalescer.execute("key", () -> response("secret", new Header[]{new BasicHeader("Set-Cookie", "id=1")}));
+        assertFalse("Responses setting cookies shouldn't be buffered", hresp.getEntity() instanceof ByteArrayEntity);
+        assertEquals("secret", EntityUtils.toString(hresp.getEntity()));
+    }
+
+    private static CloseableHttpResponse response(String body, Header[] headers) {
+        return new DetachedHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"), headers,
+                                        new InputStreamEntity(
+                                                new ByteArrayInputStream(body.getBytes()), -1));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.servers.RetryBudget;
+
+public class RetryBudgetTest extends TestCase {
+
+    public void testDeposits() {
+        RetryBudget budget = new RetryBudget(20, 0);
+        assertFalse("An empty budget shouldn't allow retries", budget.tryWithdraw());
+
+        for (int i = 0; i < 10; i++) {
+            budget.deposit();
+        }
+        assertTrue("10 requests at 20% should give a retry", budget.tryWithdraw());
+        assertTrue("10 requests at 20% should give a second retry", budget.tryWithdraw());
+        assertFalse("The budget should now be spent", budget.tryWithdraw());
+    }
+
+    public void testMaxBalance() {
+        RetryBudget budget = new RetryBudget(100, 0);
+        for (int i = 0; i < 1000; i++) {
+            budget.deposit();
+        }
+        assertEquals("The balance should be capped", 100, budget.getBalance());
+    }
+
+    public void testReserve() {
+        RetryBudget budget = new RetryBudget(0, 3);
+        int allowed = 0;
+        for (int i = 0; i < 10; i++) {
+            if (budget.tryWithdraw()) {
+                allowed++;
+            }
+        }
+        assertTrue("The reserve should allow a few retries", allowed >= 3);
+        assertTrue("The reserve shouldn't allow all the retries", allowed < 10);
+    }
+
+    public void testNegative() {
+        try {
+            new RetryBudget(-1, 0);
+            fail("Should throw exception, the budget can't be negative");
+        } catch (IllegalArgumentException e) {
+
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.ProxyFilter;
+import net.sf.j2ep.RewriteFilter;
+import net.sf.j2ep.monitor.MetricsRegistry;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RewriteFilterTest extends TestCase {
+
+    private ServerSocket listener;
+
+    private File dataFile;
+
+    private Map<String, Object> contextAttributes;
+
+    private ServletContext context;
+
+    public void setUp() throws Exception {
+        listener = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        dataFile = File.createTempFile("j2ep-data", ".xml");
+        String host = "127.0.0.1:" + listener.getLocalPort();
+        Files.write(dataFile.toPath(), ("<config>\n"
+                + "<server className=\"net.sf.j2ep.servers.BaseServer\" domainName=\"" + host + "\" isRewriting=\"true\">\n"
+                + "<rule className=\"net.sf.j2ep.rules.DirectoryRule\" directory=\"/app\"/>\n"
+                + "</server>\n"
+                + "</config>\n").getBytes(StandardCharsets.UTF_8));
+        contextAttributes = new HashMap<>();
+        context = (ServletContext) Proxy.newProxyInstance(RewriteFilterTest.class.getClassLoader(),
+                new Class<?>[]{ServletContext.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRealPath":
+                            return dataFile.getAbsolutePath();
+                        case "getContextPath":
+                            return "";
+                        case "getAttribute":
+                            return contextAttributes.get(args[0]);
+                        case "setAttribute":
+                            contextAttributes.put((String) args[0], args[1]);
+                            return null;
+                        case "removeAttribute":
+                            contextAttributes.remove(args[0]);
+                            return null;
+                        default:
+                            return defaultValue(method);
+                    }
+                });
+    }
+
+    public void tearDown() throws Exception {
+        listener.close();
+        dataFile.delete();
+    }
+
+    public void testPageRewrittenAfterAsyncProxying() throws Exception {
+        String page = "<html><a href=\"http://127.0.0.1:" + listener.getLocalPort() + "/page.html\">next</a></html>";
+        Thread responder = new Thread(() -> respond(listener, page));
+        responder.setDaemon(true);
+        responder.start();
+
+        ProxyFilter proxyFilter = new ProxyFilter();
+        proxyFilter.init(config("metrics", "true"));
+        RewriteFilter rewriteFilter = new RewriteFilter();
+        rewriteFilter.init(config());
+        try {
+            CountDownLatch completed = new CountDownLatch(1);
+            Map<String, String> headers = new HashMap<>();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            HttpServletRequest request = request(completed);
+            HttpServletResponse response = response(headers, body);
+
+            rewriteFilter.doFilter(request, response, (rq, rs) -> proxyFilter.doFilter(rq, rs, (r, s) -> fail("The request should be proxied")));
+            assertTrue("The request should go async", request.isAsyncStarted());
+            assertTrue("The request should complete", completed.await(10, TimeUnit.SECONDS));
+
+            String rewritten = new String(body.toByteArray(), StandardCharsets.ISO_8859_1);
+            assertEquals("<html><a href=\"http://proxy:8080/app/page.html\">next</a></html>", rewritten);
+            assertEquals("The length of the rewritten page should be sent",
+                         String.valueOf(body.size()), headers.get("Content-Length"));
+            assertTrue(headers.get("ETag"), headers.get("ETag").startsWith("\"j2ep-"));
+            MetricsRegistry metrics = (MetricsRegistry) contextAttributes.get(MetricsRegistry.class.getName());
+            assertEquals(page.length(), metrics.getRewriteBytesIn());
+            assertEquals(body.size(), metrics.getRewriteBytesOut());
+        } finally {
+            rewriteFilter.destroy();
+            proxyFilter.destroy();
+        }
+    }
+
+    private FilterConfig config(String... params) {
+        final Map<String, String> paramMap = new HashMap<>();
+        paramMap.put("dataUrl", "/WEB-INF/data.xml");
+        for (int i = 0; i < params.length; i += 2) {
+            paramMap.put(params[i], params[i + 1]);
+        }
+        return (FilterConfig) Proxy.newProxyInstance(RewriteFilterTest.class.getClassLoader(),
+                new Class<?>[]{FilterConfig.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getServletContext":
+                            return context;
+                        case "getInitParameter":
+                            return paramMap.get(args[0]);
+                        case "getInitParameterNames":
+                            return Collections.enumeration(paramMap.keySet());
+                        default:
+                            return defaultValue(method);
+                    }
+                });
+    }
+
+    private HttpServletRequest request(final CountDownLatch completed) {
+        final Map<String, Object> attributes = new HashMap<>();
+        final AsyncContext[] asyncContext = new AsyncContext[1];
+        return (HttpServletRequest) Proxy.newProxyInstance(RewriteFilterTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMethod":
+                            return "GET";
+                        case "getRequestURI":
+                        case "getServletPath":
+                            return "/app/index.html";
+                        case "getRequestURL":
+                            return new StringBuffer("http://proxy:8080/app/index.html");
+                        case "getContextPath":
+                            return "";
+                        case "getScheme":
+                            return "http";
+                        case "getServerName":
+                            return "proxy";
+                        case "getServerPort":
+                            return 8080;
+                        case "getProtocol":
+                            return "HTTP/1.1";
+                        case "getRemoteAddr":
+                            return "127.0.0.1";
+                        case "getHeaderNames":
+                        case "getHeaders":
+                            return Collections.emptyEnumeration();
+                        case "getServletContext":
+                            return context;
+                        case "getAttribute":
+                            return attributes.get(args[0]);
+                        case "setAttribute":
+                            attributes.put((String) args[0], args[1]);
+                            return null;
+                        case "removeAttribute":
+                            attributes.remove(args[0]);
+                            return null;
+                        case "startAsync":
+                            assertNotNull("The async context should carry the wrapped response", args);
+                            asyncContext[0] = asyncContext(args[0], args[1], completed);
+                            return asyncContext[0];
+                        case "getAsyncContext":
+                            return asyncContext[0];
+                        case "isAsyncStarted":
+                            return asyncContext[0] != null;
+                        default:
+                            return defaultValue(method);
+                    }
+                });
+    }
+
+    private static AsyncContext asyncContext(final Object request, final Object response, final CountDownLatch completed) {
+        return (AsyncContext) Proxy.newProxyInstance(RewriteFilterTest.class.getClassLoader(),
+                new Class<?>[]{AsyncContext.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRequest":
+                            return request;
+                        case "getResponse":
+                            return response;
+                        case "start":
+                            new Thread((Runnable) args[0]).start();
+                            return null;
+                        case "complete":
+                            completed.countDown();
+                            return null;
+                        default:
+                            return defaultValue(method);
+                    }
+                });
+    }
+
+    private static HttpServletResponse response(final Map<String, String> headers, final ByteArrayOutputStream body) {
+        final ServletOutputStream stream = new ServletOutputStream() {
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            public void write(int b) {
+                body.write(b);
+            }
+        };
+        final int[] status = {HttpServletResponse.SC_OK};
+        return (HttpServletResponse) Proxy.newProxyInstance(RewriteFilterTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getOutputStream":
+                            return stream;
+                        case "setStatus":
+                            status[0] = (Integer) args[0];
+                            return null;
+                        case "getStatus":
+                            return status[0];
+                        case "addHeader":
+                        case "setHeader":
+                            headers.put((String) args[0], (String) args[1]);
+                            return null;
+                        case "getHeader":
+                            return headers.get(args[0]);
+                        case "containsHeader":
+                            return headers.containsKey(args[0]);
+                        case "getContentType":
+                            return headers.get("Content-Type");
+                        case "setContentLengthLong":
+                            headers.put("Content-Length", String.valueOf(args[0]));
+                            return null;
+                        case "getCharacterEncoding":
+                            return "ISO-8859-1";
+                        default:
+                            return defaultValue(method);
+                    }
+                });
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static void respond(ServerSocket listener, String page) {
+        try (Socket socket = listener.accept()) {
+            InputStream in = socket.getInputStream();
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    return;
+                }
+                matched = (b == "\r\n\r\n".charAt(matched)) ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: " + page.length()
+                       + "\r\nConnection: close\r\n\r\n" + page).getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (Exception ignored) {
+        }
+    }
+}
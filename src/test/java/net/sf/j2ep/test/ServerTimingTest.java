@@ -0,0 +1,103 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.monitor.ServerTiming;
+import net.sf.j2ep.monitor.TimingConnectionManager;
+import net.sf.j2ep.monitor.TimingRequestExecutor;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public class ServerTimingTest extends TestCase {
+
+    public void testEntry() {
+        assertEquals("rewrite;dur=0.000", ServerTiming.entry("rewrite", 999));
+        assertEquals("rewrite;dur=0.007", ServerTiming.entry("rewrite", 7000));
+        assertEquals("rewrite;dur=0.042", ServerTiming.entry("rewrite", 42000));
+        assertEquals("rewrite;dur=12.345", ServerTiming.entry("rewrite", 12345678));
+    }
+
+    public void testUnmeasuredPhasesLeftOut() {
+        ServerTiming timing = new ServerTiming();
+        assertEquals("", timing.toHeader());
+        timing.setRouting(250000);
+        assertEquals("routing;dur=0.250", timing.toHeader());
+        timing.startAttempt();
+        assertEquals("routing;dur=0.250", timing.toHeader());
+    }
+
+    public void testClientPhases() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            Thread responder = new Thread(() -> respond(listener));
+            responder.setDaemon(true);
+            responder.start();
+
+            ServerTiming timing = new ServerTiming();
+            timing.startAttempt();
+            Thread.sleep(50);
+            HttpClientContext ctx = HttpClientContext.create();
+            ctx.setAttribute(ServerTiming.KEY, timing);
+            try (CloseableHttpClient client = HttpClients.custom()
+                    .setConnectionManager(new TimingConnectionManager())
+                    .setRequestExecutor(new TimingRequestExecutor(3000))
+                    .build();
+                 CloseableHttpResponse response = client.execute(
+                         new HttpGet("http://127.0.0.1:" + listener.getLocalPort() + "/"), ctx)) {
+                assertEquals(200, response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+            }
+            String header = timing.toHeader();
+            assertTrue(header, header.matches("pool-wait;dur=\\d+\\.\\d{3}, connect;dur=\\d+\\.\\d{3}, upstream-ttfb;dur=\\d+\\.\\d{3}"));
+            assertFalse(header, header.contains("upstream-ttfb;dur=0.000"));
+            assertTrue("The pool wait should start when the connection is asked for",
+                       timing.getPoolWaitNanos() < 40000000L);
+        }
+    }
+
+    private static void respond(ServerSocket listener) {
+        try (Socket socket = listener.accept()) {
+            InputStream in = socket.getInputStream();
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    return;
+                }
+                matched = (b == "\r\n\r\n".charAt(matched)) ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+            Thread.sleep(20);
+            OutputStream out = socket.getOutputStream();
+            out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (Exception ignored) {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.monitor.ServerTiming;
+import net.sf.j2ep.monitor.SlowRequest;
+import net.sf.j2ep.monitor.SlowRequestSampler;
+import net.sf.j2ep.servers.BaseServer;
+
+import java.util.List;
+
+public class SlowRequestSamplerTest extends TestCase {
+
+    private static final long MINUTE = 60000;
+
+    private BaseServer server;
+
+    public void setUp() {
+        server = new BaseServer();
+        server.setDomainName("localhost:8080");
+        server.setPath("/app");
+        server.setName("shop");
+    }
+
+    public void testKeepsSlowest() {
+        SlowRequestSampler sampler = new SlowRequestSampler(3, 5);
+        SlowRequestSampler.Reservoir reservoir = sampler.getReservoir(server);
+        long now = 100 * MINUTE;
+        for (int i = 1; i <= 10; i++) {
+            long duration = ((i * 7) % 10 + 1) * 1000000L;
+            if (reservoir.isSlowEnough(duration, now)) {
+                reservoir.offer(sample(now, duration));
+            }
+        }
+        assertFalse(reservoir.isSlowEnough(8000000, now));
+        assertTrue(reservoir.isSlowEnough(9000001, now));
+
+        List<SlowRequest> slowest = reservoir.getSlowest(now);
+        assertEquals(3, slowest.size());
+        assertEquals(10000000, slowest.get(0).getDurationNanos());
+        assertEquals(9000000, slowest.get(1).getDurationNanos());
+        assertEquals(8000000, slowest.get(2).getDurationNanos());
+        assertEquals("shop", sampler.getReservoirs().get(0).getName());
+    }
+
+    public void testOldRequestsForgotten() {
+        SlowRequestSampler sampler = new SlowRequestSampler(2, 5);
+        SlowRequestSampler.Reservoir reservoir = sampler.getReservoir(server);
+        long start = 100 * MINUTE;
+        reservoir.offer(sample(start, 50000000));
+        reservoir.offer(sample(start + 2 * MINUTE, 10000000));
+        reservoir.offer(sample(start + 2 * MINUTE, 20000000));
+
+        assertEquals(50000000, reservoir.getSlowest(start + 3 * MINUTE).get(0).getDurationNanos());
+        List<SlowRequest> later = reservoir.getSlowest(start + 6 * MINUTE);
+        assertEquals(2, later.size());
+        assertEquals(20000000, later.get(0).getDurationNanos());
+
+        assertTrue(reservoir.isSlowEnough(1, start + 6 * MINUTE));
+        reservoir.offer(sample(start + 6 * MINUTE, 1000));
+        assertEquals(10000000, reservoir.getSlowest(start + 6 * MINUTE).get(1).getDurationNanos());
+        List<SlowRequest> latest = reservoir.getSlowest(start + 8 * MINUTE);
+        assertEquals(1, latest.size());
+        assertEquals(1000, latest.get(0).getDurationNanos());
+        assertEquals(0, reservoir.getSlowest(start + 12 * MINUTE).size());
+    }
+
+    public void testTimelineCompletedAfterSampling() {
+        SlowRequestSampler sampler = new SlowRequestSampler(1, 1);
+        SlowRequestSampler.Reservoir reservoir = sampler.getReservoir(server);
+        ServerTiming timing = new ServerTiming();
+        timing.setRouting(1000);
+        timing.startAttempt();
+        timing.requestSent();
+        timing.responseReceived();
+        reservoir.offer(new SlowRequest(MINUTE, "GET", "/app/a", 200, 5000000, null, server, 0, 100, timing));
+        timing.setRewrite(3000);
+
+        ServerTiming kept = reservoir.getSlowest(MINUTE).get(0).getTiming();
+        assertEquals(1000, kept.getRoutingNanos());
+        assertTrue(kept.getPoolWaitNanos() >= 0);
+        assertEquals(0, kept.getConnectNanos());
+        assertTrue(kept.getTtfbNanos() >= 0);
+        assertEquals(3000, kept.getRewriteNanos());
+    }
+
+    private SlowRequest sample(long time, long duration) {
+        return new SlowRequest(time, "GET", "/app/" + duration, 200, duration, null, server, 0, 0, new ServerTiming());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.io.SpooledEntity;
+import net.sf.j2ep.responsehandlers.GetResponseHandler;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class SpooledEntityTest extends TestCase {
+
+    private File dir;
+
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("j2ep-spool").toFile();
+    }
+
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testSmallBodyInMemory() throws Exception {
+        SpooledEntity spooled = SpooledEntity.spool(entity(100, -1), 1024, 4096, dir);
+        assertFalse(spooled.isStreaming());
+        assertEquals(100, spooled.getContentLength());
+        assertEquals("text/html", spooled.getContentType().getValue());
+        assertEquals("Nothing should be written to disk", 0, dir.listFiles().length);
+        assertTrue(Arrays.equals(body(100), EntityUtils.toByteArray(spooled)));
+    }
+
+    public void testLargeBodyInFile() throws Exception {
+        SpooledEntity spooled = SpooledEntity.spool(entity(3000, 3000), 1024, 4096, dir);
+        assertFalse(spooled.isStreaming());
+        assertTrue(spooled.isRepeatable());
+        assertEquals(3000, spooled.getContentLength());
+        assertEquals(1, dir.listFiles().length);
+        assertTrue(Arrays.equals(body(3000), EntityUtils.toByteArray(spooled)));
+        assertTrue("The body should be readable again", Arrays.equals(body(3000), EntityUtils.toByteArray(spooled)));
+
+        spooled.close();
+        assertEquals("The file should be deleted", 0, dir.listFiles().length);
+    }
+
+    public void testTooLargeBodyStreamsTheRest() throws Exception {
+        SpooledEntity spooled = SpooledEntity.spool(entity(10000, -1), 1024, 4096, dir);
+        assertTrue(spooled.isStreaming());
+        assertEquals(-1, spooled.getContentLength());
+        assertTrue(Arrays.equals(body(10000), EntityUtils.toByteArray(spooled)));
+        spooled.close();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testBodyOfExactSizes() throws Exception {
+        SpooledEntity spooled = SpooledEntity.spool(entity(1024, -1), 1024, 4096, dir);
+        assertFalse(spooled.isStreaming());
+        assertEquals("A body filling the memory exactly needs no file", 0, dir.listFiles().length);
+
+        spooled = SpooledEntity.spool(entity(4096, -1), 1024, 4096, dir);
+        assertFalse("A body of the largest size should be spooled completely", spooled.isStreaming());
+        assertEquals(4096, spooled.getContentLength());
+        assertTrue(Arrays.equals(body(4096), EntityUtils.toByteArray(spooled)));
+        spooled.close();
+
+        spooled = SpooledEntity.spool(entity(4097, -1), 1024, 4096, dir);
+        assertTrue(spooled.isStreaming());
+        assertTrue(Arrays.equals(body(4097), EntityUtils.toByteArray(spooled)));
+        spooled.close();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testProxiedBodyLeavesNoFile() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+             CloseableHttpClient client = HttpClients.createDefault()) {
+            Thread responder = new Thread(() -> respond(listener));
+            responder.setDaemon(true);
+            responder.start();
+            for (int size : new int[]{3000, 10000}) {
+                CloseableHttpResponse hresp = client.execute(new HttpGet("http://127.0.0.1:" + listener.getLocalPort() + "/" + size));
+                GetResponseHandler handler = new GetResponseHandler(hresp);
+                handler.spool(1024, 4096, dir);
+                assertEquals(1, dir.listFiles().length);
+
+                ByteArrayOutputStream written = new ByteArrayOutputStream();
+                handler.process(response(written));
+                handler.close();
+                assertTrue(Arrays.equals(body(size), written.toByteArray()));
+                assertEquals("The file should be deleted when the handler is closed", 0, dir.listFiles().length);
+            }
+        }
+    }
+
+    private static void respond(ServerSocket listener) {
+        while (true) {
+            try (Socket socket = listener.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                int size = Integer.parseInt(in.readLine().split(" ")[1].substring(1));
+                while (!in.readLine().isEmpty()) {
+                }
+                OutputStream out = socket.getOutputStream();
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + size + "\r\nConnection: close\r\n\r\n")
+                                  .getBytes(StandardCharsets.US_ASCII));
+                out.write(body(size));
+                out.flush();
+            } catch (Exception e) {
+                return;
+            }
+        }
+    }
+
+    private static HttpServletResponse response(final ByteArrayOutputStream written) {
+        final ServletOutputStream out = new ServletOutputStream() {
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            public void write(int b) {
+                written.write(b);
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(SpooledEntityTest.class.getClassLoader(),
+                                                            new Class<?>[]{HttpServletResponse.class},
+                                                            (proxy, method, args) -> method.getName().equals("getOutputStream")
+                                                                                     ? out
+                                                                                     : (method.getName().equals("isCommitted") ? false : null));
+    }
+
+    private static InputStreamEntity entity(int size, long length) {
+        return new InputStreamEntity(new ByteArrayInputStream(body(size)), length, ContentType.create("text/html"));
+    }
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) (i * 31);
+        }
+        return body;
+    }
+}
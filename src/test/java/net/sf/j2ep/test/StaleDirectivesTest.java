@@ -0,0 +1,95 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.cache.ProxyCachingHttpClientBuilder;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.util.EntityUtils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+public class StaleDirectivesTest extends TestCase {
+
+    public void testServerCacheControlSentToClient() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            Thread responder = new Thread(() -> respond(listener));
+            responder.setDaemon(true);
+            responder.start();
+
+            BasicHttpCacheStorage storage = new BasicHttpCacheStorage(CacheConfig.DEFAULT);
+            String url = "http://127.0.0.1:" + listener.getLocalPort() + "/page";
+            try (CloseableHttpClient client = ProxyCachingHttpClientBuilder.create().setHttpCacheStorage(storage).build()) {
+                for (CacheResponseStatus expected : new CacheResponseStatus[]{CacheResponseStatus.CACHE_MISS,
+                                                                              CacheResponseStatus.CACHE_HIT}) {
+                    HttpClientContext ctx = HttpClientContext.create();
+                    ProxyCachingHttpClientBuilder.setStaleDirectives(ctx, 30, 600);
+                    try (CloseableHttpResponse response = client.execute(new HttpGet(url), ctx)) {
+                        EntityUtils.consume(response.getEntity());
+                        assertEquals(expected, HttpCacheContext.adapt(ctx).getCacheResponseStatus());
+                        assertEquals(1, response.getHeaders("Cache-Control").length);
+                        assertEquals("max-age=60, stale-if-error=5", response.getFirstHeader("Cache-Control").getValue());
+                        assertEquals(0, response.getHeaders("X-J2EP-Original-Cache-Control").length);
+                    }
+                }
+            }
+            HttpCacheEntry entry = storage.getEntry("http://127.0.0.1:" + listener.getLocalPort() + "/page");
+            assertEquals("max-age=60, stale-while-revalidate=30, stale-if-error=600",
+                         entry.getFirstHeader("Cache-Control").getValue());
+        }
+    }
+
+    private static void respond(ServerSocket listener) {
+        while (true) {
+            try (Socket socket = listener.accept()) {
+                InputStream in = socket.getInputStream();
+                int matched = 0;
+                while (matched < 4) {
+                    int b = in.read();
+                    if (b < 0) {
+                        break;
+                    }
+                    matched = (b == "\r\n\r\n".charAt(matched)) ? matched + 1 : (b == '\r' ? 1 : 0);
+                }
+                OutputStream out = socket.getOutputStream();
+                out.write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=60, stale-if-error=5\r\n"
+                           + "Date: " + DateUtils.formatDate(new Date()) + "\r\n"
+                           + "Content-Length: 2\r\nConnection: close\r\n\r\nok").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            } catch (Exception e) {
+                return;
+            }
+        }
+    }
+}
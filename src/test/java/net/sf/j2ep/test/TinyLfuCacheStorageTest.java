@@ -0,0 +1,94 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.cache.TinyLfuCacheStorage;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicStatusLine;
+
+import java.util.Date;
+
+public class TinyLfuCacheStorageTest extends TestCase {
+
+    public void testPutAndGet() throws Exception {
+        TinyLfuCacheStorage storage = new TinyLfuCacheStorage(1024 * 1024, 4, 100);
+        HttpCacheEntry entry = entry(100);
+        storage.putEntry("http://localhost/a", entry);
+        assertSame(entry, storage.getEntry("http://localhost/a"));
+        assertNull(storage.getEntry("http://localhost/b"));
+        assertEquals(1, storage.getHitCount());
+        assertEquals(1, storage.getMissCount());
+
+        storage.removeEntry("http://localhost/a");
+        assertNull(storage.getEntry("http://localhost/a"));
+        assertEquals(0, storage.getWeight());
+    }
+
+    public void testWeightBound() throws Exception {
+        TinyLfuCacheStorage storage = new TinyLfuCacheStorage(10000, 1, 100);
+        for (int i = 0; i < 100; i++) {
+            storage.putEntry("http://localhost/" + i, entry(500));
+        }
+        assertTrue("The weight should stay below the maximum", storage.getWeight() <= 10000);
+        assertTrue("Entries should have been evicted", storage.getEvictionCount() > 0);
+
+        storage.putEntry("http://localhost/huge", entry(20000));
+        assertNull("Entries heavier than the storage shouldn't be stored", storage.getEntry("http://localhost/huge"));
+    }
+
+    public void testFrequentEntriesSurviveScans() throws Exception {
+        TinyLfuCacheStorage storage = new TinyLfuCacheStorage(20000, 1, 100);
+        for (int i = 0; i < 10; i++) {
+            storage.putEntry("http://localhost/hot" + i, entry(500));
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                storage.getEntry("http://localhost/hot" + i);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            storage.putEntry("http://localhost/scan" + i, entry(500));
+        }
+        int hot = 0;
+        for (int i = 0; i < 10; i++) {
+            if (storage.getEntry("http://localhost/hot" + i) != null) {
+                hot++;
+            }
+        }
+        assertTrue("The frequently used entries should survive a scan, " + hot + " did", hot >= 8);
+    }
+
+    public void testAllStripesUsed() throws Exception {
+        TinyLfuCacheStorage storage = new TinyLfuCacheStorage(1024 * 20000, 1024, 10000);
+        for (int i = 0; i < 10000; i++) {
+            storage.putEntry("http://localhost/" + i, entry(500));
+        }
+        assertEquals("Half the weight should fit without evictions", 0, storage.getEvictionCount());
+    }
+
+    private static HttpCacheEntry entry(int size) {
+        Date now = new Date();
+        return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                                  new Header[0], new HeapResource(new byte[size]));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.UrlRewritingResponseWrapper;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+
+public class UrlRewritingResponseWrapperTest extends TestCase {
+
+    public void testBytesAfterRewriteAreEncoded() throws Exception {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final ServletOutputStream out = new ServletOutputStream() {
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            public void write(int b) {
+                written.write(b);
+            }
+        };
+        HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getOutputStream":
+                            return out;
+                        case "getContentType":
+                            return "text/html; charset=UTF-8";
+                        case "getCharacterEncoding":
+                            return "UTF-8";
+                        case "getStatus":
+                            return HttpServletResponse.SC_OK;
+                        default:
+                            return null;
+                    }
+                });
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> null);
+
+        String page = "<p>Gr\u00fc\u00dfe \u2603</p>";
+        UrlRewritingResponseWrapper wrapper = new UrlRewritingResponseWrapper(response, null, "proxy", "", null);
+        wrapper.getOutputStream().write(page.getBytes(StandardCharsets.UTF_8));
+        wrapper.processStream(request);
+
+        assertEquals("The bytes sent should be counted", written.size(), wrapper.getBytesAfterRewrite());
+        assertTrue("The characters shouldn't be counted",
+                   wrapper.getBytesAfterRewrite() > new String(written.toByteArray(), StandardCharsets.UTF_8).length());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2005 Anders Nyman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.j2ep.test;
+
+import junit.framework.TestCase;
+
+import net.sf.j2ep.cache.ValidatorCache;
+import net.sf.j2ep.io.DetachedHttpResponse;
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+import java.util.Date;
+
+public class ValidatorCacheTest extends TestCase {
+
+    public void testAnswerIfNoneMatch() throws Exception {
+        ValidatorCache cache = new ValidatorCache(100);
+        String key = cache.createKey(new HttpGet("http://backend/page"));
+        assertNull(cache.createKey(new HttpPost("http://backend/page")));
+        cache.update(key, response(200, new BasicHeader("ETag", "\"v1\""), new BasicHeader("Cache-Control", "max-age=60")));
+
+        HttpClientContext ctx = HttpClientContext.create();
+        CloseableHttpResponse notModified = cache.get(key, conditional("If-None-Match", "W/\"v0\", \"v1\""), ctx);
+        assertNotNull(notModified);
+        assertTrue(ValidatorCache.isHit(ctx));
+        assertEquals(304, notModified.getStatusLine().getStatusCode());
+        assertEquals("\"v1\"", notModified.getFirstHeader("ETag").getValue());
+        assertEquals("max-age=60", notModified.getFirstHeader("Cache-Control").getValue());
+        assertNotNull(notModified.getFirstHeader("Age"));
+
+        assertNull(cache.get(key, conditional("If-None-Match", "\"v2\""), HttpClientContext.create()));
+        assertNull("Unconditional requests go to the server", cache.get(key, new HttpGet("http://backend/page"), HttpClientContext.create()));
+
+        cache.invalidate(key);
+        assertNull(cache.get(key, conditional("If-None-Match", "\"v1\""), HttpClientContext.create()));
+    }
+
+    public void testAnswerIfModifiedSince() throws Exception {
+        ValidatorCache cache = new ValidatorCache(100);
+        String key = cache.createKey(new HttpGet("http://backend/page"));
+        Date modified = new Date(System.currentTimeMillis() - 3600000);
+        cache.update(key, response(200, new BasicHeader("Last-Modified", DateUtils.formatDate(modified)),
+                                   new BasicHeader("Date", DateUtils.formatDate(new Date())),
+                                   new BasicHeader("Expires", DateUtils.formatDate(new Date(System.currentTimeMillis() + 60000)))));
+
+        assertNotNull(cache.get(key, conditional("If-Modified-Since", DateUtils.formatDate(new Date())), HttpClientContext.create()));
+        assertNull(cache.get(key, conditional("If-Modified-Since", DateUtils.formatDate(new Date(modified.getTime() - 60000))),
+                             HttpClientContext.create()));
+    }
+
+    public void testUncacheableResponses() throws Exception {
+        ValidatorCache cache = new ValidatorCache(100);
+        String key = cache.createKey(new HttpGet("http://backend/page"));
+        cache.update(key, response(200, new BasicHeader("ETag", "\"v1\""), new BasicHeader("Cache-Control", "no-cache")));
+        cache.update(key, response(200, new BasicHeader("ETag", "\"v1\"")));
+        cache.update(key, response(200, new BasicHeader("ETag", "\"v1\""), new BasicHeader("Cache-Control", "max-age=60"),
+                                   new BasicHeader("Vary", "Cookie")));
+        assertEquals(0, cache.size());
+
+        cache.update(key, response(200, new BasicHeader("ETag", "\"v1\""), new BasicHeader("Cache-Control", "max-age=60")));
+        cache.update(key, response(500));
+        assertEquals("An error should forget the validators", 0, cache.size());
+    }
+
+    public void testRewrittenETag() throws Exception {
+        ValidatorCache cache = new ValidatorCache(100);
+        String key = cache.createKey(new HttpGet("http://backend/page"));
+        cache.update(key, response(200, new BasicHeader("ETag", "\"v1\""), new BasicHeader("Cache-Control", "max-age=60")));
+        cache.setETag(key, "\"j2ep-1\"");
+        assertNull(cache.get(key, conditional("If-None-Match", "\"v1\""), HttpClientContext.create()));
+
+        cache.update(key, response(304, new BasicHeader("ETag", "\"v1\""), new BasicHeader("Cache-Control", "max-age=120")));
+        CloseableHttpResponse notModified = cache.get(key, conditional("If-None-Match", "\"j2ep-1\""), HttpClientContext.create());
+        assertNotNull("A 304 from the server should keep the rewritten ETag", notModified);
+        assertEquals("\"j2ep-1\"", notModified.getFirstHeader("ETag").getValue());
+    }
+
+    public void testUnsafeMethods() {
+        assertTrue(ValidatorCache.isUnsafe("POST"));
+        assertTrue(ValidatorCache.isUnsafe("PUT"));
+        assertTrue(ValidatorCache.isUnsafe("DELETE"));
+        assertTrue(ValidatorCache.isUnsafe("PATCH"));
+        assertFalse("A GET with credentials shouldn't forget the validators", ValidatorCache.isUnsafe("GET"));
+        assertFalse(ValidatorCache.isUnsafe("HEAD"));
+        assertFalse(ValidatorCache.isUnsafe("OPTIONS"));
+    }
+
+    private static HttpGet conditional(String name, String value) {
+        HttpGet get = new HttpGet("http://backend/page");
+        get.setHeader(name, value);
+        return get;
+    }
+
+    private static CloseableHttpResponse response(int status, Header... headers) {
+        return new DetachedHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, status, "Status"), headers, null);
+    }
+}